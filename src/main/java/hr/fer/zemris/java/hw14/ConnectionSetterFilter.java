@@ -1,11 +1,12 @@
 package hr.fer.zemris.java.hw14;
 
-import hr.fer.zemris.java.tecaj_14.dao.sql.SQLConnectionProvider;
+import hr.fer.zemris.java.tecaj_14.dao.DAOProvider;
+import hr.fer.zemris.java.tecaj_14.dao.sql.DBContext;
 
 import java.io.IOException;
-import java.sql.Connection;
-import java.sql.SQLException;
 
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -13,16 +14,29 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletResponse;
 import javax.sql.DataSource;
 
 /**
  * This web filter is responsible for obtaining database connection from pool
- * and for returning it. Connection passing from this filter to the actual
- * JDBC-based DAO implementation is be done through ThreadLocal singleton.
+ * and for returning it. Connections are passed from this filter to the actual
+ * JDBC-based DAO implementation in a request-scoped {@linkplain DBContext},
+ * stored as a request attribute, which servlets hand to the DAO with
+ * {@linkplain DAOProvider#getDao(DBContext)}. Since the context is not bound
+ * to a thread, work handed over to other threads can keep using it.
+ * <p>
+ * The context knows both the primary (write) pool and the read-only pool and
+ * borrows a connection from either pool only when the DAO first asks for it.
+ * All borrowed connections are returned once the request has been processed.
+ * If the request goes asynchronous, the context is closed only when the
+ * asynchronous processing completes.
+ * <p>
+ * Until the {@linkplain Inicijalizacija} marks the application ready, every
+ * request is answered with <tt>503 Service Unavailable</tt>.
  *
  * @author Mario Bobic
  */
-@WebFilter(filterName="connectionSetter",urlPatterns={"/*"})
+@WebFilter(filterName="connectionSetter",urlPatterns={"/*"},asyncSupported=true)
 public class ConnectionSetterFilter implements Filter {
 
     @Override
@@ -37,21 +51,71 @@ public class ConnectionSetterFilter implements Filter {
     public void doFilter(ServletRequest request, ServletResponse response,
             FilterChain chain) throws IOException, ServletException {
 
-        DataSource ds = (DataSource)request.getServletContext().getAttribute("hr.fer.zemris.dbpool");
-        Connection con = null;
+        if (request.getServletContext().getAttribute(Inicijalizacija.READY_ATTRIBUTE) == null) {
+            HttpServletResponse resp = (HttpServletResponse) response;
+            resp.setHeader("Retry-After", "5");
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Application is starting.");
+            return;
+        }
 
-        try {
-            con = ds.getConnection();
-        } catch (SQLException e) {
-            throw new IOException("Database unavailable.", e);
+        DataSource ds = (DataSource)request.getServletContext().getAttribute("hr.fer.zemris.dbpool");
+        DataSource readDs = (DataSource)request.getServletContext().getAttribute("hr.fer.zemris.dbpool.read");
+        if (ds == null) {
+            throw new IOException("Database unavailable.");
         }
-        SQLConnectionProvider.setConnection(con);
+        DBContext context = new DBContext(ds, readDs);
+        request.setAttribute(DBContext.ATTRIBUTE, context);
 
         try {
             chain.doFilter(request, response);
         } finally {
-            SQLConnectionProvider.setConnection(null);
-            try { con.close(); } catch (SQLException ignorable) {}
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new ContextClosingListener(context));
+            } else {
+                context.close();
+            }
+        }
+    }
+
+    /**
+     * An async listener that closes the database context of an asynchronous
+     * request once the request is done.
+     *
+     * @author Mario Bobic
+     */
+    private static class ContextClosingListener implements AsyncListener {
+
+        /** Database context of the request. */
+        private final DBContext context;
+
+        /**
+         * Constructs an instance of {@code ContextClosingListener} that closes
+         * the specified <tt>context</tt>.
+         *
+         * @param context database context of the request
+         */
+        public ContextClosingListener(DBContext context) {
+            this.context = context;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            context.close();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            context.close();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            context.close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            event.getAsyncContext().addListener(this);
         }
     }
 
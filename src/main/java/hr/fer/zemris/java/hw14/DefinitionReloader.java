@@ -0,0 +1,397 @@
+package hr.fer.zemris.java.hw14;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContext;
+import javax.sql.DataSource;
+
+import hr.fer.zemris.java.hw14.VotingUtil.BandInfo;
+import hr.fer.zemris.java.hw14.VotingUtil.Info;
+import hr.fer.zemris.java.hw14.VotingUtil.Poll;
+import hr.fer.zemris.java.hw14.VotingUtil.WebsiteInfo;
+import hr.fer.zemris.java.hw14.cache.PollVersions;
+
+/**
+ * Reloads the poll, band and website definition files while the application
+ * is running. The <tt>WEB-INF</tt> directory is watched with a
+ * {@linkplain WatchService}, and once the definition files have changed and
+ * then stayed unchanged for a short while, they are compared with the tables.
+ * <p>
+ * Polls are matched by title and options by poll and title. New polls and
+ * options are inserted, and polls with a changed message and options with a
+ * changed link are updated, all in one batched transaction per database.
+ * Options are defined only for the band and website polls, so a new poll
+ * starts with no options; the DAO serves its options, once added to the
+ * tables, the same way as the website options.
+ * Nothing is ever deleted and vote counts are never touched, so votes keep
+ * flowing while a reload is applied; only the rows being changed are locked.
+ * Once the transaction commits, the poll IDs and definitions kept in memory
+ * are replaced at once and the {@linkplain PollVersions catalog version} is
+ * increased, which outdates cached pages and responses.
+ * <p>
+ * If sharding is configured, every shard is reloaded the same way and in the
+ * same order, so generated IDs keep matching across shards. The differences
+ * are applied to every database before any of them commits, so a failure
+ * while applying them leaves all databases unchanged. A commit that fails
+ * after others have succeeded can not be undone; the failed databases are
+ * logged and the remaining ones are still committed.
+ *
+ * @author Mario Bobic
+ */
+public class DefinitionReloader {
+
+    /** Logger of the reloader. */
+    private static final Logger LOGGER = Logger.getLogger(DefinitionReloader.class.getName());
+
+    /** Names of the watched definition files. */
+    private static final Set<String> FILES = new HashSet<>(Arrays.asList(
+            "polls.txt",
+            "bands-definition.txt", "bands-results.txt",
+            "websites-definition.txt", "websites-results.txt"));
+    /** Time the files must stay unchanged before they are reloaded. */
+    private static final long QUIET_MILLIS = 500;
+
+    /** Servlet context of the application. */
+    private final ServletContext context;
+    /** Pools of all databases, the primary one first. */
+    private final List<DataSource> pools;
+    /** Watch service of the <tt>WEB-INF</tt> directory. */
+    private final WatchService watchService;
+    /** Watching thread. */
+    private final Thread thread;
+
+    /**
+     * Constructs an instance of {@code DefinitionReloader} and starts
+     * watching the <tt>WEB-INF</tt> directory.
+     *
+     * @param context servlet context of the application
+     * @param pools pools of all databases, the primary one first
+     * @throws IOException if the directory can not be watched
+     */
+    public DefinitionReloader(ServletContext context, List<DataSource> pools) throws IOException {
+        this.context = context;
+        this.pools = pools;
+
+        String dir = context.getRealPath("/WEB-INF");
+        if (dir == null) {
+            throw new IOException("WEB-INF is not a directory on disk.");
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        Paths.get(dir).register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        thread = new Thread(this::watch, "definition-reloader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching.
+     */
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException ignorable) {
+        }
+        thread.interrupt();
+    }
+
+    /**
+     * Waits for changes of the definition files and reloads them, until the
+     * watch service is closed.
+     */
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = collect(key);
+
+                // wait until the files stay unchanged, so half-written files are not read
+                while (true) {
+                    key = watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+                    if (key == null) {
+                        break;
+                    }
+                    changed |= collect(key);
+                }
+
+                if (changed) {
+                    try {
+                        reload();
+                    } catch (IOException | RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Failed to reload definitions, keeping the current ones.", e);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Returns true if any of the events of the specified key concerns a
+     * definition file, and resets the key.
+     *
+     * @param key a signalled watch key
+     * @return true if a definition file has changed
+     */
+    private static boolean collect(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object name = event.context();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || name instanceof Path && FILES.contains(name.toString())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    /**
+     * Parses the definition files and applies the differences to every
+     * database, then replaces the definitions kept in memory if the primary
+     * database has committed them.
+     *
+     * @throws IOException if the files can not be read
+     */
+    public synchronized void reload() throws IOException {
+        long t = System.nanoTime();
+        List<Poll> polls = VotingUtil.getPollList(context);
+        List<BandInfo> bands = VotingUtil.getBandList(context);
+        List<WebsiteInfo> websites = VotingUtil.getWebsiteList(context);
+        String checksum = VotingUtil.getDefinitionChecksum(context);
+
+        List<Connection> connections = new ArrayList<>();
+        List<Boolean> autoCommits = new ArrayList<>();
+        List<Integer> failed = new ArrayList<>();
+        Diff total = null;
+        try {
+            for (int i = 0; i < pools.size(); i++) {
+                try {
+                    Connection con = pools.get(i).getConnection();
+                    connections.add(con);
+                    autoCommits.add(con.getAutoCommit());
+                    con.setAutoCommit(false);
+                    Diff diff = apply(con, polls, bands, websites);
+                    Inicijalizacija.storeChecksum(con, checksum);
+                    if (total == null) {
+                        total = diff;
+                    }
+                } catch (SQLException | RuntimeException e) {
+                    for (Connection con : connections) {
+                        try { con.rollback(); } catch (SQLException ignorable) {}
+                    }
+                    throw new RuntimeException("Failed to reload definitions in pool " + i
+                            + ", no pool was changed.", e);
+                }
+            }
+
+            // keep committing after a failure, so as few databases as possible fall behind
+            for (int i = 0; i < connections.size(); i++) {
+                try {
+                    connections.get(i).commit();
+                } catch (SQLException e) {
+                    LOGGER.log(Level.SEVERE, "Failed to commit reloaded definitions in pool " + i + ".", e);
+                    failed.add(i);
+                }
+            }
+        } finally {
+            for (int i = 0; i < connections.size(); i++) {
+                Connection con = connections.get(i);
+                if (i < autoCommits.size()) {
+                    try { con.setAutoCommit(autoCommits.get(i)); } catch (SQLException ignorable) {}
+                }
+                try { con.close(); } catch (SQLException ignorable) {}
+            }
+        }
+
+        if (!failed.isEmpty()) {
+            LOGGER.severe("Reloaded definitions were not committed in pools " + failed + " of "
+                    + pools.size() + ", which no longer match the others.");
+            if (failed.contains(0)) {
+                return;
+            }
+        }
+
+        Inicijalizacija.definitionsReloaded(polls, bands, websites, Collections.unmodifiableMap(total.pollIDs));
+        if (total.isEmpty()) {
+            LOGGER.info("Definitions reloaded, nothing changed.");
+            return;
+        }
+        PollVersions.catalogChanged();
+        LOGGER.info(String.format("Definitions reloaded in %d ms: %d polls inserted, %d updated; "
+                + "%d options inserted, %d updated.", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t),
+                total.pollsInserted, total.pollsUpdated, total.optionsInserted, total.optionsUpdated));
+    }
+
+    /**
+     * Applies the differences between the specified definitions and the
+     * tables of the specified connection, without committing them. The
+     * connection must not be in auto-commit mode.
+     *
+     * @param con connection to the database
+     * @param polls poll definitions
+     * @param bands band definitions
+     * @param websites website definitions
+     * @return the applied differences
+     * @throws SQLException if an SQL error occurs
+     */
+    private static Diff apply(Connection con, List<Poll> polls, List<BandInfo> bands,
+            List<WebsiteInfo> websites) throws SQLException {
+        Diff diff = new Diff();
+        Map<String, Long> pollIDs = new HashMap<>();
+        Map<String, String> messages = new HashMap<>();
+        try (Statement st = con.createStatement();
+                ResultSet rset = st.executeQuery("SELECT id, title, message FROM Polls ORDER BY id")) {
+            while (rset.next()) {
+                pollIDs.put(rset.getString(2), rset.getLong(1));
+                messages.put(rset.getString(2), rset.getString(3));
+            }
+        }
+
+        try (PreparedStatement insert = con.prepareStatement(
+                    "INSERT INTO Polls(title, message) VALUES (?,?)", Statement.RETURN_GENERATED_KEYS);
+                PreparedStatement update = con.prepareStatement(
+                    "UPDATE Polls SET message = ? WHERE id = ?")) {
+            for (Poll poll : polls) {
+                Long id = pollIDs.get(poll.title);
+                if (id == null) {
+                    insert.setString(1, poll.title);
+                    insert.setString(2, poll.message);
+                    insert.executeUpdate();
+                    try (ResultSet keys = insert.getGeneratedKeys()) {
+                        if (!keys.next()) {
+                            throw new SQLException("Failed to insert poll, id not available.");
+                        }
+                        pollIDs.put(poll.title, keys.getLong(1));
+                    }
+                    diff.pollsInserted++;
+                } else if (!poll.message.equals(messages.get(poll.title))) {
+                    update.setString(1, poll.message);
+                    update.setLong(2, id);
+                    update.addBatch();
+                    diff.pollsUpdated++;
+                }
+            }
+            if (diff.pollsUpdated > 0) {
+                update.executeBatch();
+            }
+        }
+
+        Map<Long, Map<String, String>> links = new HashMap<>();
+        try (Statement st = con.createStatement();
+                ResultSet rset = st.executeQuery("SELECT pollID, optionTitle, optionLink FROM PollOptions")) {
+            while (rset.next()) {
+                links.computeIfAbsent(rset.getLong(1), k -> new HashMap<>())
+                     .put(rset.getString(2), rset.getString(3));
+            }
+        }
+
+        try (PreparedStatement insert = con.prepareStatement(
+                    "INSERT INTO PollOptions(optionTitle, optionLink, pollID, votesCount) VALUES (?,?,?,?)");
+                PreparedStatement update = con.prepareStatement(
+                    "UPDATE PollOptions SET optionLink = ? WHERE pollID = ? AND optionTitle = ?")) {
+            diffOptions(pollIDs.get(Inicijalizacija.BANDS_POLL), bands, links, insert, update, diff);
+            diffOptions(pollIDs.get(Inicijalizacija.WEBSITES_POLL), websites, links, insert, update, diff);
+            if (diff.optionsInserted > 0) {
+                insert.executeBatch();
+            }
+            if (diff.optionsUpdated > 0) {
+                update.executeBatch();
+            }
+        }
+
+        diff.pollIDs = pollIDs;
+        return diff;
+    }
+
+    /**
+     * Adds the inserts and updates of the options of one poll to the
+     * specified batches.
+     *
+     * @param pollID ID of the poll, or <tt>null</tt> if it does not exist
+     * @param options option definitions of the poll
+     * @param links current option links mapped by poll ID and option title
+     * @param insert batch of inserts
+     * @param update batch of updates
+     * @param diff the differences, updated by this method
+     * @throws SQLException if an SQL error occurs
+     */
+    private static void diffOptions(Long pollID, List<? extends Info> options, Map<Long, Map<String, String>> links,
+            PreparedStatement insert, PreparedStatement update, Diff diff) throws SQLException {
+        if (pollID == null) {
+            return;
+        }
+        Map<String, String> current = links.getOrDefault(pollID, Collections.emptyMap());
+        for (Info option : options) {
+            String link = current.get(option.name);
+            if (link == null) {
+                insert.setString(1, option.name);
+                insert.setString(2, option.link);
+                insert.setLong(3, pollID);
+                insert.setLong(4, option.getVotes());
+                insert.addBatch();
+                diff.optionsInserted++;
+            } else if (!link.equals(option.link)) {
+                update.setString(1, option.link);
+                update.setLong(2, pollID);
+                update.setString(3, option.name);
+                update.addBatch();
+                diff.optionsUpdated++;
+            }
+        }
+    }
+
+    /**
+     * Differences applied to one database.
+     *
+     * @author Mario Bobic
+     */
+    private static class Diff {
+        /** Number of inserted polls. */
+        int pollsInserted;
+        /** Number of updated polls. */
+        int pollsUpdated;
+        /** Number of inserted options. */
+        int optionsInserted;
+        /** Number of updated options. */
+        int optionsUpdated;
+        /** IDs of all polls mapped by title. */
+        Map<String, Long> pollIDs;
+
+        /**
+         * Returns true if nothing has changed.
+         *
+         * @return true if nothing has changed
+         */
+        boolean isEmpty() {
+            return pollsInserted + pollsUpdated + optionsInserted + optionsUpdated == 0;
+        }
+    }
+
+}
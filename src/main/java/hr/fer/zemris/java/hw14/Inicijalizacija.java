@@ -1,26 +1,58 @@
 package hr.fer.zemris.java.hw14;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 import javax.servlet.annotation.WebListener;
-
-import com.mchange.v2.c3p0.ComboPooledDataSource;
-import com.mchange.v2.c3p0.DataSources;
+import javax.sql.DataSource;
 
 import hr.fer.zemris.java.hw14.VotingUtil.BandInfo;
 import hr.fer.zemris.java.hw14.VotingUtil.Poll;
 import hr.fer.zemris.java.hw14.VotingUtil.WebsiteInfo;
+import hr.fer.zemris.java.hw14.archive.ClosedPolls;
+import hr.fer.zemris.java.hw14.cache.SnapshotStore;
+import hr.fer.zemris.java.hw14.cache.VersionPoller;
+import hr.fer.zemris.java.hw14.counters.SharedCounters;
+import hr.fer.zemris.java.hw14.events.VoteEventStore;
+import hr.fer.zemris.java.hw14.guard.ClientAddress;
+import hr.fer.zemris.java.hw14.guard.VoteGuard;
+import hr.fer.zemris.java.hw14.live.ResultsBroadcaster;
+import hr.fer.zemris.java.hw14.metrics.Metrics;
+import hr.fer.zemris.java.hw14.metrics.PoolMetrics;
+import hr.fer.zemris.java.hw14.ranked.RankedBallots;
+import hr.fer.zemris.java.hw14.rollup.VoteRollups;
+import hr.fer.zemris.java.tecaj_14.dao.AsyncDAO;
+import hr.fer.zemris.java.tecaj_14.dao.DAO;
+import hr.fer.zemris.java.tecaj_14.dao.DAOProvider;
+import hr.fer.zemris.java.tecaj_14.dao.sql.ShardMap;
+import hr.fer.zemris.java.tecaj_14.dao.sql.SharedCounterDAO;
+import hr.fer.zemris.java.tecaj_14.dao.sql.ShardRoutingDAO;
 
 /**
  * Initialization of connection-pool and its destroying is performed in this web
@@ -29,12 +61,39 @@ import hr.fer.zemris.java.hw14.VotingUtil.WebsiteInfo;
  * existent in database; if not, an appropriate CREATE statements are sent to
  * create them (but only if they do not already exists); if they exist, they
  * remain unmodified.
+ * <p>
+ * Two pools are created: the primary pool, used for writes and for seeding the
+ * tables, and the read-only pool, which may point to a replica database. If
+ * sharding is configured, a pool is also created for each additional shard and
+ * a routing DAO is installed. Finally, the broadcaster of live results is
+ * started.
+ * <p>
+ * Pools are warmed up in parallel, and the tables are verified only if the
+ * checksum of the definition files differs from the one stored in the
+ * database when they were last verified; the definition files are parsed in
+ * parallel only if the tables have to be filled. The time taken by every
+ * step is logged. If the <tt>startup.async</tt> context parameter is
+ * <tt>true</tt>, the startup runs in background and requests are answered
+ * with <tt>503 Service Unavailable</tt> until it finishes, as told by the
+ * {@linkplain #READY_ATTRIBUTE} context attribute.
+ * <p>
+ * Once started, changes of the definition files are applied by the
+ * {@linkplain DefinitionReloader} without a restart.
  *
  * @author Mario Bobic
  */
 @WebListener
 public class Inicijalizacija implements ServletContextListener {
 
+    /**
+     * Name of the context attribute that is set to {@linkplain Boolean#TRUE}
+     * once the application is ready to serve requests.
+     */
+    public static final String READY_ATTRIBUTE = "hr.fer.zemris.ready";
+
+    /** Logger of the startup. */
+    private static final Logger LOGGER = Logger.getLogger(Inicijalizacija.class.getName());
+
     /** Poll list loaded from file on disk. */
     private static List<Poll> pollList;
     /** Band list loaded from file on disk. */
@@ -42,39 +101,648 @@ public class Inicijalizacija implements ServletContextListener {
     /** Website list loaded from file on disk. */
     private static List<WebsiteInfo> websiteList;
 
-    /** Map of generated poll IDs where id is mapped to poll title. */
-    public static Map<String, Long> pollIDs = new HashMap<>();
+    /** Title of the poll whose options are the bands. */
+    static final String BANDS_POLL = "Glasanje za omiljeni bend";
+    /** Title of the poll whose options are the websites. */
+    static final String WEBSITES_POLL = "Glasanje za omiljenu web stranicu";
+
+    /**
+     * Map of generated poll IDs where id is mapped to poll title. The map is
+     * replaced as a whole when the definitions are reloaded.
+     */
+    public static volatile Map<String, Long> pollIDs = new HashMap<>();
+
+    /** Thread running the startup in background, or <tt>null</tt>. */
+    private volatile Thread startupThread;
+    /** Reloader of the definition files, or <tt>null</tt>. */
+    private volatile DefinitionReloader reloader;
+    /** Counters shared with other JVMs of the host, or <tt>null</tt>. */
+    private volatile SharedCounters counters;
+    /** Poller sharing poll versions with other instances, or <tt>null</tt>. */
+    private volatile VersionPoller versionPoller;
 
     @Override
     public void contextInitialized(ServletContextEvent sce) {
+        if (!Boolean.parseBoolean(sce.getServletContext().getInitParameter("startup.async"))) {
+            initialize(sce);
+            return;
+        }
+
+        startupThread = new Thread(() -> {
+            try {
+                initialize(sce);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Startup failed, the application will not serve requests.", e);
+            }
+        }, "startup");
+        startupThread.start();
+    }
+
+    /**
+     * Initializes the application and marks it ready to serve requests. Pools
+     * are warmed up while the definition files are checked, and if the files
+     * have to be parsed, they are parsed in parallel. A failure of any step
+     * fails the whole startup at once. The time taken by each step is logged
+     * when the startup finishes.
+     *
+     * @param sce servlet context event
+     */
+    private void initialize(ServletContextEvent sce) {
+        ServletContext context = sce.getServletContext();
+        StartupReport report = new StartupReport();
+        ExecutorService executor = Executors.newFixedThreadPool(4, r -> {
+            Thread t = new Thread(r, "startup-worker");
+            t.setDaemon(true);
+            return t;
+        });
+
         try {
-            pollList = VotingUtil.getPollList(sce.getServletContext());
-            bandList = VotingUtil.getBandList(sce.getServletContext());
-            websiteList = VotingUtil.getWebsiteList(sce.getServletContext());
+            long t = System.nanoTime();
+            DataSource cpds = VotingUtil.getDataSource(context);
+            context.setAttribute("hr.fer.zemris.dbpool", cpds);
+            PoolMetrics.register("write", cpds);
+
+            DataSource readCpds = VotingUtil.getReadDataSource(context);
+            context.setAttribute("hr.fer.zemris.dbpool.read", readCpds);
+            PoolMetrics.register("read", readCpds);
+
+            List<DataSource> shardPools = VotingUtil.getShardDataSources(context);
+            if (!shardPools.isEmpty()) {
+                context.setAttribute("hr.fer.zemris.dbpool.shards", shardPools);
+            }
+            report.add("pools", t);
+
+            CompletableFuture<Connection> con = supplyAsync(executor, report, "warm-up write",
+                    () -> cpds.getConnection());
+            CompletableFuture<Void> readWarmUp = supplyAsync(executor, report, "warm-up read", () -> {
+                readCpds.getConnection().close();
+                return null;
+            });
+            List<CompletableFuture<Connection>> shardConnections = new ArrayList<>();
+            for (int i = 0; i < shardPools.size(); i++) {
+                DataSource shardPool = shardPools.get(i);
+                shardConnections.add(supplyAsync(executor, report, "warm-up shard" + (i+1),
+                        () -> shardPool.getConnection()));
+            }
+            CompletableFuture<String> checksum = supplyAsync(executor, report, "checksum",
+                    () -> VotingUtil.getDefinitionChecksum(context));
+
+            try {
+                Connection primary = join(con, "Failed to connect to database.");
+//                dropTables(primary); // used for debugging
+
+                try {System.out.println("---+ " + primary.getSchema() + " connected! +---");} catch (SQLException e) {}
+
+                t = System.nanoTime();
+                boolean seeded = initializeTables(primary, join(checksum, "Failed to read definition files."),
+                        context, executor, report);
+                addClosedAtColumn(primary);
+                fillPollIDs(primary);
+                report.add(seeded ? "tables" : "tables (checksum matched)", t);
+
+                join(readWarmUp, "Failed to connect to read database.");
+                for (int i = 0; i < shardConnections.size(); i++) {
+                    Connection shard = join(shardConnections.get(i), "Failed to connect to shard " + (i+1) + ".");
+                    t = System.nanoTime();
+                    seeded = initializeTables(shard, checksum.join(), context, executor, report);
+                    addClosedAtColumn(shard);
+                    report.add((seeded ? "tables shard" : "tables (checksum matched) shard") + (i+1), t);
+                }
+            } finally {
+                closeAll(con);
+                shardConnections.forEach(Inicijalizacija::closeAll);
+            }
+
+            t = System.nanoTime();
+            initializeShards(sce, cpds, readCpds, shardPools);
+            initializeCounters(sce, cpds, shardPools);
+            boolean virtual = "virtual".equals(context.getInitParameter("dao.executor"));
+            DAOProvider.setAsyncDao(new AsyncDAO(cpds, readCpds, VotingUtil.getMaxPoolSize(cpds), virtual));
+
+            initializeBroadcaster(sce, cpds, readCpds);
+            initializeSnapshots(sce);
+            initializeReloader(sce, cpds, shardPools);
+            initializeClientAddress(sce);
+            initializeGuard(sce);
+            initializeRollups(sce);
+            initializeEvents(sce);
+            initializeRanked(sce, cpds);
+            initializeArchive(sce, cpds, shardPools);
+            initializeVersionPoller(sce, cpds);
+            report.add("services", t);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        context.setAttribute(READY_ATTRIBUTE, Boolean.TRUE);
+        LOGGER.info("Startup finished: " + report);
+    }
+
+    /**
+     * Runs the specified startup step on the specified executor, recording its
+     * time in the report under the specified name.
+     *
+     * @param <T> type of the result of the step
+     * @param executor the executor
+     * @param report the startup report
+     * @param name name of the step
+     * @param step the step
+     * @return a future result of the step
+     */
+    private static <T> CompletableFuture<T> supplyAsync(ExecutorService executor, StartupReport report,
+            String name, StartupStep<T> step) {
+        return CompletableFuture.supplyAsync(() -> {
+            long t = System.nanoTime();
+            try {
+                return step.run();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            } finally {
+                report.add(name, t);
+            }
+        }, executor);
+    }
+
+    /**
+     * Waits for the specified startup step and returns its result, throwing a
+     * <tt>RuntimeException</tt> with the specified message if it failed.
+     *
+     * @param <T> type of the result of the step
+     * @param future future result of the step
+     * @param message message of the exception thrown if the step failed
+     * @return the result of the step
+     */
+    private static <T> T join(CompletableFuture<T> future, String message) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw new RuntimeException(message, e.getCause());
+        }
+    }
+
+    /**
+     * Closes the connection of the specified future once it is obtained, if
+     * it is obtained at all.
+     *
+     * @param con future connection
+     */
+    private static void closeAll(CompletableFuture<Connection> con) {
+        con.thenAccept(c -> {
+            try { c.close(); } catch (SQLException ignorable) {}
+        });
+    }
+
+    /**
+     * Opens the {@linkplain SharedCounters} that count votes together with
+     * other JVMs of the host, if they are enabled by the
+     * <tt>counters.enabled</tt> context parameter, and puts a
+     * {@linkplain SharedCounterDAO} in front of the DAO. The counters are kept
+     * in the file given by the <tt>counters.path</tt> context parameter, by
+     * default in <tt>/dev/shm</tt>, and flushed every
+     * <tt>counters.flushInterval</tt> milliseconds by one of the JVMs. The
+     * file is created with <tt>counters.slots</tt> slots and room for
+     * <tt>counters.capacity</tt> options.
+     * <p>
+     * Shared counters are flushed to the primary database only, so they are
+     * not used together with shards.
+     *
+     * @param sce servlet context event
+     * @param cpds the primary pool
+     * @param shardPools pools of additional shards
+     */
+    private void initializeCounters(ServletContextEvent sce, DataSource cpds, List<DataSource> shardPools) {
+        ServletContext context = sce.getServletContext();
+        if (!"true".equals(context.getInitParameter("counters.enabled"))) {
+            return;
+        }
+        if (!shardPools.isEmpty()) {
+            LOGGER.warning("Shared counters are not used with shards.");
+            return;
+        }
+
+        String path = context.getInitParameter("counters.path");
+        Path file;
+        if (path != null) {
+            file = Paths.get(path.trim());
+        } else {
+            Path shm = Paths.get("/dev/shm");
+            file = (Files.isDirectory(shm) ? shm : Paths.get(System.getProperty("java.io.tmpdir")))
+                    .resolve("voting-counters.bin");
+        }
+
+        SharedCounters shared;
+        try {
+            shared = new SharedCounters(file,
+                    (int) getLongParameter(context, "counters.slots", 16),
+                    (int) getLongParameter(context, "counters.capacity", 4096));
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            LOGGER.log(Level.WARNING, "Votes will not be counted in shared counters " + file + ".", e);
+            return;
         }
 
-        ComboPooledDataSource cpds = VotingUtil.getComboPooledDataSource(sce.getServletContext());
-        sce.getServletContext().setAttribute("hr.fer.zemris.dbpool", cpds);
+        try (Connection con = cpds.getConnection();
+             PreparedStatement pst = con.prepareStatement("SELECT id, pollID FROM PollOptions");
+             ResultSet rset = pst.executeQuery()) {
+            while (rset.next()) {
+                shared.register(rset.getLong(1), rset.getLong(2));
+            }
+        } catch (SQLException | IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to register options in shared counters.", e);
+        }
+
+        shared.startFlushing(cpds, getLongParameter(context, "counters.flushInterval", 1000));
+        counters = shared;
+        DAOProvider.setDao(new SharedCounterDAO(DAOProvider.getDao(), shared));
+        Metrics.register("counters.slot", shared::getSlot);
+        Metrics.register("counters.flusher", () -> shared.isFlusher() ? 1 : 0);
+        Metrics.register("counters.options", shared::getOptionCount);
+        Metrics.register("counters.pending", () -> shared.pending());
+        Metrics.register("counters.flushed", shared::getFlushedVotes);
+        LOGGER.info("Counting votes in slot " + shared.getSlot() + " of " + file + ".");
+    }
+
+    /**
+     * Starts the {@linkplain VersionPoller} that shares poll versions with
+     * other application instances using the same database every
+     * <tt>versions.pollInterval</tt> milliseconds, unless it is disabled by
+     * the <tt>versions.enabled</tt> context parameter, and registers its
+     * metrics.
+     *
+     * @param sce servlet context event
+     * @param cpds the primary pool
+     */
+    private void initializeVersionPoller(ServletContextEvent sce, DataSource cpds) {
+        ServletContext context = sce.getServletContext();
+        if ("false".equals(context.getInitParameter("versions.enabled"))) {
+            return;
+        }
+
+        VersionPoller poller;
+        try {
+            poller = new VersionPoller(cpds, getLongParameter(context, "versions.pollInterval", 1000));
+        } catch (SQLException e) {
+            LOGGER.log(Level.WARNING, "Poll versions will not be shared with other instances.", e);
+            return;
+        }
+        versionPoller = poller;
+        Metrics.register("versions.lagMillis", poller::getLastLag);
+        Metrics.register("versions.lagP99Millis", () -> poller.getLag().getPercentile(99));
+        Metrics.register("versions.lagMaxMillis", () -> poller.getLag().getMax());
+        Metrics.register("versions.remoteChanges", poller::getRemoteChanges);
+        Metrics.register("versions.published", poller::getPublished);
+        Metrics.register("versions.failures", poller::getFailures);
+    }
+
+    /**
+     * Starts the {@linkplain DefinitionReloader} that applies changes of the
+     * definition files to all databases, unless it is disabled by the
+     * <tt>reload.enabled</tt> context parameter.
+     *
+     * @param sce servlet context event
+     * @param cpds the primary pool
+     * @param shardPools pools of additional shards
+     */
+    private void initializeReloader(ServletContextEvent sce, DataSource cpds, List<DataSource> shardPools) {
+        if ("false".equals(sce.getServletContext().getInitParameter("reload.enabled"))) {
+            return;
+        }
+
+        List<DataSource> pools = new ArrayList<>();
+        pools.add(cpds);
+        pools.addAll(shardPools);
+        try {
+            reloader = new DefinitionReloader(sce.getServletContext(), pools);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Definition files will not be reloaded.", e);
+        }
+    }
+
+    /**
+     * Creates the {@linkplain ClientAddress} telling the addresses of clients
+     * of requests forwarded by the trusted proxies, listed separated by
+     * commas in the <tt>proxy.trusted</tt> parameter. Requests from other
+     * addresses are taken as coming from their clients directly.
+     *
+     * @param sce servlet context event
+     */
+    private static void initializeClientAddress(ServletContextEvent sce) {
+        ServletContext context = sce.getServletContext();
+        String header = context.getInitParameter("proxy.addressHeader");
+        if (header == null || header.trim().isEmpty()) {
+            header = "X-Forwarded-For";
+        }
+        String trusted = context.getInitParameter("proxy.trusted");
+        if (trusted == null) {
+            trusted = "127.0.0.1,0:0:0:0:0:0:0:1";
+        }
+
+        Set<String> trustedProxies = new HashSet<>();
+        for (String address : trusted.split(",")) {
+            if (!address.trim().isEmpty()) {
+                trustedProxies.add(address.trim());
+            }
+        }
+        ClientAddress.setInstance(new ClientAddress(header.trim(), trustedProxies));
+    }
+
+    /**
+     * Creates the {@linkplain VoteGuard} rejecting repeated and too frequent
+     * votes, unless it is disabled by the <tt>guard.enabled</tt> context
+     * parameter, and registers its metrics.
+     *
+     * @param sce servlet context event
+     */
+    private static void initializeGuard(ServletContextEvent sce) {
+        ServletContext context = sce.getServletContext();
+        if ("false".equals(context.getInitParameter("guard.enabled"))) {
+            return;
+        }
+
+        VoteGuard guard = new VoteGuard(
+                getLongParameter(context, "guard.window", 3600000),
+                getLongParameter(context, "guard.expectedVotes", 1000000),
+                (int) getLongParameter(context, "guard.rateLimit", 30));
+        VoteGuard.setInstance(guard);
+        Metrics.register("guard.accepted", guard::getAccepted);
+        Metrics.register("guard.duplicates", guard::getDuplicates);
+        Metrics.register("guard.rateLimited", guard::getRateLimited);
+        Metrics.register("guard.memoryBytes", guard::getMemoryBytes);
+    }
+
+    /**
+     * Creates the {@linkplain VoteRollups} counting votes over time, unless
+     * they are disabled by the <tt>rollup.enabled</tt> context parameter, and
+     * registers their metrics. The counters are kept in the directory given
+     * by the <tt>rollup.dir</tt> context parameter, or in the temporary
+     * directory of the servlet context if there is none, and written every
+     * <tt>rollup.persistInterval</tt> milliseconds. At most
+     * <tt>rollup.maxOptions</tt> options are counted.
+     *
+     * @param sce servlet context event
+     */
+    private static void initializeRollups(ServletContextEvent sce) {
+        ServletContext context = sce.getServletContext();
+        if ("false".equals(context.getInitParameter("rollup.enabled"))) {
+            return;
+        }
 
-        Connection con;
+        String dir = context.getInitParameter("rollup.dir");
+        Path directory = dir != null
+                ? Paths.get(dir.trim())
+                : ((File) context.getAttribute(ServletContext.TEMPDIR)).toPath();
         try {
-            con = cpds.getConnection();
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Vote trends are disabled, no directory " + directory + ".", e);
+            return;
+        }
+
+        VoteRollups rollups = new VoteRollups(
+                directory.resolve("rollups.bin"),
+                getLongParameter(context, "rollup.persistInterval", 60000),
+                (int) getLongParameter(context, "rollup.maxOptions", 1000));
+        VoteRollups.setInstance(rollups);
+        Metrics.register("rollup.options", rollups::getOptionCount);
+        Metrics.register("rollup.dropped", rollups::getDropped);
+        Metrics.register("rollup.persisted", rollups::getPersisted);
+        Metrics.register("rollup.persistMillis", rollups::getPersistMillis);
+    }
+
+    /**
+     * Creates the {@linkplain VoteEventStore} keeping every vote for audits,
+     * unless it is disabled by the <tt>events.enabled</tt> context parameter,
+     * and registers its metrics. The segments are kept in the directory given
+     * by the <tt>events.dir</tt> context parameter, or in the <tt>events</tt>
+     * subdirectory of the temporary directory of the servlet context if there
+     * is none. The <tt>events.segmentMillis</tt>,
+     * <tt>events.maxSegmentBytes</tt>, <tt>events.bufferSize</tt> and
+     * <tt>events.flushInterval</tt> context parameters configure the store.
+     *
+     * @param sce servlet context event
+     */
+    private static void initializeEvents(ServletContextEvent sce) {
+        ServletContext context = sce.getServletContext();
+        if ("false".equals(context.getInitParameter("events.enabled"))) {
+            return;
+        }
+
+        String dir = context.getInitParameter("events.dir");
+        Path directory = dir != null
+                ? Paths.get(dir.trim())
+                : ((File) context.getAttribute(ServletContext.TEMPDIR)).toPath().resolve("events");
+        VoteEventStore store;
+        try {
+            Files.createDirectories(directory);
+            store = new VoteEventStore(directory,
+                    getLongParameter(context, "events.segmentMillis", 3600000),
+                    getLongParameter(context, "events.maxSegmentBytes", 1L << 30),
+                    (int) getLongParameter(context, "events.bufferSize", 262144),
+                    getLongParameter(context, "events.flushInterval", 200));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Vote events will not be stored in " + directory + ".", e);
+            return;
+        }
+
+        VoteEventStore.setInstance(store);
+        Metrics.register("events.written", store::getWritten);
+        Metrics.register("events.dropped", store::getDropped);
+        Metrics.register("events.buffered", store::getBuffered);
+        Metrics.register("events.segments", store::getSegmentCount);
+        Metrics.register("events.bytes", store::getBytes);
+    }
+
+    /**
+     * Creates the {@linkplain RankedBallots} of ranked votes, unless they are
+     * disabled by the <tt>ranked.enabled</tt> context parameter, and registers
+     * their metrics. Ranked ballots are created before the closed polls, so
+     * that the artifacts of a closed poll include its instant-runoff count.
+     *
+     * @param sce servlet context event
+     * @param cpds the primary pool
+     */
+    private static void initializeRanked(ServletContextEvent sce, DataSource cpds) {
+        if ("false".equals(sce.getServletContext().getInitParameter("ranked.enabled"))) {
+            return;
+        }
+
+        RankedBallots rankedBallots;
+        try {
+            rankedBallots = new RankedBallots(cpds);
         } catch (SQLException e) {
-            throw new RuntimeException("Failed to connect to database.", e);
+            LOGGER.log(Level.WARNING, "Ranked voting is disabled.", e);
+            return;
         }
-//        dropTables(con); // used for debugging
 
-        try {System.out.println("---+ " + con.getSchema() + " connected! +---");} catch (SQLException e) {}
+        RankedBallots.setInstance(rankedBallots);
+        Metrics.register("ranked.polls", rankedBallots::getPollCount);
+        Metrics.register("ranked.ballots", rankedBallots::getBallotCount);
+        Metrics.register("ranked.bytes", rankedBallots::getBytes);
+        Metrics.register("ranked.roundsCounted", rankedBallots::getRoundsCounted);
+        Metrics.register("ranked.recountMillis", rankedBallots::getRecountMillis);
+    }
+
+    /**
+     * Creates the {@linkplain ClosedPolls} keeping the artifacts of closed
+     * polls, unless it is disabled by the <tt>archive.enabled</tt> context
+     * parameter, and registers its metrics. The artifacts are kept in the
+     * directory given by the <tt>archive.dir</tt> context parameter, or in the
+     * <tt>archive</tt> subdirectory of the temporary directory of the servlet
+     * context if there is none.
+     *
+     * @param sce servlet context event
+     * @param cpds the primary pool
+     * @param shardPools pools of additional shards
+     */
+    private static void initializeArchive(ServletContextEvent sce, DataSource cpds, List<DataSource> shardPools) {
+        ServletContext context = sce.getServletContext();
+        if ("false".equals(context.getInitParameter("archive.enabled"))) {
+            return;
+        }
+
+        String dir = context.getInitParameter("archive.dir");
+        Path directory = dir != null
+                ? Paths.get(dir.trim())
+                : ((File) context.getAttribute(ServletContext.TEMPDIR)).toPath().resolve("archive");
+        ClosedPolls closedPolls;
+        try {
+            Files.createDirectories(directory);
+            closedPolls = new ClosedPolls(cpds, shardPools, directory);
+        } catch (IOException | SQLException e) {
+            LOGGER.log(Level.WARNING, "Polls can not be closed, no archive in " + directory + ".", e);
+            return;
+        }
+
+        ClosedPolls.setInstance(closedPolls);
+        Metrics.register("archive.closed", closedPolls::getClosedCount);
+        Metrics.register("archive.bytes", closedPolls::getBytes);
+        Metrics.register("archive.built", closedPolls::getBuilt);
+        Metrics.register("archive.loaded", closedPolls::getLoaded);
+    }
+
+    /**
+     * Creates the {@linkplain SnapshotStore} of results snapshots, limited by
+     * the <tt>snapshots.max</tt> and <tt>snapshots.ttl</tt> context
+     * parameters, and registers its metrics.
+     *
+     * @param sce servlet context event
+     */
+    private static void initializeSnapshots(ServletContextEvent sce) {
+        ServletContext context = sce.getServletContext();
+        SnapshotStore snapshots = new SnapshotStore(
+                (int) getLongParameter(context, "snapshots.max", 1000),
+                getLongParameter(context, "snapshots.ttl", 600000));
+        SnapshotStore.setInstance(snapshots);
+        Metrics.register("snapshots.size", snapshots::getSize);
+        Metrics.register("snapshots.taken", snapshots::getTaken);
+        Metrics.register("snapshots.hits", snapshots::getHits);
+        Metrics.register("snapshots.misses", snapshots::getMisses);
+    }
+
+    /**
+     * Creates the {@linkplain ResultsBroadcaster} pushing live results, unless
+     * it is disabled by the <tt>live.enabled</tt> context parameter, and
+     * registers its metrics.
+     *
+     * @param sce servlet context event
+     * @param cpds the primary pool
+     * @param readCpds the read pool
+     */
+    private static void initializeBroadcaster(ServletContextEvent sce, DataSource cpds, DataSource readCpds) {
+        ServletContext context = sce.getServletContext();
+        if ("false".equals(context.getInitParameter("live.enabled"))) {
+            return;
+        }
+
+        long interval = getLongParameter(context, "live.interval", 1000);
+        long maxStall = getLongParameter(context, "live.maxStall", 30000);
+        ResultsBroadcaster broadcaster = new ResultsBroadcaster(cpds, readCpds, interval, maxStall);
+        ResultsBroadcaster.setInstance(broadcaster);
+
+        Metrics.register("live.subscribers", broadcaster::getSubscriberCount);
+        Metrics.register("live.published", broadcaster::getPublished);
+        Metrics.register("live.skipped", broadcaster::getSkipped);
+        Metrics.register("live.dropped", broadcaster::getDropped);
+    }
+
+    /**
+     * Returns the value of the context parameter with the specified
+     * <tt>name</tt> as a long, or the specified default value if the parameter
+     * is not set.
+     *
+     * @param context servlet context
+     * @param name name of the parameter
+     * @param defaultValue value returned if the parameter is not set
+     * @return value of the parameter
+     */
+    private static long getLongParameter(ServletContext context, String name, long defaultValue) {
+        String value = context.getInitParameter(name);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    /**
+     * Installs a {@linkplain ShardRoutingDAO} that routes polls to the
+     * specified pools of additional shards, if sharding is configured. Every
+     * shard has been initialized the same way as the primary database, so poll
+     * and option IDs match across shards.
+     *
+     * @param sce servlet context event
+     * @param cpds the primary pool
+     * @param readCpds the read pool of the primary database
+     * @param shardPools pools of additional shards
+     */
+    private static void initializeShards(ServletContextEvent sce, DataSource cpds, DataSource readCpds,
+            List<DataSource> shardPools) {
+        if (shardPools.isEmpty()) {
+            return;
+        }
+
+        List<DataSource> shards = new ArrayList<>();
+        shards.add(cpds);
+        for (int i = 0; i < shardPools.size(); i++) {
+            DataSource shardPool = shardPools.get(i);
+            PoolMetrics.register("shard" + (i+1), shardPool);
+            shards.add(shardPool);
+        }
+
+        Path mapPath = Paths.get(sce.getServletContext().getRealPath("/WEB-INF/shard-map.properties"));
+        DAOProvider.setDao(new ShardRoutingDAO(shards, readCpds, new ShardMap(mapPath, shards.size())));
+    }
+
+    /**
+     * Verifies that the tables exist in the database of the specified
+     * connection <tt>con</tt>, creating and filling them if they do not, and
+     * stores the specified checksum of the definition files in the
+     * <tt>AppMetadata</tt> table. If the stored checksum already matches, the
+     * tables were verified against the same files before, so nothing is done.
+     * <p>
+     * The definition files are parsed only if the tables have to be filled,
+     * and only once.
+     *
+     * @param con connection used for preparing statements
+     * @param checksum checksum of the definition files
+     * @param context servlet context
+     * @param executor executor used for parsing the files in parallel
+     * @param report the startup report
+     * @return false if the checksum matched and nothing was done
+     */
+    private static boolean initializeTables(Connection con, String checksum, ServletContext context,
+            ExecutorService executor, StartupReport report) {
+        if (checksum.equals(getStoredChecksum(con))) {
+            return false;
+        }
 
         DatabaseMetaData dbmd;
         ResultSet rs;
         try {
             dbmd = con.getMetaData();
 
-            rs = dbmd.getTables(null, null, "POLLS", null);
-            if (!rs.next()) {
+            boolean pollsExist = dbmd.getTables(null, null, "POLLS", null).next();
+            rs = dbmd.getTables(null, null, "POLLOPTIONS", null);
+            if (!pollsExist || !rs.next()) {
+                loadDefinitions(context, executor, report);
+            }
+
+            if (!pollsExist) {
                 createPollsTable(con);
             }
 
@@ -86,11 +754,106 @@ public class Inicijalizacija implements ServletContextListener {
             throw new RuntimeException(e);
         }
 
-        fillPollIDs(con);
+        storeChecksum(con, checksum);
+        return true;
+    }
 
-        try {
-            con.close();
-        } catch (SQLException ignorable) {}
+    /**
+     * Parses the poll, band and website definition files in parallel, unless
+     * they have already been parsed.
+     *
+     * @param context servlet context
+     * @param executor executor used for parsing the files
+     * @param report the startup report
+     */
+    private static synchronized void loadDefinitions(ServletContext context, ExecutorService executor,
+            StartupReport report) {
+        if (pollList != null) {
+            return;
+        }
+
+        CompletableFuture<List<Poll>> polls = supplyAsync(executor, report, "parse polls",
+                () -> VotingUtil.getPollList(context));
+        CompletableFuture<List<BandInfo>> bands = supplyAsync(executor, report, "parse bands",
+                () -> VotingUtil.getBandList(context));
+        CompletableFuture<List<WebsiteInfo>> websites = supplyAsync(executor, report, "parse websites",
+                () -> VotingUtil.getWebsiteList(context));
+
+        bandList = join(bands, "Failed to parse band definitions.");
+        websiteList = join(websites, "Failed to parse website definitions.");
+        pollList = join(polls, "Failed to parse poll definitions.");
+    }
+
+    /**
+     * Replaces the definitions and poll IDs kept in memory with the specified
+     * reloaded ones.
+     *
+     * @param polls reloaded poll definitions
+     * @param bands reloaded band definitions
+     * @param websites reloaded website definitions
+     * @param ids poll IDs mapped by poll title
+     */
+    static synchronized void definitionsReloaded(List<Poll> polls, List<BandInfo> bands,
+            List<WebsiteInfo> websites, Map<String, Long> ids) {
+        pollList = polls;
+        bandList = bands;
+        websiteList = websites;
+        pollIDs = ids;
+    }
+
+    /**
+     * Returns the checksum of the definition files stored in the database of
+     * the specified connection, or <tt>null</tt> if none is stored.
+     *
+     * @param con connection used for preparing statements
+     * @return the stored checksum, or <tt>null</tt>
+     */
+    private static String getStoredChecksum(Connection con) {
+        try (PreparedStatement pst = con.prepareStatement(
+                "SELECT value FROM AppMetadata WHERE name = 'definitionChecksum'")) {
+            ResultSet rset = pst.executeQuery();
+            return rset.next() ? rset.getString(1) : null;
+        } catch (SQLException e) {
+            // the table does not exist yet
+            return null;
+        }
+    }
+
+    /**
+     * Stores the specified checksum of the definition files in the database of
+     * the specified connection, creating the <tt>AppMetadata</tt> table if it
+     * does not exist.
+     *
+     * @param con connection used for preparing statements
+     * @param checksum checksum of the definition files
+     */
+    static void storeChecksum(Connection con, String checksum) {
+        try (PreparedStatement pst = con.prepareStatement("CREATE TABLE AppMetadata(" +
+                                                          "    name VARCHAR(64) PRIMARY KEY" +
+                                                          " ,  value VARCHAR(128) NOT NULL" +
+                                                          ")")) {
+            pst.executeUpdate();
+        } catch (SQLException ignorable) {
+            // "create-and-ignore-error"
+        }
+
+        try (PreparedStatement pst = con.prepareStatement(
+                "UPDATE AppMetadata SET value = ? WHERE name = 'definitionChecksum'")) {
+            pst.setString(1, checksum);
+            if (pst.executeUpdate() > 0) {
+                return;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to store definition checksum.", e);
+        }
+
+        try (PreparedStatement pst = con.prepareStatement(
+                "INSERT INTO AppMetadata(name, value) VALUES ('definitionChecksum', ?)")) {
+            pst.setString(1, checksum);
+            pst.executeUpdate();
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to store definition checksum.", e);
+        }
     }
 
     /**
@@ -122,6 +885,23 @@ public class Inicijalizacija implements ServletContextListener {
         }
     }
 
+    /**
+     * Adds the <tt>closedAt</tt> column to the polls table of the specified
+     * connection <tt>con</tt>, if the table was created before polls could be
+     * closed. Votes are counted only in polls whose <tt>closedAt</tt> is
+     * <tt>null</tt>, so the column must exist in every database holding
+     * votes, even if closing polls is disabled.
+     *
+     * @param con connection used for preparing statements
+     */
+    private static void addClosedAtColumn(Connection con) {
+        try (PreparedStatement pst = con.prepareStatement("ALTER TABLE Polls ADD COLUMN closedAt TIMESTAMP")) {
+            pst.executeUpdate();
+        } catch (SQLException ignorable) {
+            // "create-and-ignore-error"
+        }
+    }
+
     /**
      * Creates and fills the polls table to the specified connection
      * <tt>con</tt>.
@@ -136,6 +916,7 @@ public class Inicijalizacija implements ServletContextListener {
                                       "    id BIGINT PRIMARY KEY GENERATED ALWAYS AS IDENTITY" +
                                       " ,  title VARCHAR(150) NOT NULL" +
                                       " ,  message CLOB(2048) NOT NULL" +
+                                      " ,  closedAt TIMESTAMP" +
                                       ")");
             pst.executeUpdate();
         } catch (SQLException ignorable) {
@@ -230,7 +1011,7 @@ public class Inicijalizacija implements ServletContextListener {
 
                 pst.setString(1, bandInfo.name);
                 pst.setString(2, bandInfo.link);
-                pst.setLong(3, pollIDs.get("Glasanje za omiljeni bend"));
+                pst.setLong(3, pollIDs.get(BANDS_POLL));
                 pst.setLong(4, bandInfo.getVotes());
 
                 pst.executeUpdate();
@@ -250,7 +1031,7 @@ public class Inicijalizacija implements ServletContextListener {
 
                 pst.setString(1, websiteInfo.name);
                 pst.setString(2, websiteInfo.link);
-                pst.setLong(3, pollIDs.get("Glasanje za omiljenu web stranicu"));
+                pst.setLong(3, pollIDs.get(WEBSITES_POLL));
                 pst.setLong(4, websiteInfo.getVotes());
 
                 pst.executeUpdate();
@@ -265,15 +1046,105 @@ public class Inicijalizacija implements ServletContextListener {
 
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
-        ComboPooledDataSource cpds = (ComboPooledDataSource) sce.getServletContext()
-                .getAttribute("hr.fer.zemris.dbpool");
-        if (cpds != null) {
+        Thread startup = startupThread;
+        if (startup != null) {
+            startup.interrupt();
             try {
-                DataSources.destroy(cpds);
-            } catch (SQLException e) {
-                e.printStackTrace();
+                startup.join(30000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        sce.getServletContext().removeAttribute(READY_ATTRIBUTE);
+
+        if (reloader != null) {
+            reloader.close();
+            reloader = null;
+        }
+
+        if (versionPoller != null) {
+            versionPoller.close();
+            versionPoller = null;
+            Metrics.unregisterAll("versions.");
+        }
+
+        ClosedPolls.setInstance(null);
+        Metrics.unregisterAll("archive.");
+        RankedBallots.setInstance(null);
+        Metrics.unregisterAll("ranked.");
+        SnapshotStore.setInstance(null);
+        Metrics.unregisterAll("snapshots.");
+        VoteGuard.setInstance(null);
+        Metrics.unregisterAll("guard.");
+        ClientAddress.setInstance(null);
+
+        VoteRollups rollups = VoteRollups.getInstance();
+        if (rollups != null) {
+            rollups.shutdown();
+            VoteRollups.setInstance(null);
+            Metrics.unregisterAll("rollup.");
+        }
+
+        ResultsBroadcaster broadcaster = ResultsBroadcaster.getInstance();
+        if (broadcaster != null) {
+            broadcaster.shutdown();
+            ResultsBroadcaster.setInstance(null);
+            Metrics.unregisterAll("live.");
+        }
+
+        AsyncDAO asyncDao = DAOProvider.getAsyncDao();
+        if (asyncDao != null) {
+            asyncDao.shutdown();
+            DAOProvider.setAsyncDao(null);
+        }
+
+        VoteEventStore events = VoteEventStore.getInstance();
+        if (events != null) {
+            events.close();
+            VoteEventStore.setInstance(null);
+            Metrics.unregisterAll("events.");
+        }
+
+        if (counters != null) {
+            counters.close();
+            counters = null;
+            Metrics.unregisterAll("counters.");
+        }
+
+        DAO dao = DAOProvider.getDao();
+        if (dao instanceof ShardRoutingDAO) {
+            ((ShardRoutingDAO) dao).shutdown();
+        }
+
+        @SuppressWarnings("unchecked")
+        List<DataSource> shardPools = (List<DataSource>) sce.getServletContext()
+                .getAttribute("hr.fer.zemris.dbpool.shards");
+        if (shardPools != null) {
+            for (int i = 0; i < shardPools.size(); i++) {
+                PoolMetrics.unregister("shard" + (i+1));
+                VotingUtil.destroyDataSource(shardPools.get(i));
             }
         }
+
+        destroyPool(sce, "hr.fer.zemris.dbpool.read", "read");
+        destroyPool(sce, "hr.fer.zemris.dbpool", "write");
+    }
+
+    /**
+     * Destroys the pool stored in the servlet context under the specified
+     * <tt>attribute</tt> and unregisters its metrics.
+     *
+     * @param sce servlet context event
+     * @param attribute name of the context attribute holding the pool
+     * @param name name of the pool used for its metrics
+     */
+    private static void destroyPool(ServletContextEvent sce, String attribute, String name) {
+        PoolMetrics.unregister(name);
+
+        DataSource ds = (DataSource) sce.getServletContext().getAttribute(attribute);
+        if (ds != null) {
+            VotingUtil.destroyDataSource(ds);
+        }
     }
 
     /**
@@ -306,4 +1177,58 @@ public class Inicijalizacija implements ServletContextListener {
         }
     }
 
+    /**
+     * A startup step that may throw a checked exception.
+     *
+     * @author Mario Bobic
+     * @param <T> type of the result of the step
+     */
+    @FunctionalInterface
+    private interface StartupStep<T> {
+
+        /**
+         * Runs the step.
+         *
+         * @return the result of the step
+         * @throws Exception if the step fails
+         */
+        T run() throws Exception;
+    }
+
+    /**
+     * Times of startup steps, in the order the steps finished. Steps may
+     * finish on different threads.
+     *
+     * @author Mario Bobic
+     */
+    private static class StartupReport {
+
+        /** Time the startup started, as given by nanoTime. */
+        private final long started = System.nanoTime();
+        /** Durations of steps in nanoseconds, mapped by step name. */
+        private final Map<String, Long> steps = new LinkedHashMap<>();
+
+        /**
+         * Records the step with the specified <tt>name</tt> that started at
+         * the specified time and has just finished.
+         *
+         * @param name name of the step
+         * @param start time the step started, as given by nanoTime
+         */
+        public synchronized void add(String name, long start) {
+            steps.put(name, System.nanoTime() - start);
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)).append(" ms total");
+            for (Map.Entry<String, Long> step : steps.entrySet()) {
+                sb.append(", ").append(step.getKey()).append(' ')
+                  .append(TimeUnit.NANOSECONDS.toMillis(step.getValue())).append(" ms");
+            }
+            return sb.toString();
+        }
+    }
+
 }
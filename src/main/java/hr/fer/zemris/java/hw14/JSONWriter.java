@@ -0,0 +1,208 @@
+package hr.fer.zemris.java.hw14;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A minimal streaming JSON writer. Values are written directly to the
+ * underlying {@linkplain Writer} as they are given, so no intermediate
+ * document is ever built in memory. The writer only keeps track of whether a
+ * comma is needed before the next element of each open object or array.
+ * <p>
+ * This writer does not validate the structure it produces; callers are
+ * expected to pair every <tt>begin</tt> call with the matching <tt>end</tt>
+ * call and to give a name before every value inside an object.
+ *
+ * @author Mario Bobic
+ */
+public class JSONWriter implements Closeable, Flushable {
+
+    /** Underlying writer. */
+    private final Writer out;
+    /** Stack of flags telling if an open scope already has an element. */
+    private final Deque<Boolean> scopes = new ArrayDeque<>();
+    /** Tells if the last token written was a name. */
+    private boolean afterName;
+
+    /**
+     * Constructs an instance of {@code JSONWriter} that writes to the
+     * specified writer <tt>out</tt>.
+     *
+     * @param out the underlying writer
+     */
+    public JSONWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * Begins a new JSON object.
+     *
+     * @return this writer
+     * @throws IOException if an I/O error occurs
+     */
+    public JSONWriter beginObject() throws IOException {
+        beforeValue();
+        out.write('{');
+        scopes.push(Boolean.FALSE);
+        return this;
+    }
+
+    /**
+     * Ends the current JSON object.
+     *
+     * @return this writer
+     * @throws IOException if an I/O error occurs
+     */
+    public JSONWriter endObject() throws IOException {
+        scopes.pop();
+        out.write('}');
+        return this;
+    }
+
+    /**
+     * Begins a new JSON array.
+     *
+     * @return this writer
+     * @throws IOException if an I/O error occurs
+     */
+    public JSONWriter beginArray() throws IOException {
+        beforeValue();
+        out.write('[');
+        scopes.push(Boolean.FALSE);
+        return this;
+    }
+
+    /**
+     * Ends the current JSON array.
+     *
+     * @return this writer
+     * @throws IOException if an I/O error occurs
+     */
+    public JSONWriter endArray() throws IOException {
+        scopes.pop();
+        out.write(']');
+        return this;
+    }
+
+    /**
+     * Writes the <tt>name</tt> of the next object member.
+     *
+     * @param name name of the member
+     * @return this writer
+     * @throws IOException if an I/O error occurs
+     */
+    public JSONWriter name(String name) throws IOException {
+        beforeValue();
+        writeString(name);
+        out.write(':');
+        afterName = true;
+        return this;
+    }
+
+    /**
+     * Writes a string value, or <tt>null</tt> if <tt>value</tt> is
+     * <tt>null</tt>.
+     *
+     * @param value the value
+     * @return this writer
+     * @throws IOException if an I/O error occurs
+     */
+    public JSONWriter value(String value) throws IOException {
+        beforeValue();
+        if (value == null) {
+            out.write("null");
+        } else {
+            writeString(value);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a numeric value.
+     *
+     * @param value the value
+     * @return this writer
+     * @throws IOException if an I/O error occurs
+     */
+    public JSONWriter value(long value) throws IOException {
+        beforeValue();
+        out.write(Long.toString(value));
+        return this;
+    }
+
+    /**
+     * Writes a boolean value.
+     *
+     * @param value the value
+     * @return this writer
+     * @throws IOException if an I/O error occurs
+     */
+    public JSONWriter value(boolean value) throws IOException {
+        beforeValue();
+        out.write(value ? "true" : "false");
+        return this;
+    }
+
+    /**
+     * Writes a comma if the current scope already has an element. Does
+     * nothing if a value directly follows a member name.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void beforeValue() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (!scopes.isEmpty()) {
+            if (scopes.peek()) {
+                out.write(',');
+            } else {
+                scopes.pop();
+                scopes.push(Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * Writes the specified string <tt>s</tt> quoted and escaped.
+     *
+     * @param s string to be written
+     * @throws IOException if an I/O error occurs
+     */
+    private void writeString(String s) throws IOException {
+        out.write('"');
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':  out.write("\\\""); break;
+            case '\\': out.write("\\\\"); break;
+            case '\n': out.write("\\n"); break;
+            case '\r': out.write("\\r"); break;
+            case '\t': out.write("\\t"); break;
+            default:
+                if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                    out.write(String.format("\\u%04x", (int) c));
+                } else {
+                    out.write(c);
+                }
+            }
+        }
+        out.write('"');
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+}
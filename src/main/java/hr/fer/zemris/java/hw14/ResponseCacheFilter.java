@@ -0,0 +1,226 @@
+package hr.fer.zemris.java.hw14;
+
+import java.io.IOException;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import hr.fer.zemris.java.hw14.archive.ClosedPolls;
+import hr.fer.zemris.java.hw14.cache.PollVersions;
+import hr.fer.zemris.java.hw14.cache.ResponseCache;
+import hr.fer.zemris.java.hw14.metrics.Metrics;
+import hr.fer.zemris.java.hw14.timing.BufferedResponseWrapper;
+
+/**
+ * This web filter caches the rendered pages of the poll list, of a poll and of
+ * the results of a poll. A page is cached under its path and the poll ID, the
+ * only parameter the pages use, together with the
+ * {@linkplain PollVersions version} of the data it shows: the catalog version
+ * for the poll list and a poll, and the poll's version for its results. Other
+ * query parameters, such as cache busters added by clients, do not make a new
+ * entry. A
+ * cached page is served, compressed with gzip if the client accepts it,
+ * without invoking the servlet or borrowing a database connection.
+ * <p>
+ * Only successful <tt>GET</tt> requests are cached, and only if no error was
+ * reported to the page. The poll page is rendered asynchronously, so its
+ * output is captured when the request is dispatched back to the JSP.
+ * <p>
+ * Caching is enabled by the <tt>cache.enabled</tt> context parameter, and the
+ * cache holds at most <tt>cache.maxBytes</tt> bytes. This filter must run after
+ * the {@linkplain TimingFilter} and before the
+ * {@linkplain ConnectionSetterFilter}, which is ensured by the order of filter
+ * mappings in <tt>web.xml</tt>.
+ *
+ * @author Mario Bobic
+ */
+@WebFilter(filterName="responseCache", urlPatterns={"/*"}, asyncSupported=true,
+        dispatcherTypes={DispatcherType.REQUEST, DispatcherType.ASYNC})
+public class ResponseCacheFilter implements Filter {
+
+    /** Name of the request attribute holding the key of an asynchronous miss. */
+    private static final String KEY_ATTRIBUTE = "hr.fer.zemris.cache.key";
+    /** Name of the request attribute holding the version of an asynchronous miss. */
+    private static final String VERSION_ATTRIBUTE = "hr.fer.zemris.cache.version";
+
+    /** The cache, or <tt>null</tt> if caching is disabled. */
+    private ResponseCache cache;
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        ServletContext context = filterConfig.getServletContext();
+        if (!Boolean.parseBoolean(context.getInitParameter("cache.enabled"))) {
+            return;
+        }
+        String maxBytes = context.getInitParameter("cache.maxBytes");
+        cache = new ResponseCache(maxBytes == null ? 16 << 20 : Long.parseLong(maxBytes.trim()));
+
+        Metrics.register("cache.entries", cache::getEntries);
+        Metrics.register("cache.bytes", cache::getBytes);
+        Metrics.register("cache.hits", cache::getHits);
+        Metrics.register("cache.misses", cache::getMisses);
+        Metrics.register("cache.evictions", cache::getEvictions);
+    }
+
+    @Override
+    public void destroy() {
+        if (cache != null) {
+            Metrics.unregisterAll("cache.");
+            cache.clear();
+        }
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response,
+            FilterChain chain) throws IOException, ServletException {
+
+        if (cache == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        HttpServletRequest req = (HttpServletRequest) request;
+        HttpServletResponse resp = (HttpServletResponse) response;
+
+        if (request.getDispatcherType() == DispatcherType.ASYNC) {
+            String key = (String) request.getAttribute(KEY_ATTRIBUTE);
+            if (key == null) {
+                chain.doFilter(request, response);
+            } else {
+                request.removeAttribute(KEY_ATTRIBUTE);
+                render(req, resp, chain, key, (String) request.getAttribute(VERSION_ATTRIBUTE));
+            }
+            return;
+        }
+
+        String version = "GET".equals(req.getMethod()) ? getVersion(req) : null;
+        if (version == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        String key = getKey(req);
+        ResponseCache.Entry entry = cache.get(key, version);
+        if (entry != null) {
+            serve(req, resp, entry);
+        } else {
+            render(req, resp, chain, key, version);
+        }
+    }
+
+    /**
+     * Returns the data version of the cacheable page requested by the
+     * specified request, or <tt>null</tt> if the page is not cacheable.
+     *
+     * @param req HTTP servlet request
+     * @return the data version of the page, or <tt>null</tt>
+     */
+    private static String getVersion(HttpServletRequest req) {
+        switch (req.getServletPath()) {
+        case "/":
+        case "/index.html":
+            return PollVersions.getCatalog();
+        case "/glasanje":
+        case "/glasanje-rezultati":
+            long pollID;
+            try {
+                pollID = Long.parseLong(req.getParameter("pollID"));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (ClosedPolls.isClosed(pollID)) {
+                // served from artifacts, with headers this cache does not keep
+                return null;
+            }
+            return req.getServletPath().equals("/glasanje")
+                    ? PollVersions.getCatalog()
+                    : PollVersions.get(pollID);
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Returns the key of the cacheable page requested by the specified
+     * request: its path, with the poll ID for a page of a poll. Must be
+     * called only for pages that {@linkplain #getVersion(HttpServletRequest)
+     * are cacheable}.
+     *
+     * @param req HTTP servlet request
+     * @return the key of the page
+     */
+    private static String getKey(HttpServletRequest req) {
+        String path = req.getServletPath();
+        if (path.equals("/glasanje") || path.equals("/glasanje-rezultati")) {
+            return path + "?pollID=" + Long.parseLong(req.getParameter("pollID"));
+        }
+        return "/index.html";
+    }
+
+    /**
+     * Passes the request on with a buffered response, and caches the rendered
+     * page if it has been rendered successfully. If the request goes
+     * asynchronous, the key and version are kept so the page is cached when
+     * the request is dispatched back.
+     *
+     * @param req HTTP servlet request
+     * @param resp HTTP servlet response
+     * @param chain the filter chain
+     * @param key key of the page
+     * @param version data version of the page
+     * @throws IOException if an I/O error occurs
+     * @throws ServletException if the request could not be processed
+     */
+    private void render(HttpServletRequest req, HttpServletResponse resp, FilterChain chain,
+            String key, String version) throws IOException, ServletException {
+
+        BufferedResponseWrapper wrapper = new BufferedResponseWrapper(resp);
+        chain.doFilter(req, wrapper);
+
+        if (req.isAsyncStarted()) {
+            req.setAttribute(KEY_ATTRIBUTE, key);
+            req.setAttribute(VERSION_ATTRIBUTE, version);
+            return;
+        }
+
+        if (wrapper.getStatus() == HttpServletResponse.SC_OK && req.getAttribute("error") == null
+                && !resp.isCommitted()) {
+            byte[] body = wrapper.toByteArray();
+            if (body.length > 0) {
+                cache.put(key, version, wrapper.getContentType(), body);
+            }
+        }
+        wrapper.finish();
+    }
+
+    /**
+     * Writes the specified cached page to the response.
+     *
+     * @param req HTTP servlet request
+     * @param resp HTTP servlet response
+     * @param entry the cached page
+     * @throws IOException if an I/O error occurs
+     */
+    private static void serve(HttpServletRequest req, HttpServletResponse resp, ResponseCache.Entry entry)
+            throws IOException {
+        byte[] body = entry.body;
+        if (VotingUtil.acceptsGzip(req)) {
+            body = entry.gzipBody;
+            resp.setHeader("Content-Encoding", "gzip");
+        }
+        resp.setHeader("Vary", "Accept-Encoding");
+        resp.setContentType(entry.contentType);
+        resp.setContentLength(body.length);
+        resp.getOutputStream().write(body);
+    }
+
+}
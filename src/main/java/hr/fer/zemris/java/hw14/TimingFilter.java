@@ -0,0 +1,115 @@
+package hr.fer.zemris.java.hw14;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import hr.fer.zemris.java.hw14.timing.BufferedResponseWrapper;
+import hr.fer.zemris.java.hw14.timing.RequestTiming;
+import hr.fer.zemris.java.tecaj_14.dao.sql.DBContext;
+
+/**
+ * This web filter measures the phases of a request and reports them in the
+ * <tt>Server-Timing</tt> response header. Timing is enabled by the
+ * <tt>timing.enabled</tt> context parameter; if it is disabled, the filter
+ * only passes the request on.
+ * <p>
+ * If timing is enabled, a {@linkplain RequestTiming} is stored as a request
+ * attribute, so servlets can add their own phases, and the response is
+ * buffered, so the header can be set once the body has been rendered. The
+ * time spent borrowing connections from the pool is taken from the
+ * {@linkplain DBContext} of the request and reported as the <tt>checkout</tt>
+ * phase, which is a part of the <tt>db</tt> phases measured by servlets, since
+ * connections are borrowed lazily by the DAO. The asynchronous part of a
+ * request is reported as the <tt>async</tt> phase.
+ * <p>
+ * A response written with non-blocking output is not buffered: once a write
+ * listener is set, the body goes straight to the client and the response
+ * carries no <tt>Server-Timing</tt> header.
+ * <p>
+ * A fraction of timed requests given by the <tt>timing.logSampleRate</tt>
+ * context parameter is also logged.
+ * <p>
+ * This filter must run before the {@linkplain ConnectionSetterFilter}, which is
+ * ensured by the order of filter mappings in <tt>web.xml</tt>.
+ *
+ * @author Mario Bobic
+ */
+@WebFilter(filterName="timing", urlPatterns={"/*"}, asyncSupported=true,
+        dispatcherTypes={DispatcherType.REQUEST, DispatcherType.ASYNC})
+public class TimingFilter implements Filter {
+
+    /** Logger of sampled request timings. */
+    private static final Logger LOGGER = Logger.getLogger(TimingFilter.class.getName());
+
+    /** Tells if timing is enabled. */
+    private boolean enabled;
+    /** Fraction of timed requests that are logged. */
+    private double logSampleRate;
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        enabled = Boolean.parseBoolean(filterConfig.getServletContext().getInitParameter("timing.enabled"));
+        String rate = filterConfig.getServletContext().getInitParameter("timing.logSampleRate");
+        logSampleRate = rate == null ? 0 : Double.parseDouble(rate.trim());
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response,
+            FilterChain chain) throws IOException, ServletException {
+
+        if (!enabled) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        boolean async = request.getDispatcherType() == DispatcherType.ASYNC;
+        RequestTiming timing = RequestTiming.of(request);
+        if (timing == null) {
+            timing = new RequestTiming();
+            request.setAttribute(RequestTiming.ATTRIBUTE, timing);
+        }
+
+        long start = System.nanoTime();
+        BufferedResponseWrapper wrapper = new BufferedResponseWrapper((HttpServletResponse) response);
+        chain.doFilter(request, wrapper);
+
+        if (async) {
+            timing.add("async", System.nanoTime() - start);
+        }
+        if (request.isAsyncStarted()) {
+            return;
+        }
+
+        DBContext context = DBContext.of(request);
+        if (context != null && context.getCheckoutNanos() > 0) {
+            timing.add("checkout", context.getCheckoutNanos());
+        }
+
+        String header = timing.toHeader();
+        wrapper.setHeader("Server-Timing", header);
+        wrapper.finish();
+
+        if (logSampleRate > 0 && ThreadLocalRandom.current().nextDouble() < logSampleRate) {
+            HttpServletRequest req = (HttpServletRequest) request;
+            LOGGER.info(req.getMethod() + " " + req.getRequestURI() + " "
+                    + ((HttpServletResponse) response).getStatus() + " " + header);
+        }
+    }
+
+}
@@ -7,6 +7,9 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Enumeration;
@@ -17,8 +20,15 @@ import java.util.Properties;
 import java.util.stream.Stream;
 
 import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.sql.DataSource;
 
 import com.mchange.v2.c3p0.ComboPooledDataSource;
+import com.mchange.v2.c3p0.DataSources;
+
+import hr.fer.zemris.java.hw14.jdbc.InstrumentedDataSource;
+import hr.fer.zemris.java.hw14.pool.AdaptiveDataSource;
+import hr.fer.zemris.java.hw14.pool.BagPool;
 
 /**
  * This class is a utility class used for manipulating voting files. It defines
@@ -31,6 +41,14 @@ public class VotingUtil {
 
     /** An array of properties that must be present in .properties file. */
     private static final String[] PROPERTIES = {"host", "port", "name", "user", "password"};
+    /** Files the tables are seeded from. */
+    private static final String[] DEFINITION_FILES = {
+        "/WEB-INF/polls.txt",
+        "/WEB-INF/bands-definition.txt", "/WEB-INF/bands-results.txt",
+        "/WEB-INF/websites-definition.txt", "/WEB-INF/websites-results.txt"
+    };
+    /** Class name of the JDBC driver. */
+    private static final String DRIVER_CLASS = "org.apache.derby.jdbc.ClientDriver";
 
     /**
      * Disables instantiation.
@@ -94,7 +112,7 @@ public class VotingUtil {
                 long id = Long.parseLong(attributes[0]);
                 String name = attributes[1];
                 String songLink = attributes[2];
-                long votes = voteResults.get(id);
+                long votes = voteResults.getOrDefault(id, 0L);
                 bandList.add(new BandInfo(id, name, songLink, votes));
             });
         }
@@ -154,7 +172,7 @@ public class VotingUtil {
                 long id = Long.parseLong(attributes[0]);
                 String name = attributes[1];
                 String link = attributes[2];
-                long votes = voteResults.get(id);
+                long votes = voteResults.getOrDefault(id, 0L);
                 websiteList.add(new WebsiteInfo(id, name, link, votes));
             });
         }
@@ -246,9 +264,48 @@ public class VotingUtil {
     }
 
     /**
-     * Returns a {@linkplain ComboPooledDataSource} object initialized with
-     * properties obtained from the <tt>/WEB-INF/dbsettings.properties</tt>
-     * file. The combo pooled data source object is set initially with the
+     * Returns a checksum of all files the tables are seeded from: the polls,
+     * the band and website definitions and their initial results. The
+     * checksum is a hexadecimal SHA-256 digest of the file names and contents,
+     * so it changes whenever any of the files is changed, added or removed.
+     *
+     * @param context HTTP servlet context
+     * @return checksum of the definition files
+     * @throws IOException if an I/O exception occurs
+     */
+    public static String getDefinitionChecksum(ServletContext context) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        for (String name : DEFINITION_FILES) {
+            Path path = Paths.get(context.getRealPath(name));
+            digest.update(name.getBytes(StandardCharsets.UTF_8));
+            if (Files.exists(path)) {
+                digest.update((byte) 1);
+                digest.update(Files.readAllBytes(path));
+            } else {
+                digest.update((byte) 0);
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns a {@linkplain DataSource} pool initialized with properties
+     * obtained from the <tt>/WEB-INF/dbsettings.properties</tt> file. This is
+     * the primary pool, used for all writes. The pool implementation is chosen
+     * by the <tt>poolType</tt> property: <tt>c3p0</tt> (the default) creates a
+     * {@linkplain ComboPooledDataSource}, while <tt>bag</tt> creates the
+     * built-in {@linkplain BagPool}. The pool is set initially with the
      * following parameters:
      * <ul>
      * <li>connection URL:
@@ -257,42 +314,305 @@ public class VotingUtil {
      * properties file.
      * <li>user: <tt>user</tt> obtained from the properties file.
      * <li>password: <tt>password</tt> obtained from the properties file.
-     * <li>initial pool size: <tt>5</tt>
-     * <li>minimum pool size: <tt>5</tt>
-     * <li>acquire increment: <tt>5</tt>
-     * <li>maximum pool size: <tt>20</tt>
+     * <li>initial pool size: <tt>initialPoolSize</tt>, default <tt>5</tt>
+     * (c3p0 only)
+     * <li>minimum pool size: <tt>minPoolSize</tt>, default <tt>5</tt>
+     * <li>acquire increment: <tt>acquireIncrement</tt>, default <tt>5</tt>
+     * (c3p0 only)
+     * <li>maximum pool size: <tt>maxPoolSize</tt>, default <tt>20</tt>
+     * <li>prepared statements cached per connection:
+     * <tt>statementCacheSize</tt>, default <tt>20</tt>, where <tt>0</tt>
+     * disables statement caching
+     * <li>checkout timeout: <tt>checkoutTimeout</tt> in milliseconds, default
+     * <tt>30000</tt> (bag only)
+     * <li>leak detection threshold: <tt>leakDetectionThreshold</tt> in
+     * milliseconds, default <tt>0</tt> which disables it (bag only)
      * </ul>
      *
      * @param context HTTP servlet context
-     * @return an instance of {@code ComboPooledDataSource}
+     * @return the primary pool
      */
-    public static ComboPooledDataSource getComboPooledDataSource(ServletContext context) {
+    public static DataSource getDataSource(ServletContext context) {
         Properties properties = getProperties("/WEB-INF/dbsettings.properties", context);
+        return createDataSource(properties, "");
+    }
+
+    /**
+     * Returns a {@linkplain DataSource} pool used only for reads, initialized
+     * with properties obtained from the <tt>/WEB-INF/dbsettings.properties</tt>
+     * file. Every property of this pool is looked up with the <tt>read.</tt>
+     * prefix first (for an example <tt>read.host</tt> or
+     * <tt>read.maxPoolSize</tt>), falling back to the property of the primary
+     * pool if the prefixed one is not present. This way the read pool may
+     * point to a replica database, or to the same database as the primary
+     * pool if no <tt>read.</tt> properties are given.
+     *
+     * @param context HTTP servlet context
+     * @return the pool used for reads
+     * @see #getDataSource(ServletContext)
+     */
+    public static DataSource getReadDataSource(ServletContext context) {
+        Properties properties = getProperties("/WEB-INF/dbsettings.properties", context);
+        return createDataSource(properties, "read.");
+    }
+
+    /**
+     * Returns a <tt>List</tt> of {@linkplain DataSource} pools, one for each
+     * additional shard configured in the
+     * <tt>/WEB-INF/dbsettings.properties</tt> file. The number of shards is
+     * given by the <tt>shards</tt> property, where shard <tt>0</tt> is the
+     * primary database, so the returned list holds pools of shards
+     * <tt>1</tt> to <tt>shards - 1</tt>. Every property of shard <tt>i</tt>
+     * is looked up with the <tt>shard.i.</tt> prefix first, falling back to
+     * the property of the primary pool.
+     * <p>
+     * An empty list is returned if sharding is not configured.
+     *
+     * @param context HTTP servlet context
+     * @return a list of pools of the additional shards
+     * @see #getDataSource(ServletContext)
+     */
+    public static List<DataSource> getShardDataSources(ServletContext context) {
+        Properties properties = getProperties("/WEB-INF/dbsettings.properties", context);
+        int shards = Integer.parseInt(getProperty(properties, "", "shards", "1"));
+
+        List<DataSource> pools = new ArrayList<>();
+        for (int i = 1; i < shards; i++) {
+            pools.add(createDataSource(properties, "shard." + i + "."));
+        }
+        return pools;
+    }
+
+    /**
+     * Returns the maximum size of the specified pool <tt>ds</tt>.
+     *
+     * @param ds a pool created by this class
+     * @return the maximum size of the pool
+     */
+    public static int getMaxPoolSize(DataSource ds) {
+        if (ds instanceof InstrumentedDataSource) {
+            ds = ((InstrumentedDataSource) ds).getDelegate();
+        }
+        if (ds instanceof AdaptiveDataSource) {
+            return ((AdaptiveDataSource) ds).getSize();
+        }
+        if (ds instanceof BagPool) {
+            return ((BagPool) ds).getMaxPoolSize();
+        }
+        return ((ComboPooledDataSource) ds).getMaxPoolSize();
+    }
+
+    /**
+     * Closes the specified pool <tt>ds</tt> and all of its connections.
+     *
+     * @param ds a pool created by this class
+     */
+    public static void destroyDataSource(DataSource ds) {
+        if (ds instanceof InstrumentedDataSource) {
+            ds = ((InstrumentedDataSource) ds).getDelegate();
+        }
+        if (ds instanceof AdaptiveDataSource) {
+            AdaptiveDataSource adaptive = (AdaptiveDataSource) ds;
+            adaptive.close();
+            ds = adaptive.getDelegate();
+        }
+        if (ds instanceof BagPool) {
+            ((BagPool) ds).close();
+            return;
+        }
+        try {
+            DataSources.destroy(ds);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns true if the client of the specified request accepts gzip
+     * compressed responses, as told by its <tt>Accept-Encoding</tt> header.
+     *
+     * @param req HTTP servlet request
+     * @return true if the client accepts gzip
+     */
+    public static boolean acceptsGzip(HttpServletRequest req) {
+        String accept = req.getHeader("Accept-Encoding");
+        if (accept == null) {
+            return false;
+        }
+        for (String coding : accept.split(",")) {
+            String[] params = coding.trim().split(";");
+            if (params[0].trim().equalsIgnoreCase("gzip")) {
+                return params.length == 1 || !params[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates a pool of the type given by the <tt>poolType</tt> property with
+     * the specified <tt>properties</tt>, where each property is first looked
+     * up with the specified <tt>prefix</tt>.
+     * <p>
+     * If the <tt>adaptive</tt> property is <tt>true</tt>, the pool is wrapped
+     * into an {@linkplain AdaptiveDataSource} that resizes it between
+     * <tt>adaptive.minSize</tt> (default <tt>minPoolSize</tt>) and
+     * <tt>adaptive.maxSize</tt> (default <tt>maxPoolSize</tt>), aiming for the
+     * 95th percentile of checkout wait under <tt>adaptive.targetWait</tt>
+     * milliseconds (default <tt>5</tt>) and deciding every
+     * <tt>adaptive.interval</tt> milliseconds (default <tt>10000</tt>).
+     * <p>
+     * If the <tt>jdbc.instrument</tt> property is <tt>true</tt>, the pool is
+     * finally wrapped into an {@linkplain InstrumentedDataSource} that records
+     * statistics of every SQL statement and logs statements slower than
+     * <tt>jdbc.slowQueryThreshold</tt> milliseconds (default <tt>100</tt>,
+     * <tt>0</tt> disables the log).
+     *
+     * @param properties database settings
+     * @param prefix prefix of the properties of this pool
+     * @return a new pool
+     * @throws RuntimeException if the pool type is unknown
+     */
+    private static DataSource createDataSource(Properties properties, String prefix) {
+        String type = getProperty(properties, prefix, "poolType", "c3p0");
+        DataSource pool;
+        switch (type) {
+        case "c3p0":
+            pool = createComboPooledDataSource(properties, prefix);
+            break;
+        case "bag":
+            pool = createBagPool(properties, prefix);
+            break;
+        default:
+            throw new RuntimeException("Unknown pool type: " + type);
+        }
 
+        if (Boolean.parseBoolean(getProperty(properties, prefix, "adaptive", "false"))) {
+            pool = createAdaptiveDataSource(properties, prefix, pool);
+        }
+        if (Boolean.parseBoolean(getProperty(properties, prefix, "jdbc.instrument", "false"))) {
+            pool = new InstrumentedDataSource(pool,
+                    Long.parseLong(getProperty(properties, prefix, "jdbc.slowQueryThreshold", "100")));
+        }
+        return pool;
+    }
+
+    /**
+     * Wraps the specified <tt>pool</tt> into an {@linkplain AdaptiveDataSource}
+     * configured with the specified <tt>properties</tt>, where each property
+     * is first looked up with the specified <tt>prefix</tt>.
+     *
+     * @param properties database settings
+     * @param prefix prefix of the properties of this pool
+     * @param pool the pool to be wrapped
+     * @return the adaptive pool
+     */
+    private static DataSource createAdaptiveDataSource(Properties properties, String prefix, DataSource pool) {
+        String name = prefix.isEmpty() ? "write" : prefix.replace(".", "");
+        return new AdaptiveDataSource(name, pool,
+                Integer.parseInt(getProperty(properties, prefix, "adaptive.minSize",
+                        getProperty(properties, prefix, "minPoolSize", "5"))),
+                Integer.parseInt(getProperty(properties, prefix, "adaptive.maxSize",
+                        getProperty(properties, prefix, "maxPoolSize", "20"))),
+                Long.parseLong(getProperty(properties, prefix, "adaptive.targetWait", "5")),
+                Long.parseLong(getProperty(properties, prefix, "adaptive.interval", "10000")));
+    }
+
+    /**
+     * Creates a {@linkplain ComboPooledDataSource} object with the specified
+     * <tt>properties</tt>, where each property is first looked up with the
+     * specified <tt>prefix</tt>.
+     *
+     * @param properties database settings
+     * @param prefix prefix of the properties of this pool
+     * @return an instance of {@code ComboPooledDataSource}
+     */
+    private static ComboPooledDataSource createComboPooledDataSource(Properties properties, String prefix) {
         // Pool preparation
         ComboPooledDataSource cpds = new ComboPooledDataSource();
         try {
-            cpds.setDriverClass("org.apache.derby.jdbc.ClientDriver");
+            cpds.setDriverClass(DRIVER_CLASS);
         } catch (PropertyVetoException e) {
             throw new RuntimeException(e);
         }
 
-        String host = properties.getProperty("host");
-        String port = properties.getProperty("port");
-        String dbName = properties.getProperty("name");
-        String connectionURL = "jdbc:derby://" + host + ":" + port + "/" + dbName;
-
-        cpds.setJdbcUrl(connectionURL);
-        cpds.setUser(properties.getProperty("user"));
-        cpds.setPassword(properties.getProperty("password"));
-        cpds.setInitialPoolSize(5);
-        cpds.setMinPoolSize(5);
-        cpds.setAcquireIncrement(5);
-        cpds.setMaxPoolSize(20);
+        cpds.setJdbcUrl(getConnectionURL(properties, prefix));
+        cpds.setUser(getProperty(properties, prefix, "user", null));
+        cpds.setPassword(getProperty(properties, prefix, "password", null));
+        cpds.setInitialPoolSize(Integer.parseInt(getProperty(properties, prefix, "initialPoolSize", "5")));
+        cpds.setMinPoolSize(Integer.parseInt(getProperty(properties, prefix, "minPoolSize", "5")));
+        cpds.setAcquireIncrement(Integer.parseInt(getProperty(properties, prefix, "acquireIncrement", "5")));
+        cpds.setMaxPoolSize(Integer.parseInt(getProperty(properties, prefix, "maxPoolSize", "20")));
+        cpds.setMaxStatementsPerConnection(Integer.parseInt(getProperty(properties, prefix, "statementCacheSize", "20")));
 
         return cpds;
     }
 
+    /**
+     * Creates and starts a {@linkplain BagPool} object with the specified
+     * <tt>properties</tt>, where each property is first looked up with the
+     * specified <tt>prefix</tt>.
+     *
+     * @param properties database settings
+     * @param prefix prefix of the properties of this pool
+     * @return a started instance of {@code BagPool}
+     */
+    private static BagPool createBagPool(Properties properties, String prefix) {
+        BagPool pool = new BagPool();
+        pool.setDriverClass(DRIVER_CLASS);
+        pool.setJdbcUrl(getConnectionURL(properties, prefix));
+        pool.setUser(getProperty(properties, prefix, "user", null));
+        pool.setPassword(getProperty(properties, prefix, "password", null));
+        pool.setMinPoolSize(Integer.parseInt(getProperty(properties, prefix, "minPoolSize", "5")));
+        pool.setMaxPoolSize(Integer.parseInt(getProperty(properties, prefix, "maxPoolSize", "20")));
+        pool.setCheckoutTimeout(Long.parseLong(getProperty(properties, prefix, "checkoutTimeout", "30000")));
+        pool.setValidationInterval(Long.parseLong(getProperty(properties, prefix, "validationInterval", "5000")));
+        pool.setValidationTimeout(Integer.parseInt(getProperty(properties, prefix, "validationTimeout", "5")));
+        pool.setIdleTimeout(Long.parseLong(getProperty(properties, prefix, "idleTimeout", "600000")));
+        pool.setLeakDetectionThreshold(Long.parseLong(getProperty(properties, prefix, "leakDetectionThreshold", "0")));
+        pool.setStatementCacheSize(Integer.parseInt(getProperty(properties, prefix, "statementCacheSize", "20")));
+
+        try {
+            pool.start();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        return pool;
+    }
+
+    /**
+     * Returns the Derby connection URL built from the <tt>host</tt>,
+     * <tt>port</tt> and <tt>name</tt> properties.
+     *
+     * @param properties database settings
+     * @param prefix prefix of the properties of the pool
+     * @return the connection URL
+     */
+    private static String getConnectionURL(Properties properties, String prefix) {
+        String host = getProperty(properties, prefix, "host", null);
+        String port = getProperty(properties, prefix, "port", null);
+        String dbName = getProperty(properties, prefix, "name", null);
+        return "jdbc:derby://" + host + ":" + port + "/" + dbName;
+    }
+
+    /**
+     * Returns the value of the property <tt>prefix + key</tt>, or the value of
+     * the property <tt>key</tt> if the prefixed one is not present, or the
+     * specified <tt>defaultValue</tt> if neither is present.
+     *
+     * @param properties properties to be searched
+     * @param prefix prefix of the property
+     * @param key key of the property
+     * @param defaultValue value returned if the property is not present
+     * @return value of the property
+     */
+    private static String getProperty(Properties properties, String prefix, String key, String defaultValue) {
+        String value = properties.getProperty(prefix + key);
+        if (value == null) {
+            value = properties.getProperty(key, defaultValue);
+        }
+        return value == null ? null : value.trim();
+    }
+
     /**
      * Gets the properties by converting the specified relative <tt>path</tt> to
      * a real path using {@code ServletContextEvent} <tt>sce</tt> and returns
@@ -442,6 +762,16 @@ public class VotingUtil {
             votes++;
         }
 
+        /**
+         * Increases the number of votes for this information object by the
+         * specified <tt>count</tt>.
+         *
+         * @param count number of votes to be added
+         */
+        public void vote(long count) {
+            votes += count;
+        }
+
     }
 
     /**
@@ -0,0 +1,375 @@
+package hr.fer.zemris.java.hw14.archive;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import hr.fer.zemris.java.hw14.VotingUtil.Info;
+import hr.fer.zemris.java.hw14.cache.PollVersions;
+import hr.fer.zemris.java.hw14.ranked.RankedBallots;
+import hr.fer.zemris.java.tecaj_14.dao.DAOProvider;
+import hr.fer.zemris.java.tecaj_14.dao.sql.DBContext;
+
+/**
+ * The lifecycle of polls. A poll is open until it is {@linkplain #close(long)
+ * closed}, which is recorded in the <tt>closedAt</tt> column of the
+ * <tt>Polls</tt> table of the primary database and of every shard, and can
+ * not be undone. Votes in a closed poll are rejected, both from memory and by
+ * the database, which counts votes only in polls whose <tt>closedAt</tt> is
+ * <tt>null</tt>.
+ * <p>
+ * When a poll is closed, its final results are read once and turned into
+ * {@linkplain PollArtifacts artifacts}, which are kept in memory and written
+ * to a file in the archive directory, so that they are not computed again
+ * after a restart. Results, charts, XLS files and the results API of a closed
+ * poll are served from its artifacts without accessing the database.
+ * <p>
+ * Whether a poll is closed is decided from memory. Closing a poll changes the
+ * catalog {@linkplain PollVersions version}, so instances sharing the
+ * database read the closed polls again once they see the change; their
+ * artifacts are then read from the archive directory if it is shared, or
+ * computed from the database otherwise.
+ *
+ * @author Mario Bobic
+ */
+public class ClosedPolls {
+
+    /** Logger of the closed polls. */
+    private static final Logger LOGGER = Logger.getLogger(ClosedPolls.class.getName());
+
+    /** Prefix of artifacts file names. */
+    private static final String PREFIX = "closed-";
+    /** Suffix of artifacts file names. */
+    private static final String SUFFIX = ".bin";
+
+    /** The closed polls of the application, or <tt>null</tt>. */
+    private static volatile ClosedPolls instance;
+
+    /** Pool of the primary database. */
+    private final DataSource ds;
+    /** Pools of additional shards. */
+    private final List<DataSource> shards;
+    /** Directory of the artifacts files. */
+    private final Path directory;
+
+    /** Times closed polls were closed in milliseconds, mapped by poll ID. */
+    private final Map<Long, Long> closed = new ConcurrentHashMap<>();
+    /** Artifacts of closed polls, mapped by poll ID. */
+    private final Map<Long, PollArtifacts> artifacts = new ConcurrentHashMap<>();
+    /** Catalog version the closed polls were last read at. */
+    private volatile String catalog;
+
+    /** Number of artifacts computed from the database. */
+    private volatile long built;
+    /** Number of artifacts read from files. */
+    private volatile long loaded;
+
+    /**
+     * Constructs an instance of {@code ClosedPolls} keeping artifacts in the
+     * specified directory, which must exist. The artifacts of all closed
+     * polls are read or computed.
+     *
+     * @param ds pool of the primary database
+     * @param shards pools of additional shards
+     * @param directory directory of the artifacts files
+     * @throws SQLException if the closed polls can not be read
+     */
+    public ClosedPolls(DataSource ds, List<DataSource> shards, Path directory) throws SQLException {
+        this.ds = ds;
+        this.shards = shards;
+        this.directory = directory;
+
+        refresh();
+        for (long pollID : closed.keySet()) {
+            getArtifacts(pollID);
+        }
+    }
+
+    /**
+     * Returns the closed polls of the application, or <tt>null</tt> if there
+     * are none.
+     *
+     * @return the closed polls of the application
+     */
+    public static ClosedPolls getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the closed polls of the application.
+     *
+     * @param closedPolls the closed polls, or <tt>null</tt>
+     */
+    public static void setInstance(ClosedPolls closedPolls) {
+        instance = closedPolls;
+    }
+
+    /**
+     * Returns true if the poll with the specified <tt>pollID</tt> is closed.
+     * Returns false if there are no closed polls of the application.
+     *
+     * @param pollID ID of the poll
+     * @return true if the poll is closed
+     */
+    public static boolean isClosed(long pollID) {
+        ClosedPolls closedPolls = instance;
+        return closedPolls != null && closedPolls.getClosedAt(pollID) >= 0;
+    }
+
+    /**
+     * Returns the artifacts of the poll with the specified <tt>pollID</tt>,
+     * or <tt>null</tt> if the poll is open, there are no closed polls of the
+     * application or the artifacts are not available.
+     *
+     * @param pollID ID of the poll
+     * @return the artifacts of the poll, or <tt>null</tt>
+     */
+    public static PollArtifacts get(long pollID) {
+        ClosedPolls closedPolls = instance;
+        return closedPolls == null ? null : closedPolls.getArtifacts(pollID);
+    }
+
+    /**
+     * Returns the time the poll with the specified <tt>pollID</tt> was closed
+     * in milliseconds, or <tt>-1</tt> if it is open.
+     *
+     * @param pollID ID of the poll
+     * @return the time the poll was closed, or <tt>-1</tt>
+     */
+    public long getClosedAt(long pollID) {
+        if (!PollVersions.getCatalog().equals(catalog)) {
+            refreshQuietly();
+        }
+        Long closedAt = closed.get(pollID);
+        return closedAt == null ? -1 : closedAt;
+    }
+
+    /**
+     * Returns the artifacts of the poll with the specified <tt>pollID</tt>,
+     * or <tt>null</tt> if the poll is open or the artifacts are not available.
+     * Artifacts not yet in memory are read from their file, or computed if
+     * there is none.
+     *
+     * @param pollID ID of the poll
+     * @return the artifacts of the poll, or <tt>null</tt>
+     */
+    public PollArtifacts getArtifacts(long pollID) {
+        long closedAt = getClosedAt(pollID);
+        if (closedAt < 0) {
+            return null;
+        }
+        PollArtifacts pollArtifacts = artifacts.get(pollID);
+        if (pollArtifacts != null) {
+            return pollArtifacts;
+        }
+
+        try {
+            return load(pollID, closedAt);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to make artifacts of closed poll " + pollID + ".", e);
+            return null;
+        }
+    }
+
+    /**
+     * Closes the poll with the specified <tt>pollID</tt> and returns its
+     * artifacts. Votes in the poll are rejected from the moment this method
+     * is called. Closing a poll that is already closed only returns its
+     * artifacts, after recording the closing in shards that missed it.
+     * <p>
+     * The results are read after the closing is committed to the database
+     * that holds the votes of the poll, so a vote still in flight either
+     * commits before they are read or is not counted at all.
+     *
+     * @param pollID ID of the poll
+     * @return the artifacts of the poll, or <tt>null</tt> if there is no poll
+     *         with the specified ID
+     * @throws SQLException if the poll can not be closed
+     * @throws IOException if the artifacts can not be made
+     */
+    public synchronized PollArtifacts close(long pollID) throws SQLException, IOException {
+        boolean open = closed.putIfAbsent(pollID, System.currentTimeMillis()) == null;
+
+        Timestamp closedAt;
+        try (Connection con = ds.getConnection()) {
+            try (PreparedStatement pst = con.prepareStatement(
+                    "UPDATE Polls SET closedAt = CURRENT_TIMESTAMP WHERE id = ? AND closedAt IS NULL")) {
+                pst.setLong(1, pollID);
+                pst.executeUpdate();
+            }
+            try (PreparedStatement pst = con.prepareStatement("SELECT closedAt FROM Polls WHERE id = ?")) {
+                pst.setLong(1, pollID);
+                try (ResultSet rset = pst.executeQuery()) {
+                    closedAt = rset.next() ? rset.getTimestamp(1) : null;
+                }
+            }
+        } catch (SQLException e) {
+            if (open) {
+                closed.remove(pollID);
+            }
+            throw e;
+        }
+
+        if (closedAt == null) {
+            closed.remove(pollID);
+            return null;
+        }
+        closed.put(pollID, closedAt.getTime());
+        if (open) {
+            LOGGER.info("Closed poll " + pollID + ".");
+            PollVersions.catalogChanged();
+            PollVersions.changed(pollID);
+            catalog = PollVersions.getCatalog();
+        }
+        for (DataSource shard : shards) {
+            try (Connection con = shard.getConnection();
+                 PreparedStatement pst = con.prepareStatement(
+                         "UPDATE Polls SET closedAt = ? WHERE id = ? AND closedAt IS NULL")) {
+                pst.setTimestamp(1, closedAt);
+                pst.setLong(2, pollID);
+                pst.executeUpdate();
+            }
+        }
+        return load(pollID, closedAt.getTime());
+    }
+
+    /**
+     * Returns the artifacts of the poll with the specified <tt>pollID</tt>,
+     * closed at the specified time, reading them from their file or
+     * computing them if there is no file of that closing.
+     *
+     * @param pollID ID of the poll
+     * @param closedAt time the poll was closed, in milliseconds
+     * @return the artifacts of the poll
+     * @throws IOException if the artifacts can not be made
+     */
+    private synchronized PollArtifacts load(long pollID, long closedAt) throws IOException {
+        PollArtifacts pollArtifacts = artifacts.get(pollID);
+        if (pollArtifacts != null) {
+            return pollArtifacts;
+        }
+
+        Path file = directory.resolve(PREFIX + pollID + SUFFIX);
+        if (Files.exists(file)) {
+            try {
+                pollArtifacts = PollArtifacts.read(file, pollID);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Replacing artifacts file " + file + ".", e);
+            }
+        }
+
+        if (pollArtifacts != null && pollArtifacts.getClosedAt() == closedAt) {
+            loaded++;
+        } else {
+            List<Info> infoList = readResults(pollID);
+            pollArtifacts = PollArtifacts.build(pollID, closedAt, infoList, RankedBallots.get(pollID, infoList));
+            pollArtifacts.write(file);
+            built++;
+        }
+        artifacts.put(pollID, pollArtifacts);
+        return pollArtifacts;
+    }
+
+    /**
+     * Reads the results of the poll with the specified <tt>pollID</tt>
+     * through the DAO, from the primary database.
+     *
+     * @param pollID ID of the poll
+     * @return the results of the poll
+     */
+    private List<Info> readResults(long pollID) {
+        try (DBContext context = new DBContext(ds, ds)) {
+            return DAOProvider.getDao(context).getInfoList(pollID);
+        }
+    }
+
+    /**
+     * Reads the IDs of closed polls and the times they were closed from the
+     * database, remembering the catalog version they were read at.
+     *
+     * @throws SQLException if the closed polls can not be read
+     */
+    private synchronized void refresh() throws SQLException {
+        catalog = PollVersions.getCatalog();
+        try (Connection con = ds.getConnection();
+             PreparedStatement pst = con.prepareStatement(
+                     "SELECT id, closedAt FROM Polls WHERE closedAt IS NOT NULL")) {
+            try (ResultSet rset = pst.executeQuery()) {
+                while (rset.next()) {
+                    closed.put(rset.getLong(1), rset.getTimestamp(2).getTime());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the closed polls again if the catalog version has changed since
+     * they were last read, logging a failure. Closed polls are not read again
+     * until the catalog version changes once more.
+     */
+    private void refreshQuietly() {
+        synchronized (this) {
+            if (PollVersions.getCatalog().equals(catalog)) {
+                return;
+            }
+            try {
+                refresh();
+            } catch (SQLException e) {
+                LOGGER.log(Level.WARNING, "Failed to read closed polls.", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of closed polls.
+     *
+     * @return the number of closed polls
+     */
+    public int getClosedCount() {
+        return closed.size();
+    }
+
+    /**
+     * Returns the number of bytes taken by the artifacts in memory.
+     *
+     * @return the size of the artifacts
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (PollArtifacts pollArtifacts : artifacts.values()) {
+            bytes += pollArtifacts.getBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of artifacts computed from the database.
+     *
+     * @return the number of computed artifacts
+     */
+    public long getBuilt() {
+        return built;
+    }
+
+    /**
+     * Returns the number of artifacts read from files.
+     *
+     * @return the number of read artifacts
+     */
+    public long getLoaded() {
+        return loaded;
+    }
+
+}
@@ -0,0 +1,384 @@
+package hr.fer.zemris.java.hw14.archive;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+
+import hr.fer.zemris.java.hw14.JSONWriter;
+import hr.fer.zemris.java.hw14.VotingUtil.BandInfo;
+import hr.fer.zemris.java.hw14.VotingUtil.Info;
+import hr.fer.zemris.java.hw14.VotingUtil.WebsiteInfo;
+import hr.fer.zemris.java.hw14.ranked.RankedResult;
+import hr.fer.zemris.java.hw14.servlets.ApiServlet;
+import hr.fer.zemris.java.hw14.servlets.GlasanjeGrafikaServlet;
+import hr.fer.zemris.java.hw14.servlets.GlasanjeRezultatiServlet;
+import hr.fer.zemris.java.hw14.servlets.GlasanjeXLSServlet;
+
+/**
+ * The final results of a closed poll, computed once when the poll is closed:
+ * the options ranked by votes, the winners, the pie chart as a PNG image, the
+ * XLS file, with the rounds of ranked ballots if there are any, the final
+ * {@linkplain RankedResult result of ranked ballots} and the JSON of the
+ * results API. Since the results of a closed poll
+ * never change, the artifacts are never computed again; they are written to a
+ * file and served as they are, with a tag made of the time the poll was
+ * closed and headers letting clients and proxies cache them for good.
+ * <p>
+ * Objects of this class are immutable.
+ *
+ * @author Mario Bobic
+ */
+public class PollArtifacts {
+
+    /** Value of the <tt>Cache-Control</tt> header of served artifacts. */
+    public static final String CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+    /** Magic number of an artifacts file. */
+    private static final int MAGIC = 0x41524332;
+    /** Type of a band option in an artifacts file. */
+    private static final byte BAND = 'B';
+    /** Type of a website option in an artifacts file. */
+    private static final byte WEBSITE = 'W';
+
+    /** ID of the poll. */
+    private final long pollID;
+    /** Time the poll was closed, in milliseconds. */
+    private final long closedAt;
+    /** Options of the poll, sorted by votes. */
+    private final List<Info> infoList;
+    /** Winners of the poll. */
+    private final List<Info> winners;
+    /** Final result of ranked ballots, or <tt>null</tt>. */
+    private final RankedResult ranked;
+    /** The pie chart as a PNG image. */
+    private final byte[] png;
+    /** The XLS file. */
+    private final byte[] xls;
+    /** The JSON of the results. */
+    private final byte[] json;
+    /** The JSON of the results compressed with gzip. */
+    private final byte[] gzipJSON;
+
+    /**
+     * Constructs an instance of {@code PollArtifacts} with the specified
+     * arguments.
+     *
+     * @param pollID ID of the poll
+     * @param closedAt time the poll was closed, in milliseconds
+     * @param infoList options of the poll, sorted by votes
+     * @param ranked final result of ranked ballots, or <tt>null</tt>
+     * @param png the pie chart as a PNG image
+     * @param xls the XLS file
+     * @param json the JSON of the results
+     * @throws IOException if the JSON can not be compressed
+     */
+    private PollArtifacts(long pollID, long closedAt, List<Info> infoList, RankedResult ranked,
+            byte[] png, byte[] xls, byte[] json) throws IOException {
+        this.pollID = pollID;
+        this.closedAt = closedAt;
+        this.infoList = Collections.unmodifiableList(infoList);
+        this.winners = Collections.unmodifiableList(GlasanjeRezultatiServlet.getWinners(infoList));
+        this.ranked = ranked;
+        this.png = png;
+        this.xls = xls;
+        this.json = json;
+        this.gzipJSON = gzip(json);
+    }
+
+    /**
+     * Computes the artifacts of the poll with the specified <tt>pollID</tt>
+     * from its final results.
+     *
+     * @param pollID ID of the poll
+     * @param closedAt time the poll was closed, in milliseconds
+     * @param infoList final results of the poll
+     * @param ranked final result of ranked ballots of the poll, or
+     *        <tt>null</tt> if it has none
+     * @return the artifacts of the poll
+     * @throws IOException if an artifact can not be encoded
+     */
+    public static PollArtifacts build(long pollID, long closedAt, List<Info> infoList, RankedResult ranked)
+            throws IOException {
+        List<Info> sorted = new ArrayList<>(infoList);
+        sorted.sort(Info.BY_VOTES);
+
+        byte[] png = GlasanjeGrafikaServlet.createPieChartPNG(sorted);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (HSSFWorkbook workbook = GlasanjeXLSServlet.createXLSFile(sorted, ranked)) {
+            workbook.write(bos);
+        }
+        byte[] xls = bos.toByteArray();
+
+        bos = new ByteArrayOutputStream();
+        try (JSONWriter writer = new JSONWriter(new OutputStreamWriter(bos, StandardCharsets.UTF_8))) {
+            if (!sorted.isEmpty()) {
+                ApiServlet.writeResults(writer, pollID, sorted);
+            }
+        }
+        byte[] json = bos.toByteArray();
+
+        return new PollArtifacts(pollID, closedAt, sorted, ranked, png, xls, json);
+    }
+
+    /**
+     * Reads the artifacts of the poll with the specified <tt>pollID</tt> from
+     * the specified file.
+     *
+     * @param file the artifacts file
+     * @param pollID ID of the poll
+     * @return the artifacts of the poll
+     * @throws IOException if the file can not be read or is not an artifacts
+     *         file of the poll
+     */
+    public static PollArtifacts read(Path file, long pollID) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readLong() != pollID) {
+                throw new IOException("Not an artifacts file of poll " + pollID + ": " + file);
+            }
+            long closedAt = in.readLong();
+
+            int n = in.readInt();
+            List<Info> infoList = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                byte type = in.readByte();
+                long id = in.readLong();
+                String name = in.readUTF();
+                String link = in.readUTF();
+                long votes = in.readLong();
+                infoList.add(type == BAND
+                        ? new BandInfo(id, name, link, votes)
+                        : new WebsiteInfo(id, name, link, votes));
+            }
+
+            RankedResult ranked = in.readBoolean() ? RankedResult.readFrom(in, infoList) : null;
+
+            return new PollArtifacts(pollID, closedAt, infoList, ranked, readBytes(in), readBytes(in), readBytes(in));
+        }
+    }
+
+    /**
+     * Writes the artifacts to the specified file. The file is written under a
+     * temporary name first and then moved, so it is never seen half written.
+     *
+     * @param file the artifacts file
+     * @throws IOException if the file can not be written
+     */
+    public void write(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(pollID);
+            out.writeLong(closedAt);
+
+            out.writeInt(infoList.size());
+            for (Info info : infoList) {
+                out.writeByte(info instanceof BandInfo ? BAND : WEBSITE);
+                out.writeLong(info.id);
+                out.writeUTF(info.name);
+                out.writeUTF(info.link);
+                out.writeLong(info.getVotes());
+            }
+
+            out.writeBoolean(ranked != null);
+            if (ranked != null) {
+                ranked.writeTo(out);
+            }
+
+            writeBytes(out, png);
+            writeBytes(out, xls);
+            writeBytes(out, json);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Sets the tag of the artifact of the specified <tt>kind</tt> and the
+     * headers letting it be cached for good. If the <tt>If-None-Match</tt>
+     * header of the request holds the tag, the response is set to <tt>304 Not
+     * Modified</tt> and <tt>true</tt> is returned.
+     *
+     * @param req HTTP servlet request
+     * @param resp HTTP servlet response
+     * @param kind kind of the served artifact, which is a part of its tag
+     * @return true if the response has been set to <tt>304 Not Modified</tt>
+     */
+    public boolean notModified(HttpServletRequest req, HttpServletResponse resp, String kind) {
+        String etag = "\"closed" + pollID + "-" + closedAt + "-" + kind + "\"";
+        resp.setHeader("ETag", etag);
+        resp.setHeader("Cache-Control", CACHE_CONTROL);
+
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag) || tag.equals("*")) {
+                resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the ID of the poll.
+     *
+     * @return the ID of the poll
+     */
+    public long getPollID() {
+        return pollID;
+    }
+
+    /**
+     * Returns the time the poll was closed, in milliseconds.
+     *
+     * @return the time the poll was closed
+     */
+    public long getClosedAt() {
+        return closedAt;
+    }
+
+    /**
+     * Returns the options of the poll with their final votes, sorted by votes.
+     * The options must not be voted for.
+     *
+     * @return the options of the poll
+     */
+    public List<Info> getInfoList() {
+        return infoList;
+    }
+
+    /**
+     * Returns the winners of the poll.
+     *
+     * @return the winners of the poll
+     */
+    public List<Info> getWinners() {
+        return winners;
+    }
+
+    /**
+     * Returns the final result of ranked ballots of the poll, or
+     * <tt>null</tt> if it has none.
+     *
+     * @return the result of ranked ballots, or <tt>null</tt>
+     */
+    public RankedResult getRanked() {
+        return ranked;
+    }
+
+    /**
+     * Returns the pie chart of the results as a PNG image. The array must not
+     * be modified.
+     *
+     * @return the pie chart
+     */
+    public byte[] getPNG() {
+        return png;
+    }
+
+    /**
+     * Returns the XLS file of the results. The array must not be modified.
+     *
+     * @return the XLS file
+     */
+    public byte[] getXLS() {
+        return xls;
+    }
+
+    /**
+     * Returns the JSON of the results, which is empty if the poll has no
+     * options. The array must not be modified.
+     *
+     * @return the JSON of the results
+     */
+    public byte[] getJSON() {
+        return json;
+    }
+
+    /**
+     * Returns the JSON of the results compressed with gzip. The array must not
+     * be modified.
+     *
+     * @return the compressed JSON of the results
+     */
+    public byte[] getGzipJSON() {
+        return gzipJSON;
+    }
+
+    /**
+     * Returns the number of bytes taken by the encoded artifacts.
+     *
+     * @return the size of the artifacts
+     */
+    public long getBytes() {
+        return png.length + xls.length + json.length + gzipJSON.length;
+    }
+
+    /**
+     * Reads an array written by {@linkplain #writeBytes(DataOutputStream, byte[])}.
+     *
+     * @param in the input stream
+     * @return the array
+     * @throws IOException if the array can not be read
+     */
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid artifact length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes the length of the specified array followed by its bytes.
+     *
+     * @param out the output stream
+     * @param bytes the array
+     * @throws IOException if the array can not be written
+     */
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Compresses the specified bytes with gzip.
+     *
+     * @param bytes the bytes
+     * @return the compressed bytes
+     * @throws IOException if the bytes can not be compressed
+     */
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(bytes.length / 4 + 32);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bos)) {
+            gzip.write(bytes);
+        }
+        return bos.toByteArray();
+    }
+
+}
@@ -0,0 +1,143 @@
+package hr.fer.zemris.java.hw14.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hr.fer.zemris.java.hw14.live.ResultsBroadcaster;
+
+/**
+ * Data versions of polls, used to tell whether a response computed earlier is
+ * still up to date without reading the database. Every poll has a version
+ * that is increased whenever votes are given in the poll, and the catalog of
+ * polls and their options has a version of its own, since it does not change
+ * with votes.
+ * <p>
+ * Versions are kept in memory and start over with every application start, so
+ * they are prefixed with an epoch: the time the application was started.
+ * Versions are compared only for equality, never for order.
+ * <p>
+ * Votes given by other application instances are seen only if a
+ * {@linkplain VersionPoller} is running: it publishes the changes of this
+ * instance to the database and increases the versions of polls changed by
+ * other instances.
+ *
+ * @author Mario Bobic
+ */
+public class PollVersions {
+
+    /** Epoch of the versions, the time the application was started. */
+    private static final long EPOCH = System.currentTimeMillis();
+
+    /** Versions of polls, mapped by poll ID. */
+    private static final Map<Long, AtomicLong> VERSIONS = new ConcurrentHashMap<>();
+    /** Version of the catalog of polls and their options. */
+    private static final AtomicLong CATALOG = new AtomicLong();
+    /** Poll ID used for the catalog when changes are published. */
+    static final long CATALOG_ID = 0;
+    /** IDs of polls changed since the changes were last published. */
+    private static final Set<Long> UNPUBLISHED = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Disables instantiation.
+     */
+    private PollVersions() {
+    }
+
+    /**
+     * Returns the version of the poll with the specified <tt>pollID</tt>.
+     *
+     * @param pollID ID of the poll
+     * @return the version of the poll
+     */
+    public static String get(long pollID) {
+        AtomicLong version = VERSIONS.get(pollID);
+        return EPOCH + "." + CATALOG.get() + "." + (version == null ? 0 : version.get());
+    }
+
+    /**
+     * Returns the version of the catalog of polls and their options.
+     *
+     * @return the version of the catalog
+     */
+    public static String getCatalog() {
+        return EPOCH + "." + CATALOG.get();
+    }
+
+    /**
+     * Increases the version of the poll with the specified <tt>pollID</tt>
+     * and notifies the {@linkplain ResultsBroadcaster} that it has changed.
+     * Must be called after votes are given in the poll.
+     *
+     * @param pollID ID of the changed poll
+     */
+    public static void changed(long pollID) {
+        UNPUBLISHED.add(pollID);
+        increase(pollID);
+    }
+
+    /**
+     * Increases the version of the catalog, which also changes the versions
+     * of all polls. Must be called after polls or their options are changed.
+     */
+    public static void catalogChanged() {
+        UNPUBLISHED.add(CATALOG_ID);
+        CATALOG.incrementAndGet();
+    }
+
+    /**
+     * Increases the version of the poll with the specified <tt>pollID</tt>,
+     * or of the catalog if it is {@linkplain #CATALOG_ID}, for a change made
+     * by another application instance. The change is not published again.
+     *
+     * @param pollID ID of the changed poll, or {@linkplain #CATALOG_ID}
+     */
+    static void changedElsewhere(long pollID) {
+        if (pollID == CATALOG_ID) {
+            CATALOG.incrementAndGet();
+        } else {
+            increase(pollID);
+        }
+    }
+
+    /**
+     * Increases the version of the poll with the specified <tt>pollID</tt>
+     * and notifies the {@linkplain ResultsBroadcaster} that it has changed.
+     *
+     * @param pollID ID of the changed poll
+     */
+    private static void increase(long pollID) {
+        VERSIONS.computeIfAbsent(pollID, id -> new AtomicLong()).incrementAndGet();
+        ResultsBroadcaster.pollChanged(pollID);
+    }
+
+    /**
+     * Returns and forgets the IDs of polls changed since this method was last
+     * called, including {@linkplain #CATALOG_ID} if the catalog was changed.
+     *
+     * @return IDs of the changed polls
+     */
+    static List<Long> takeUnpublished() {
+        List<Long> pollIDs = new ArrayList<>();
+        for (Long pollID : UNPUBLISHED) {
+            if (UNPUBLISHED.remove(pollID)) {
+                pollIDs.add(pollID);
+            }
+        }
+        return pollIDs;
+    }
+
+    /**
+     * Marks the polls with the specified IDs as changed but not published,
+     * for an example after publishing them failed.
+     *
+     * @param pollIDs IDs of the changed polls
+     */
+    static void unpublished(List<Long> pollIDs) {
+        UNPUBLISHED.addAll(pollIDs);
+    }
+
+}
@@ -0,0 +1,217 @@
+package hr.fer.zemris.java.hw14.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A cache of rendered responses bounded by the number of bytes it holds. Each
+ * response is stored together with the data version it was rendered from and
+ * a gzip compressed copy of its body, made once when the response is stored.
+ * A response is only returned while its version is current; a response stored
+ * under the same key with a newer version replaces it.
+ * <p>
+ * When the cache grows over its limit, the least recently used responses are
+ * evicted. All methods are thread-safe.
+ *
+ * @author Mario Bobic
+ */
+public class ResponseCache {
+
+    /** Estimated memory taken by an entry apart from its bodies and key. */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    /** Maximum number of bytes held by the cache. */
+    private final long maxBytes;
+    /** Cached responses in access order, mapped by key. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    /** Number of bytes currently held. */
+    private long bytes;
+
+    /** Number of requests answered from the cache. */
+    private long hits;
+    /** Number of requests not answered from the cache. */
+    private long misses;
+    /** Number of responses evicted to stay within the limit. */
+    private long evictions;
+
+    /**
+     * Constructs an instance of {@code ResponseCache} holding at most the
+     * specified number of bytes.
+     *
+     * @param maxBytes maximum number of bytes held by the cache
+     */
+    public ResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the response stored under the specified <tt>key</tt> if it was
+     * rendered from the specified <tt>version</tt>, or <tt>null</tt>.
+     *
+     * @param key key of the response
+     * @param version current data version of the response
+     * @return the cached response, or <tt>null</tt>
+     */
+    public synchronized Entry get(String key, String version) {
+        Entry entry = entries.get(key);
+        if (entry == null || !entry.version.equals(version)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry;
+    }
+
+    /**
+     * Stores a response under the specified <tt>key</tt>, replacing the one
+     * stored before, and evicts the least recently used responses if the
+     * cache has grown over its limit. A response larger than a quarter of the
+     * limit is not stored.
+     *
+     * @param key key of the response
+     * @param version data version the response was rendered from
+     * @param contentType content type of the response
+     * @param body body of the response
+     */
+    public void put(String key, String version, String contentType, byte[] body) {
+        if (body.length > maxBytes / 4) {
+            return;
+        }
+        Entry entry = new Entry(version, contentType, body, gzip(body));
+        long size = entry.size(key);
+
+        synchronized (this) {
+            Entry old = entries.put(key, entry);
+            if (old != null) {
+                bytes -= old.size(key);
+            }
+            bytes += size;
+
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, Entry> eldest = it.next();
+                bytes -= eldest.getValue().size(eldest.getKey());
+                it.remove();
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * Removes all responses from the cache.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Compresses the specified <tt>body</tt> with gzip.
+     *
+     * @param body the body to be compressed
+     * @return the compressed body
+     */
+    private static byte[] gzip(byte[] body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the number of responses held.
+     *
+     * @return the number of responses held
+     */
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of bytes held.
+     *
+     * @return the number of bytes held
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the number of requests answered from the cache.
+     *
+     * @return the number of hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of requests not answered from the cache.
+     *
+     * @return the number of misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of responses evicted to stay within the limit.
+     *
+     * @return the number of evictions
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * A cached response.
+     *
+     * @author Mario Bobic
+     */
+    public static class Entry {
+        /** Data version the response was rendered from. */
+        final String version;
+        /** Content type of the response. */
+        public final String contentType;
+        /** Body of the response. */
+        public final byte[] body;
+        /** Body of the response compressed with gzip. */
+        public final byte[] gzipBody;
+
+        /**
+         * Constructs an instance of {@code Entry} with the specified
+         * arguments.
+         *
+         * @param version data version the response was rendered from
+         * @param contentType content type of the response
+         * @param body body of the response
+         * @param gzipBody body of the response compressed with gzip
+         */
+        Entry(String version, String contentType, byte[] body, byte[] gzipBody) {
+            this.version = version;
+            this.contentType = contentType;
+            this.body = body;
+            this.gzipBody = gzipBody;
+        }
+
+        /**
+         * Returns the estimated number of bytes taken by this entry stored
+         * under the specified <tt>key</tt>.
+         *
+         * @param key key of the entry
+         * @return the estimated size of the entry
+         */
+        long size(String key) {
+            return ENTRY_OVERHEAD + 2L * (key.length() + version.length()) + body.length + gzipBody.length;
+        }
+    }
+
+}
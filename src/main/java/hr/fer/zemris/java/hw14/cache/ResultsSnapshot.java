@@ -0,0 +1,99 @@
+package hr.fer.zemris.java.hw14.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import hr.fer.zemris.java.hw14.VotingUtil.Info;
+
+/**
+ * Results of one poll as they were at one moment, shared by the results page,
+ * the chart and the XLS file so that all of them show the same numbers. A
+ * snapshot is identified by an ID that is unique across application restarts,
+ * and remembers the {@linkplain PollVersions version} of the poll it was taken
+ * at.
+ * <p>
+ * The results are sorted by votes and can not be modified through the
+ * snapshot; the info objects must not be modified either, since they are
+ * shared by all requests using the snapshot.
+ *
+ * @author Mario Bobic
+ */
+public class ResultsSnapshot {
+
+    /** ID of the snapshot. */
+    private final String id;
+    /** ID of the poll. */
+    private final long pollID;
+    /** Version of the poll the snapshot was taken at. */
+    private final String version;
+    /** Time the snapshot was taken, in milliseconds. */
+    private final long created = System.currentTimeMillis();
+    /** Results of the poll, sorted by votes. */
+    private final List<Info> infoList;
+
+    /**
+     * Constructs an instance of {@code ResultsSnapshot} with the specified
+     * arguments. The info list is copied and sorted by votes.
+     *
+     * @param id ID of the snapshot
+     * @param pollID ID of the poll
+     * @param version version of the poll the results were read at
+     * @param infoList results of the poll
+     */
+    ResultsSnapshot(String id, long pollID, String version, List<Info> infoList) {
+        this.id = id;
+        this.pollID = pollID;
+        this.version = version;
+
+        List<Info> sorted = new ArrayList<>(infoList);
+        sorted.sort(Info.BY_VOTES);
+        this.infoList = Collections.unmodifiableList(sorted);
+    }
+
+    /**
+     * Returns the ID of the snapshot.
+     *
+     * @return the ID of the snapshot
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Returns the ID of the poll.
+     *
+     * @return the ID of the poll
+     */
+    public long getPollID() {
+        return pollID;
+    }
+
+    /**
+     * Returns the version of the poll the snapshot was taken at.
+     *
+     * @return the version of the poll
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the time the snapshot was taken, in milliseconds.
+     *
+     * @return the time the snapshot was taken
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Returns the unmodifiable results of the poll, sorted by votes.
+     *
+     * @return the results of the poll
+     */
+    public List<Info> getInfoList() {
+        return infoList;
+    }
+
+}
@@ -0,0 +1,249 @@
+package hr.fer.zemris.java.hw14.cache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hr.fer.zemris.java.hw14.VotingUtil.Info;
+import hr.fer.zemris.java.tecaj_14.dao.DAO;
+
+/**
+ * A bounded store of {@linkplain ResultsSnapshot results snapshots}. At most
+ * <tt>maxSnapshots</tt> snapshots are kept, and a snapshot is dropped once it
+ * is older than <tt>ttlMillis</tt>; whoever asks for a dropped snapshot must
+ * read fresh results instead.
+ * <p>
+ * Taking a snapshot of a poll whose version has not changed since its latest
+ * snapshot returns that snapshot without reading the database, so repeated
+ * visits of an unchanged results page share one snapshot.
+ *
+ * @author Mario Bobic
+ */
+public class SnapshotStore {
+
+    /** Prefix of snapshot IDs, unique to this application start. */
+    private static final String ID_PREFIX = Long.toString(System.currentTimeMillis(), 36) + "-";
+
+    /** The store of the application, or <tt>null</tt>. */
+    private static volatile SnapshotStore instance;
+
+    /** Maximum number of snapshots kept. */
+    private final int maxSnapshots;
+    /** Time after which a snapshot is dropped, in milliseconds. */
+    private final long ttlMillis;
+
+    /** Snapshots in the order they were taken, mapped by ID. */
+    private final LinkedHashMap<String, ResultsSnapshot> snapshots = new LinkedHashMap<>();
+    /** Latest snapshot of every poll, mapped by poll ID. */
+    private final Map<Long, ResultsSnapshot> latest = new HashMap<>();
+    /** Sequence of snapshot IDs. */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /** Number of snapshots taken. */
+    private long taken;
+    /** Number of snapshots found when asked for. */
+    private long hits;
+    /** Number of snapshots not found when asked for. */
+    private long misses;
+
+    /**
+     * Constructs an instance of {@code SnapshotStore} with the specified
+     * limits.
+     *
+     * @param maxSnapshots maximum number of snapshots kept
+     * @param ttlMillis time after which a snapshot is dropped, in milliseconds
+     */
+    public SnapshotStore(int maxSnapshots, long ttlMillis) {
+        this.maxSnapshots = maxSnapshots;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Returns the store of the application, or <tt>null</tt> if there is
+     * none.
+     *
+     * @return the store of the application
+     */
+    public static SnapshotStore getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the store of the application.
+     *
+     * @param store the store, or <tt>null</tt>
+     */
+    public static void setInstance(SnapshotStore store) {
+        instance = store;
+    }
+
+    /**
+     * Returns a snapshot of the current results of the poll with the specified
+     * <tt>pollID</tt>. The latest snapshot of the poll is returned if the poll
+     * has not changed since; otherwise the results are read from the
+     * specified DAO.
+     *
+     * @param dao DAO the results are read from
+     * @param pollID ID of the poll
+     * @return a snapshot of the results of the poll
+     */
+    public ResultsSnapshot take(DAO dao, long pollID) {
+        String version = PollVersions.get(pollID);
+        synchronized (this) {
+            ResultsSnapshot snapshot = latest.get(pollID);
+            if (snapshot != null && snapshot.getVersion().equals(version) && !expired(snapshot)) {
+                return snapshot;
+            }
+        }
+        return put(pollID, version, dao.getInfoList(pollID));
+    }
+
+    /**
+     * Stores a snapshot of the specified results of the poll with the
+     * specified <tt>pollID</tt>, read when the poll had the specified
+     * <tt>version</tt>.
+     *
+     * @param pollID ID of the poll
+     * @param version version of the poll the results were read at
+     * @param infoList results of the poll
+     * @return the stored snapshot
+     */
+    public ResultsSnapshot put(long pollID, String version, List<Info> infoList) {
+        String id = ID_PREFIX + sequence.incrementAndGet();
+        ResultsSnapshot snapshot = new ResultsSnapshot(id, pollID, version, infoList);
+
+        synchronized (this) {
+            taken++;
+            snapshots.put(id, snapshot);
+            latest.put(pollID, snapshot);
+
+            Iterator<ResultsSnapshot> it = snapshots.values().iterator();
+            while (it.hasNext()) {
+                ResultsSnapshot eldest = it.next();
+                if (snapshots.size() <= maxSnapshots && !expired(eldest)) {
+                    break;
+                }
+                it.remove();
+                latest.remove(eldest.getPollID(), eldest);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns the snapshot with the specified <tt>id</tt> of the poll with the
+     * specified <tt>pollID</tt>, or <tt>null</tt> if there is no such snapshot
+     * or it has been dropped.
+     *
+     * @param id ID of the snapshot, may be <tt>null</tt>
+     * @param pollID ID of the poll
+     * @return the snapshot, or <tt>null</tt>
+     */
+    public synchronized ResultsSnapshot get(String id, long pollID) {
+        ResultsSnapshot snapshot = id == null ? null : snapshots.get(id);
+        if (snapshot == null || snapshot.getPollID() != pollID || expired(snapshot)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return snapshot;
+    }
+
+    /**
+     * Returns the results of the poll with the specified <tt>pollID</tt> from
+     * the snapshot with the specified <tt>id</tt>, or fresh results read from
+     * the specified DAO if there is no store or the snapshot is not available.
+     * Fresh results are sorted by votes as well.
+     *
+     * @param dao DAO fresh results are read from
+     * @param id ID of the snapshot, may be <tt>null</tt>
+     * @param pollID ID of the poll
+     * @return results of the poll, sorted by votes
+     */
+    public static List<Info> getInfoList(DAO dao, String id, long pollID) {
+        SnapshotStore store = instance;
+        ResultsSnapshot snapshot = store == null ? null : store.get(id, pollID);
+        if (snapshot != null) {
+            return snapshot.getInfoList();
+        }
+        List<Info> infoList = dao.getInfoList(pollID);
+        infoList.sort(Info.BY_VOTES);
+        return infoList;
+    }
+
+    /**
+     * Returns the options of the poll with the specified <tt>pollID</tt> for
+     * labeling, from its latest snapshot even if the poll has changed since,
+     * so that only option IDs and names are to be relied on. The options are
+     * read from the specified DAO only if there is no store or the poll has
+     * no snapshot that has not expired.
+     *
+     * @param dao DAO the options are read from if there is no snapshot
+     * @param pollID ID of the poll
+     * @return options of the poll, with possibly stale vote counts
+     */
+    public static List<Info> getOptions(DAO dao, long pollID) {
+        SnapshotStore store = instance;
+        if (store == null) {
+            return dao.getInfoList(pollID);
+        }
+        synchronized (store) {
+            ResultsSnapshot snapshot = store.latest.get(pollID);
+            if (snapshot != null && !store.expired(snapshot)) {
+                return snapshot.getInfoList();
+            }
+        }
+        return store.take(dao, pollID).getInfoList();
+    }
+
+    /**
+     * Returns true if the specified snapshot is older than allowed.
+     *
+     * @param snapshot the snapshot
+     * @return true if the snapshot has expired
+     */
+    private boolean expired(ResultsSnapshot snapshot) {
+        return System.currentTimeMillis() - snapshot.getCreated() > ttlMillis;
+    }
+
+    /**
+     * Returns the number of snapshots kept.
+     *
+     * @return the number of snapshots kept
+     */
+    public synchronized int getSize() {
+        return snapshots.size();
+    }
+
+    /**
+     * Returns the number of snapshots taken.
+     *
+     * @return the number of snapshots taken
+     */
+    public synchronized long getTaken() {
+        return taken;
+    }
+
+    /**
+     * Returns the number of snapshots found when asked for.
+     *
+     * @return the number of hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of snapshots not found when asked for, whose results
+     * had to be read fresh.
+     *
+     * @return the number of misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+}
@@ -0,0 +1,280 @@
+package hr.fer.zemris.java.hw14.cache;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import hr.fer.zemris.java.hw14.metrics.Histogram;
+
+/**
+ * Shares the {@linkplain PollVersions} of polls between application instances
+ * using the same database, so that caches of every instance are invalidated
+ * when votes are given through another instance.
+ * <p>
+ * Every <tt>intervalMillis</tt> milliseconds the poller of each instance
+ * publishes the polls changed by its instance since the last tick, by
+ * increasing their versions in the <tt>PollVersions</tt> table, and then reads
+ * the rows of the table changed since the last tick in a single query. A poll
+ * whose version grew more than the instance itself increased it was changed
+ * by another instance, so its local version is increased as well, which
+ * invalidates every cached response, snapshot and ETag of the poll. The
+ * catalog of polls is shared the same way, as poll ID 0.
+ * <p>
+ * Changes made by other instances are therefore seen within about two
+ * intervals. The time between a change being published and being seen here is
+ * recorded as the lag, measured by the clock of the database.
+ *
+ * @author Mario Bobic
+ */
+public class VersionPoller implements Closeable {
+
+    /** Logger of the poller. */
+    private static final Logger LOGGER = Logger.getLogger(VersionPoller.class.getName());
+
+    /**
+     * Time in milliseconds rows are read again after they change, so that
+     * changes committed a while after they were timestamped are not missed.
+     */
+    private static final long GRACE_MILLIS = 10000;
+
+    /** Pool of the shared database. */
+    private final DataSource ds;
+    /** Thread polling the versions. */
+    private final ScheduledExecutorService executor;
+
+    /** Versions of polls last read from the table, mapped by poll ID. */
+    private final Map<Long, Long> seen = new HashMap<>();
+    /** Versions increased by this instance but not yet read back. */
+    private final Map<Long, Long> own = new HashMap<>();
+    /** Rows changed after this time are read on the next tick. */
+    private Timestamp since = new Timestamp(0);
+
+    /** Lag of changes made by other instances, in milliseconds. */
+    private final Histogram lag = new Histogram();
+    /** Lag of the last change made by another instance, in milliseconds. */
+    private volatile long lastLag;
+    /** Number of changes made by other instances. */
+    private volatile long remoteChanges;
+    /** Number of changes published by this instance. */
+    private volatile long published;
+    /** Number of failed ticks. */
+    private volatile long failures;
+
+    /**
+     * Constructs an instance of {@code VersionPoller} sharing versions through
+     * the database of the specified pool every <tt>intervalMillis</tt>
+     * milliseconds. The <tt>PollVersions</tt> table is created if it does not
+     * exist, and the current versions are read.
+     *
+     * @param ds pool of the shared database
+     * @param intervalMillis interval of polling, in milliseconds
+     * @throws SQLException if the versions can not be read
+     */
+    public VersionPoller(DataSource ds, long intervalMillis) throws SQLException {
+        this.ds = ds;
+        try (Connection con = ds.getConnection()) {
+            try (PreparedStatement pst = con.prepareStatement("CREATE TABLE PollVersions(" +
+                                                              "    pollID BIGINT PRIMARY KEY" +
+                                                              " ,  version BIGINT NOT NULL" +
+                                                              " ,  changedAt TIMESTAMP NOT NULL" +
+                                                              ")")) {
+                pst.executeUpdate();
+            } catch (SQLException ignorable) {
+                // "create-and-ignore-error"
+            }
+            synchronized (this) {
+                poll(con, false);
+            }
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "version-poller");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::tick, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Publishes the changes of this instance and reads the changes of others.
+     */
+    private synchronized void tick() {
+        try (Connection con = ds.getConnection()) {
+            publish(con);
+            poll(con, true);
+        } catch (SQLException | RuntimeException e) {
+            failures++;
+            LOGGER.log(Level.WARNING, "Failed to share poll versions.", e);
+        }
+    }
+
+    /**
+     * Increases the versions of the polls changed by this instance in the
+     * table, in one transaction. If it fails, the polls are published on the
+     * next tick.
+     *
+     * @param con connection to the database
+     * @throws SQLException if a database access error occurs
+     */
+    private void publish(Connection con) throws SQLException {
+        List<Long> pollIDs = PollVersions.takeUnpublished();
+        if (pollIDs.isEmpty()) {
+            return;
+        }
+
+        boolean autoCommit = con.getAutoCommit();
+        try (PreparedStatement update = con.prepareStatement(
+                    "UPDATE PollVersions SET version = version + 1, changedAt = CURRENT_TIMESTAMP WHERE pollID = ?");
+             PreparedStatement insert = con.prepareStatement(
+                    "INSERT INTO PollVersions(pollID, version, changedAt) VALUES (?, 1, CURRENT_TIMESTAMP)")) {
+            con.setAutoCommit(false);
+            for (long pollID : pollIDs) {
+                update.setLong(1, pollID);
+                update.addBatch();
+            }
+            int[] affectedRows = update.executeBatch();
+            boolean inserts = false;
+            for (int i = 0; i < affectedRows.length; i++) {
+                if (affectedRows[i] == 0) {
+                    insert.setLong(1, pollIDs.get(i));
+                    insert.addBatch();
+                    inserts = true;
+                }
+            }
+            if (inserts) {
+                insert.executeBatch();
+            }
+            con.commit();
+        } catch (SQLException | RuntimeException e) {
+            try { con.rollback(); } catch (SQLException ignorable) {}
+            PollVersions.unpublished(pollIDs);
+            throw e;
+        } finally {
+            try { con.setAutoCommit(autoCommit); } catch (SQLException ignorable) {}
+        }
+
+        for (long pollID : pollIDs) {
+            own.merge(pollID, 1L, Long::sum);
+        }
+        published += pollIDs.size();
+    }
+
+    /**
+     * Reads the rows of the table changed since the last tick and increases
+     * the local versions of the polls changed by other instances.
+     *
+     * @param con connection to the database
+     * @param notify false if the versions are read for the first time and
+     *        nothing is to be increased
+     * @throws SQLException if a database access error occurs
+     */
+    private void poll(Connection con, boolean notify) throws SQLException {
+        try (PreparedStatement pst = con.prepareStatement(
+                "SELECT pollID, version, changedAt, CURRENT_TIMESTAMP FROM PollVersions WHERE changedAt > ?")) {
+            pst.setTimestamp(1, since);
+            try (ResultSet rset = pst.executeQuery()) {
+                Timestamp now = null;
+                while (rset.next()) {
+                    long pollID = rset.getLong(1);
+                    long version = rset.getLong(2);
+                    Timestamp changedAt = rset.getTimestamp(3);
+                    now = rset.getTimestamp(4);
+
+                    Long previous = seen.put(pollID, version);
+                    Long increased = own.remove(pollID);
+                    long others = version - (previous == null ? 0 : previous)
+                            - (increased == null ? 0 : increased);
+                    if (notify && others > 0) {
+                        PollVersions.changedElsewhere(pollID);
+                        lastLag = Math.max(0, now.getTime() - changedAt.getTime());
+                        lag.record(lastLag);
+                        remoteChanges++;
+                    }
+                }
+                if (now != null) {
+                    since = new Timestamp(now.getTime() - GRACE_MILLIS);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the lag of the last change made by another instance, in
+     * milliseconds.
+     *
+     * @return the last lag
+     */
+    public long getLastLag() {
+        return lastLag;
+    }
+
+    /**
+     * Returns the lag of changes made by other instances, in milliseconds.
+     *
+     * @return the lag histogram
+     */
+    public Histogram getLag() {
+        return lag;
+    }
+
+    /**
+     * Returns the number of changes made by other instances.
+     *
+     * @return the number of remote changes
+     */
+    public long getRemoteChanges() {
+        return remoteChanges;
+    }
+
+    /**
+     * Returns the number of changes published by this instance.
+     *
+     * @return the number of published changes
+     */
+    public long getPublished() {
+        return published;
+    }
+
+    /**
+     * Returns the number of failed ticks.
+     *
+     * @return the number of failures
+     */
+    public long getFailures() {
+        return failures;
+    }
+
+    /**
+     * Stops polling and publishes the last changes of this instance.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try (Connection con = ds.getConnection()) {
+                publish(con);
+            } catch (SQLException e) {
+                LOGGER.log(Level.WARNING, "Failed to publish the last poll versions.", e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,668 @@
+package hr.fer.zemris.java.hw14.counters;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * Vote counters shared by all JVMs of a host through a memory-mapped file,
+ * typically in <tt>/dev/shm</tt>, so that votes do not have to reach the
+ * database one by one.
+ * <p>
+ * The file holds a directory of poll options and, for every option, one
+ * counter per <em>slot</em>. Every JVM takes a free slot when it opens the
+ * file and is the only one to write to that slot's counters, so counting needs
+ * no atomic operations across processes, only a lock within the JVM. A slot
+ * is held by a file lock that the operating system releases when the JVM
+ * exits, so a slot left by a crashed JVM is taken over, counters and all, by
+ * the next JVM to start.
+ * <p>
+ * Counters only grow. One JVM at a time, the one holding the flusher file
+ * lock, periodically adds what every slot counted since the last flush to the
+ * <tt>PollOptions</tt> table. In the same transaction it stores how far every
+ * counter has been flushed in the <tt>SharedCounters</tt> table, keyed by the
+ * epoch of the file (a random number chosen when the file is created).
+ * Flushing therefore counts every vote exactly once, even if the flusher dies
+ * mid-flush or a JVM crashes with unflushed votes: the next flusher reads
+ * the table and continues from there. The flushed values are mirrored in the
+ * file, so every JVM can add the unflushed votes to the counts read from the
+ * database.
+ * <p>
+ * Votes still in the file are lost only if the file itself is lost, for an
+ * example when <tt>/dev/shm</tt> is cleared by a reboot.
+ *
+ * @author Mario Bobic
+ */
+public class SharedCounters implements Closeable {
+
+    /** Logger of the shared counters. */
+    private static final Logger LOGGER = Logger.getLogger(SharedCounters.class.getName());
+
+    /** Magic number and version of the counter file. */
+    private static final int MAGIC = 0x53434E31;
+    /** Length of the file header in bytes. */
+    private static final int HEADER = 4096;
+    /** Length of a directory entry in bytes. */
+    private static final int ENTRY = 16;
+    /** Start of the file lock regions, far beyond the end of the file. */
+    private static final long LOCK_BASE = 1L << 40;
+    /** Lock region of the flusher. */
+    private static final long FLUSHER_LOCK = LOCK_BASE;
+    /** Lock region of the directory. */
+    private static final long DIRECTORY_LOCK = LOCK_BASE + 1;
+    /** Start of the lock regions of the slots. */
+    private static final long SLOT_LOCK = LOCK_BASE + 16;
+    /** Number of locks counting is striped across. */
+    private static final int STRIPES = 64;
+
+    /** Channel of the counter file. */
+    private final FileChannel channel;
+    /** The counter file, mapped into memory. */
+    private final MappedByteBuffer buffer;
+    /** Epoch of the counter file. */
+    private final long epoch;
+    /** Number of slots. */
+    private final int slots;
+    /** Maximum number of options. */
+    private final int capacity;
+    /** Offset of the counters. */
+    private final int counterOffset;
+    /** Offset of the flushed values. */
+    private final int flushedOffset;
+    /** Slot of this JVM. */
+    private final int slot;
+    /** Lock of the slot of this JVM. */
+    private final FileLock slotLock;
+    /** Locks counting is striped across. */
+    private final Object[] stripes = new Object[STRIPES];
+
+    /** Directory indices of options, mapped by option ID. */
+    private final Map<Long, Integer> indices = new ConcurrentHashMap<>();
+    /** Poll IDs of options, by directory index. */
+    private final long[] polls;
+    /** Number of directory entries read into {@linkplain #indices}. */
+    private int known;
+
+    /** Lock of the flusher, or <tt>null</tt> if this JVM is not the flusher. */
+    private FileLock flusherLock;
+    /** Flushed values stored in the database, or <tt>null</tt> if unknown. */
+    private long[] watermarks;
+    /** Tells which flushed values have a row in the database. */
+    private boolean[] stored;
+    /** Number of votes flushed by this JVM. */
+    private volatile long flushedVotes;
+    /** Pool of the database the votes are flushed to, or <tt>null</tt>. */
+    private DataSource flushTarget;
+    /** Thread flushing periodically, or <tt>null</tt>. */
+    private ScheduledExecutorService flusher;
+
+    /**
+     * Constructs an instance of {@code SharedCounters} backed by the specified
+     * file, creating it with the specified number of slots and options if it
+     * does not exist, and takes a free slot. An existing file keeps its own
+     * number of slots and options.
+     *
+     * @param file the counter file
+     * @param slots number of slots, the maximum number of JVMs
+     * @param capacity maximum number of options
+     * @throws IOException if an I/O error occurs, the file is invalid or all
+     *         slots are taken
+     */
+    public SharedCounters(Path file, int slots, int capacity) throws IOException {
+        channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            FileLock directoryLock = channel.lock(DIRECTORY_LOCK, 1, false);
+            try {
+                if (channel.size() == 0) {
+                    create(slots, capacity);
+                }
+            } finally {
+                directoryLock.release();
+            }
+
+            MappedByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("Not a shared counter file: " + file);
+            }
+            this.epoch = header.getLong(8);
+            this.slots = header.getInt(16);
+            this.capacity = header.getInt(20);
+            this.counterOffset = counterOffset(this.capacity);
+            this.flushedOffset = counterOffset + this.slots * this.capacity * 8;
+            if (this.slots != slots || this.capacity != capacity) {
+                LOGGER.warning("Counter file " + file + " has " + this.slots + " slots and "
+                        + this.capacity + " options, using them instead of the configured ones.");
+            }
+
+            buffer = channel.map(MapMode.READ_WRITE, 0, flushedOffset + this.slots * this.capacity * 8);
+            polls = new long[this.capacity];
+
+            int taken = -1;
+            FileLock lock = null;
+            for (int i = 0; i < this.slots && lock == null; i++) {
+                try {
+                    lock = channel.tryLock(SLOT_LOCK + i, 1, false);
+                } catch (OverlappingFileLockException e) {
+                    // taken by this JVM
+                }
+                taken = i;
+            }
+            if (lock == null) {
+                throw new IOException("All " + this.slots + " slots of " + file + " are taken.");
+            }
+            slot = taken;
+            slotLock = lock;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        refresh();
+    }
+
+    /**
+     * Creates the counter file. Must be called while holding the directory
+     * lock. The magic number is written last, so a file left incomplete by a
+     * crash is recognized as invalid.
+     *
+     * @param slots number of slots
+     * @param capacity maximum number of options
+     * @throws IOException if an I/O error occurs
+     */
+    private void create(int slots, int capacity) throws IOException {
+        long size = counterOffset(capacity) + 2L * slots * capacity * 8;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Too many slots or options: " + slots + " x " + capacity);
+        }
+        MappedByteBuffer map = channel.map(MapMode.READ_WRITE, 0, size);
+        map.putInt(4, 1);
+        map.putLong(8, ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE);
+        map.putInt(16, slots);
+        map.putInt(20, capacity);
+        map.putInt(24, 0);
+        map.force();
+        map.putInt(0, MAGIC);
+        map.force();
+    }
+
+    /**
+     * Returns the offset of the counters in a file with the specified number
+     * of options, past the header and the directory, aligned to a page.
+     *
+     * @param capacity maximum number of options
+     * @return offset of the counters
+     */
+    private static int counterOffset(int capacity) {
+        int end = HEADER + capacity * ENTRY;
+        return (end + 4095) & ~4095;
+    }
+
+    /**
+     * Returns the epoch of the counter file.
+     *
+     * @return the epoch of the counter file
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns the slot taken by this JVM.
+     *
+     * @return the slot of this JVM
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    /**
+     * Returns the number of options in the directory.
+     *
+     * @return the number of options
+     */
+    public synchronized int getOptionCount() {
+        return known;
+    }
+
+    /**
+     * Returns true if this JVM is the flusher.
+     *
+     * @return true if this JVM is the flusher
+     */
+    public synchronized boolean isFlusher() {
+        return flusherLock != null;
+    }
+
+    /**
+     * Returns the number of votes flushed to the database by this JVM.
+     *
+     * @return the number of flushed votes
+     */
+    public long getFlushedVotes() {
+        return flushedVotes;
+    }
+
+    /**
+     * Reads the directory entries added by other JVMs.
+     */
+    private synchronized void refresh() {
+        int count = buffer.getInt(24);
+        for (int i = known; i < count; i++) {
+            polls[i] = buffer.getLong(HEADER + i * ENTRY + 8);
+            indices.put(buffer.getLong(HEADER + i * ENTRY), i);
+        }
+        known = Math.max(known, count);
+    }
+
+    /**
+     * Returns the directory index of the option with the specified
+     * <tt>optionID</tt>, or -1 if the option is not in the directory.
+     *
+     * @param optionID ID of the option
+     * @return the directory index, or -1
+     */
+    private int indexOf(long optionID) {
+        Integer index = indices.get(optionID);
+        if (index == null) {
+            refresh();
+            index = indices.get(optionID);
+        }
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Returns the ID of the poll of the option with the specified
+     * <tt>optionID</tt>, or -1 if the option is not in the directory.
+     *
+     * @param optionID ID of the option
+     * @return the poll ID, or -1
+     */
+    public long pollOf(long optionID) {
+        int index = indexOf(optionID);
+        return index < 0 ? -1 : polls[index];
+    }
+
+    /**
+     * Adds the option with the specified <tt>optionID</tt> of the poll with
+     * the specified <tt>pollID</tt> to the directory, unless it is already
+     * there.
+     *
+     * @param optionID ID of the option
+     * @param pollID ID of the poll
+     * @return false if the directory is full
+     * @throws IOException if the directory can not be locked
+     */
+    public synchronized boolean register(long optionID, long pollID) throws IOException {
+        if (indexOf(optionID) >= 0) {
+            return true;
+        }
+        FileLock lock = channel.lock(DIRECTORY_LOCK, 1, false);
+        try {
+            refresh();
+            if (indices.containsKey(optionID)) {
+                return true;
+            }
+            int count = known;
+            if (count == capacity) {
+                return false;
+            }
+            buffer.putLong(HEADER + count * ENTRY, optionID);
+            buffer.putLong(HEADER + count * ENTRY + 8, pollID);
+            buffer.putInt(24, count + 1);
+            refresh();
+            return true;
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Adds the specified number of votes to the counter of this JVM for the
+     * option with the specified <tt>optionID</tt>.
+     *
+     * @param optionID ID of the option
+     * @param count number of votes
+     * @return false if the option is not in the directory
+     */
+    public boolean add(long optionID, long count) {
+        int index = indexOf(optionID);
+        if (index < 0) {
+            return false;
+        }
+        int offset = counterOffset + (slot * capacity + index) * 8;
+        synchronized (stripes[index & (STRIPES - 1)]) {
+            buffer.putLong(offset, buffer.getLong(offset) + count);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of votes for the option with the specified
+     * <tt>optionID</tt> counted by all JVMs but not yet flushed to the
+     * database.
+     *
+     * @param optionID ID of the option
+     * @return the number of unflushed votes
+     */
+    public long pending(long optionID) {
+        int index = indexOf(optionID);
+        if (index < 0) {
+            return 0;
+        }
+        long pending = 0;
+        for (int s = 0; s < slots; s++) {
+            int offset = (s * capacity + index) * 8;
+            pending += Math.max(0, buffer.getLong(counterOffset + offset) - buffer.getLong(flushedOffset + offset));
+        }
+        return pending;
+    }
+
+    /**
+     * Returns the number of votes counted by all JVMs but not yet flushed to
+     * the database, for all options.
+     *
+     * @return the number of unflushed votes
+     */
+    public long pending() {
+        refresh();
+        long pending = 0;
+        for (int i = 0; i < slots * capacity; i++) {
+            pending += Math.max(0, buffer.getLong(counterOffset + i * 8) - buffer.getLong(flushedOffset + i * 8));
+        }
+        return pending;
+    }
+
+    /**
+     * Flushes the votes counted by all JVMs to the database of the specified
+     * pool, if this JVM is or becomes the flusher. Does nothing otherwise.
+     *
+     * @param ds pool of the database
+     * @return the number of flushed votes
+     */
+    public synchronized long flush(DataSource ds) {
+        if (flusherLock == null) {
+            try {
+                flusherLock = channel.tryLock(FLUSHER_LOCK, 1, false);
+            } catch (IOException | OverlappingFileLockException e) {
+                return 0;
+            }
+            if (flusherLock == null) {
+                return 0;
+            }
+            LOGGER.info("Flushing shared counters of epoch " + epoch + " from slot " + slot + ".");
+        }
+
+        refresh();
+        try (Connection con = ds.getConnection()) {
+            if (watermarks == null) {
+                loadWatermarks(con);
+            }
+            return flush(con);
+        } catch (SQLException e) {
+            // the outcome of the transaction is unknown, reread the watermarks
+            watermarks = null;
+            LOGGER.log(Level.WARNING, "Failed to flush shared counters.", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Reads how far every counter of this epoch has been flushed from the
+     * database and mirrors it in the file. Rows of other epochs are left
+     * alone, since they may belong to counter files of other hosts sharing
+     * the database.
+     *
+     * @param con connection to the database
+     * @throws SQLException if a database access error occurs
+     */
+    private void loadWatermarks(Connection con) throws SQLException {
+        try (PreparedStatement pst = con.prepareStatement("CREATE TABLE SharedCounters(" +
+                                                          "    epoch BIGINT NOT NULL" +
+                                                          " ,  slot INT NOT NULL" +
+                                                          " ,  optionID BIGINT NOT NULL" +
+                                                          " ,  flushed BIGINT NOT NULL" +
+                                                          " ,  PRIMARY KEY (epoch, slot, optionID)" +
+                                                          ")")) {
+            pst.executeUpdate();
+        } catch (SQLException ignorable) {
+            // "create-and-ignore-error"
+        }
+
+        long[] marks = new long[slots * capacity];
+        boolean[] rows = new boolean[slots * capacity];
+        try (PreparedStatement pst = con.prepareStatement(
+                "SELECT slot, optionID, flushed FROM SharedCounters WHERE epoch = ?")) {
+            pst.setLong(1, epoch);
+            try (ResultSet rset = pst.executeQuery()) {
+                while (rset.next()) {
+                    int s = rset.getInt(1);
+                    int index = indexOf(rset.getLong(2));
+                    if (s < slots && index >= 0) {
+                        marks[s * capacity + index] = rset.getLong(3);
+                        rows[s * capacity + index] = true;
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < marks.length; i++) {
+            buffer.putLong(flushedOffset + i * 8, marks[i]);
+        }
+        watermarks = marks;
+        stored = rows;
+    }
+
+    /**
+     * Adds the votes counted since the last flush to the <tt>PollOptions</tt>
+     * table and stores the new watermarks, in one transaction. A stored
+     * watermark that has disappeared from the database is inserted again
+     * with a warning, instead of being lost. Votes counted
+     * for options of polls that have been closed in the meantime are not
+     * added; they are discarded with a warning.
+     *
+     * @param con connection to the database
+     * @return the number of flushed votes
+     * @throws SQLException if a database access error occurs
+     */
+    private long flush(Connection con) throws SQLException {
+        int n = slots * capacity;
+        long[] values = new long[n];
+        long total = 0;
+        for (int s = 0; s < slots; s++) {
+            for (int index = 0; index < known; index++) {
+                int i = s * capacity + index;
+                values[i] = buffer.getLong(counterOffset + i * 8);
+                total += values[i] - watermarks[i];
+            }
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        boolean autoCommit = con.getAutoCommit();
+        con.setAutoCommit(false);
+        try (PreparedStatement votes = con.prepareStatement(
+                    "UPDATE PollOptions SET votesCount=votesCount+? WHERE id = ?" +
+                    " AND pollID IN (SELECT id FROM Polls WHERE closedAt IS NULL)");
+             PreparedStatement update = con.prepareStatement(
+                    "UPDATE SharedCounters SET flushed = ? WHERE epoch = ? AND slot = ? AND optionID = ?");
+             PreparedStatement insert = con.prepareStatement(
+                    "INSERT INTO SharedCounters(epoch, slot, optionID, flushed) VALUES (?, ?, ?, ?)")) {
+            long[] deltas = new long[known];
+            int[] updated = new int[n];
+            int updates = 0;
+            for (int s = 0; s < slots; s++) {
+                for (int index = 0; index < known; index++) {
+                    int i = s * capacity + index;
+                    if (values[i] == watermarks[i]) {
+                        continue;
+                    }
+                    deltas[index] += values[i] - watermarks[i];
+                    long optionID = buffer.getLong(HEADER + index * ENTRY);
+                    PreparedStatement pst = stored[i] ? update : insert;
+                    if (stored[i]) {
+                        pst.setLong(1, values[i]);
+                        pst.setLong(2, epoch);
+                        pst.setInt(3, s);
+                        pst.setLong(4, optionID);
+                        updated[updates++] = i;
+                    } else {
+                        pst.setLong(1, epoch);
+                        pst.setInt(2, s);
+                        pst.setLong(3, optionID);
+                        pst.setLong(4, values[i]);
+                    }
+                    pst.addBatch();
+                }
+            }
+            for (int index = 0; index < known; index++) {
+                if (deltas[index] != 0) {
+                    votes.setLong(1, deltas[index]);
+                    votes.setLong(2, buffer.getLong(HEADER + index * ENTRY));
+                    votes.addBatch();
+                }
+            }
+            int[] counted = votes.executeBatch();
+            int[] rows = update.executeBatch();
+            for (int j = 0; j < updates; j++) {
+                if (rows[j] == 0) {
+                    // the row was deleted behind our back; the watermark in
+                    // memory is still right, so it is stored again
+                    int i = updated[j];
+                    LOGGER.warning("Flushed value of slot " + (i / capacity) + " of epoch " + epoch
+                            + " was missing from the database, storing it again.");
+                    insert.setLong(1, epoch);
+                    insert.setInt(2, i / capacity);
+                    insert.setLong(3, buffer.getLong(HEADER + (i % capacity) * ENTRY));
+                    insert.setLong(4, values[i]);
+                    insert.addBatch();
+                }
+            }
+            insert.executeBatch();
+            con.commit();
+
+            long discarded = 0;
+            for (int index = 0, j = 0; index < known; index++) {
+                if (deltas[index] != 0 && counted[j++] == 0) {
+                    discarded += deltas[index];
+                }
+            }
+            if (discarded != 0) {
+                LOGGER.warning("Discarded " + discarded + " votes counted for options of closed polls.");
+            }
+        } catch (SQLException e) {
+            try { con.rollback(); } catch (SQLException ignorable) {}
+            throw e;
+        } finally {
+            try { con.setAutoCommit(autoCommit); } catch (SQLException ignorable) {}
+        }
+
+        for (int i = 0; i < n; i++) {
+            if (values[i] != watermarks[i]) {
+                watermarks[i] = values[i];
+                stored[i] = true;
+                buffer.putLong(flushedOffset + i * 8, values[i]);
+            }
+        }
+        flushedVotes += total;
+        return total;
+    }
+
+    /**
+     * Starts a thread that tries to {@linkplain #flush(DataSource) flush} the
+     * counters to the database of the specified pool every
+     * <tt>intervalMillis</tt> milliseconds, and writes the file to the storage
+     * device after every flush.
+     *
+     * @param ds pool of the database
+     * @param intervalMillis interval of flushing, in milliseconds
+     */
+    public synchronized void startFlushing(DataSource ds, long intervalMillis) {
+        flushTarget = ds;
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "counter-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(() -> {
+            if (flush(ds) > 0) {
+                force();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the counters of the file to the storage device. Useful if the
+     * file is not in memory-backed storage, so that counted votes survive a
+     * crash of the host.
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    /**
+     * Stops flushing, flushes one last time if this JVM is the flusher,
+     * releases the slot and the flusher lock of this JVM and closes the file.
+     * The counters of the slot are kept in the file and flushed by another
+     * JVM.
+     */
+    @Override
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (isFlusher()) {
+                flush(flushTarget);
+                force();
+            }
+        }
+        release();
+    }
+
+    /**
+     * Releases the slot and the flusher lock of this JVM and closes the file.
+     */
+    private synchronized void release() {
+        try {
+            if (flusherLock != null) {
+                flusherLock.release();
+                flusherLock = null;
+            }
+            slotLock.release();
+        } catch (IOException ignorable) {
+        }
+        try {
+            channel.close();
+        } catch (IOException ignorable) {
+        }
+    }
+
+}
@@ -0,0 +1,437 @@
+package hr.fer.zemris.java.hw14.events;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A file of vote events from one period of time. The file starts with a
+ * header naming the period and continues with blocks of up to
+ * {@linkplain #BLOCK_EVENTS} events each. Every block has a header with the
+ * number of events, the earliest and latest time and a checksum, followed by
+ * the events stored by column:
+ * <ul>
+ * <li>times, as differences from the previous time (the first from the
+ * earliest time), in variable-length encoding,
+ * <li>option IDs, in variable-length encoding,
+ * <li>vote counts, in variable-length encoding,
+ * <li>client hashes, four bytes each.
+ * </ul>
+ * A typical event takes seven bytes. A block entirely outside of a queried
+ * time range is skipped by its header without decoding it.
+ * <p>
+ * Segments are only appended to, by a single writer. Readers map the file into
+ * memory and see the blocks that were complete when they started. A block left
+ * incomplete by a crash fails its checksum and ends the segment; it is cut off
+ * when the segment is opened for appending again.
+ *
+ * @author Mario Bobic
+ */
+class EventSegment implements Closeable {
+
+    /** Maximum number of events in a block. */
+    static final int BLOCK_EVENTS = 4096;
+
+    /** Magic number and version of a segment file. */
+    private static final int FILE_MAGIC = 0x56455631;
+    /** Magic number of a block. */
+    private static final int BLOCK_MAGIC = 0x56424C4B;
+    /** Length of the file header in bytes. */
+    private static final int FILE_HEADER = 24;
+    /** Length of a block header in bytes. */
+    private static final int BLOCK_HEADER = 40;
+
+    /** The segment file. */
+    private final Path file;
+    /** Start of the period of the segment, in milliseconds. */
+    private final long start;
+    /** End of the period of the segment (exclusive), in milliseconds. */
+    private final long end;
+    /** Channel the segment is appended through, or <tt>null</tt>. */
+    private FileChannel channel;
+    /** Length of the complete blocks of the segment. */
+    private volatile long length;
+    /** The segment mapped into memory, or <tt>null</tt>. */
+    private volatile MappedByteBuffer mapped;
+
+    /** Buffer of the block being encoded. */
+    private ByteBuffer block;
+    /** Column of times of the block being encoded. */
+    private byte[] timeColumn;
+    /** Column of option IDs of the block being encoded. */
+    private byte[] optionColumn;
+    /** Column of vote counts of the block being encoded. */
+    private byte[] countColumn;
+
+    /**
+     * Constructs an instance of {@code EventSegment}.
+     *
+     * @param file the segment file
+     * @param start start of the period of the segment
+     * @param end end of the period of the segment
+     * @param length length of the complete blocks of the segment
+     */
+    private EventSegment(Path file, long start, long end, long length) {
+        this.file = file;
+        this.start = start;
+        this.end = end;
+        this.length = length;
+    }
+
+    /**
+     * Opens the segment in the specified file for appending, creating it with
+     * the specified period if it does not exist. An incomplete block at the
+     * end of an existing segment is cut off.
+     *
+     * @param file the segment file
+     * @param start start of the period of the segment
+     * @param end end of the period of the segment
+     * @return the segment
+     * @throws IOException if an I/O error occurs or the file is invalid
+     */
+    static EventSegment append(Path file, long start, long end) throws IOException {
+        FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            EventSegment segment;
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+                header.putInt(FILE_MAGIC).putInt(0).putLong(start).putLong(end).flip();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                channel.force(true);
+                segment = new EventSegment(file, start, end, FILE_HEADER);
+            } else {
+                segment = read(file, channel);
+                segment.mapped = null;
+                channel.truncate(segment.length);
+            }
+            channel.position(segment.length);
+            segment.channel = channel;
+            segment.block = ByteBuffer.allocate(BLOCK_HEADER + BLOCK_EVENTS * 34);
+            segment.timeColumn = new byte[BLOCK_EVENTS * 10];
+            segment.optionColumn = new byte[BLOCK_EVENTS * 10];
+            segment.countColumn = new byte[BLOCK_EVENTS * 10];
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the segment in the specified file for reading.
+     *
+     * @param file the segment file
+     * @return the segment
+     * @throws IOException if an I/O error occurs or the file is invalid
+     */
+    static EventSegment open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return read(file, channel);
+        }
+    }
+
+    /**
+     * Reads the header of the segment in the specified file and finds its
+     * complete blocks, checking their checksums.
+     *
+     * @param file the segment file
+     * @param channel channel of the file
+     * @return the segment, mapped into memory
+     * @throws IOException if an I/O error occurs or the file is invalid
+     */
+    private static EventSegment read(Path file, FileChannel channel) throws IOException {
+        MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+        if (buffer.limit() < FILE_HEADER || buffer.getInt(0) != FILE_MAGIC) {
+            throw new IOException("Not a vote event segment: " + file);
+        }
+
+        CRC32 crc = new CRC32();
+        int position = FILE_HEADER;
+        int size;
+        while ((size = blockSize(buffer, position)) > 0) {
+            ByteBuffer columns = buffer.duplicate();
+            columns.position(position + BLOCK_HEADER).limit(position + size);
+            crc.reset();
+            crc.update(columns);
+            if ((int) crc.getValue() != buffer.getInt(position + 36)) {
+                break;
+            }
+            position += size;
+        }
+
+        EventSegment segment = new EventSegment(file, buffer.getLong(8), buffer.getLong(16), position);
+        segment.mapped = buffer;
+        return segment;
+    }
+
+    /**
+     * Returns the total size of the block at the specified position, or 0 if
+     * there is no complete block there.
+     *
+     * @param buffer the segment
+     * @param position position of the block
+     * @return size of the block, or 0
+     */
+    private static int blockSize(ByteBuffer buffer, int position) {
+        if (buffer.limit() - position < BLOCK_HEADER || buffer.getInt(position) != BLOCK_MAGIC) {
+            return 0;
+        }
+        int n = buffer.getInt(position + 4);
+        int timeBytes = buffer.getInt(position + 24);
+        int optionBytes = buffer.getInt(position + 28);
+        int countBytes = buffer.getInt(position + 32);
+        if (n <= 0 || timeBytes < n || optionBytes < n || countBytes < n) {
+            return 0;
+        }
+        long size = (long) BLOCK_HEADER + timeBytes + optionBytes + countBytes + 4L * n;
+        return size <= buffer.limit() - position ? (int) size : 0;
+    }
+
+    /**
+     * Returns the segment file.
+     *
+     * @return the segment file
+     */
+    Path getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the start of the period of the segment, in milliseconds.
+     *
+     * @return the start of the period
+     */
+    long getStart() {
+        return start;
+    }
+
+    /**
+     * Returns the end of the period of the segment (exclusive), in
+     * milliseconds.
+     *
+     * @return the end of the period
+     */
+    long getEnd() {
+        return end;
+    }
+
+    /**
+     * Returns the length of the complete blocks of the segment in bytes.
+     *
+     * @return the length of the segment
+     */
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * Appends the events from index <tt>from</tt> (inclusive) to index
+     * <tt>to</tt> (exclusive) of the specified columns, in blocks of at most
+     * {@linkplain #BLOCK_EVENTS} events, and forces them to the disk. Times
+     * must not decrease.
+     *
+     * @param times times of the events
+     * @param options option IDs of the events
+     * @param counts vote counts of the events
+     * @param hashes client hashes of the events
+     * @param from index of the first event
+     * @param to index after the last event
+     * @throws IOException if an I/O error occurs
+     */
+    void append(long[] times, long[] options, long[] counts, int[] hashes, int from, int to) throws IOException {
+        for (int i = from; i < to; i += BLOCK_EVENTS) {
+            writeBlock(times, options, counts, hashes, i, Math.min(to, i + BLOCK_EVENTS));
+        }
+        channel.force(false);
+        length = channel.position();
+    }
+
+    /**
+     * Encodes and writes one block of events.
+     *
+     * @param times times of the events
+     * @param options option IDs of the events
+     * @param counts vote counts of the events
+     * @param hashes client hashes of the events
+     * @param from index of the first event
+     * @param to index after the last event
+     * @throws IOException if an I/O error occurs
+     */
+    private void writeBlock(long[] times, long[] options, long[] counts, int[] hashes, int from, int to)
+            throws IOException {
+        int timeBytes = 0;
+        int optionBytes = 0;
+        int countBytes = 0;
+        long previous = times[from];
+        for (int i = from; i < to; i++) {
+            timeBytes = putVarLong(timeColumn, timeBytes, times[i] - previous);
+            optionBytes = putVarLong(optionColumn, optionBytes, options[i]);
+            countBytes = putVarLong(countColumn, countBytes, counts[i]);
+            previous = times[i];
+        }
+
+        block.clear();
+        block.position(BLOCK_HEADER);
+        block.put(timeColumn, 0, timeBytes);
+        block.put(optionColumn, 0, optionBytes);
+        block.put(countColumn, 0, countBytes);
+        for (int i = from; i < to; i++) {
+            block.putInt(hashes[i]);
+        }
+        int size = block.position();
+
+        CRC32 crc = new CRC32();
+        crc.update(block.array(), BLOCK_HEADER, size - BLOCK_HEADER);
+        block.putInt(0, BLOCK_MAGIC);
+        block.putInt(4, to - from);
+        block.putLong(8, times[from]);
+        block.putLong(16, times[to - 1]);
+        block.putInt(24, timeBytes);
+        block.putInt(28, optionBytes);
+        block.putInt(32, countBytes);
+        block.putInt(36, (int) crc.getValue());
+
+        block.position(0).limit(size);
+        while (block.hasRemaining()) {
+            channel.write(block);
+        }
+    }
+
+    /**
+     * Passes every event with a time in the specified range to the specified
+     * visitor, in order of time. Blocks outside of the range are skipped.
+     *
+     * @param from start of the range in milliseconds (inclusive)
+     * @param to end of the range in milliseconds (exclusive)
+     * @param visitor visitor of the events
+     * @throws IOException if the segment can not be mapped into memory
+     */
+    void scan(long from, long to, EventVisitor visitor) throws IOException {
+        if (from >= end || to <= start) {
+            return;
+        }
+        ByteBuffer buffer = map();
+        int limit = buffer.limit();
+        int position = FILE_HEADER;
+        while (position < limit) {
+            int n = buffer.getInt(position + 4);
+            long minTime = buffer.getLong(position + 8);
+            long maxTime = buffer.getLong(position + 16);
+            int timeBytes = buffer.getInt(position + 24);
+            int optionBytes = buffer.getInt(position + 28);
+            int countBytes = buffer.getInt(position + 32);
+            int next = position + BLOCK_HEADER + timeBytes + optionBytes + countBytes + 4 * n;
+
+            if (maxTime >= from && minTime < to) {
+                int t = position + BLOCK_HEADER;
+                int o = t + timeBytes;
+                int c = o + optionBytes;
+                int h = c + countBytes;
+                long time = minTime;
+                for (int i = 0; i < n; i++) {
+                    long delta = getVarLong(buffer, t);
+                    t += varLongSize(delta);
+                    long option = getVarLong(buffer, o);
+                    o += varLongSize(option);
+                    long count = getVarLong(buffer, c);
+                    c += varLongSize(count);
+                    time += delta;
+                    if (time >= from && time < to) {
+                        visitor.visit(time, option, count, buffer.getInt(h + 4 * i));
+                    }
+                }
+            }
+            position = next;
+        }
+    }
+
+    /**
+     * Returns the complete blocks of the segment mapped into memory, mapping
+     * them if they were not mapped yet.
+     *
+     * @return the mapped segment
+     * @throws IOException if the segment can not be mapped
+     */
+    private ByteBuffer map() throws IOException {
+        MappedByteBuffer buffer = mapped;
+        long length = this.length;
+        if (buffer == null || buffer.capacity() < length) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                buffer = channel.map(MapMode.READ_ONLY, 0, length);
+            }
+            mapped = buffer;
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.limit((int) length);
+        return view;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        block = null;
+        timeColumn = optionColumn = countColumn = null;
+    }
+
+    /**
+     * Puts the specified non-negative value into the specified array in
+     * variable-length encoding, seven bits per byte.
+     *
+     * @param array the array
+     * @param index index of the first byte
+     * @param value the value
+     * @return index after the last byte
+     */
+    private static int putVarLong(byte[] array, int index, long value) {
+        while ((value & ~0x7FL) != 0) {
+            array[index++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        array[index++] = (byte) value;
+        return index;
+    }
+
+    /**
+     * Returns the value encoded in variable-length encoding at the specified
+     * index of the specified buffer.
+     *
+     * @param buffer the buffer
+     * @param index index of the first byte
+     * @return the value
+     */
+    private static long getVarLong(ByteBuffer buffer, int index) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get(index++);
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    /**
+     * Returns the number of bytes the specified non-negative value takes in
+     * variable-length encoding.
+     *
+     * @param value the value
+     * @return the number of bytes
+     */
+    private static int varLongSize(long value) {
+        return value == 0 ? 1 : (63 - Long.numberOfLeadingZeros(value)) / 7 + 1;
+    }
+
+}
@@ -0,0 +1,21 @@
+package hr.fer.zemris.java.hw14.events;
+
+/**
+ * A visitor of vote events read from the {@linkplain VoteEventStore}.
+ *
+ * @author Mario Bobic
+ */
+@FunctionalInterface
+public interface EventVisitor {
+
+    /**
+     * Visits a vote event.
+     *
+     * @param time time of the vote in milliseconds
+     * @param optionID ID of the voted option
+     * @param count number of votes
+     * @param clientHash hash of the client who voted, or 0 if unknown
+     */
+    void visit(long time, long optionID, long count, int clientHash);
+
+}
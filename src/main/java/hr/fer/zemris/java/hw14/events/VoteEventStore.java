@@ -0,0 +1,400 @@
+package hr.fer.zemris.java.hw14.events;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append-only store of every vote, with its time, option, number of votes
+ * and a hash of the client, kept for audits. Votes are recorded by the DAO
+ * once they are committed, without touching the disk: they are put into an
+ * in-memory buffer of primitive columns, which a writer thread moves to the
+ * disk every <tt>flushMillis</tt> milliseconds.
+ * <p>
+ * The events are kept in {@linkplain EventSegment segments}, one file per
+ * period of <tt>segmentMillis</tt> milliseconds (a period is split into more
+ * files if a file would grow beyond <tt>maxSegmentBytes</tt>). Segments are
+ * read through memory mapping, and only the segments and blocks overlapping a
+ * queried time range are read. Votes still in the buffer are not yet visible
+ * to queries.
+ * <p>
+ * If the buffer fills up because the writer can not keep up, further votes
+ * are dropped from the store, not from the database, and counted as
+ * {@linkplain #getDropped() dropped}.
+ *
+ * @author Mario Bobic
+ */
+public class VoteEventStore implements Closeable {
+
+    /** Logger of the store. */
+    private static final Logger LOGGER = Logger.getLogger(VoteEventStore.class.getName());
+
+    /** Prefix of segment file names. */
+    private static final String PREFIX = "votes-";
+    /** Suffix of segment file names. */
+    private static final String SUFFIX = ".seg";
+
+    /** The store of the application, or <tt>null</tt>. */
+    private static volatile VoteEventStore instance;
+
+    /** Directory of the segment files. */
+    private final Path directory;
+    /** Length of the period of a segment in milliseconds. */
+    private final long segmentMillis;
+    /** Length of a segment file after which it is split. */
+    private final long maxSegmentBytes;
+    /** All segments, mapped by the start of their period. */
+    private final NavigableMap<Long, EventSegment> segments = new ConcurrentSkipListMap<>();
+    /** Thread writing the buffered events. */
+    private final ScheduledExecutorService writer;
+
+    /** Lock of the buffer. */
+    private final Object lock = new Object();
+    /** Buffered times, swapped with {@linkplain #writeTimes}. */
+    private long[] times;
+    /** Buffered option IDs. */
+    private long[] options;
+    /** Buffered vote counts. */
+    private long[] counts;
+    /** Buffered client hashes. */
+    private int[] hashes;
+    /** Number of buffered events. */
+    private int size;
+    /** Number of dropped events. */
+    private long dropped;
+
+    /** Times being written. */
+    private long[] writeTimes;
+    /** Option IDs being written. */
+    private long[] writeOptions;
+    /** Vote counts being written. */
+    private long[] writeCounts;
+    /** Client hashes being written. */
+    private int[] writeHashes;
+    /** Segment being appended to, or <tt>null</tt>. */
+    private EventSegment active;
+    /** Time of the last written event. */
+    private long lastTime;
+    /** Number of written events. */
+    private volatile long written;
+
+    /**
+     * Constructs an instance of {@code VoteEventStore} keeping its segments in
+     * the specified directory, which must exist. Existing segments are opened
+     * for reading.
+     *
+     * @param directory directory of the segment files
+     * @param segmentMillis length of the period of a segment in milliseconds
+     * @param maxSegmentBytes length of a segment file after which it is split
+     * @param bufferSize maximum number of buffered events
+     * @param flushMillis interval of writing the buffered events, in
+     *        milliseconds
+     * @throws IOException if the directory can not be read
+     */
+    public VoteEventStore(Path directory, long segmentMillis, long maxSegmentBytes, int bufferSize, long flushMillis)
+            throws IOException {
+        this.directory = directory;
+        this.segmentMillis = segmentMillis;
+        this.maxSegmentBytes = Math.min(maxSegmentBytes, Integer.MAX_VALUE / 2);
+
+        times = new long[bufferSize];
+        options = new long[bufferSize];
+        counts = new long[bufferSize];
+        hashes = new int[bufferSize];
+        writeTimes = new long[bufferSize];
+        writeOptions = new long[bufferSize];
+        writeCounts = new long[bufferSize];
+        writeHashes = new int[bufferSize];
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                try {
+                    EventSegment segment = EventSegment.open(file);
+                    segments.put(segment.getStart(), segment);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Skipping vote event segment " + file + ".", e);
+                }
+            }
+        }
+
+        writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "event-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        writer.scheduleWithFixedDelay(this::flushQuietly, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the store of the application, or <tt>null</tt> if there is none.
+     *
+     * @return the store of the application
+     */
+    public static VoteEventStore getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the store of the application.
+     *
+     * @param store the store, or <tt>null</tt>
+     */
+    public static void setInstance(VoteEventStore store) {
+        instance = store;
+    }
+
+    /**
+     * Records the specified number of votes for the option with the specified
+     * <tt>optionID</tt> by the client with the specified fingerprint, at the
+     * current time. Does nothing if there is no store.
+     *
+     * @param optionID ID of the option
+     * @param count number of votes
+     * @param fingerprint fingerprint of the client, or 0 if unknown
+     */
+    public static void record(long optionID, long count, long fingerprint) {
+        VoteEventStore store = instance;
+        if (store != null) {
+            store.append(optionID, count, (int) (fingerprint ^ (fingerprint >>> 32)));
+        }
+    }
+
+    /**
+     * Buffers a vote event at the current time.
+     *
+     * @param optionID ID of the option
+     * @param count number of votes
+     * @param clientHash hash of the client, or 0 if unknown
+     */
+    public void append(long optionID, long count, int clientHash) {
+        synchronized (lock) {
+            if (size == times.length) {
+                dropped++;
+                return;
+            }
+            times[size] = System.currentTimeMillis();
+            options[size] = optionID;
+            counts[size] = count;
+            hashes[size] = clientHash;
+            size++;
+        }
+    }
+
+    /**
+     * Writes the buffered events to the segments. Called by the writer thread
+     * only, or once the writer thread is stopped.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void flush() throws IOException {
+        int n;
+        synchronized (lock) {
+            n = size;
+            if (n == 0) {
+                return;
+            }
+            long[] swapTimes = times;
+            times = writeTimes;
+            writeTimes = swapTimes;
+            long[] swapOptions = options;
+            options = writeOptions;
+            writeOptions = swapOptions;
+            long[] swapCounts = counts;
+            counts = writeCounts;
+            writeCounts = swapCounts;
+            int[] swapHashes = hashes;
+            hashes = writeHashes;
+            writeHashes = swapHashes;
+            size = 0;
+        }
+
+        // the wall clock may go back, but times in a segment may not
+        for (int i = 0; i < n; i++) {
+            if (writeTimes[i] < lastTime) {
+                writeTimes[i] = lastTime;
+            }
+            lastTime = writeTimes[i];
+        }
+
+        int from = 0;
+        while (from < n) {
+            EventSegment segment = segmentFor(writeTimes[from]);
+            int to = from + 1;
+            while (to < n && writeTimes[to] < segment.getEnd()) {
+                to++;
+            }
+            segment.append(writeTimes, writeOptions, writeCounts, writeHashes, from, to);
+            written += to - from;
+            from = to;
+        }
+    }
+
+    /**
+     * Writes the buffered events to the segments, logging a failure. Events
+     * that failed to be written are lost.
+     */
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Failed to write vote events to " + directory + ".", e);
+        }
+    }
+
+    /**
+     * Returns the segment events at the specified time are appended to,
+     * starting a new one if the period of the active segment is over or its
+     * file has grown too long.
+     *
+     * @param time time of the next event
+     * @return segment to append to
+     * @throws IOException if a new segment can not be created
+     */
+    private EventSegment segmentFor(long time) throws IOException {
+        if (active != null && time < active.getEnd() && active.getLength() < maxSegmentBytes) {
+            return active;
+        }
+
+        long start = Math.floorDiv(time, segmentMillis) * segmentMillis;
+        long end = start + segmentMillis;
+        if (active != null && time < active.getEnd()) {
+            start = Math.max(time, active.getStart() + 1);
+            end = active.getEnd();
+        }
+
+        EventSegment existing = segments.get(start);
+        if (existing != null && existing.getLength() >= maxSegmentBytes) {
+            start = Math.max(time, start + 1);
+        }
+
+        EventSegment segment = EventSegment.append(directory.resolve(PREFIX + start + SUFFIX), start, end);
+        if (active != null) {
+            active.close();
+        }
+        active = segment;
+        segments.put(segment.getStart(), segment);
+        return segment;
+    }
+
+    /**
+     * Passes every stored event with a time in the specified range to the
+     * specified visitor, in order of time.
+     *
+     * @param from start of the range in milliseconds (inclusive)
+     * @param to end of the range in milliseconds (exclusive)
+     * @param visitor visitor of the events
+     * @throws IOException if a segment can not be read
+     */
+    public void scan(long from, long to, EventVisitor visitor) throws IOException {
+        for (EventSegment segment : segments.headMap(to).values()) {
+            segment.scan(from, to, visitor);
+        }
+    }
+
+    /**
+     * Returns the number of stored votes per option in the specified time
+     * range, mapped by option ID.
+     *
+     * @param from start of the range in milliseconds (inclusive)
+     * @param to end of the range in milliseconds (exclusive)
+     * @return number of votes per option
+     * @throws IOException if a segment can not be read
+     */
+    public Map<Long, Long> countVotes(long from, long to) throws IOException {
+        Map<Long, long[]> votes = new TreeMap<>();
+        scan(from, to, (time, optionID, count, clientHash) -> {
+            votes.computeIfAbsent(optionID, id -> new long[1])[0] += count;
+        });
+
+        Map<Long, Long> result = new TreeMap<>();
+        votes.forEach((optionID, count) -> result.put(optionID, count[0]));
+        return result;
+    }
+
+    /**
+     * Returns the number of events written to the segments.
+     *
+     * @return the number of written events
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * Returns the number of events dropped because the buffer was full.
+     *
+     * @return the number of dropped events
+     */
+    public long getDropped() {
+        synchronized (lock) {
+            return dropped;
+        }
+    }
+
+    /**
+     * Returns the number of buffered events.
+     *
+     * @return the number of buffered events
+     */
+    public int getBuffered() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+
+    /**
+     * Returns the number of segments.
+     *
+     * @return the number of segments
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Returns the total length of the segment files in bytes.
+     *
+     * @return the length of the segments
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (EventSegment segment : segments.values()) {
+            bytes += segment.getLength();
+        }
+        return bytes;
+    }
+
+    /**
+     * Stops the writer thread, writes the buffered events and closes the
+     * active segment.
+     */
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushQuietly();
+        if (active != null) {
+            try {
+                active.close();
+            } catch (IOException ignorable) {
+            }
+            active = null;
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+package hr.fer.zemris.java.hw14.guard;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe Bloom filter of 64-bit hashes, with a fixed number of bits
+ * chosen from the expected number of elements and the acceptable false
+ * positive probability. Elements are never reported missing once added, but
+ * an element that was never added may be reported present with about the
+ * chosen probability.
+ * <p>
+ * Bits are set with compare-and-set, so adding never blocks. The filter can
+ * be cleared for reuse; elements added during a clear may be lost.
+ *
+ * @author Mario Bobic
+ */
+public class BloomFilter {
+
+    /** Bits of the filter. */
+    private final AtomicLongArray bits;
+    /** Number of bits of the filter. */
+    private final long numBits;
+    /** Number of bits set per element. */
+    private final int numHashes;
+
+    /**
+     * Constructs an instance of {@code BloomFilter} sized for the specified
+     * number of elements and false positive probability.
+     *
+     * @param expectedElements expected number of elements
+     * @param fpp acceptable false positive probability, between 0 and 1
+     */
+    public BloomFilter(long expectedElements, double fpp) {
+        long m = (long) Math.ceil(-expectedElements * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.max(1, Math.min(Integer.MAX_VALUE, (m + 63) / 64));
+        bits = new AtomicLongArray(words);
+        numBits = 64L * words;
+        numHashes = Math.max(1, (int) Math.round((double) numBits / expectedElements * Math.log(2)));
+    }
+
+    /**
+     * Returns true if the element with the specified hash may have been
+     * added.
+     *
+     * @param hash a well mixed 64-bit hash of the element
+     * @return false if the element has certainly not been added
+     */
+    public boolean mightContain(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numHashes; i++) {
+            long bit = index(h1 + i * h2);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the element with the specified hash.
+     *
+     * @param hash a well mixed 64-bit hash of the element
+     * @return true if the element may have been added before, false if it
+     *         certainly was not
+     */
+    public boolean put(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        boolean present = true;
+        for (int i = 1; i <= numHashes; i++) {
+            long bit = index(h1 + i * h2);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long old = bits.get(word);
+            while ((old & mask) == 0) {
+                if (bits.compareAndSet(word, old, old | mask)) {
+                    present = false;
+                    break;
+                }
+                old = bits.get(word);
+            }
+        }
+        return present;
+    }
+
+    /**
+     * Removes all elements.
+     */
+    public void clear() {
+        for (int i = 0, n = bits.length(); i < n; i++) {
+            bits.set(i, 0L);
+        }
+    }
+
+    /**
+     * Returns the number of bits of the filter.
+     *
+     * @return the number of bits
+     */
+    public long getNumBits() {
+        return numBits;
+    }
+
+    /**
+     * Maps a combined hash to a bit index.
+     *
+     * @param combined a combined hash
+     * @return index of a bit
+     */
+    private long index(int combined) {
+        return (combined & 0xFFFFFFFFL) % numBits;
+    }
+
+}
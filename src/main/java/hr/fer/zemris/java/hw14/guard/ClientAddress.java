@@ -0,0 +1,116 @@
+package hr.fer.zemris.java.hw14.guard;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Tells the address of the client of a request. Behind a load balancer or a
+ * reverse proxy every request comes from the proxy, which passes the address
+ * of its own client in a header such as <tt>X-Forwarded-For</tt>. That header
+ * is set by whoever sent the request, so it is trusted only if the request
+ * came from one of the configured proxies, and then only the part appended
+ * by the proxies: the header is read from the right, skipping the addresses
+ * of trusted proxies, and the first other address is taken as the client.
+ * <p>
+ * If there is no instance, or the request did not come from a trusted proxy,
+ * the remote address of the request is the address of the client.
+ *
+ * @author Mario Bobic
+ */
+public class ClientAddress {
+
+    /** Client addresses of the application, or <tt>null</tt>. */
+    private static volatile ClientAddress instance;
+
+    /** Name of the header carrying the addresses of forwarded requests. */
+    private final String header;
+    /** Addresses of trusted proxies. */
+    private final Set<String> trustedProxies;
+
+    /**
+     * Constructs an instance of {@code ClientAddress} that reads the specified
+     * <tt>header</tt> of requests coming from the specified proxies.
+     *
+     * @param header name of the header carrying the addresses of forwarded
+     *        requests
+     * @param trustedProxies addresses of trusted proxies
+     */
+    public ClientAddress(String header, Set<String> trustedProxies) {
+        this.header = header;
+        this.trustedProxies = Collections.unmodifiableSet(new HashSet<>(trustedProxies));
+    }
+
+    /**
+     * Returns the client addresses of the application, or <tt>null</tt> if
+     * there are none.
+     *
+     * @return the client addresses of the application
+     */
+    public static ClientAddress getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the client addresses of the application.
+     *
+     * @param clientAddress the client addresses, or <tt>null</tt>
+     */
+    public static void setInstance(ClientAddress clientAddress) {
+        instance = clientAddress;
+    }
+
+    /**
+     * Returns the address of the client of the specified request, as told by
+     * the instance of the application, or the remote address of the request
+     * if there is no instance.
+     *
+     * @param req HTTP servlet request
+     * @return the address of the client
+     */
+    public static String of(HttpServletRequest req) {
+        ClientAddress clientAddress = instance;
+        return clientAddress == null ? req.getRemoteAddr() : clientAddress.resolve(req);
+    }
+
+    /**
+     * Returns the address of the client of the specified request.
+     *
+     * @param req HTTP servlet request
+     * @return the address of the client
+     */
+    public String resolve(HttpServletRequest req) {
+        String remote = req.getRemoteAddr();
+        if (!trustedProxies.contains(remote)) {
+            return remote;
+        }
+
+        Enumeration<String> values = req.getHeaders(header);
+        if (values == null || !values.hasMoreElements()) {
+            return remote;
+        }
+        StringBuilder forwarded = new StringBuilder();
+        while (values.hasMoreElements()) {
+            if (forwarded.length() > 0) {
+                forwarded.append(',');
+            }
+            forwarded.append(values.nextElement());
+        }
+
+        String[] addresses = forwarded.toString().split(",");
+        for (int i = addresses.length - 1; i >= 0; i--) {
+            String address = addresses[i].trim();
+            if (address.isEmpty()) {
+                continue;
+            }
+            if (!trustedProxies.contains(address)) {
+                return address;
+            }
+        }
+        return remote;
+    }
+
+}
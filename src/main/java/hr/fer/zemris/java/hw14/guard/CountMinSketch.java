@@ -0,0 +1,85 @@
+package hr.fer.zemris.java.hw14.guard;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A thread-safe count-min sketch of 64-bit hashes: a fixed table of counters
+ * that estimates how many times each element has been counted. An estimate is
+ * never lower than the true count, and is higher by at most a small fraction
+ * of the total count with high probability, regardless of the number of
+ * distinct elements.
+ * <p>
+ * Counters are updated conservatively: only the counters holding the current
+ * minimum are increased, which keeps overestimates lower.
+ *
+ * @author Mario Bobic
+ */
+public class CountMinSketch {
+
+    /** Counters, one row after another. */
+    private final AtomicIntegerArray counters;
+    /** Number of rows. */
+    private final int depth;
+    /** Number of counters in a row, a power of two. */
+    private final int width;
+
+    /**
+     * Constructs an instance of {@code CountMinSketch} with the specified
+     * number of rows and counters per row.
+     *
+     * @param depth number of rows
+     * @param width number of counters per row, rounded up to a power of two
+     */
+    public CountMinSketch(int depth, int width) {
+        this.depth = depth;
+        this.width = Integer.highestOneBit(Math.max(1, width - 1)) << 1;
+        this.counters = new AtomicIntegerArray(depth * this.width);
+    }
+
+    /**
+     * Counts the element with the specified hash once and returns its
+     * estimated count, including this one.
+     *
+     * @param hash a well mixed 64-bit hash of the element
+     * @return the estimated count of the element
+     */
+    public int add(long hash) {
+        int min = estimate(hash);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < depth; i++) {
+            int index = i * width + ((h1 + i * h2) & (width - 1));
+            int value = counters.get(index);
+            while (value <= min && !counters.compareAndSet(index, value, value + 1)) {
+                value = counters.get(index);
+            }
+        }
+        return min + 1;
+    }
+
+    /**
+     * Returns the estimated count of the element with the specified hash.
+     *
+     * @param hash a well mixed 64-bit hash of the element
+     * @return the estimated count of the element
+     */
+    public int estimate(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            min = Math.min(min, counters.get(i * width + ((h1 + i * h2) & (width - 1))));
+        }
+        return min;
+    }
+
+    /**
+     * Resets all counters to zero.
+     */
+    public void clear() {
+        for (int i = 0, n = counters.length(); i < n; i++) {
+            counters.set(i, 0);
+        }
+    }
+
+}
@@ -0,0 +1,361 @@
+package hr.fer.zemris.java.hw14.guard;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * An in-memory guard in front of voting that rejects repeated votes and
+ * clients voting too often, before the database is accessed.
+ * <ul>
+ * <li>Repeated votes of a client in the same poll are detected with two
+ * {@linkplain BloomFilter Bloom filters} that take turns: votes are
+ * {@linkplain #record(long, long) recorded} in the current one once the
+ * database has counted them, and looked up in both, and every
+ * <tt>window</tt> the older one is dropped and an empty one becomes the
+ * current one. A vote is therefore remembered for at least one and at most
+ * two windows. Between being accepted and being recorded or
+ * {@linkplain #release(long, long) released}, a vote is reserved, so a
+ * concurrent vote of the same client in the same poll is rejected as
+ * repeated. A client is told apart by a
+ * {@linkplain #fingerprint(HttpServletRequest) fingerprint} of its address
+ * and user agent.
+ * <li>Votes of a client per minute are counted with a
+ * {@linkplain CountMinSketch count-min sketch} that is cleared every minute;
+ * a client exceeding <tt>rateLimit</tt> votes in a minute is rejected. Here
+ * a client is told apart by its {@linkplain #address(HttpServletRequest)
+ * address} alone, since the user agent is chosen by the client and changing
+ * it must not reset the limit.
+ * </ul>
+ * The address of a client is taken by {@linkplain ClientAddress}, so behind
+ * a configured load balancer it is the address the balancer forwards, not the
+ * address of the balancer.
+ * <p>
+ * Both ways of telling clients apart are approximate. Distinct voters behind
+ * one NAT or proxy share an address, so they share the rate limit, and with
+ * the same browser they are taken for one voter in a poll. A client changing
+ * its user agent is taken for a new voter in a poll, but is still limited by
+ * its address. The guard therefore only slows down repeated voting.
+ * <p>
+ * Memory use is fixed by the configuration and does not grow with the number
+ * of clients. The price is that a first vote is rejected as repeated with a
+ * small probability, and a client sharing counters with busy clients may be
+ * limited a little earlier.
+ *
+ * @author Mario Bobic
+ */
+public class VoteGuard {
+
+    /** Length of the rate limiting period in milliseconds. */
+    private static final long RATE_PERIOD = 60_000;
+    /** Time after which a reserved vote that was never settled expires. */
+    private static final long RESERVATION_TIMEOUT = 60_000;
+
+    /** The guard of the application, or <tt>null</tt>. */
+    private static volatile VoteGuard instance;
+
+    /**
+     * Verdict of the guard on a vote.
+     *
+     * @author Mario Bobic
+     */
+    public enum Verdict {
+        /** The vote may be counted. */
+        ACCEPTED,
+        /** The client has already voted in the poll. */
+        DUPLICATE,
+        /** The client votes too often. */
+        RATE_LIMITED
+    }
+
+    /** Length of the deduplication window in milliseconds. */
+    private final long window;
+    /** Maximum number of votes of a client per minute. */
+    private final int rateLimit;
+    /** Expected number of votes in one window. */
+    private final long expectedVotes;
+
+    /** Bloom filter votes are added to. */
+    private volatile BloomFilter current;
+    /** Bloom filter of the previous window. */
+    private volatile BloomFilter previous;
+    /** Time of the next rotation of Bloom filters. */
+    private volatile long nextRotation;
+    /** Times of reservation of accepted votes not yet settled, by key. */
+    private final ConcurrentMap<Long, Long> reserved = new ConcurrentHashMap<>();
+
+    /** Counts of votes per client in the current period. */
+    private final CountMinSketch rates;
+    /** Time the rate counters are cleared next. */
+    private volatile long nextRateReset;
+
+    /** Number of accepted votes. */
+    private final AtomicLong accepted = new AtomicLong();
+    /** Number of repeated votes. */
+    private final AtomicLong duplicates = new AtomicLong();
+    /** Number of rate limited votes. */
+    private final AtomicLong rateLimited = new AtomicLong();
+
+    /**
+     * Constructs an instance of {@code VoteGuard} with the specified
+     * configuration.
+     *
+     * @param window length of the deduplication window in milliseconds
+     * @param expectedVotes expected number of votes in one window
+     * @param rateLimit maximum number of votes of a client per minute
+     */
+    public VoteGuard(long window, long expectedVotes, int rateLimit) {
+        this.window = window;
+        this.rateLimit = rateLimit;
+        this.expectedVotes = expectedVotes;
+        this.current = new BloomFilter(expectedVotes, 0.001);
+        this.previous = new BloomFilter(expectedVotes, 0.001);
+        this.rates = new CountMinSketch(4, 1 << 16);
+
+        long now = System.currentTimeMillis();
+        this.nextRotation = now + window;
+        this.nextRateReset = now + RATE_PERIOD;
+    }
+
+    /**
+     * Returns the guard of the application, or <tt>null</tt> if there is
+     * none.
+     *
+     * @return the guard of the application
+     */
+    public static VoteGuard getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the guard of the application.
+     *
+     * @param guard the guard, or <tt>null</tt>
+     */
+    public static void setInstance(VoteGuard guard) {
+        instance = guard;
+    }
+
+    /**
+     * Checks a vote of the client of the specified request in the poll with
+     * the specified <tt>pollID</tt>. An accepted vote is reserved; it must be
+     * {@linkplain #record(long, long) recorded} once it is counted and
+     * {@linkplain #release(long, long) released} in any case.
+     *
+     * @param req HTTP servlet request of the vote
+     * @param pollID ID of the poll
+     * @return the verdict on the vote
+     */
+    public Verdict check(HttpServletRequest req, long pollID) {
+        return check(address(req), fingerprint(req), pollID);
+    }
+
+    /**
+     * Checks a vote of the client with the specified address hash and
+     * fingerprint in the poll with the specified <tt>pollID</tt>. Every
+     * checked vote counts against the rate limit of the address. An accepted
+     * vote is only reserved, which rejects concurrent votes of the client in
+     * the poll; it must be {@linkplain #record(long, long) recorded} once it
+     * is counted and {@linkplain #release(long, long) released} in any case,
+     * so that a vote the database fails to count does not block the client.
+     *
+     * @param address hash of the address of the client
+     * @param fingerprint fingerprint of the client
+     * @param pollID ID of the poll
+     * @return the verdict on the vote
+     */
+    public Verdict check(long address, long fingerprint, long pollID) {
+        long now = System.currentTimeMillis();
+        if (now >= nextRotation || now >= nextRateReset) {
+            advance(now);
+        }
+
+        if (rates.add(address) > rateLimit) {
+            rateLimited.incrementAndGet();
+            return Verdict.RATE_LIMITED;
+        }
+
+        // reserve before looking the vote up, since recording puts it into
+        // the filter before releasing the reservation
+        long key = key(fingerprint, pollID);
+        if (!reserve(key, now)) {
+            duplicates.incrementAndGet();
+            return Verdict.DUPLICATE;
+        }
+        if (previous.mightContain(key) || current.mightContain(key)) {
+            reserved.remove(key);
+            duplicates.incrementAndGet();
+            return Verdict.DUPLICATE;
+        }
+        accepted.incrementAndGet();
+        return Verdict.ACCEPTED;
+    }
+
+    /**
+     * Reserves the vote with the specified <tt>key</tt>, unless it is already
+     * reserved by a vote that has not expired.
+     *
+     * @param key key of the vote
+     * @param now current time in milliseconds
+     * @return true if the vote was reserved
+     */
+    private boolean reserve(long key, long now) {
+        Long time = reserved.putIfAbsent(key, now);
+        if (time == null) {
+            return true;
+        }
+        return now - time >= RESERVATION_TIMEOUT && reserved.replace(key, time, now);
+    }
+
+    /**
+     * Remembers a vote of the client with the specified fingerprint in the
+     * poll with the specified <tt>pollID</tt>, after the vote is counted. The
+     * poll must be the one the database counted the vote in, not merely the
+     * one the client named.
+     *
+     * @param fingerprint fingerprint of the client
+     * @param pollID ID of the poll the vote was counted in
+     */
+    public void record(long fingerprint, long pollID) {
+        current.put(key(fingerprint, pollID));
+    }
+
+    /**
+     * Releases the reservation of a vote of the client with the specified
+     * fingerprint in the poll with the specified <tt>pollID</tt>, whether the
+     * vote was counted or not. A vote that was recorded stays remembered.
+     *
+     * @param fingerprint fingerprint of the client
+     * @param pollID ID of the poll
+     */
+    public void release(long fingerprint, long pollID) {
+        reserved.remove(key(fingerprint, pollID));
+    }
+
+    /**
+     * Returns the key of a vote of the client with the specified fingerprint
+     * in the poll with the specified <tt>pollID</tt>.
+     *
+     * @param fingerprint fingerprint of the client
+     * @param pollID ID of the poll
+     * @return the key of the vote
+     */
+    private static long key(long fingerprint, long pollID) {
+        return mix(fingerprint ^ mix(pollID));
+    }
+
+    /**
+     * Rotates the Bloom filters and clears the rate counters if their time
+     * has come. The oldest filter is dropped rather than cleared, since other
+     * threads may still be looking votes up in it.
+     *
+     * @param now current time in milliseconds
+     */
+    private synchronized void advance(long now) {
+        if (now >= nextRotation) {
+            previous = current;
+            current = new BloomFilter(expectedVotes, 0.001);
+            nextRotation = now + window;
+        }
+        if (now >= nextRateReset) {
+            rates.clear();
+            nextRateReset = now + RATE_PERIOD;
+        }
+    }
+
+    /**
+     * Returns a hash of the {@linkplain ClientAddress address} of the client
+     * of the specified request.
+     *
+     * @param req HTTP servlet request
+     * @return hash of the address of the client
+     */
+    public static long address(HttpServletRequest req) {
+        return mix(fnv(0xcbf29ce484222325L, ClientAddress.of(req)));
+    }
+
+    /**
+     * Returns a fingerprint of the client of the specified request, made of
+     * its address and user agent. The user agent is chosen by the client, so
+     * the fingerprint tells apart browsers behind one address but can be
+     * changed at will.
+     *
+     * @param req HTTP servlet request
+     * @return fingerprint of the client
+     */
+    public static long fingerprint(HttpServletRequest req) {
+        long hash = 0xcbf29ce484222325L;
+        hash = fnv(hash, ClientAddress.of(req));
+        hash *= 0x100000001b3L;
+        hash = fnv(hash, req.getHeader("User-Agent"));
+        return mix(hash);
+    }
+
+    /**
+     * Continues the FNV-1a hash with the characters of the specified string.
+     *
+     * @param hash hash so far
+     * @param s a string, may be <tt>null</tt>
+     * @return the continued hash
+     */
+    private static long fnv(long hash, String s) {
+        if (s != null) {
+            for (int i = 0, n = s.length(); i < n; i++) {
+                hash = (hash ^ s.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Mixes the bits of the specified value, so that similar values give
+     * unrelated hashes (the finalizer of SplitMix64).
+     *
+     * @param z a value
+     * @return a well mixed hash of the value
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Returns the number of accepted votes.
+     *
+     * @return the number of accepted votes
+     */
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    /**
+     * Returns the number of votes rejected as repeated.
+     *
+     * @return the number of repeated votes
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * Returns the number of votes rejected for exceeding the rate limit.
+     *
+     * @return the number of rate limited votes
+     */
+    public long getRateLimited() {
+        return rateLimited.get();
+    }
+
+    /**
+     * Returns the number of bytes taken by the filters and counters.
+     *
+     * @return the memory taken by the guard
+     */
+    public long getMemoryBytes() {
+        return (current.getNumBits() + previous.getNumBits()) / 8 + 4L * 4 * (1 << 16);
+    }
+
+}
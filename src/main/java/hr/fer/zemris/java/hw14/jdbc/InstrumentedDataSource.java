@@ -0,0 +1,376 @@
+package hr.fer.zemris.java.hw14.jdbc;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * A data source wrapper that measures every SQL statement executed through
+ * its connections. Connections, statements and result sets are wrapped into
+ * dynamic proxies that record, per normalized SQL text, the number of
+ * executions, their latencies, the number of rows returned or updated and the
+ * number of failures into {@linkplain StatementStats}.
+ * <p>
+ * Executions slower than the slow query threshold are logged together with
+ * their bind parameters. Bind parameters are remembered only if the slow query
+ * log is enabled.
+ * <p>
+ * The wrapper is installed only when instrumentation is enabled, so it costs
+ * nothing otherwise. When enabled, a statement costs a few proxy dispatches
+ * and two calls to {@linkplain System#nanoTime()}.
+ *
+ * @author Mario Bobic
+ */
+public class InstrumentedDataSource implements DataSource {
+
+    /** Logger of slow queries. */
+    private static final Logger SLOW_LOG = Logger.getLogger(InstrumentedDataSource.class.getName() + ".slow");
+
+    /** The wrapped data source. */
+    private final DataSource delegate;
+    /** Slow query threshold in nanoseconds, or 0 if the log is disabled. */
+    private final long slowThreshold;
+
+    /**
+     * Constructs an instance of {@code InstrumentedDataSource} that wraps the
+     * specified data source.
+     *
+     * @param delegate the wrapped data source
+     * @param slowThresholdMillis slow query threshold in milliseconds, or
+     *        <tt>0</tt> to disable the slow query log
+     */
+    public InstrumentedDataSource(DataSource delegate, long slowThresholdMillis) {
+        this.delegate = delegate;
+        this.slowThreshold = TimeUnit.MILLISECONDS.toNanos(slowThresholdMillis);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return wrap(Connection.class, new ConnectionHandler(delegate.getConnection()));
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return wrap(Connection.class, new ConnectionHandler(delegate.getConnection(username, password)));
+    }
+
+    /**
+     * Returns the wrapped data source.
+     *
+     * @return the wrapped data source
+     */
+    public DataSource getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Creates a proxy of the specified interface that dispatches to the
+     * specified handler.
+     *
+     * @param <T> type of the interface
+     * @param iface the interface
+     * @param handler the invocation handler
+     * @return a new proxy
+     */
+    private static <T> T wrap(Class<T> iface, InvocationHandler handler) {
+        return iface.cast(Proxy.newProxyInstance(InstrumentedDataSource.class.getClassLoader(),
+                new Class<?>[] {iface}, handler));
+    }
+
+    /**
+     * Invokes the specified method on the <tt>target</tt>, unwrapping the
+     * exception thrown by the method.
+     *
+     * @param target target of the invocation
+     * @param method the method
+     * @param args arguments of the method
+     * @return result of the method
+     * @throws Throwable exception thrown by the method
+     */
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Invocation handler of a connection. Statements created by the connection
+     * are wrapped, and return the wrapped connection from
+     * <tt>getConnection()</tt>.
+     *
+     * @author Mario Bobic
+     */
+    private class ConnectionHandler implements InvocationHandler {
+
+        /** The wrapped connection. */
+        private final Connection target;
+
+        /**
+         * Constructs an instance of {@code ConnectionHandler}.
+         *
+         * @param target the wrapped connection
+         */
+        ConnectionHandler(Connection target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object result = InstrumentedDataSource.invoke(target, method, args);
+
+            switch (method.getName()) {
+            case "prepareStatement":
+            case "prepareCall":
+                return wrap(method.getReturnType(),
+                        new StatementHandler((Statement) result, (Connection) proxy, (String) args[0]));
+            case "createStatement":
+                return wrap(method.getReturnType(), new StatementHandler((Statement) result, (Connection) proxy, null));
+            default:
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Invocation handler of a statement. Executions are timed, bind
+     * parameters are remembered for the slow query log and result sets are
+     * wrapped to count returned rows and to return the wrapped statement from
+     * <tt>getStatement()</tt>.
+     *
+     * @author Mario Bobic
+     */
+    private class StatementHandler implements InvocationHandler {
+
+        /** The wrapped statement. */
+        private final Statement target;
+        /** The wrapped connection that created the statement. */
+        private final Connection connection;
+        /** Statistics of the prepared SQL, or <tt>null</tt>. */
+        private final StatementStats stats;
+        /** The prepared SQL text, or <tt>null</tt>. */
+        private final String sql;
+        /** Bind parameters, or <tt>null</tt> if they are not remembered. */
+        private Object[] params;
+
+        /**
+         * Constructs an instance of {@code StatementHandler}.
+         *
+         * @param target the wrapped statement
+         * @param connection the wrapped connection that created the statement
+         * @param sql the prepared SQL text, or <tt>null</tt> for a plain
+         *        statement
+         */
+        StatementHandler(Statement target, Connection connection, String sql) {
+            this.target = target;
+            this.connection = connection;
+            this.sql = sql;
+            this.stats = sql == null ? null : StatementStats.of(sql);
+            if (sql != null && slowThreshold > 0) {
+                params = new Object[0];
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+
+            if (name.startsWith("execute")) {
+                return execute((Statement) proxy, method, args);
+            }
+            if (name.equals("getConnection")) {
+                return connection;
+            }
+            if (params != null && name.startsWith("set") && args != null && args.length >= 2
+                    && args[0] instanceof Integer) {
+                bind((Integer) args[0], args[1]);
+            } else if (params != null && name.equals("clearParameters")) {
+                params = new Object[0];
+            }
+
+            Object result = InstrumentedDataSource.invoke(target, method, args);
+            if (result instanceof ResultSet) {
+                return wrap(ResultSet.class, new ResultSetHandler((ResultSet) result, (Statement) proxy, stats));
+            }
+            return result;
+        }
+
+        /**
+         * Executes the statement, recording its statistics.
+         *
+         * @param proxy the wrapped statement
+         * @param method the execute method
+         * @param args arguments of the method
+         * @return result of the method
+         * @throws Throwable exception thrown by the method
+         */
+        private Object execute(Statement proxy, Method method, Object[] args) throws Throwable {
+            String executed = args != null && args.length > 0 && args[0] instanceof String
+                    ? (String) args[0] : sql;
+            StatementStats statementStats = executed == sql ? stats : StatementStats.of(executed);
+
+            long start = System.nanoTime();
+            Object result;
+            try {
+                result = InstrumentedDataSource.invoke(target, method, args);
+            } catch (Throwable t) {
+                long elapsed = System.nanoTime() - start;
+                if (statementStats != null) {
+                    statementStats.recordError(elapsed);
+                }
+                logIfSlow(executed, elapsed, t);
+                throw t;
+            }
+            long elapsed = System.nanoTime() - start;
+            logIfSlow(executed, elapsed, null);
+            if (statementStats == null) {
+                return result instanceof ResultSet
+                        ? wrap(ResultSet.class, new ResultSetHandler((ResultSet) result, proxy, null))
+                        : result;
+            }
+
+            statementStats.recordExecution(elapsed);
+            if (result instanceof ResultSet) {
+                return wrap(ResultSet.class, new ResultSetHandler((ResultSet) result, proxy, statementStats));
+            } else if (result instanceof Integer || result instanceof Long) {
+                statementStats.addRows(Math.max(0, ((Number) result).longValue()));
+            } else if (Boolean.FALSE.equals(result)) {
+                statementStats.addRows(Math.max(0, target.getUpdateCount()));
+            } else if (result instanceof int[]) {
+                for (int n : (int[]) result) {
+                    statementStats.addRows(Math.max(0, n));
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Remembers the bind parameter with the specified 1-based
+         * <tt>index</tt>.
+         *
+         * @param index index of the parameter
+         * @param value value of the parameter
+         */
+        private void bind(int index, Object value) {
+            if (index > params.length) {
+                params = Arrays.copyOf(params, index);
+            }
+            if (index > 0) {
+                params[index - 1] = value;
+            }
+        }
+
+        /**
+         * Logs the execution if it took longer than the slow query threshold.
+         *
+         * @param executed the executed SQL text
+         * @param elapsed duration of the execution, in nanoseconds
+         * @param failure exception thrown by the execution, or <tt>null</tt>
+         */
+        private void logIfSlow(String executed, long elapsed, Throwable failure) {
+            if (slowThreshold <= 0 || elapsed < slowThreshold) {
+                return;
+            }
+            SLOW_LOG.warning(String.format("Slow query (%d ms%s): %s params=%s",
+                    TimeUnit.NANOSECONDS.toMillis(elapsed), failure == null ? "" : ", failed: " + failure,
+                    executed, params == null ? "[]" : Arrays.toString(params)));
+        }
+    }
+
+    /**
+     * Invocation handler of a result set that counts returned rows and
+     * returns the wrapped statement from <tt>getStatement()</tt>.
+     *
+     * @author Mario Bobic
+     */
+    private static class ResultSetHandler implements InvocationHandler {
+
+        /** The wrapped result set. */
+        private final ResultSet target;
+        /** The wrapped statement that returned the result set. */
+        private final Statement statement;
+        /** Statistics of the statement, or <tt>null</tt>. */
+        private final StatementStats stats;
+
+        /**
+         * Constructs an instance of {@code ResultSetHandler}.
+         *
+         * @param target the wrapped result set
+         * @param statement the wrapped statement that returned the result set
+         * @param stats statistics of the statement, or <tt>null</tt> if rows
+         *        are not counted
+         */
+        ResultSetHandler(ResultSet target, Statement statement, StatementStats stats) {
+            this.target = target;
+            this.statement = statement;
+            this.stats = stats;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("getStatement")) {
+                return statement;
+            }
+            Object result = InstrumentedDataSource.invoke(target, method, args);
+            if (stats != null && Boolean.TRUE.equals(result) && method.getName().equals("next")) {
+                stats.addRows(1);
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return delegate.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        delegate.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        delegate.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return delegate.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return delegate.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        if (iface.isInstance(delegate)) {
+            return iface.cast(delegate);
+        }
+        return delegate.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || iface.isInstance(delegate) || delegate.isWrapperFor(iface);
+    }
+
+}
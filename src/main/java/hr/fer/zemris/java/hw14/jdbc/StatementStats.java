@@ -0,0 +1,169 @@
+package hr.fer.zemris.java.hw14.jdbc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import hr.fer.zemris.java.hw14.metrics.Histogram;
+
+/**
+ * Statistics of one normalized SQL statement: the number of executions, a
+ * histogram of their latencies, the number of rows returned or updated and the
+ * number of failed executions.
+ * <p>
+ * Statistics are kept in a static registry keyed by the normalized SQL text,
+ * where whitespace is collapsed and literals are replaced with <tt>?</tt>, so
+ * the same statement written with different literals or line breaks is counted
+ * once. Normalized texts are cached, so a statement is normalized only the
+ * first time it is seen.
+ *
+ * @author Mario Bobic
+ */
+public class StatementStats {
+
+    /** Maximum number of distinct statements tracked. */
+    private static final int MAX_STATEMENTS = 1000;
+
+    /** Statistics mapped by normalized SQL text. */
+    private static final Map<String, StatementStats> STATS = new ConcurrentHashMap<>();
+    /** Statistics mapped by raw SQL text, to skip normalization. */
+    private static final Map<String, StatementStats> BY_RAW_SQL = new ConcurrentHashMap<>();
+
+    /** Pattern of string literals. */
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    /** Pattern of numeric literals. */
+    private static final Pattern NUMERIC_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+    /** Pattern of whitespace. */
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    /** The normalized SQL text. */
+    private final String sql;
+    /** Latencies of executions, in nanoseconds. */
+    private final Histogram latency = new Histogram();
+    /** Number of rows returned or updated. */
+    private final LongAdder rows = new LongAdder();
+    /** Number of failed executions. */
+    private final LongAdder errors = new LongAdder();
+
+    /**
+     * Constructs an instance of {@code StatementStats} for the specified
+     * normalized <tt>sql</tt>.
+     *
+     * @param sql the normalized SQL text
+     */
+    private StatementStats(String sql) {
+        this.sql = sql;
+    }
+
+    /**
+     * Returns the statistics of the specified raw <tt>sql</tt>, creating them
+     * if needed. Once the maximum number of distinct statements is reached,
+     * new statements are counted together under a common entry.
+     *
+     * @param rawSql the SQL text as given to the driver
+     * @return statistics of the statement
+     */
+    public static StatementStats of(String rawSql) {
+        StatementStats stats = BY_RAW_SQL.get(rawSql);
+        if (stats != null) {
+            return stats;
+        }
+
+        String normalized = STATS.size() < MAX_STATEMENTS ? normalize(rawSql) : "(other)";
+        stats = STATS.computeIfAbsent(normalized, StatementStats::new);
+        if (BY_RAW_SQL.size() < MAX_STATEMENTS) {
+            BY_RAW_SQL.put(rawSql, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Returns statistics of all tracked statements.
+     *
+     * @return statistics of all tracked statements
+     */
+    public static List<StatementStats> all() {
+        return new ArrayList<>(STATS.values());
+    }
+
+    /**
+     * Returns the normalized form of the specified <tt>sql</tt>: literals are
+     * replaced with <tt>?</tt> and whitespace is collapsed.
+     *
+     * @param sql a SQL text
+     * @return the normalized SQL text
+     */
+    static String normalize(String sql) {
+        String normalized = STRING_LITERAL.matcher(sql).replaceAll("?");
+        normalized = NUMERIC_LITERAL.matcher(normalized).replaceAll("?");
+        return WHITESPACE.matcher(normalized).replaceAll(" ").trim();
+    }
+
+    /**
+     * Records one successful execution.
+     *
+     * @param nanos duration of the execution, in nanoseconds
+     */
+    void recordExecution(long nanos) {
+        latency.record(nanos);
+    }
+
+    /**
+     * Records one failed execution.
+     *
+     * @param nanos duration of the execution, in nanoseconds
+     */
+    void recordError(long nanos) {
+        latency.record(nanos);
+        errors.increment();
+    }
+
+    /**
+     * Adds the specified number of rows returned or updated.
+     *
+     * @param n number of rows
+     */
+    void addRows(long n) {
+        rows.add(n);
+    }
+
+    /**
+     * Returns the normalized SQL text.
+     *
+     * @return the normalized SQL text
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * Returns the histogram of execution latencies, in nanoseconds.
+     *
+     * @return the histogram of execution latencies
+     */
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Returns the number of rows returned or updated.
+     *
+     * @return the number of rows
+     */
+    public long getRows() {
+        return rows.sum();
+    }
+
+    /**
+     * Returns the number of failed executions.
+     *
+     * @return the number of failed executions
+     */
+    public long getErrors() {
+        return errors.sum();
+    }
+
+}
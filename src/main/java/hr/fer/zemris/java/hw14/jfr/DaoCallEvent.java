@@ -0,0 +1,67 @@
+package hr.fer.zemris.java.hw14.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A JFR event of a DAO read: its duration, the poll it read, the number of
+ * rows it returned and whether it succeeded. A read of something that does
+ * not exist, such as a poll that is not in the database, succeeds with no
+ * rows; only a read that failed is unsuccessful. Must be created only if
+ * {@linkplain Flight#ENABLED} is true.
+ *
+ * @author Mario Bobic
+ */
+@Name("hr.fer.zemris.voting.DaoCall")
+@Label("DAO Call")
+@Category({"Voting", "Database"})
+@Description("A read through the voting DAO")
+public class DaoCallEvent extends Event {
+
+    /** Name of the DAO method. */
+    @Label("Method")
+    String method;
+
+    /** Poll ID, or -1 if the call is not about one poll. */
+    @Label("Poll ID")
+    long pollID;
+
+    /** Number of rows returned. */
+    @Label("Rows")
+    int rows;
+
+    /** Tells if the call succeeded. */
+    @Label("Success")
+    boolean success;
+
+    /**
+     * Constructs and begins an instance of {@code DaoCallEvent}.
+     *
+     * @param method name of the DAO method
+     * @param pollID poll ID, or <tt>-1</tt>
+     */
+    public DaoCallEvent(String method, long pollID) {
+        this.method = method;
+        this.pollID = pollID;
+        begin();
+    }
+
+    /**
+     * Ends the event and commits it if it is recorded.
+     *
+     * @param rows number of rows returned
+     * @param success true if the call succeeded
+     */
+    public void finish(int rows, boolean success) {
+        end();
+        if (shouldCommit()) {
+            this.rows = rows;
+            this.success = success;
+            commit();
+        }
+    }
+
+}
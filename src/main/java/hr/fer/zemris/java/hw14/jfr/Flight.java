@@ -0,0 +1,53 @@
+package hr.fer.zemris.java.hw14.jfr;
+
+/**
+ * Tells if the application's Java Flight Recorder events may be used. The
+ * events extend <tt>jdk.jfr.Event</tt>, which is not present on every Java 8
+ * runtime, so every event is created only after checking {@linkplain #ENABLED}:
+ *
+ * <pre>
+ * DaoCallEvent event = Flight.ENABLED ? new DaoCallEvent("getPoll", pollID) : null;
+ * ...
+ * if (event != null) {
+ *     event.finish(1, true);
+ * }
+ * </pre>
+ *
+ * This way the event classes are never loaded on a runtime without JFR. The
+ * events may also be turned off with the <tt>voting.jfr.disabled</tt> system
+ * property.
+ * <p>
+ * If the runtime has JFR, but no recording is running, creating and finishing
+ * an event costs next to nothing, as JFR skips disabled events.
+ *
+ * @author Mario Bobic
+ */
+public final class Flight {
+
+    /** Tells if the application's JFR events may be used. */
+    public static final boolean ENABLED = isAvailable();
+
+    /**
+     * Disables instantiation.
+     */
+    private Flight() {
+    }
+
+    /**
+     * Returns true if the runtime has JFR and the events are not disabled.
+     *
+     * @return true if the events may be used
+     */
+    private static boolean isAvailable() {
+        if (Boolean.getBoolean("voting.jfr.disabled")) {
+            return false;
+        }
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+}
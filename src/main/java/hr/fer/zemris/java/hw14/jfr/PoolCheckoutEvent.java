@@ -0,0 +1,53 @@
+package hr.fer.zemris.java.hw14.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A JFR event of borrowing a connection from a pool: how long the request
+ * waited, from which pool and whether it got a connection. Must be created
+ * only if {@linkplain Flight#ENABLED} is true.
+ *
+ * @author Mario Bobic
+ */
+@Name("hr.fer.zemris.voting.PoolCheckout")
+@Label("Pool Checkout")
+@Category({"Voting", "Database"})
+@Description("A connection borrowed from a connection pool")
+public class PoolCheckoutEvent extends Event {
+
+    /** Name of the pool, <tt>write</tt> or <tt>read</tt>. */
+    @Label("Pool")
+    String pool;
+
+    /** Tells if a connection was obtained. */
+    @Label("Success")
+    boolean success;
+
+    /**
+     * Constructs and begins an instance of {@code PoolCheckoutEvent}.
+     *
+     * @param pool name of the pool
+     */
+    public PoolCheckoutEvent(String pool) {
+        this.pool = pool;
+        begin();
+    }
+
+    /**
+     * Ends the event and commits it if it is recorded.
+     *
+     * @param success true if a connection was obtained
+     */
+    public void finish(boolean success) {
+        end();
+        if (shouldCommit()) {
+            this.success = success;
+            commit();
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+package hr.fer.zemris.java.hw14.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A JFR event of rendering voting results into a file, either the PNG chart
+ * or the XLS workbook: its duration, the poll, the number of options and the
+ * size of the output. Must be created only if {@linkplain Flight#ENABLED} is
+ * true.
+ *
+ * @author Mario Bobic
+ */
+@Name("hr.fer.zemris.voting.Render")
+@Label("Render")
+@Category({"Voting", "Rendering"})
+@Description("Voting results rendered as a chart or a workbook")
+public class RenderEvent extends Event {
+
+    /** Format of the output, <tt>png</tt> or <tt>xls</tt>. */
+    @Label("Format")
+    String format;
+
+    /** Poll ID. */
+    @Label("Poll ID")
+    long pollID;
+
+    /** Number of poll options rendered. */
+    @Label("Options")
+    int options;
+
+    /** Size of the output in bytes, or -1 if it is not known. */
+    @Label("Size")
+    @DataAmount
+    long size;
+
+    /** Tells if the rendering succeeded. */
+    @Label("Success")
+    boolean success;
+
+    /**
+     * Constructs and begins an instance of {@code RenderEvent}.
+     *
+     * @param format format of the output
+     * @param pollID poll ID
+     * @param options number of poll options
+     */
+    public RenderEvent(String format, long pollID, int options) {
+        this.format = format;
+        this.pollID = pollID;
+        this.options = options;
+        begin();
+    }
+
+    /**
+     * Ends the event and commits it if it is recorded.
+     *
+     * @param size size of the output in bytes, or <tt>-1</tt>
+     * @param success true if the rendering succeeded
+     */
+    public void finish(long size, boolean success) {
+        end();
+        if (shouldCommit()) {
+            this.size = size;
+            this.success = success;
+            commit();
+        }
+    }
+
+}
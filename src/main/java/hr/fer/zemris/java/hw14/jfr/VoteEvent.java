@@ -0,0 +1,78 @@
+package hr.fer.zemris.java.hw14.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A JFR event of a vote written through the DAO: its duration, the poll and
+ * option voted for, the number of options and votes and whether it
+ * succeeded. A batch of votes is one event with the number of options it
+ * votes for and no option ID. Must be created only if {@linkplain Flight#ENABLED} is true.
+ *
+ * @author Mario Bobic
+ */
+@Name("hr.fer.zemris.voting.Vote")
+@Label("Vote")
+@Category({"Voting", "Database"})
+@Description("Votes written through the voting DAO")
+public class VoteEvent extends Event {
+
+    /** Name of the DAO method. */
+    @Label("Method")
+    String method;
+
+    /** Poll ID, or -1 if it is not known. */
+    @Label("Poll ID")
+    long pollID;
+
+    /** Option ID, or -1 for a batch. */
+    @Label("Option ID")
+    long optionID;
+
+    /** Number of options voted for. */
+    @Label("Options")
+    int options;
+
+    /** Number of votes. */
+    @Label("Votes")
+    long votes;
+
+    /** Tells if the vote succeeded. */
+    @Label("Success")
+    boolean success;
+
+    /**
+     * Constructs and begins an instance of {@code VoteEvent}.
+     *
+     * @param method name of the DAO method
+     * @param pollID poll ID, or <tt>-1</tt>
+     * @param optionID option ID, or <tt>-1</tt> for a batch
+     * @param options number of options voted for
+     * @param votes number of votes
+     */
+    public VoteEvent(String method, long pollID, long optionID, int options, long votes) {
+        this.method = method;
+        this.pollID = pollID;
+        this.optionID = optionID;
+        this.options = options;
+        this.votes = votes;
+        begin();
+    }
+
+    /**
+     * Ends the event and commits it if it is recorded.
+     *
+     * @param success true if the vote succeeded
+     */
+    public void finish(boolean success) {
+        end();
+        if (shouldCommit()) {
+            this.success = success;
+            commit();
+        }
+    }
+
+}
@@ -0,0 +1,486 @@
+package hr.fer.zemris.java.hw14.live;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.sql.DataSource;
+
+import hr.fer.zemris.java.hw14.JSONWriter;
+import hr.fer.zemris.java.hw14.VotingUtil.Info;
+import hr.fer.zemris.java.tecaj_14.dao.DAOProvider;
+import hr.fer.zemris.java.tecaj_14.dao.sql.DBContext;
+
+/**
+ * Pushes live voting results to subscribers as Server-Sent Events.
+ * <p>
+ * Votes only mark their poll as changed. Once per tick the broadcaster reads
+ * the results of every changed poll that has subscribers, encodes them into a
+ * single event, and hands the same encoded event to all subscribers of the
+ * poll. However many votes arrive and however many clients listen, a poll
+ * costs at most one database read and one message per tick. Polls with
+ * subscribers are also re-read every few ticks, so votes counted by other
+ * application instances show up too; an event is only sent if the results
+ * have changed.
+ * <p>
+ * Every subscriber has a single slot holding the newest event it has not
+ * received yet, and events are written with non-blocking I/O. The broadcaster
+ * never waits for a client: a slow client simply skips to the newest event
+ * once it can accept more data, and a client that accepts nothing for too
+ * long is dropped.
+ *
+ * @author Mario Bobic
+ */
+public class ResultsBroadcaster {
+
+    /** Logger of the broadcaster. */
+    private static final Logger LOGGER = Logger.getLogger(ResultsBroadcaster.class.getName());
+
+    /** Number of ticks after which polls are re-read even if not marked. */
+    private static final int REFRESH_TICKS = 10;
+    /** Heartbeat sent to idle subscribers, to detect closed connections. */
+    private static final byte[] HEARTBEAT = ": ping\n\n".getBytes(StandardCharsets.UTF_8);
+
+    /** The broadcaster of the application, or <tt>null</tt>. */
+    private static volatile ResultsBroadcaster instance;
+
+    /** Channels of polls, mapped by poll ID. */
+    private final Map<Long, Channel> channels = new ConcurrentHashMap<>();
+    /** Ticking thread. */
+    private final ScheduledExecutorService ticker;
+    /** Source of connections for writes. */
+    private final DataSource writeSource;
+    /** Source of connections for reads. */
+    private final DataSource readSource;
+    /** Time after which a subscriber that accepts nothing is dropped. */
+    private final long maxStallNanos;
+
+    /** Number of ticks so far. */
+    private long ticks;
+
+    /** Number of events published. */
+    private final AtomicLong published = new AtomicLong();
+    /** Number of events skipped by slow subscribers. */
+    private final AtomicLong skipped = new AtomicLong();
+    /** Number of subscribers dropped for being too slow. */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Constructs an instance of {@code ResultsBroadcaster} and starts ticking.
+     *
+     * @param writeSource source of connections for writes
+     * @param readSource source of connections for reads
+     * @param intervalMillis interval between ticks, in milliseconds
+     * @param maxStallMillis time after which a subscriber that accepts nothing
+     *        is dropped, in milliseconds
+     */
+    public ResultsBroadcaster(DataSource writeSource, DataSource readSource, long intervalMillis,
+            long maxStallMillis) {
+        this.writeSource = writeSource;
+        this.readSource = readSource;
+        this.maxStallNanos = TimeUnit.MILLISECONDS.toNanos(maxStallMillis);
+
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "results-broadcaster");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleWithFixedDelay(this::tick, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the broadcaster of the application, or <tt>null</tt> if there is
+     * none.
+     *
+     * @return the broadcaster of the application
+     */
+    public static ResultsBroadcaster getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the broadcaster of the application.
+     *
+     * @param broadcaster the broadcaster, or <tt>null</tt>
+     */
+    public static void setInstance(ResultsBroadcaster broadcaster) {
+        instance = broadcaster;
+    }
+
+    /**
+     * Marks the poll with the specified <tt>pollID</tt> as changed, so its
+     * subscribers get the new results on the next tick. Does nothing if there
+     * is no broadcaster or the poll has no subscribers.
+     *
+     * @param pollID ID of the changed poll
+     */
+    public static void pollChanged(long pollID) {
+        ResultsBroadcaster broadcaster = instance;
+        if (broadcaster != null) {
+            Channel channel = broadcaster.channels.get(pollID);
+            if (channel != null) {
+                channel.dirty.set(true);
+            }
+        }
+    }
+
+    /**
+     * Subscribes the specified asynchronous request to the results of the poll
+     * with the specified <tt>pollID</tt>. The response headers must already be
+     * set. The subscriber gets the current results as soon as they are known,
+     * and is unsubscribed when the asynchronous request completes.
+     *
+     * @param pollID ID of the poll
+     * @param async the asynchronous request
+     * @throws IOException if the output stream can not be obtained
+     */
+    public void subscribe(long pollID, AsyncContext async) throws IOException {
+        Subscriber subscriber = new Subscriber(pollID, async);
+        Channel channel = channels.compute(pollID, (id, c) -> {
+            if (c == null) {
+                c = new Channel();
+            }
+            c.subscribers.add(subscriber);
+            return c;
+        });
+
+        byte[] current = channel.lastEvent;
+        if (current != null) {
+            subscriber.offer(current);
+        } else {
+            channel.dirty.set(true);
+        }
+        async.addListener(subscriber);
+        async.getResponse().getOutputStream().setWriteListener(subscriber);
+    }
+
+    /**
+     * Unsubscribes the specified subscriber, removing its poll's channel if it
+     * was the last one.
+     *
+     * @param subscriber the subscriber
+     */
+    void unsubscribe(Subscriber subscriber) {
+        channels.computeIfPresent(subscriber.pollID, (id, c) -> {
+            c.subscribers.remove(subscriber);
+            return c.subscribers.isEmpty() ? null : c;
+        });
+    }
+
+    /**
+     * Reads and publishes the results of changed polls with subscribers, and
+     * keeps subscribers alive.
+     */
+    private void tick() {
+        boolean refresh = ++ticks % REFRESH_TICKS == 0;
+        for (Map.Entry<Long, Channel> entry : channels.entrySet()) {
+            Channel channel = entry.getValue();
+            try {
+                if (channel.dirty.getAndSet(false) || refresh) {
+                    publish(entry.getKey(), channel);
+                }
+                if (refresh) {
+                    for (Subscriber subscriber : channel.subscribers) {
+                        subscriber.heartbeat();
+                    }
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to publish results of poll " + entry.getKey() + ".", e);
+            }
+        }
+    }
+
+    /**
+     * Reads the results of the specified poll and, if they have changed,
+     * hands them to all subscribers of the channel.
+     *
+     * @param pollID ID of the poll
+     * @param channel channel of the poll
+     */
+    private void publish(long pollID, Channel channel) {
+        if (channel.subscribers.isEmpty()) {
+            return;
+        }
+
+        List<Info> infoList;
+        try (DBContext context = new DBContext(writeSource, readSource)) {
+            infoList = DAOProvider.getDao(context).getInfoList(pollID);
+        }
+
+        byte[] data = encodeResults(pollID, infoList);
+        if (Arrays.equals(data, channel.lastData)) {
+            return;
+        }
+        channel.lastData = data;
+
+        long seq = channel.seq.incrementAndGet();
+        byte[] header = ("id: " + seq + "\nevent: results\ndata: ").getBytes(StandardCharsets.UTF_8);
+        byte[] event = new byte[header.length + data.length + 2];
+        System.arraycopy(header, 0, event, 0, header.length);
+        System.arraycopy(data, 0, event, header.length, data.length);
+        event[event.length - 2] = '\n';
+        event[event.length - 1] = '\n';
+
+        channel.lastEvent = event;
+        published.incrementAndGet();
+        for (Subscriber subscriber : channel.subscribers) {
+            subscriber.offer(event);
+        }
+    }
+
+    /**
+     * Encodes the results of a poll as a single-line JSON object.
+     *
+     * @param pollID ID of the poll
+     * @param infoList results of the poll
+     * @return the encoded results
+     */
+    private static byte[] encodeResults(long pollID, List<Info> infoList) {
+        StringWriter sw = new StringWriter();
+        try (JSONWriter json = new JSONWriter(sw)) {
+            json.beginObject();
+            json.name("pollID").value(pollID);
+            json.name("results").beginArray();
+            for (Info info : infoList) {
+                json.beginObject();
+                json.name("id").value(info.id);
+                json.name("votes").value(info.getVotes());
+                json.endObject();
+            }
+            json.endArray();
+            json.endObject();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return sw.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the number of subscribers.
+     *
+     * @return the number of subscribers
+     */
+    public int getSubscriberCount() {
+        int n = 0;
+        for (Channel channel : channels.values()) {
+            n += channel.subscribers.size();
+        }
+        return n;
+    }
+
+    /**
+     * Returns the number of events published.
+     *
+     * @return the number of events published
+     */
+    public long getPublished() {
+        return published.get();
+    }
+
+    /**
+     * Returns the number of events skipped by slow subscribers.
+     *
+     * @return the number of skipped events
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Returns the number of subscribers dropped for being too slow.
+     *
+     * @return the number of dropped subscribers
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops ticking and closes all subscriptions.
+     */
+    public void shutdown() {
+        ticker.shutdownNow();
+        for (Channel channel : channels.values()) {
+            for (Subscriber subscriber : channel.subscribers) {
+                subscriber.close();
+            }
+        }
+    }
+
+    /**
+     * Subscribers and the last published event of one poll.
+     *
+     * @author Mario Bobic
+     */
+    private static class Channel {
+        /** Subscribers of the poll. */
+        final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+        /** Tells if the poll has changed since it was last read. */
+        final AtomicBoolean dirty = new AtomicBoolean();
+        /** Sequence number of the last event. */
+        final AtomicLong seq = new AtomicLong();
+        /** Last published results, used to skip unchanged ones. */
+        volatile byte[] lastData;
+        /** Last published event, sent to new subscribers. */
+        volatile byte[] lastEvent;
+    }
+
+    /**
+     * One subscriber, holding the newest event it has not received yet. The
+     * subscriber writes with non-blocking I/O, either right away when an event
+     * is offered, or when the container reports that it may write again. It
+     * closes itself when writing fails or the asynchronous request ends.
+     *
+     * @author Mario Bobic
+     */
+    private class Subscriber implements WriteListener, AsyncListener {
+
+        /** ID of the subscribed poll. */
+        final long pollID;
+        /** The asynchronous request. */
+        private final AsyncContext async;
+        /** The newest event not yet written, or <tt>null</tt>. */
+        private final AtomicReference<byte[]> pending = new AtomicReference<>();
+        /** Time the subscriber last stopped accepting data, or 0. */
+        private volatile long stalledSince;
+        /** Tells if the output stream has been handed the write listener. */
+        private boolean ready;
+        /** Tells if the subscriber has been closed. */
+        private boolean closed;
+
+        /**
+         * Constructs an instance of {@code Subscriber}.
+         *
+         * @param pollID ID of the subscribed poll
+         * @param async the asynchronous request
+         */
+        Subscriber(long pollID, AsyncContext async) {
+            this.pollID = pollID;
+            this.async = async;
+        }
+
+        /**
+         * Offers the specified event, replacing any event not yet written,
+         * and writes it if the client can accept it.
+         *
+         * @param event the encoded event
+         */
+        void offer(byte[] event) {
+            byte[] previous = pending.getAndSet(event);
+            if (previous != null && previous != HEARTBEAT) {
+                skipped.incrementAndGet();
+            }
+            drain();
+        }
+
+        /**
+         * Offers a heartbeat if there is no event waiting, and drops the
+         * subscriber if it has not accepted any data for too long.
+         */
+        void heartbeat() {
+            long since = stalledSince;
+            if (since != 0 && System.nanoTime() - since > maxStallNanos) {
+                dropped.incrementAndGet();
+                close();
+                return;
+            }
+            if (pending.compareAndSet(null, HEARTBEAT)) {
+                drain();
+            }
+        }
+
+        @Override
+        public void onWritePossible() throws IOException {
+            synchronized (this) {
+                ready = true;
+            }
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            close();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+
+        /**
+         * Writes the pending event while the client can accept data.
+         */
+        private synchronized void drain() {
+            if (!ready || closed) {
+                return;
+            }
+            try {
+                ServletOutputStream out = async.getResponse().getOutputStream();
+                while (out.isReady()) {
+                    byte[] event = pending.getAndSet(null);
+                    if (event == null) {
+                        stalledSince = 0;
+                        return;
+                    }
+                    out.write(event);
+                    if (out.isReady()) {
+                        out.flush();
+                    }
+                }
+                if (stalledSince == 0) {
+                    stalledSince = System.nanoTime();
+                }
+            } catch (IOException | IllegalStateException e) {
+                close();
+            }
+        }
+
+        /**
+         * Unsubscribes and completes the asynchronous request.
+         */
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            unsubscribe(this);
+            try {
+                async.complete();
+            } catch (IllegalStateException ignorable) {
+            }
+        }
+    }
+
+}
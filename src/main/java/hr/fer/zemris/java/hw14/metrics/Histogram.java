@@ -0,0 +1,170 @@
+package hr.fer.zemris.java.hw14.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative values, usually durations in
+ * nanoseconds. Values are recorded into logarithmic buckets, each power of two
+ * being split into {@value #SUB_BUCKETS} linear sub-buckets, so any reported
+ * percentile is within 12.5% of the exact value while the histogram takes a
+ * fixed amount of memory regardless of the number of recorded values.
+ * <p>
+ * Recording a value is a couple of atomic increments and never blocks, so the
+ * histogram may be updated from any number of threads on hot paths.
+ *
+ * @author Mario Bobic
+ */
+public class Histogram {
+
+    /** Number of linear sub-buckets per power of two. */
+    private static final int SUB_BUCKETS = 8;
+    /** Number of bits needed for the sub-bucket index. */
+    private static final int SUB_BITS = 3;
+    /** Total number of buckets. */
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    /** Counts of recorded values per bucket. */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    /** Number of recorded values. */
+    private final LongAdder count = new LongAdder();
+    /** Sum of recorded values. */
+    private final LongAdder sum = new LongAdder();
+    /** Maximum recorded value. */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records the specified <tt>value</tt>. Negative values are recorded as
+     * <tt>0</tt>.
+     *
+     * @param value value to be recorded
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return the number of recorded values
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the sum of recorded values.
+     *
+     * @return the sum of recorded values
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Returns the maximum recorded value.
+     *
+     * @return the maximum recorded value
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the mean of recorded values, or <tt>0</tt> if there are none.
+     *
+     * @return the mean of recorded values
+     */
+    public long getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    /**
+     * Returns an estimate of the specified <tt>percentile</tt> of recorded
+     * values, which is the upper bound of the bucket the percentile falls in.
+     * Returns <tt>0</tt> if no values were recorded.
+     *
+     * @param percentile percentile, between <tt>0</tt> and <tt>100</tt>
+     * @return an estimate of the percentile
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Clears all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * Returns the index of the bucket the specified <tt>value</tt> falls in.
+     *
+     * @param value a non-negative value
+     * @return index of the bucket
+     */
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the largest value that falls in the bucket with the specified
+     * <tt>index</tt>.
+     *
+     * @param index index of the bucket
+     * @return the largest value of the bucket
+     */
+    private static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+}
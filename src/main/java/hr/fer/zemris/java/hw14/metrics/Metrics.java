@@ -0,0 +1,71 @@
+package hr.fer.zemris.java.hw14.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * A registry of application metrics. Every metric is a named gauge whose value
+ * is obtained from a {@linkplain Supplier} at the moment the metrics are read,
+ * so registering a metric costs nothing on the paths that are measured.
+ * <p>
+ * Metric names are dot-separated, for an example <tt>pool.write.busy</tt>.
+ * Registering a metric with a name that is already registered replaces the
+ * old one.
+ *
+ * @author Mario Bobic
+ */
+public class Metrics {
+
+    /** Registered gauges mapped by their names. */
+    private static final Map<String, Supplier<? extends Number>> GAUGES = new ConcurrentHashMap<>();
+
+    /**
+     * Disables instantiation.
+     */
+    private Metrics() {
+    }
+
+    /**
+     * Registers a gauge with the specified <tt>name</tt> whose value is
+     * obtained from the specified <tt>supplier</tt>.
+     *
+     * @param name name of the metric
+     * @param supplier supplier of the metric value
+     */
+    public static void register(String name, Supplier<? extends Number> supplier) {
+        GAUGES.put(name, supplier);
+    }
+
+    /**
+     * Removes all metrics whose names start with the specified
+     * <tt>prefix</tt>.
+     *
+     * @param prefix prefix of the metric names
+     */
+    public static void unregisterAll(String prefix) {
+        GAUGES.keySet().removeIf(name -> name.startsWith(prefix));
+    }
+
+    /**
+     * Returns current values of all registered metrics, sorted by name. A
+     * metric whose supplier fails is left out.
+     *
+     * @return current values of all registered metrics
+     */
+    public static Map<String, Number> snapshot() {
+        Map<String, Number> values = new TreeMap<>();
+        GAUGES.forEach((name, supplier) -> {
+            try {
+                Number value = supplier.get();
+                if (value != null) {
+                    values.put(name, value);
+                }
+            } catch (RuntimeException ignorable) {
+            }
+        });
+        return values;
+    }
+
+}
@@ -0,0 +1,164 @@
+package hr.fer.zemris.java.hw14.metrics;
+
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+
+import hr.fer.zemris.java.hw14.jdbc.InstrumentedDataSource;
+import hr.fer.zemris.java.hw14.pool.AdaptiveDataSource;
+import hr.fer.zemris.java.hw14.pool.BagPool;
+
+/**
+ * Registers {@linkplain Metrics} of a connection pool. Each pool is registered
+ * under its own name, so the metrics of different pools are reported
+ * separately, for an example <tt>pool.write.busy</tt> and
+ * <tt>pool.read.busy</tt>.
+ *
+ * @author Mario Bobic
+ */
+public class PoolMetrics {
+
+    /**
+     * Disables instantiation.
+     */
+    private PoolMetrics() {
+    }
+
+    /**
+     * Registers the metrics of the specified pool <tt>ds</tt>, which is either
+     * a c3p0 pool or a {@linkplain BagPool}, possibly wrapped into an
+     * {@linkplain AdaptiveDataSource} or an {@linkplain InstrumentedDataSource},
+     * under the specified pool <tt>name</tt>.
+     *
+     * @param name name of the pool
+     * @param ds the pool
+     */
+    public static void register(String name, DataSource ds) {
+        if (ds instanceof InstrumentedDataSource) {
+            ds = ((InstrumentedDataSource) ds).getDelegate();
+        }
+        if (ds instanceof AdaptiveDataSource) {
+            AdaptiveDataSource adaptive = (AdaptiveDataSource) ds;
+            String prefix = "pool." + name + ".adaptive.";
+            Metrics.register(prefix + "waitP95Micros", () -> adaptive.getLastWait() / 1000);
+            Metrics.register(prefix + "holdP95Micros", () -> adaptive.getLastHold() / 1000);
+            Metrics.register(prefix + "baselineHoldMicros", () -> adaptive.getBaselineHold() / 1000);
+            Metrics.register(prefix + "grows", adaptive::getGrows);
+            Metrics.register(prefix + "shrinks", adaptive::getShrinks);
+            Metrics.register(prefix + "holds", adaptive::getHolds);
+            ds = adaptive.getDelegate();
+        }
+        if (ds instanceof BagPool) {
+            register(name, (BagPool) ds);
+        } else {
+            register(name, (ComboPooledDataSource) ds);
+        }
+    }
+
+    /**
+     * Registers the metrics of the specified {@linkplain BagPool} under the
+     * specified pool <tt>name</tt>. Besides the metrics every pool has, the
+     * percentiles of times callers waited for a connection, in microseconds,
+     * and the statement cache hits and misses are registered.
+     *
+     * @param name name of the pool
+     * @param pool the pool
+     */
+    public static void register(String name, BagPool pool) {
+        String prefix = "pool." + name + ".";
+        Metrics.register(prefix + "connections", pool::getNumConnections);
+        Metrics.register(prefix + "busy", pool::getNumBusyConnections);
+        Metrics.register(prefix + "idle", pool::getNumIdleConnections);
+        Metrics.register(prefix + "awaiting", pool::getNumThreadsAwaitingCheckout);
+        Metrics.register(prefix + "maxSize", pool::getMaxPoolSize);
+        Metrics.register(prefix + "created", pool::getNumCreated);
+        Metrics.register(prefix + "evicted", pool::getNumEvicted);
+        Metrics.register(prefix + "timeouts", pool::getNumTimeouts);
+        Metrics.register(prefix + "leaks", pool::getNumLeaks);
+        Metrics.register(prefix + "wait.p50Micros", () -> pool.getWaitTime().getPercentile(50) / 1000);
+        Metrics.register(prefix + "wait.p99Micros", () -> pool.getWaitTime().getPercentile(99) / 1000);
+        Metrics.register(prefix + "wait.maxMicros", () -> pool.getWaitTime().getMax() / 1000);
+        Metrics.register(prefix + "statementCache.hits", pool::getNumStatementHits);
+        Metrics.register(prefix + "statementCache.misses", pool::getNumStatementMisses);
+        Metrics.register(prefix + "statementCache.hitRatePercent", () -> {
+            long hits = pool.getNumStatementHits();
+            long total = hits + pool.getNumStatementMisses();
+            return total == 0 ? 0 : hits * 100 / total;
+        });
+    }
+
+    /**
+     * Registers the metrics of the specified c3p0 pool <tt>cpds</tt> under the
+     * specified pool <tt>name</tt>.
+     * <p>
+     * c3p0 keeps no statement cache hit or miss counters, so instead of a hit
+     * rate its statement cache is reported by how full it is: the number of
+     * cached statements, the number of connections that have any, and the
+     * cached statements as a percentage of what all the connections may
+     * cache. A cache that stays at <tt>100</tt> percent evicts statements and
+     * is a sign that <tt>statementCacheSize</tt> is too small.
+     *
+     * @param name name of the pool
+     * @param cpds the pool
+     */
+    public static void register(String name, ComboPooledDataSource cpds) {
+        String prefix = "pool." + name + ".";
+        Metrics.register(prefix + "connections", () -> get(cpds::getNumConnectionsDefaultUser));
+        Metrics.register(prefix + "busy", () -> get(cpds::getNumBusyConnectionsDefaultUser));
+        Metrics.register(prefix + "idle", () -> get(cpds::getNumIdleConnectionsDefaultUser));
+        Metrics.register(prefix + "awaiting", () -> get(cpds::getNumThreadsAwaitingCheckoutDefaultUser));
+        Metrics.register(prefix + "maxSize", cpds::getMaxPoolSize);
+        Metrics.register(prefix + "statementCache.size", () -> get(cpds::getStatementCacheNumStatementsDefaultUser));
+        Metrics.register(prefix + "statementCache.checkedOut",
+                () -> get(cpds::getStatementCacheNumCheckedOutDefaultUser));
+        Metrics.register(prefix + "statementCache.connections",
+                () -> get(cpds::getStatementCacheNumConnectionsWithCachedStatementsDefaultUser));
+        Metrics.register(prefix + "statementCache.fullPercent", () -> {
+            long capacity = (long) get(cpds::getNumConnectionsDefaultUser) * cpds.getMaxStatementsPerConnection();
+            return capacity == 0 ? 0 : get(cpds::getStatementCacheNumStatementsDefaultUser) * 100 / capacity;
+        });
+    }
+
+    /**
+     * Unregisters all metrics of the pool with the specified <tt>name</tt>.
+     *
+     * @param name name of the pool
+     */
+    public static void unregister(String name) {
+        Metrics.unregisterAll("pool." + name + ".");
+    }
+
+    /**
+     * Returns the value obtained from the specified <tt>getter</tt>, wrapping
+     * a {@linkplain SQLException} into a runtime exception.
+     *
+     * @param getter getter of a pool statistic
+     * @return value of the pool statistic
+     */
+    private static Integer get(PoolGetter getter) {
+        try {
+            return getter.get();
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A getter of a pool statistic that may throw a {@linkplain SQLException}.
+     *
+     * @author Mario Bobic
+     */
+    @FunctionalInterface
+    private interface PoolGetter {
+        /**
+         * Returns the value of a pool statistic.
+         *
+         * @return the value of a pool statistic
+         * @throws SQLException if a SQL exception occurs
+         */
+        int get() throws SQLException;
+    }
+
+}
@@ -0,0 +1,369 @@
+package hr.fer.zemris.java.hw14.pool;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+
+import hr.fer.zemris.java.hw14.metrics.Histogram;
+
+/**
+ * A pool wrapper that resizes the wrapped pool within bounds, based on how long
+ * callers wait for a connection and how long connections are held. The wrapped
+ * pool is either a c3p0 pool or a {@linkplain BagPool}.
+ * <p>
+ * Every checkout is timed, and every connection handed out is wrapped so the
+ * time it is held, which is the time the database spends on the queries of a
+ * request, is timed as well. Once per interval the controller looks at the
+ * 95th percentiles of both:
+ * <ul>
+ * <li>if callers waited longer than the target wait time and connections are
+ * held about as long as usual, the pool is grown by a quarter;
+ * <li>if callers waited longer than the target, but connections are held more
+ * than twice as long as usual, the database itself is the bottleneck, so the
+ * pool is left as it is, since more connections would only add load;
+ * <li>if callers barely waited and less than half of the pool was busy for
+ * several intervals in a row, the pool is shrunk by a quarter.
+ * </ul>
+ * Every decision is logged and counted in metrics. Note that resizing a c3p0
+ * pool makes it replace its connections as they are returned, which is why
+ * decisions are made at most once per interval.
+ *
+ * @author Mario Bobic
+ */
+public class AdaptiveDataSource implements DataSource, AutoCloseable {
+
+    /** Logger of the controller. */
+    private static final Logger LOGGER = Logger.getLogger(AdaptiveDataSource.class.getName());
+
+    /** Number of quiet intervals in a row after which the pool is shrunk. */
+    private static final int QUIET_INTERVALS = 3;
+
+    /** Name of the pool, used in log messages. */
+    private final String name;
+    /** The wrapped pool. */
+    private final DataSource delegate;
+    /** Lower bound of the pool size. */
+    private final int minSize;
+    /** Upper bound of the pool size. */
+    private final int maxSize;
+    /** Target 95th percentile of the wait time, in nanoseconds. */
+    private final long targetWait;
+
+    /** Checkout wait times of the current interval, in nanoseconds. */
+    private final Histogram waitTime = new Histogram();
+    /** Connection hold times of the current interval, in nanoseconds. */
+    private final Histogram holdTime = new Histogram();
+
+    /** Controller thread. */
+    private final ScheduledExecutorService controller;
+
+    /** Usual 95th percentile of the hold time, in nanoseconds, or 0. */
+    private volatile long baselineHold;
+    /** 95th percentile of the wait time of the last interval. */
+    private volatile long lastWait;
+    /** 95th percentile of the hold time of the last interval. */
+    private volatile long lastHold;
+    /** Number of quiet intervals in a row. */
+    private int quiet;
+
+    /** Number of times the pool was grown. */
+    private final AtomicLong grows = new AtomicLong();
+    /** Number of times the pool was shrunk. */
+    private final AtomicLong shrinks = new AtomicLong();
+    /** Number of times growth was withheld because the database is slow. */
+    private final AtomicLong holds = new AtomicLong();
+
+    /**
+     * Constructs an instance of {@code AdaptiveDataSource} that wraps the
+     * specified pool and starts its controller.
+     *
+     * @param name name of the pool, used in log messages
+     * @param delegate the wrapped pool, a c3p0 pool or a {@code BagPool}
+     * @param minSize lower bound of the pool size
+     * @param maxSize upper bound of the pool size
+     * @param targetWaitMillis target 95th percentile of the wait time, in
+     *        milliseconds
+     * @param intervalMillis interval between sizing decisions, in milliseconds
+     * @throws IllegalArgumentException if the pool type is not supported or
+     *         the bounds are invalid
+     */
+    public AdaptiveDataSource(String name, DataSource delegate, int minSize, int maxSize,
+            long targetWaitMillis, long intervalMillis) {
+        if (!(delegate instanceof BagPool) && !(delegate instanceof ComboPooledDataSource)) {
+            throw new IllegalArgumentException("Unsupported pool: " + delegate.getClass().getName());
+        }
+        if (minSize < 1 || maxSize < minSize) {
+            throw new IllegalArgumentException("Invalid pool bounds: " + minSize + "-" + maxSize);
+        }
+        this.name = name;
+        this.delegate = delegate;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.targetWait = TimeUnit.MILLISECONDS.toNanos(targetWaitMillis);
+
+        setSize(Math.max(minSize, Math.min(maxSize, getSize())));
+
+        controller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pool-controller-" + name);
+            t.setDaemon(true);
+            return t;
+        });
+        controller.scheduleWithFixedDelay(this::adjust, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        Connection con = delegate.getConnection();
+        long acquired = System.nanoTime();
+        waitTime.record(acquired - start);
+
+        return (Connection) Proxy.newProxyInstance(AdaptiveDataSource.class.getClassLoader(),
+                new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+                    if ("close".equals(method.getName()) && !con.isClosed()) {
+                        holdTime.record(System.nanoTime() - acquired);
+                    }
+                    try {
+                        return method.invoke(con, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Pool is configured with a single user.");
+    }
+
+    /**
+     * Makes one sizing decision based on the wait and hold times recorded
+     * since the previous decision.
+     */
+    private void adjust() {
+        try {
+            long wait = waitTime.getPercentile(95);
+            long hold = holdTime.getPercentile(95);
+            boolean idle = holdTime.getCount() == 0;
+            waitTime.reset();
+            holdTime.reset();
+            lastWait = wait;
+            lastHold = hold;
+
+            int size = getSize();
+            int step = Math.max(1, size / 4);
+
+            if (wait > targetWait) {
+                quiet = 0;
+                if (baselineHold > 0 && hold > 2 * baselineHold) {
+                    holds.incrementAndGet();
+                    LOGGER.info(String.format("Pool %s: wait p95 %d us, hold p95 %d us (usual %d us), "
+                            + "database is slow, keeping size %d.", name, wait / 1000, hold / 1000,
+                            baselineHold / 1000, size));
+                } else if (size < maxSize) {
+                    int newSize = Math.min(maxSize, size + step);
+                    setSize(newSize);
+                    grows.incrementAndGet();
+                    LOGGER.info(String.format("Pool %s: wait p95 %d us over target %d us, growing %d -> %d.",
+                            name, wait / 1000, targetWait / 1000, size, newSize));
+                }
+                return;
+            }
+
+            if (!idle) {
+                // Exponential average of hold times when callers are not waiting
+                baselineHold = baselineHold == 0 ? hold : (baselineHold * 7 + hold) / 8;
+            }
+
+            if (wait < targetWait / 4 && getBusy() < size / 2) {
+                quiet++;
+            } else {
+                quiet = 0;
+            }
+            if (quiet >= QUIET_INTERVALS && size > minSize) {
+                quiet = 0;
+                int newSize = Math.max(minSize, size - step);
+                setSize(newSize);
+                shrinks.incrementAndGet();
+                LOGGER.info(String.format("Pool %s: wait p95 %d us, mostly idle, shrinking %d -> %d.",
+                        name, wait / 1000, size, newSize));
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warning("Pool " + name + ": sizing failed: " + e);
+        }
+    }
+
+    /**
+     * Returns the current maximum size of the wrapped pool.
+     *
+     * @return the current maximum size of the wrapped pool
+     */
+    public int getSize() {
+        if (delegate instanceof BagPool) {
+            return ((BagPool) delegate).getMaxPoolSize();
+        }
+        return ((ComboPooledDataSource) delegate).getMaxPoolSize();
+    }
+
+    /**
+     * Sets the maximum size of the wrapped pool, lowering its minimum size if
+     * needed.
+     *
+     * @param size the new maximum size
+     */
+    private void setSize(int size) {
+        if (delegate instanceof BagPool) {
+            BagPool pool = (BagPool) delegate;
+            pool.setMaxPoolSize(size);
+            pool.setMinPoolSize(Math.min(pool.getMinPoolSize(), size));
+        } else {
+            ComboPooledDataSource cpds = (ComboPooledDataSource) delegate;
+            cpds.setMinPoolSize(Math.min(cpds.getMinPoolSize(), size));
+            cpds.setMaxPoolSize(size);
+        }
+    }
+
+    /**
+     * Returns the number of busy connections of the wrapped pool.
+     *
+     * @return the number of busy connections
+     */
+    private int getBusy() {
+        if (delegate instanceof BagPool) {
+            return ((BagPool) delegate).getNumBusyConnections();
+        }
+        try {
+            return ((ComboPooledDataSource) delegate).getNumBusyConnectionsDefaultUser();
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the wrapped pool.
+     *
+     * @return the wrapped pool
+     */
+    public DataSource getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Returns the 95th percentile of the wait time of the last interval, in
+     * nanoseconds.
+     *
+     * @return the last 95th percentile of the wait time
+     */
+    public long getLastWait() {
+        return lastWait;
+    }
+
+    /**
+     * Returns the 95th percentile of the hold time of the last interval, in
+     * nanoseconds.
+     *
+     * @return the last 95th percentile of the hold time
+     */
+    public long getLastHold() {
+        return lastHold;
+    }
+
+    /**
+     * Returns the usual 95th percentile of the hold time, in nanoseconds.
+     *
+     * @return the usual 95th percentile of the hold time
+     */
+    public long getBaselineHold() {
+        return baselineHold;
+    }
+
+    /**
+     * Returns the number of times the pool was grown.
+     *
+     * @return the number of times the pool was grown
+     */
+    public long getGrows() {
+        return grows.get();
+    }
+
+    /**
+     * Returns the number of times the pool was shrunk.
+     *
+     * @return the number of times the pool was shrunk
+     */
+    public long getShrinks() {
+        return shrinks.get();
+    }
+
+    /**
+     * Returns the number of times growth was withheld because the database
+     * was slow.
+     *
+     * @return the number of withheld growths
+     */
+    public long getHolds() {
+        return holds.get();
+    }
+
+    /**
+     * Stops the controller. The wrapped pool is not closed.
+     */
+    @Override
+    public void close() {
+        controller.shutdownNow();
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return delegate.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        delegate.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        delegate.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return delegate.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return LOGGER;
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        if (iface.isInstance(delegate)) {
+            return iface.cast(delegate);
+        }
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || iface.isInstance(delegate);
+    }
+
+}
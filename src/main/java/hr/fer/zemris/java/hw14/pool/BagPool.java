@@ -0,0 +1,715 @@
+package hr.fer.zemris.java.hw14.pool;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import hr.fer.zemris.java.hw14.metrics.Histogram;
+
+/**
+ * A lightweight connection pool built on a lock-free
+ * {@linkplain ConcurrentBag}. Borrowing a connection that is free never takes
+ * a lock, and a thread usually gets back the connection it returned last.
+ * <p>
+ * The pool is configured through setters, like the c3p0 pool, and must be
+ * started with {@linkplain #start()} before use. A background housekeeper keeps
+ * at least the minimum number of connections open, closes connections that
+ * were idle for too long and reports connections that were held for longer
+ * than the leak detection threshold. A connection that was idle for longer
+ * than the validation interval is validated before it is handed out.
+ * <p>
+ * If a statement cache size is set, every connection keeps a
+ * {@linkplain StatementCache} of its prepared statements, so statements are
+ * parsed by the database once per connection rather than once per request.
+ * <p>
+ * The time every caller waited for a connection is recorded in a
+ * {@linkplain Histogram}.
+ *
+ * @author Mario Bobic
+ */
+public class BagPool implements DataSource, AutoCloseable {
+
+    /** Logger of the pool. */
+    private static final Logger LOGGER = Logger.getLogger(BagPool.class.getName());
+
+    /** Entries of the pool. */
+    private final ConcurrentBag<PoolEntry> bag = new ConcurrentBag<>();
+    /** Total number of connections, including those being created. */
+    private final AtomicInteger total = new AtomicInteger();
+
+    /** Time callers waited for a connection, in nanoseconds. */
+    private final Histogram waitTime = new Histogram();
+    /** Number of connections created. */
+    private final LongAdder created = new LongAdder();
+    /** Number of connections closed by the pool. */
+    private final LongAdder evicted = new LongAdder();
+    /** Number of callers that timed out waiting for a connection. */
+    private final LongAdder timeouts = new LongAdder();
+    /** Number of detected connection leaks. */
+    private final LongAdder leaks = new LongAdder();
+    /** Number of prepared statements reused from a statement cache. */
+    private final LongAdder statementHits = new LongAdder();
+    /** Number of prepared statements not found in a statement cache. */
+    private final LongAdder statementMisses = new LongAdder();
+
+    /** Housekeeper of the pool. */
+    private ScheduledExecutorService housekeeper;
+
+    /** Class name of the JDBC driver. */
+    private String driverClass;
+    /** JDBC URL of the database. */
+    private String jdbcUrl;
+    /** Database user. */
+    private String user;
+    /** Database password. */
+    private String password;
+    /** Minimum number of open connections. */
+    private volatile int minPoolSize = 5;
+    /** Maximum number of open connections. */
+    private volatile int maxPoolSize = 20;
+    /** Maximum time to wait for a connection, in milliseconds. */
+    private long checkoutTimeout = 30_000;
+    /** Idle time after which a connection is validated, in milliseconds. */
+    private long validationInterval = 5_000;
+    /** Timeout of a validation, in seconds. */
+    private int validationTimeout = 5;
+    /** Idle time after which a connection above the minimum is closed. */
+    private long idleTimeout = 600_000;
+    /** Time after which a held connection is reported as leaked, or 0. */
+    private long leakDetectionThreshold = 0;
+    /** Number of prepared statements cached per connection, or 0. */
+    private int statementCacheSize = 0;
+
+    /** Log writer, unused. */
+    private PrintWriter logWriter;
+    /** Login timeout, unused. */
+    private int loginTimeout;
+
+    /**
+     * Starts the pool: loads the driver, opens the minimum number of
+     * connections and starts the housekeeper.
+     *
+     * @throws SQLException if the driver can not be loaded
+     */
+    public synchronized void start() throws SQLException {
+        if (housekeeper != null) {
+            return;
+        }
+        if (driverClass != null) {
+            try {
+                Class.forName(driverClass);
+            } catch (ClassNotFoundException e) {
+                throw new SQLException("Driver not found: " + driverClass, e);
+            }
+        }
+
+        housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "bagpool-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+        housekeeper.scheduleWithFixedDelay(this::houseKeep, 0, 1, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(checkoutTimeout);
+
+        try {
+            while (true) {
+                PoolEntry entry = bag.borrow(0);
+                if (entry == null) {
+                    entry = tryCreate();
+                }
+                if (entry == null) {
+                    entry = bag.borrow(deadline - System.nanoTime());
+                }
+                if (entry == null) {
+                    timeouts.increment();
+                    throw new SQLTimeoutException("Timed out waiting for a connection after "
+                            + checkoutTimeout + " ms.");
+                }
+
+                if (System.nanoTime() - entry.lastReturned > TimeUnit.MILLISECONDS.toNanos(validationInterval)
+                        && !isValid(entry)) {
+                    evict(entry);
+                    continue;
+                }
+
+                waitTime.record(System.nanoTime() - start);
+                return entry.lease();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection.", e);
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Pool is configured with a single user.");
+    }
+
+    /**
+     * Opens a new connection if the pool is below its maximum size and
+     * returns its entry, already borrowed. Returns <tt>null</tt> if the pool
+     * is full.
+     *
+     * @return a borrowed new entry, or <tt>null</tt>
+     * @throws SQLException if the connection can not be opened
+     */
+    private PoolEntry tryCreate() throws SQLException {
+        int current;
+        do {
+            current = total.get();
+            if (current >= maxPoolSize) {
+                return null;
+            }
+        } while (!total.compareAndSet(current, current + 1));
+
+        try {
+            PoolEntry entry = new PoolEntry(DriverManager.getConnection(jdbcUrl, user, password));
+            entry.setState(ConcurrentBag.IN_USE);
+            bag.add(entry);
+            created.increment();
+            return entry;
+        } catch (SQLException | RuntimeException e) {
+            total.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Validates the connection of the specified borrowed <tt>entry</tt>.
+     *
+     * @param entry a borrowed entry
+     * @return true if the connection is valid
+     */
+    private boolean isValid(PoolEntry entry) {
+        try {
+            return entry.physical.isValid(validationTimeout);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Removes the specified borrowed <tt>entry</tt> from the pool and closes
+     * its connection.
+     *
+     * @param entry a borrowed entry
+     */
+    private void evict(PoolEntry entry) {
+        if (bag.remove(entry)) {
+            total.decrementAndGet();
+            evicted.increment();
+        }
+        try { entry.physical.close(); } catch (SQLException ignorable) {}
+    }
+
+    /**
+     * Keeps the pool healthy: closes connections idle for longer than the idle
+     * timeout while the pool is above its minimum size, closes connections
+     * above the maximum size, and opens connections up to the minimum size.
+     */
+    private void houseKeep() {
+        try {
+            long now = System.nanoTime();
+            for (PoolEntry entry : bag.values()) {
+                boolean idle = now - entry.lastReturned > TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+                boolean surplus = total.get() > maxPoolSize || (idle && total.get() > minPoolSize);
+                if (surplus && bag.reserve(entry)) {
+                    evict(entry);
+                }
+            }
+
+            while (total.get() < minPoolSize) {
+                PoolEntry entry = tryCreate();
+                if (entry == null) {
+                    break;
+                }
+                bag.requite(entry);
+            }
+        } catch (SQLException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to maintain the connection pool.", e);
+        }
+    }
+
+    /**
+     * Closes all connections and stops the housekeeper. Connections that are
+     * currently borrowed are closed when they are returned.
+     */
+    @Override
+    public synchronized void close() {
+        if (housekeeper != null) {
+            housekeeper.shutdownNow();
+        }
+        maxPoolSize = 0;
+        minPoolSize = 0;
+        for (PoolEntry entry : bag.values()) {
+            if (bag.reserve(entry)) {
+                evict(entry);
+            }
+        }
+    }
+
+    /**
+     * Returns the histogram of times callers waited for a connection, in
+     * nanoseconds.
+     *
+     * @return the histogram of wait times
+     */
+    public Histogram getWaitTime() {
+        return waitTime;
+    }
+
+    /**
+     * Returns the number of open connections.
+     *
+     * @return the number of open connections
+     */
+    public int getNumConnections() {
+        return bag.size();
+    }
+
+    /**
+     * Returns the number of borrowed connections.
+     *
+     * @return the number of borrowed connections
+     */
+    public int getNumBusyConnections() {
+        return bag.count(ConcurrentBag.IN_USE);
+    }
+
+    /**
+     * Returns the number of free connections.
+     *
+     * @return the number of free connections
+     */
+    public int getNumIdleConnections() {
+        return bag.count(ConcurrentBag.NOT_IN_USE);
+    }
+
+    /**
+     * Returns the number of threads waiting for a connection.
+     *
+     * @return the number of waiting threads
+     */
+    public int getNumThreadsAwaitingCheckout() {
+        return bag.getWaiters();
+    }
+
+    /**
+     * Returns the number of connections created.
+     *
+     * @return the number of connections created
+     */
+    public long getNumCreated() {
+        return created.sum();
+    }
+
+    /**
+     * Returns the number of connections closed by the pool.
+     *
+     * @return the number of connections closed by the pool
+     */
+    public long getNumEvicted() {
+        return evicted.sum();
+    }
+
+    /**
+     * Returns the number of callers that timed out waiting for a connection.
+     *
+     * @return the number of timeouts
+     */
+    public long getNumTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * Returns the number of detected connection leaks.
+     *
+     * @return the number of detected leaks
+     */
+    public long getNumLeaks() {
+        return leaks.sum();
+    }
+
+    /**
+     * Returns the number of prepared statements reused from a statement
+     * cache.
+     *
+     * @return the number of statement cache hits
+     */
+    public long getNumStatementHits() {
+        return statementHits.sum();
+    }
+
+    /**
+     * Returns the number of prepared statements that were not found in a
+     * statement cache.
+     *
+     * @return the number of statement cache misses
+     */
+    public long getNumStatementMisses() {
+        return statementMisses.sum();
+    }
+
+    /**
+     * Sets the class name of the JDBC driver.
+     *
+     * @param driverClass class name of the JDBC driver
+     */
+    public void setDriverClass(String driverClass) {
+        this.driverClass = driverClass;
+    }
+
+    /**
+     * Sets the JDBC URL of the database.
+     *
+     * @param jdbcUrl JDBC URL of the database
+     */
+    public void setJdbcUrl(String jdbcUrl) {
+        this.jdbcUrl = jdbcUrl;
+    }
+
+    /**
+     * Sets the database user.
+     *
+     * @param user the database user
+     */
+    public void setUser(String user) {
+        this.user = user;
+    }
+
+    /**
+     * Sets the database password.
+     *
+     * @param password the database password
+     */
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    /**
+     * Returns the minimum number of open connections.
+     *
+     * @return the minimum number of open connections
+     */
+    public int getMinPoolSize() {
+        return minPoolSize;
+    }
+
+    /**
+     * Sets the minimum number of open connections. May be changed while the
+     * pool is running.
+     *
+     * @param minPoolSize the minimum number of open connections
+     */
+    public void setMinPoolSize(int minPoolSize) {
+        this.minPoolSize = minPoolSize;
+    }
+
+    /**
+     * Returns the maximum number of open connections.
+     *
+     * @return the maximum number of open connections
+     */
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    /**
+     * Sets the maximum number of open connections. May be changed while the
+     * pool is running; surplus connections are closed as they become free.
+     *
+     * @param maxPoolSize the maximum number of open connections
+     */
+    public void setMaxPoolSize(int maxPoolSize) {
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    /**
+     * Sets the maximum time to wait for a connection, in milliseconds.
+     *
+     * @param checkoutTimeout maximum time to wait for a connection
+     */
+    public void setCheckoutTimeout(long checkoutTimeout) {
+        this.checkoutTimeout = checkoutTimeout;
+    }
+
+    /**
+     * Sets the idle time after which a connection is validated before it is
+     * handed out, in milliseconds.
+     *
+     * @param validationInterval idle time after which a connection is
+     *        validated
+     */
+    public void setValidationInterval(long validationInterval) {
+        this.validationInterval = validationInterval;
+    }
+
+    /**
+     * Sets the timeout of a validation, in seconds.
+     *
+     * @param validationTimeout timeout of a validation
+     */
+    public void setValidationTimeout(int validationTimeout) {
+        this.validationTimeout = validationTimeout;
+    }
+
+    /**
+     * Sets the idle time after which a connection above the minimum pool size
+     * is closed, in milliseconds.
+     *
+     * @param idleTimeout idle time after which a connection is closed
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Sets the time after which a connection that is still held is reported
+     * as leaked, in milliseconds, or <tt>0</tt> to disable leak detection.
+     *
+     * @param leakDetectionThreshold time after which a connection is reported
+     *        as leaked
+     */
+    public void setLeakDetectionThreshold(long leakDetectionThreshold) {
+        this.leakDetectionThreshold = leakDetectionThreshold;
+    }
+
+    /**
+     * Sets the number of prepared statements cached per connection, or
+     * <tt>0</tt> to disable statement caching. Affects only connections
+     * opened afterwards.
+     *
+     * @param statementCacheSize number of prepared statements cached per
+     *        connection
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return logWriter;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        this.logWriter = out;
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        this.loginTimeout = seconds;
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return loginTimeout;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return LOGGER;
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+
+    /**
+     * An entry of the pool, holding one physical connection.
+     *
+     * @author Mario Bobic
+     */
+    private class PoolEntry extends ConcurrentBag.Entry {
+
+        /** The physical connection. */
+        final Connection physical;
+        /** Time the connection was last returned, as given by nanoTime. */
+        volatile long lastReturned = System.nanoTime();
+        /** Leak detection task of the current lease, or <tt>null</tt>. */
+        volatile ScheduledFuture<?> leakTask;
+        /** Tells if the connection is broken and must not be reused. */
+        volatile boolean broken;
+        /** Prepared statements of the connection, or <tt>null</tt>. */
+        final StatementCache statements;
+
+        /**
+         * Constructs an instance of {@code PoolEntry} with the specified
+         * physical connection.
+         *
+         * @param physical the physical connection
+         */
+        PoolEntry(Connection physical) {
+            this.physical = physical;
+            this.statements = statementCacheSize > 0
+                    ? new StatementCache(physical, statementCacheSize, statementHits, statementMisses)
+                    : null;
+        }
+
+        /**
+         * Returns a new logical connection to the borrowed physical
+         * connection, scheduling leak detection if it is enabled.
+         *
+         * @return a logical connection
+         */
+        Connection lease() {
+            long threshold = leakDetectionThreshold;
+            if (threshold > 0 && housekeeper != null) {
+                Exception trace = new Exception("Connection borrowed here.");
+                leakTask = housekeeper.schedule(() -> {
+                    leaks.increment();
+                    LOGGER.log(Level.WARNING, "Connection held for more than " + threshold
+                            + " ms, possible leak.", trace);
+                }, threshold, TimeUnit.MILLISECONDS);
+            }
+
+            return (Connection) Proxy.newProxyInstance(BagPool.class.getClassLoader(),
+                    new Class<?>[] {Connection.class}, new LogicalConnection(this));
+        }
+
+        /**
+         * Returns the borrowed entry to the pool, resetting its connection. A
+         * broken connection, or one that can not be reset, is evicted.
+         */
+        void giveBack() {
+            ScheduledFuture<?> task = leakTask;
+            if (task != null) {
+                task.cancel(false);
+                leakTask = null;
+            }
+            if (statements != null) {
+                statements.releaseAll();
+            }
+
+            try {
+                if (!physical.getAutoCommit()) {
+                    physical.rollback();
+                    physical.setAutoCommit(true);
+                }
+                physical.clearWarnings();
+            } catch (SQLException e) {
+                broken = true;
+            }
+
+            if (broken || total.get() > maxPoolSize) {
+                evict(this);
+            } else {
+                lastReturned = System.nanoTime();
+                bag.requite(this);
+            }
+        }
+    }
+
+    /**
+     * Invocation handler of a logical connection handed out by the pool.
+     * Closing the logical connection returns the physical connection to the
+     * pool, and preparing a statement with no options goes through the
+     * statement cache of the connection, if there is one; any other method is
+     * delegated to the physical connection.
+     *
+     * @author Mario Bobic
+     */
+    private static class LogicalConnection implements InvocationHandler {
+
+        /** Entry of the borrowed connection. */
+        private final PoolEntry entry;
+        /** Tells if the logical connection is closed. */
+        private boolean closed;
+
+        /**
+         * Constructs an instance of {@code LogicalConnection} for the
+         * specified borrowed <tt>entry</tt>.
+         *
+         * @param entry entry of the borrowed connection
+         */
+        LogicalConnection(PoolEntry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+            case "close":
+                if (!closed) {
+                    closed = true;
+                    entry.giveBack();
+                }
+                return null;
+            case "isClosed":
+                return closed;
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "BagPool connection " + entry.physical;
+            default:
+                if (closed) {
+                    throw new SQLException("Connection is closed.");
+                }
+            }
+
+            try {
+                if (entry.statements != null && args != null && args.length == 1
+                        && method.getName().equals("prepareStatement")) {
+                    return entry.statements.prepare((Connection) proxy, (String) args[0]);
+                }
+                return method.invoke(entry.physical, args);
+            } catch (InvocationTargetException e) {
+                throw checkBroken(e.getCause());
+            } catch (SQLException e) {
+                throw checkBroken(e);
+            }
+        }
+
+        /**
+         * Marks the connection as broken if the specified exception reports
+         * a connection failure, and returns the exception.
+         *
+         * @param t an exception thrown by the connection
+         * @return the same exception
+         */
+        private Throwable checkBroken(Throwable t) {
+            if (t instanceof SQLException) {
+                String state = ((SQLException) t).getSQLState();
+                if (state != null && state.startsWith("08")) {
+                    entry.broken = true;
+                }
+            }
+            return t;
+        }
+    }
+
+}
@@ -0,0 +1,246 @@
+package hr.fer.zemris.java.hw14.pool;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A lock-free collection of pooled entries. Every entry has an atomic state
+ * and is borrowed by a compare-and-set of that state, so borrowing and
+ * returning never take a lock.
+ * <p>
+ * A thread first looks through the entries it has returned itself, which
+ * usually succeeds without touching any memory shared with other threads. If
+ * none of those is free, the shared list of all entries is scanned. If still
+ * no entry is free, the thread waits for an entry to be handed to it directly
+ * by a thread that returns one.
+ *
+ * @author Mario Bobic
+ * @param <T> type of the entries
+ */
+public class ConcurrentBag<T extends ConcurrentBag.Entry> {
+
+    /** State of an entry that is free. */
+    public static final int NOT_IN_USE = 0;
+    /** State of an entry that is borrowed. */
+    public static final int IN_USE = 1;
+    /** State of an entry that is removed from the bag. */
+    public static final int REMOVED = -1;
+
+    /** Maximum number of entries remembered per thread. */
+    private static final int THREAD_LIST_SIZE = 16;
+
+    /** All entries of the bag. */
+    private final CopyOnWriteArrayList<T> shared = new CopyOnWriteArrayList<>();
+    /** Entries recently returned by each thread. */
+    private final ThreadLocal<List<WeakReference<T>>> threadList =
+            ThreadLocal.withInitial(() -> new ArrayList<>(THREAD_LIST_SIZE));
+    /** Queue used to hand returned entries directly to waiting threads. */
+    private final SynchronousQueue<T> handoff = new SynchronousQueue<>(true);
+    /** Number of threads waiting for an entry. */
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    /**
+     * Borrows a free entry, waiting at most the specified <tt>timeout</tt> in
+     * nanoseconds. Returns <tt>null</tt> if no entry became free in time.
+     *
+     * @param timeout maximum time to wait, in nanoseconds
+     * @return a borrowed entry, or <tt>null</tt>
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public T borrow(long timeout) throws InterruptedException {
+        List<WeakReference<T>> list = threadList.get();
+        for (int i = list.size() - 1; i >= 0; i--) {
+            T entry = list.remove(i).get();
+            if (entry != null && entry.compareAndSetState(NOT_IN_USE, IN_USE)) {
+                return entry;
+            }
+        }
+
+        T entry = scan();
+        if (entry != null || timeout <= 0) {
+            return entry;
+        }
+
+        waiters.incrementAndGet();
+        try {
+            long deadline = System.nanoTime() + timeout;
+            do {
+                entry = handoff.poll(Math.min(timeout, TimeUnit.MILLISECONDS.toNanos(10)), TimeUnit.NANOSECONDS);
+                if (entry != null && entry.compareAndSetState(NOT_IN_USE, IN_USE)) {
+                    return entry;
+                }
+                entry = scan();
+                if (entry != null) {
+                    return entry;
+                }
+                timeout = deadline - System.nanoTime();
+            } while (timeout > 0);
+            return null;
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the specified borrowed <tt>entry</tt> to the bag. If a thread is
+     * waiting for an entry, the entry is handed to it directly.
+     *
+     * @param entry a borrowed entry
+     */
+    public void requite(T entry) {
+        entry.setState(NOT_IN_USE);
+
+        for (int i = 0; waiters.get() > 0 && i < 4; i++) {
+            if (entry.getState() != NOT_IN_USE || handoff.offer(entry)) {
+                return;
+            }
+            Thread.yield();
+        }
+
+        List<WeakReference<T>> list = threadList.get();
+        if (list.size() < THREAD_LIST_SIZE) {
+            list.add(new WeakReference<>(entry));
+        }
+    }
+
+    /**
+     * Adds a new <tt>entry</tt> to the bag. If a thread is waiting for an
+     * entry and the new entry is free, it is handed to that thread.
+     *
+     * @param entry a new entry
+     */
+    public void add(T entry) {
+        shared.add(entry);
+        if (waiters.get() > 0 && entry.getState() == NOT_IN_USE) {
+            handoff.offer(entry);
+        }
+    }
+
+    /**
+     * Removes the specified <tt>entry</tt> from the bag. The entry must be
+     * borrowed, or otherwise reserved, by the caller.
+     *
+     * @param entry entry to be removed
+     * @return true if the entry was removed
+     */
+    public boolean remove(T entry) {
+        entry.setState(REMOVED);
+        return shared.remove(entry);
+    }
+
+    /**
+     * Reserves the specified free <tt>entry</tt>, so it can not be borrowed,
+     * for an example before it is removed from the bag.
+     *
+     * @param entry a free entry
+     * @return true if the entry was reserved, false if it is not free
+     */
+    public boolean reserve(T entry) {
+        return entry.compareAndSetState(NOT_IN_USE, IN_USE);
+    }
+
+    /**
+     * Returns a snapshot of all entries of the bag.
+     *
+     * @return a snapshot of all entries
+     */
+    public List<T> values() {
+        return new ArrayList<>(shared);
+    }
+
+    /**
+     * Returns the number of entries in the bag.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return shared.size();
+    }
+
+    /**
+     * Returns the number of entries in the specified <tt>state</tt>.
+     *
+     * @param state state of the entries
+     * @return the number of entries in the state
+     */
+    public int count(int state) {
+        int n = 0;
+        for (T entry : shared) {
+            if (entry.getState() == state) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Returns the number of threads waiting for an entry.
+     *
+     * @return the number of waiting threads
+     */
+    public int getWaiters() {
+        return waiters.get();
+    }
+
+    /**
+     * Borrows the first free entry from the shared list, or returns
+     * <tt>null</tt> if there is none.
+     *
+     * @return a borrowed entry, or <tt>null</tt>
+     */
+    private T scan() {
+        for (T entry : shared) {
+            if (entry.compareAndSetState(NOT_IN_USE, IN_USE)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * An entry of the {@linkplain ConcurrentBag}, holding an atomic state.
+     *
+     * @author Mario Bobic
+     */
+    public static class Entry {
+
+        /** State of this entry. */
+        private final AtomicInteger state = new AtomicInteger(NOT_IN_USE);
+
+        /**
+         * Returns the state of this entry.
+         *
+         * @return the state of this entry
+         */
+        public int getState() {
+            return state.get();
+        }
+
+        /**
+         * Sets the state of this entry.
+         *
+         * @param newState the new state
+         */
+        public void setState(int newState) {
+            state.set(newState);
+        }
+
+        /**
+         * Atomically sets the state of this entry to <tt>newState</tt> if it
+         * currently is <tt>expected</tt>.
+         *
+         * @param expected the expected state
+         * @param newState the new state
+         * @return true if the state was set
+         */
+        public boolean compareAndSetState(int expected, int newState) {
+            return state.compareAndSet(expected, newState);
+        }
+    }
+
+}
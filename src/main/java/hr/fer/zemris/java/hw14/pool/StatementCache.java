@@ -0,0 +1,227 @@
+package hr.fer.zemris.java.hw14.pool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of prepared statements of one physical connection, so a statement
+ * prepared by one request is reused by the next request that gets the same
+ * connection and the database does not parse the SQL again.
+ * <p>
+ * Statements are keyed by their SQL text and the least recently used one is
+ * closed when the cache is full. A cached statement is handed out wrapped, so
+ * that closing it clears its parameters and returns it to the cache instead
+ * of closing it. A statement that is already handed out is not handed out
+ * again; preparing the same SQL twice within one lease gives an ordinary
+ * statement the second time.
+ * <p>
+ * The cache belongs to a pooled connection and is only used by the thread
+ * that borrowed it, so it is not synchronized.
+ *
+ * @author Mario Bobic
+ */
+class StatementCache {
+
+    /** The physical connection. */
+    private final Connection physical;
+    /** Maximum number of cached statements. */
+    private final int maxSize;
+    /** Counter of cache hits. */
+    private final LongAdder hits;
+    /** Counter of cache misses. */
+    private final LongAdder misses;
+
+    /** Cached statements in access order. */
+    private final LinkedHashMap<String, CachedStatement> statements;
+
+    /**
+     * Constructs an instance of {@code StatementCache}.
+     *
+     * @param physical the physical connection
+     * @param maxSize maximum number of cached statements
+     * @param hits counter of cache hits
+     * @param misses counter of cache misses
+     */
+    StatementCache(Connection physical, int maxSize, LongAdder hits, LongAdder misses) {
+        this.physical = physical;
+        this.maxSize = maxSize;
+        this.hits = hits;
+        this.misses = misses;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns a prepared statement for the specified <tt>sql</tt>, reusing a
+     * cached one if possible.
+     *
+     * @param connection the logical connection, returned by
+     *        {@linkplain PreparedStatement#getConnection()}
+     * @param sql the SQL text
+     * @return a prepared statement
+     * @throws SQLException if the statement can not be prepared
+     */
+    PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+        CachedStatement cached = statements.get(sql);
+        if (cached != null) {
+            if (cached.inUse) {
+                misses.increment();
+                return physical.prepareStatement(sql);
+            }
+            hits.increment();
+            return cached.lease(connection);
+        }
+
+        misses.increment();
+        cached = new CachedStatement(physical.prepareStatement(sql));
+        statements.put(sql, cached);
+        if (statements.size() > maxSize) {
+            evictEldest();
+        }
+        return cached.lease(connection);
+    }
+
+    /**
+     * Returns all statements that are still handed out to the cache, for
+     * when the connection is returned to the pool without closing them.
+     */
+    void releaseAll() {
+        for (CachedStatement cached : statements.values()) {
+            if (cached.inUse) {
+                cached.release();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of cached statements.
+     *
+     * @return the number of cached statements
+     */
+    int size() {
+        return statements.size();
+    }
+
+    /**
+     * Closes the least recently used statement that is not handed out.
+     */
+    private void evictEldest() {
+        Iterator<CachedStatement> it = statements.values().iterator();
+        while (it.hasNext()) {
+            CachedStatement cached = it.next();
+            if (!cached.inUse) {
+                it.remove();
+                try { cached.target.close(); } catch (SQLException ignorable) {}
+                return;
+            }
+        }
+    }
+
+    /**
+     * A cached prepared statement and the handler of its wrappers.
+     *
+     * @author Mario Bobic
+     */
+    private static class CachedStatement implements InvocationHandler {
+
+        /** The physical prepared statement. */
+        private final PreparedStatement target;
+        /** Tells if the statement is handed out. */
+        private boolean inUse;
+        /** The logical connection of the current lease. */
+        private Connection connection;
+        /** The last result set returned by the statement, or <tt>null</tt>. */
+        private ResultSet lastResult;
+        /** The wrapper of the current lease. */
+        private Object lease;
+
+        /**
+         * Constructs an instance of {@code CachedStatement}.
+         *
+         * @param target the physical prepared statement
+         */
+        CachedStatement(PreparedStatement target) {
+            this.target = target;
+        }
+
+        /**
+         * Hands out the statement, wrapped.
+         *
+         * @param connection the logical connection
+         * @return a wrapper of the statement
+         */
+        PreparedStatement lease(Connection connection) {
+            this.inUse = true;
+            this.connection = connection;
+            this.lease = Proxy.newProxyInstance(StatementCache.class.getClassLoader(),
+                    new Class<?>[] {PreparedStatement.class}, this);
+            return (PreparedStatement) lease;
+        }
+
+        /**
+         * Returns the statement to the cache, closing its last result set and
+         * clearing its parameters and batch.
+         */
+        void release() {
+            inUse = false;
+            connection = null;
+            lease = null;
+            try {
+                if (lastResult != null) {
+                    lastResult.close();
+                }
+                target.clearParameters();
+                target.clearBatch();
+            } catch (SQLException ignorable) {
+            }
+            lastResult = null;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            boolean current = inUse && proxy == lease;
+            switch (method.getName()) {
+            case "close":
+                if (current) {
+                    release();
+                }
+                return null;
+            case "isClosed":
+                return !current;
+            case "getConnection":
+                if (current) {
+                    return connection;
+                }
+                break;
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            default:
+            }
+            if (!current) {
+                throw new SQLException("Statement is closed.");
+            }
+
+            Object result;
+            try {
+                result = method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (result instanceof ResultSet) {
+                lastResult = (ResultSet) result;
+            }
+            return result;
+        }
+    }
+
+}
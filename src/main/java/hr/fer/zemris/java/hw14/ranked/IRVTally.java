@@ -0,0 +1,378 @@
+package hr.fer.zemris.java.hw14.ranked;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import hr.fer.zemris.java.hw14.VotingUtil.Info;
+
+/**
+ * An instant-runoff count of the ballots of a {@linkplain BallotList}, kept up
+ * to date as ballots are added. The votes of every round are kept, and new
+ * ballots are added to each round, each for its most preferred option still
+ * in the race in that round, without counting the other ballots again. The outcome of
+ * every round is then decided again from its votes; only if a round's outcome
+ * changes, which becomes rare as ballots accumulate, are the rounds after it
+ * counted again.
+ * <p>
+ * Rounds are counted over all ballots in parallel, with fork/join tasks over
+ * ranges of ballots. A round ends the count if an option has a majority of
+ * the ballots counted in it, or if only one option is left; otherwise the
+ * option with the fewest votes is eliminated. A tie for the fewest votes is
+ * broken by the votes of earlier rounds, going back from the last one, and
+ * then by eliminating the option with the greater index.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author Mario Bobic
+ */
+class IRVTally {
+
+    /** Number of ballots below which a range is counted by one task. */
+    private static final int THRESHOLD = 1 << 16;
+
+    /** Number of options. */
+    private final int candidates;
+    /** The ballots. */
+    private final BallotList ballots;
+    /**
+     * Votes of options in every round, with the number of exhausted ballots
+     * at index <tt>candidates</tt>.
+     */
+    private final List<long[]> rounds = new ArrayList<>();
+    /** Round after which every option was eliminated, or MAX_VALUE. */
+    private final int[] eliminatedAfter;
+    /** Index of the winning option, or -1. */
+    private int winner = -1;
+
+    /** Number of rounds counted over all ballots. */
+    private long roundsCounted;
+    /** Time of the last full recount, in milliseconds. */
+    private long recountMillis;
+
+    /**
+     * Constructs an instance of {@code IRVTally} counting the specified
+     * ballots of the specified number of options. The tally is empty until
+     * it is {@linkplain #recount() recounted}.
+     *
+     * @param candidates number of options
+     * @param ballots the ballots
+     */
+    IRVTally(int candidates, BallotList ballots) {
+        this.candidates = candidates;
+        this.ballots = ballots;
+        this.eliminatedAfter = new int[candidates];
+        Arrays.fill(eliminatedAfter, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Counts all rounds over all ballots again.
+     */
+    void recount() {
+        long t = System.nanoTime();
+        rounds.clear();
+        Arrays.fill(eliminatedAfter, Integer.MAX_VALUE);
+        winner = -1;
+        rounds.add(count(0));
+        decideFrom(0);
+        recountMillis = (System.nanoTime() - t) / 1000000;
+    }
+
+    /**
+     * Adds the ballots with indexes from <tt>from</tt>, inclusive, to
+     * <tt>to</tt>, exclusive, which must be the ballots added to the list
+     * after those already counted, to every round, and decides the rounds
+     * again. Adding the ballots of a batch at once decides the rounds once
+     * for the whole batch, so an outcome flipping back and forth within it
+     * does not make the later rounds be counted again.
+     *
+     * @param from index of the first added ballot
+     * @param to end of the added ballots, exclusive
+     */
+    void add(int from, int to) {
+        if (rounds.isEmpty()) {
+            recount();
+            return;
+        }
+
+        byte[] data = ballots.data();
+        int[] offsets = ballots.offsets();
+        for (int ballot = from; ballot < to; ballot++) {
+            int p = offsets[ballot];
+            int end = offsets[ballot+1];
+            for (int r = 0; r < rounds.size(); r++) {
+                while (p < end && !isActive(data[p] & 0xFF, r)) {
+                    p++;
+                }
+                rounds.get(r)[p < end ? data[p] & 0xFF : candidates]++;
+            }
+        }
+
+        int last = rounds.size() - 1;
+        for (int r = 0; r <= last; r++) {
+            int loser = decide(r);
+            boolean unchanged = r == last
+                    ? loser < 0 && winnerOf(r) == winner
+                    : loser >= 0 && eliminatedAfter[loser] == r;
+            if (!unchanged) {
+                truncate(r);
+                decideFrom(r);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Decides the specified round and counts the rounds after it until the
+     * count ends.
+     *
+     * @param round index of the round
+     */
+    private void decideFrom(int round) {
+        for (int r = round; ; r++) {
+            int loser = decide(r);
+            if (loser < 0) {
+                winner = winnerOf(r);
+                return;
+            }
+            eliminatedAfter[loser] = r;
+            rounds.add(count(r+1));
+        }
+    }
+
+    /**
+     * Forgets the rounds after the specified round and the eliminations and
+     * winner decided from it on.
+     *
+     * @param round index of the round
+     */
+    private void truncate(int round) {
+        while (rounds.size() > round + 1) {
+            rounds.remove(rounds.size() - 1);
+        }
+        for (int c = 0; c < candidates; c++) {
+            if (eliminatedAfter[c] >= round) {
+                eliminatedAfter[c] = Integer.MAX_VALUE;
+            }
+        }
+        winner = -1;
+    }
+
+    /**
+     * Returns the option eliminated after the specified round, or -1 if the
+     * count ends with it.
+     *
+     * @param round index of the round
+     * @return the eliminated option, or -1
+     */
+    private int decide(int round) {
+        long[] votes = rounds.get(round);
+        long counted = 0;
+        int active = 0;
+        int best = -1;
+        for (int c = 0; c < candidates; c++) {
+            if (isActive(c, round)) {
+                active++;
+                counted += votes[c];
+                if (best < 0 || votes[c] > votes[best]) {
+                    best = c;
+                }
+            }
+        }
+        if (active <= 1 || counted == 0 || 2 * votes[best] > counted) {
+            return -1;
+        }
+
+        int loser = -1;
+        for (int c = 0; c < candidates; c++) {
+            if (isActive(c, round) && (loser < 0 || isWeaker(c, loser, round))) {
+                loser = c;
+            }
+        }
+        return loser;
+    }
+
+    /**
+     * Returns the winner of the specified last round, or -1 if no ballot was
+     * counted in it.
+     *
+     * @param round index of the last round
+     * @return the winning option, or -1
+     */
+    private int winnerOf(int round) {
+        long[] votes = rounds.get(round);
+        int best = -1;
+        for (int c = 0; c < candidates; c++) {
+            if (isActive(c, round) && votes[c] > 0 && (best < 0 || votes[c] > votes[best])) {
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns true if option <tt>a</tt> is to be eliminated before option
+     * <tt>b</tt> after the specified round.
+     *
+     * @param a index of an option
+     * @param b index of another option
+     * @param round index of the round
+     * @return true if option <tt>a</tt> is weaker
+     */
+    private boolean isWeaker(int a, int b, int round) {
+        for (int r = round; r >= 0; r--) {
+            long[] votes = rounds.get(r);
+            if (votes[a] != votes[b]) {
+                return votes[a] < votes[b];
+            }
+        }
+        return a > b;
+    }
+
+    /**
+     * Returns true if the specified option is still in the race in the
+     * specified round.
+     *
+     * @param option index of the option
+     * @param round index of the round
+     * @return true if the option is still in the race
+     */
+    private boolean isActive(int option, int round) {
+        return option < candidates && eliminatedAfter[option] >= round;
+    }
+
+    /**
+     * Counts the votes of the specified round over all ballots, in parallel.
+     *
+     * @param round index of the round
+     * @return votes of options, with exhausted ballots at the last index
+     */
+    private long[] count(int round) {
+        roundsCounted++;
+        CountTask task = new CountTask(ballots.data(), ballots.offsets(), eliminatedAfter.clone(),
+                candidates, round, 0, ballots.size());
+        return ballots.size() <= THRESHOLD ? task.compute() : ForkJoinPool.commonPool().invoke(task);
+    }
+
+    /**
+     * Returns the result of the count, with the specified options in the
+     * order of their indexes.
+     *
+     * @param options options in the order of their indexes
+     * @return the result of the count
+     */
+    RankedResult result(List<Info> options) {
+        List<RankedResult.Round> result = new ArrayList<>(rounds.size());
+        for (int r = 0; r < rounds.size(); r++) {
+            long[] votes = Arrays.copyOf(rounds.get(r), candidates);
+            Info eliminated = null;
+            for (int c = 0; c < candidates; c++) {
+                if (eliminatedAfter[c] < r) {
+                    votes[c] = -1;
+                } else if (eliminatedAfter[c] == r) {
+                    eliminated = options.get(c);
+                }
+            }
+            result.add(new RankedResult.Round(r+1, votes, rounds.get(r)[candidates], eliminated));
+        }
+        return new RankedResult(options, result, winner < 0 ? null : options.get(winner), ballots.size());
+    }
+
+    /**
+     * Returns the number of rounds counted over all ballots.
+     *
+     * @return the number of counted rounds
+     */
+    long getRoundsCounted() {
+        return roundsCounted;
+    }
+
+    /**
+     * Returns the time of the last full recount, in milliseconds.
+     *
+     * @return the time of the last recount
+     */
+    long getRecountMillis() {
+        return recountMillis;
+    }
+
+    /**
+     * A task counting the votes of a round over a range of ballots.
+     *
+     * @author Mario Bobic
+     */
+    private static class CountTask extends RecursiveTask<long[]> {
+        /** Serialization UID. */
+        private static final long serialVersionUID = 1L;
+
+        /** Packed option indexes of the ballots. */
+        private final byte[] data;
+        /** Offsets of the ballots. */
+        private final int[] offsets;
+        /** Round after which every option was eliminated. */
+        private final int[] eliminatedAfter;
+        /** Number of options. */
+        private final int candidates;
+        /** Index of the counted round. */
+        private final int round;
+        /** First ballot of the range. */
+        private final int from;
+        /** End of the range, exclusive. */
+        private final int to;
+
+        /**
+         * Constructs an instance of {@code CountTask} with the specified
+         * arguments.
+         *
+         * @param data packed option indexes of the ballots
+         * @param offsets offsets of the ballots
+         * @param eliminatedAfter round after which every option was eliminated
+         * @param candidates number of options
+         * @param round index of the counted round
+         * @param from first ballot of the range
+         * @param to end of the range, exclusive
+         */
+        CountTask(byte[] data, int[] offsets, int[] eliminatedAfter, int candidates, int round, int from, int to) {
+            this.data = data;
+            this.offsets = offsets;
+            this.eliminatedAfter = eliminatedAfter;
+            this.candidates = candidates;
+            this.round = round;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (to - from > THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                CountTask left = new CountTask(data, offsets, eliminatedAfter, candidates, round, from, middle);
+                left.fork();
+                long[] votes = new CountTask(data, offsets, eliminatedAfter, candidates, round, middle, to)
+                        .compute();
+                long[] leftVotes = left.join();
+                for (int c = 0; c < votes.length; c++) {
+                    votes[c] += leftVotes[c];
+                }
+                return votes;
+            }
+
+            long[] votes = new long[candidates + 1];
+            for (int i = from; i < to; i++) {
+                int choice = candidates;
+                for (int p = offsets[i], end = offsets[i+1]; p < end; p++) {
+                    int c = data[p] & 0xFF;
+                    if (c < candidates && eliminatedAfter[c] >= round) {
+                        choice = c;
+                        break;
+                    }
+                }
+                votes[choice]++;
+            }
+            return votes;
+        }
+    }
+
+}
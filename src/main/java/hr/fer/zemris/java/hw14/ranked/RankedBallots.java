@@ -0,0 +1,444 @@
+package hr.fer.zemris.java.hw14.ranked;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import hr.fer.zemris.java.hw14.VotingUtil.Info;
+import hr.fer.zemris.java.hw14.cache.PollVersions;
+
+/**
+ * Ranked ballots of polls, counted by instant runoff. A ballot ranks options
+ * of a poll in order of preference; it is stored as an array of option
+ * indexes, one byte each, where the index of an option is its position among
+ * the options of the poll ordered by ID. Since options are only ever added to
+ * polls, with increasing IDs, the indexes of a stored ballot do not change.
+ * <p>
+ * Ballots are stored in the <tt>RankedBallots</tt> table of the primary
+ * database, even if sharding is configured, and kept in memory, packed into a
+ * {@linkplain BallotList} per poll with an {@linkplain IRVTally} counting
+ * them. Whenever the {@linkplain PollVersions version} of a poll has changed
+ * since its result was last asked for, the ballots stored since are read,
+ * whichever instance stored them, and added to the tally one by one. Many new
+ * ballots at once, for an example all ballots of a poll after a restart, are
+ * counted again in parallel instead.
+ * <p>
+ * Ballot IDs are given out when a ballot is inserted, so a ballot may be
+ * committed after ballots with greater IDs have already been read. Every read
+ * therefore also goes back over the last {@value #LATE_WINDOW} IDs and picks
+ * up the ballots it has not seen yet. A ballot committed later than that
+ * many newer ballots is counted only after a restart.
+ *
+ * @author Mario Bobic
+ */
+public class RankedBallots {
+
+    /** Logger of the ranked ballots. */
+    private static final Logger LOGGER = Logger.getLogger(RankedBallots.class.getName());
+
+    /** Maximum number of options of a poll with ranked ballots. */
+    private static final int MAX_OPTIONS = 255;
+    /** Number of new ballots above which all ballots are counted again. */
+    private static final int INCREMENTAL_LIMIT = 10000;
+    /** Number of IDs below the last one read that are read again. */
+    private static final long LATE_WINDOW = 1000;
+
+    /** The ranked ballots of the application, or <tt>null</tt>. */
+    private static volatile RankedBallots instance;
+
+    /** Pool of the primary database. */
+    private final DataSource ds;
+    /** Ballots of polls with ranked ballots, mapped by poll ID. */
+    private final Map<Long, RankedPoll> polls = new ConcurrentHashMap<>();
+    /** Versions of polls found without ranked ballots, mapped by poll ID. */
+    private final Map<Long, String> unranked = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs an instance of {@code RankedBallots} storing ballots in the
+     * database of the specified pool. The <tt>RankedBallots</tt> table is
+     * created if it does not exist.
+     *
+     * @param ds pool of the primary database
+     * @throws SQLException if a connection can not be obtained
+     */
+    public RankedBallots(DataSource ds) throws SQLException {
+        this.ds = ds;
+        try (Connection con = ds.getConnection()) {
+            try (PreparedStatement pst = con.prepareStatement("CREATE TABLE RankedBallots(" +
+                                                              "    id BIGINT PRIMARY KEY GENERATED ALWAYS AS IDENTITY" +
+                                                              " ,  pollID BIGINT NOT NULL" +
+                                                              " ,  ranking VARCHAR(255) FOR BIT DATA NOT NULL" +
+                                                              ")")) {
+                pst.executeUpdate();
+            } catch (SQLException ignorable) {
+                // "create-and-ignore-error"
+            }
+            try (PreparedStatement pst = con.prepareStatement(
+                    "CREATE INDEX RankedBallotsPoll ON RankedBallots(pollID, id)")) {
+                pst.executeUpdate();
+            } catch (SQLException ignorable) {
+                // "create-and-ignore-error"
+            }
+        }
+    }
+
+    /**
+     * Returns the ranked ballots of the application, or <tt>null</tt> if
+     * there are none.
+     *
+     * @return the ranked ballots of the application
+     */
+    public static RankedBallots getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the ranked ballots of the application.
+     *
+     * @param rankedBallots the ranked ballots, or <tt>null</tt>
+     */
+    public static void setInstance(RankedBallots rankedBallots) {
+        instance = rankedBallots;
+    }
+
+    /**
+     * Returns the result of the ranked ballots of the poll with the specified
+     * <tt>pollID</tt>, or <tt>null</tt> if the poll has no ranked ballots or
+     * there are no ranked ballots of the application. A failure to read new
+     * ballots is logged and the result of the ballots read so far is
+     * returned.
+     *
+     * @param pollID ID of the poll
+     * @param infoList options of the poll, in any order
+     * @return the result of the ranked ballots, or <tt>null</tt>
+     */
+    public static RankedResult get(long pollID, List<Info> infoList) {
+        RankedBallots rankedBallots = instance;
+        if (rankedBallots == null) {
+            return null;
+        }
+        try {
+            return rankedBallots.getResult(pollID, infoList);
+        } catch (SQLException e) {
+            LOGGER.log(Level.WARNING, "Failed to read ranked ballots of poll " + pollID + ".", e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores a ballot ranking the options with the specified IDs, in order of
+     * preference, in the poll with the specified <tt>pollID</tt>. The ballot
+     * is counted when the result of the poll is next asked for, after the
+     * version of the poll is changed.
+     *
+     * @param pollID ID of the poll
+     * @param infoList options of the poll, in any order
+     * @param ranking IDs of the ranked options, most preferred first
+     * @throws IllegalArgumentException if the ranking is empty, repeats an
+     *         option or ranks an option not in the poll
+     * @throws IllegalStateException if the poll is closed
+     * @throws SQLException if the ballot can not be stored
+     */
+    public void vote(long pollID, List<Info> infoList, long[] ranking) throws SQLException {
+        byte[] ballot = pack(optionIDs(infoList), ranking);
+        try (Connection con = ds.getConnection();
+             PreparedStatement pst = con.prepareStatement(
+                     "INSERT INTO RankedBallots(pollID, ranking)" +
+                     " SELECT id, CAST(? AS VARCHAR(255) FOR BIT DATA) FROM Polls" +
+                     " WHERE id = ? AND closedAt IS NULL")) {
+            pst.setBytes(1, ballot);
+            pst.setLong(2, pollID);
+            if (pst.executeUpdate() == 0) {
+                throw new IllegalStateException("Poll " + pollID + " is closed.");
+            }
+        }
+    }
+
+    /**
+     * Returns the result of the ranked ballots of the poll with the specified
+     * <tt>pollID</tt>, or <tt>null</tt> if the poll has no ranked ballots.
+     * Ballots stored since the result was last asked for are counted first.
+     * <p>
+     * Only polls with ballots are kept in memory. A poll without options is
+     * not looked up at all, and a poll found without ballots is looked up
+     * again only once its version changes.
+     *
+     * @param pollID ID of the poll
+     * @param infoList options of the poll, in any order
+     * @return the result of the ranked ballots, or <tt>null</tt>
+     * @throws SQLException if new ballots can not be read
+     */
+    public RankedResult getResult(long pollID, List<Info> infoList) throws SQLException {
+        List<Info> options = new ArrayList<>(infoList);
+        options.sort(Info.BY_ID);
+        long[] optionIDs = optionIDs(options);
+        if (optionIDs.length == 0) {
+            return null;
+        }
+
+        RankedPoll poll = polls.get(pollID);
+        if (poll == null) {
+            String version = PollVersions.get(pollID);
+            if (version.equals(unranked.get(pollID))) {
+                return null;
+            }
+            if (!hasBallots(pollID)) {
+                unranked.put(pollID, version);
+                return null;
+            }
+            unranked.remove(pollID);
+            poll = polls.computeIfAbsent(pollID, RankedPoll::new);
+        }
+        synchronized (poll) {
+            if (!Arrays.equals(optionIDs, poll.optionIDs)) {
+                poll.optionIDs = optionIDs;
+                poll.tally = new IRVTally(optionIDs.length, poll.ballots);
+                poll.tally.recount();
+            }
+
+            String version = PollVersions.get(pollID);
+            if (!version.equals(poll.version)) {
+                sync(poll);
+                poll.version = version;
+            }
+
+            return poll.ballots.size() == 0 ? null : poll.tally.result(options);
+        }
+    }
+
+    /**
+     * Returns true if the poll with the specified <tt>pollID</tt> has at
+     * least one ranked ballot in the database.
+     *
+     * @param pollID ID of the poll
+     * @return true if the poll has ranked ballots
+     * @throws SQLException if the ballots can not be read
+     */
+    private boolean hasBallots(long pollID) throws SQLException {
+        try (Connection con = ds.getConnection();
+             PreparedStatement pst = con.prepareStatement(
+                     "SELECT id FROM RankedBallots WHERE pollID = ? FETCH FIRST ROW ONLY")) {
+            pst.setLong(1, pollID);
+            try (ResultSet rset = pst.executeQuery()) {
+                return rset.next();
+            }
+        }
+    }
+
+    /**
+     * Reads the ballots of the specified poll stored since they were last
+     * read and counts them.
+     *
+     * @param poll the poll
+     * @throws SQLException if the ballots can not be read
+     */
+    private void sync(RankedPoll poll) throws SQLException {
+        try (Connection con = ds.getConnection()) {
+            int previous = poll.ballots.size();
+            readBallots(con, poll);
+
+            int added = poll.ballots.size() - previous;
+            if (previous == 0 || added > INCREMENTAL_LIMIT) {
+                poll.tally = new IRVTally(poll.optionIDs.length, poll.ballots);
+                poll.tally.recount();
+            } else {
+                poll.tally.add(previous, poll.ballots.size());
+            }
+        }
+    }
+
+    /**
+     * Appends the ballots of the specified poll that have not been read yet
+     * to its ballot list: those with IDs greater than the last one read, and
+     * those committed late within the last {@value #LATE_WINDOW} IDs.
+     *
+     * @param con connection to the database
+     * @param poll the poll
+     * @throws SQLException if the ballots can not be read
+     */
+    private static void readBallots(Connection con, RankedPoll poll) throws SQLException {
+        try (PreparedStatement pst = con.prepareStatement(
+                "SELECT id, ranking FROM RankedBallots WHERE pollID = ? AND id > ? ORDER BY id")) {
+            pst.setLong(1, poll.pollID);
+            pst.setLong(2, Math.max(0, poll.lastID - LATE_WINDOW));
+            pst.setFetchSize(1000);
+            try (ResultSet rset = pst.executeQuery()) {
+                while (rset.next()) {
+                    long id = rset.getLong(1);
+                    if (!poll.recent.add(id)) {
+                        continue;
+                    }
+                    poll.lastID = Math.max(poll.lastID, id);
+                    byte[] ballot = rset.getBytes(2);
+                    poll.ballots.add(ballot, 0, ballot.length);
+                }
+            }
+        }
+        poll.recent.headSet(poll.lastID - LATE_WINDOW, true).clear();
+    }
+
+    /**
+     * Packs the specified ranking of option IDs into an array of option
+     * indexes.
+     *
+     * @param optionIDs IDs of the options of the poll, ordered by ID
+     * @param ranking IDs of the ranked options, most preferred first
+     * @return the packed ballot
+     * @throws IllegalArgumentException if the ranking is empty, repeats an
+     *         option or ranks an option not in the poll, or if the poll has
+     *         too many options
+     */
+    static byte[] pack(long[] optionIDs, long[] ranking) {
+        if (optionIDs.length > MAX_OPTIONS) {
+            throw new IllegalArgumentException("Polls with more than " + MAX_OPTIONS
+                    + " options can not be ranked.");
+        }
+        if (ranking.length == 0 || ranking.length > optionIDs.length) {
+            throw new IllegalArgumentException("Between 1 and " + optionIDs.length + " options must be ranked.");
+        }
+
+        byte[] ballot = new byte[ranking.length];
+        boolean[] ranked = new boolean[optionIDs.length];
+        for (int i = 0; i < ranking.length; i++) {
+            int index = Arrays.binarySearch(optionIDs, ranking[i]);
+            if (index < 0) {
+                throw new IllegalArgumentException("Option " + ranking[i] + " does not belong to the poll.");
+            }
+            if (ranked[index]) {
+                throw new IllegalArgumentException("Option " + ranking[i] + " is ranked more than once.");
+            }
+            ranked[index] = true;
+            ballot[i] = (byte) index;
+        }
+        return ballot;
+    }
+
+    /**
+     * Returns the IDs of the specified options, ordered by ID.
+     *
+     * @param infoList the options
+     * @return the IDs of the options
+     */
+    private static long[] optionIDs(List<Info> infoList) {
+        long[] optionIDs = new long[infoList.size()];
+        for (int i = 0; i < optionIDs.length; i++) {
+            optionIDs[i] = infoList.get(i).id;
+        }
+        Arrays.sort(optionIDs);
+        return optionIDs;
+    }
+
+    /**
+     * Returns the number of polls with ballots in memory.
+     *
+     * @return the number of polls
+     */
+    public int getPollCount() {
+        return polls.size();
+    }
+
+    /**
+     * Returns the number of ballots in memory.
+     *
+     * @return the number of ballots
+     */
+    public long getBallotCount() {
+        long count = 0;
+        for (RankedPoll poll : polls.values()) {
+            synchronized (poll) {
+                count += poll.ballots.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of bytes taken by the ballots in memory.
+     *
+     * @return the size of the ballots
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (RankedPoll poll : polls.values()) {
+            synchronized (poll) {
+                bytes += poll.ballots.getBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of rounds counted over all ballots of a poll.
+     *
+     * @return the number of counted rounds
+     */
+    public long getRoundsCounted() {
+        long rounds = 0;
+        for (RankedPoll poll : polls.values()) {
+            synchronized (poll) {
+                rounds += poll.tally == null ? 0 : poll.tally.getRoundsCounted();
+            }
+        }
+        return rounds;
+    }
+
+    /**
+     * Returns the longest time of the last full recount of a poll, in
+     * milliseconds.
+     *
+     * @return the time of the last recount
+     */
+    public long getRecountMillis() {
+        long millis = 0;
+        for (RankedPoll poll : polls.values()) {
+            synchronized (poll) {
+                millis = Math.max(millis, poll.tally == null ? 0 : poll.tally.getRecountMillis());
+            }
+        }
+        return millis;
+    }
+
+    /**
+     * Ballots of a poll in memory, guarded by the lock of the object.
+     *
+     * @author Mario Bobic
+     */
+    private static class RankedPoll {
+        /** ID of the poll. */
+        final long pollID;
+        /** The ballots. */
+        BallotList ballots = new BallotList();
+        /** The count of the ballots. */
+        IRVTally tally;
+        /** IDs of the options of the poll, ordered by ID. */
+        long[] optionIDs;
+        /** ID of the last ballot read. */
+        long lastID;
+        /** IDs of the ballots read within {@value RankedBallots#LATE_WINDOW} of the last one. */
+        final TreeSet<Long> recent = new TreeSet<>();
+        /** Version of the poll the ballots were last read at. */
+        String version;
+
+        /**
+         * Constructs an instance of {@code RankedPoll} with the specified
+         * <tt>pollID</tt>.
+         *
+         * @param pollID ID of the poll
+         */
+        RankedPoll(long pollID) {
+            this.pollID = pollID;
+        }
+    }
+
+}
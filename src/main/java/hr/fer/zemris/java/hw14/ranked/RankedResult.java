@@ -0,0 +1,250 @@
+package hr.fer.zemris.java.hw14.ranked;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import hr.fer.zemris.java.hw14.VotingUtil.Info;
+
+/**
+ * The round-by-round result of an instant-runoff count of the ranked ballots
+ * of a poll. In every round each ballot counts for its most preferred option
+ * still in the race; if no option has a majority of the counted ballots, the
+ * option with the fewest votes is eliminated and the next round is counted.
+ * <p>
+ * Objects of this class are immutable.
+ *
+ * @author Mario Bobic
+ */
+public class RankedResult {
+
+    /** Options of the poll, in the order of votes in rounds. */
+    private final List<Info> options;
+    /** Rounds of the count. */
+    private final List<Round> rounds;
+    /** The winner, or <tt>null</tt> if there is none. */
+    private final Info winner;
+    /** Number of ballots. */
+    private final long ballots;
+
+    /**
+     * Constructs an instance of {@code RankedResult} with the specified
+     * arguments.
+     *
+     * @param options options of the poll, in the order of votes in rounds
+     * @param rounds rounds of the count
+     * @param winner the winner, or <tt>null</tt> if there is none
+     * @param ballots number of ballots
+     */
+    RankedResult(List<Info> options, List<Round> rounds, Info winner, long ballots) {
+        this.options = Collections.unmodifiableList(options);
+        this.rounds = Collections.unmodifiableList(rounds);
+        this.winner = winner;
+        this.ballots = ballots;
+    }
+
+    /**
+     * Returns the options of the poll, in the order of votes in
+     * {@linkplain Round#getVotes() rounds}. Their votes are plurality votes,
+     * not votes of the ranked ballots.
+     *
+     * @return the options of the poll
+     */
+    public List<Info> getOptions() {
+        return options;
+    }
+
+    /**
+     * Returns the rounds of the count.
+     *
+     * @return the rounds of the count
+     */
+    public List<Round> getRounds() {
+        return rounds;
+    }
+
+    /**
+     * Returns the winner of the count, or <tt>null</tt> if there are no
+     * ballots.
+     *
+     * @return the winner, or <tt>null</tt>
+     */
+    public Info getWinner() {
+        return winner;
+    }
+
+    /**
+     * Returns the number of ranked ballots.
+     *
+     * @return the number of ballots
+     */
+    public long getBallots() {
+        return ballots;
+    }
+
+    /**
+     * Writes the result to the specified output stream, referring to options
+     * by their IDs.
+     *
+     * @param out the output stream
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(ballots);
+        out.writeInt(options.size());
+        for (Info option : options) {
+            out.writeLong(option.id);
+        }
+        out.writeLong(winner == null ? -1 : winner.id);
+        out.writeInt(rounds.size());
+        for (Round round : rounds) {
+            out.writeInt(round.number);
+            for (long votes : round.votes) {
+                out.writeLong(votes);
+            }
+            out.writeLong(round.exhausted);
+            out.writeLong(round.eliminated == null ? -1 : round.eliminated.id);
+        }
+    }
+
+    /**
+     * Reads a result written by {@linkplain #writeTo(DataOutputStream)} from
+     * the specified input stream, taking its options from the specified
+     * options of the poll.
+     *
+     * @param in the input stream
+     * @param infoList options of the poll, in any order
+     * @return the result
+     * @throws IOException if an I/O error occurs or the result refers to an
+     *         option not in the poll
+     */
+    public static RankedResult readFrom(DataInputStream in, List<Info> infoList) throws IOException {
+        Map<Long, Info> byID = new HashMap<>();
+        for (Info info : infoList) {
+            byID.put(info.id, info);
+        }
+
+        long ballots = in.readLong();
+        int n = in.readInt();
+        if (n != infoList.size()) {
+            throw new IOException("Ranked result of " + n + " options, the poll has " + infoList.size() + ".");
+        }
+        List<Info> options = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            options.add(option(byID, in.readLong()));
+        }
+        Info winner = option(byID, in.readLong());
+
+        int count = in.readInt();
+        List<Round> rounds = new ArrayList<>(Math.min(count, n));
+        for (int r = 0; r < count; r++) {
+            int number = in.readInt();
+            long[] votes = new long[n];
+            for (int i = 0; i < n; i++) {
+                votes[i] = in.readLong();
+            }
+            long exhausted = in.readLong();
+            rounds.add(new Round(number, votes, exhausted, option(byID, in.readLong())));
+        }
+        return new RankedResult(options, rounds, winner, ballots);
+    }
+
+    /**
+     * Returns the option with the specified <tt>id</tt>, or <tt>null</tt> if
+     * the ID is -1.
+     *
+     * @param byID options mapped by ID
+     * @param id ID of the option, or -1
+     * @return the option, or <tt>null</tt>
+     * @throws IOException if there is no option with the ID
+     */
+    private static Info option(Map<Long, Info> byID, long id) throws IOException {
+        if (id == -1) {
+            return null;
+        }
+        Info option = byID.get(id);
+        if (option == null) {
+            throw new IOException("Ranked result refers to unknown option " + id + ".");
+        }
+        return option;
+    }
+
+    /**
+     * A round of the count.
+     *
+     * @author Mario Bobic
+     */
+    public static class Round {
+        /** Number of the round, starting from 1. */
+        private final int number;
+        /** Votes of options, or -1 for options eliminated earlier. */
+        private final long[] votes;
+        /** Number of ballots with no option left in the race. */
+        private final long exhausted;
+        /** Option eliminated after this round, or <tt>null</tt>. */
+        private final Info eliminated;
+
+        /**
+         * Constructs an instance of {@code Round} with the specified
+         * arguments.
+         *
+         * @param number number of the round, starting from 1
+         * @param votes votes of options, or -1 for options eliminated earlier
+         * @param exhausted number of ballots with no option left in the race
+         * @param eliminated option eliminated after this round, or
+         *        <tt>null</tt> if this is the last round
+         */
+        Round(int number, long[] votes, long exhausted, Info eliminated) {
+            this.number = number;
+            this.votes = votes;
+            this.exhausted = exhausted;
+            this.eliminated = eliminated;
+        }
+
+        /**
+         * Returns the number of the round, starting from 1.
+         *
+         * @return the number of the round
+         */
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * Returns the votes of the options in this round, in the order of
+         * {@linkplain RankedResult#getOptions() options}, with <tt>-1</tt>
+         * for options eliminated in earlier rounds. The array must not be
+         * modified.
+         *
+         * @return the votes of the options
+         */
+        public long[] getVotes() {
+            return votes;
+        }
+
+        /**
+         * Returns the number of ballots with no option left in the race.
+         *
+         * @return the number of exhausted ballots
+         */
+        public long getExhausted() {
+            return exhausted;
+        }
+
+        /**
+         * Returns the option eliminated after this round, or <tt>null</tt>
+         * if this is the last round.
+         *
+         * @return the eliminated option, or <tt>null</tt>
+         */
+        public Info getEliminated() {
+            return eliminated;
+        }
+    }
+
+}
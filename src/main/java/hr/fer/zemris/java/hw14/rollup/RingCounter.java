@@ -0,0 +1,137 @@
+package hr.fer.zemris.java.hw14.rollup;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A ring buffer of counters, one per time bucket of a fixed resolution,
+ * holding the most recent buckets. Every slot remembers which bucket it
+ * counts, so a slot left from an older round of the ring is reset when it is
+ * reused and reads as zero until then. Counting and reading take constant
+ * time per bucket, no matter how many events have been counted.
+ *
+ * @author Mario Bobic
+ */
+public class RingCounter {
+
+    /** Length of a bucket in milliseconds. */
+    private final long resolution;
+    /** Bucket number counted by every slot, or -1. */
+    private final long[] buckets;
+    /** Counts of the slots. */
+    private final long[] counts;
+
+    /**
+     * Constructs an instance of {@code RingCounter} with the specified
+     * resolution and number of buckets.
+     *
+     * @param resolution length of a bucket in milliseconds
+     * @param size number of buckets kept
+     */
+    public RingCounter(long resolution, int size) {
+        this.resolution = resolution;
+        this.buckets = new long[size];
+        this.counts = new long[size];
+        Arrays.fill(buckets, -1);
+    }
+
+    /**
+     * Adds the specified count to the bucket of the specified time.
+     *
+     * @param time time in milliseconds
+     * @param count count to be added
+     */
+    public synchronized void add(long time, long count) {
+        long bucket = time / resolution;
+        int slot = (int) (bucket % buckets.length);
+        if (buckets[slot] != bucket) {
+            if (buckets[slot] > bucket) {
+                return; // too old to be kept
+            }
+            buckets[slot] = bucket;
+            counts[slot] = 0;
+        }
+        counts[slot] += count;
+    }
+
+    /**
+     * Returns the counts of the specified number of buckets ending with the
+     * bucket of the specified time, oldest first.
+     *
+     * @param time time in milliseconds of the last bucket
+     * @param n number of buckets, at most the size of the ring
+     * @return counts of the buckets
+     */
+    public synchronized long[] read(long time, int n) {
+        n = Math.min(n, buckets.length);
+        long last = time / resolution;
+        long[] result = new long[n];
+        for (int i = 0; i < n; i++) {
+            long bucket = last - n + 1 + i;
+            int slot = (int) (bucket % buckets.length);
+            if (bucket >= 0 && buckets[slot] == bucket) {
+                result[i] = counts[slot];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the length of a bucket in milliseconds.
+     *
+     * @return the resolution of the ring
+     */
+    public long getResolution() {
+        return resolution;
+    }
+
+    /**
+     * Returns the number of buckets kept.
+     *
+     * @return the size of the ring
+     */
+    public int getSize() {
+        return buckets.length;
+    }
+
+    /**
+     * Writes the used slots to the specified output.
+     *
+     * @param out the output
+     * @throws IOException if an I/O error occurs
+     */
+    synchronized void writeTo(DataOutput out) throws IOException {
+        int used = 0;
+        for (long bucket : buckets) {
+            if (bucket >= 0) {
+                used++;
+            }
+        }
+        out.writeInt(used);
+        for (int slot = 0; slot < buckets.length; slot++) {
+            if (buckets[slot] >= 0) {
+                out.writeLong(buckets[slot]);
+                out.writeLong(counts[slot]);
+            }
+        }
+    }
+
+    /**
+     * Reads slots written by {@linkplain #writeTo(DataOutput)} and adds them
+     * to this ring.
+     *
+     * @param in the input
+     * @throws IOException if an I/O error occurs
+     */
+    void readFrom(DataInput in) throws IOException {
+        int used = in.readInt();
+        for (int i = 0; i < used; i++) {
+            long bucket = in.readLong();
+            long count = in.readLong();
+            add(bucket * resolution, count);
+        }
+    }
+
+}
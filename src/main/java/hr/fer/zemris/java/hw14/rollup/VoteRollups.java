@@ -0,0 +1,362 @@
+package hr.fer.zemris.java.hw14.rollup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Votes per poll option over time, counted in {@linkplain RingCounter ring
+ * buffers} at three {@linkplain Resolution resolutions}: the last five minutes
+ * by second, the last day by minute and the last thirty days by hour. Counting
+ * a vote takes constant time, and reading a trend takes time proportional to
+ * the number of buckets read, not to the number of votes.
+ * <p>
+ * The counters are written to a file periodically and when the application
+ * stops, and read back when it starts, so trends survive restarts.
+ * <p>
+ * Every counted option takes tens of kilobytes, in memory and in the file,
+ * for as long as the application runs. Votes must therefore be recorded only
+ * once the database has counted them in the poll they name, and the number
+ * of options is limited by <tt>maxOptions</tt>; votes for further options
+ * are not counted in trends.
+ *
+ * @author Mario Bobic
+ */
+public class VoteRollups {
+
+    /** Logger of the rollups. */
+    private static final Logger LOGGER = Logger.getLogger(VoteRollups.class.getName());
+
+    /** Magic number and version of the rollup file. */
+    private static final int FILE_MAGIC = 0x524F4C01;
+
+    /** The rollups of the application, or <tt>null</tt>. */
+    private static volatile VoteRollups instance;
+
+    /**
+     * Resolution of a trend.
+     *
+     * @author Mario Bobic
+     */
+    public enum Resolution {
+        /** Buckets of one second, kept for five minutes. */
+        SECOND(1000L, 300),
+        /** Buckets of one minute, kept for one day. */
+        MINUTE(60_000L, 1440),
+        /** Buckets of one hour, kept for thirty days. */
+        HOUR(3_600_000L, 720);
+
+        /** Length of a bucket in milliseconds. */
+        public final long millis;
+        /** Number of buckets kept. */
+        public final int size;
+
+        /**
+         * Constructs a resolution with the specified bucket length and number
+         * of buckets.
+         *
+         * @param millis length of a bucket in milliseconds
+         * @param size number of buckets kept
+         */
+        Resolution(long millis, int size) {
+            this.millis = millis;
+            this.size = size;
+        }
+
+        /**
+         * Returns the resolution with the specified case-insensitive name.
+         *
+         * @param name name of the resolution
+         * @return the resolution
+         * @throws IllegalArgumentException if there is no such resolution
+         */
+        public static Resolution of(String name) {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /** Counters of every option, mapped by poll ID and option ID. */
+    private final Map<Long, Map<Long, RingCounter[]>> polls = new ConcurrentHashMap<>();
+    /** Maximum number of options whose votes are counted. */
+    private final int maxOptions;
+    /** Number of options whose votes are counted. */
+    private final AtomicLong optionCount = new AtomicLong();
+    /** Number of votes not counted because there were too many options. */
+    private final AtomicLong dropped = new AtomicLong();
+    /** File the counters are kept in. */
+    private final Path file;
+    /** Thread writing the counters periodically. */
+    private final ScheduledExecutorService persister;
+    /** Number of times the counters were written. */
+    private volatile long persisted;
+    /** Duration of the last write in milliseconds. */
+    private volatile long persistMillis;
+
+    /**
+     * Constructs an instance of {@code VoteRollups} that keeps its counters
+     * in the specified file, reading them from it if it exists, and writes
+     * them every <tt>persistMillis</tt> milliseconds.
+     *
+     * @param file file the counters are kept in
+     * @param persistMillis interval of writing the counters, in milliseconds
+     * @param maxOptions maximum number of options whose votes are counted
+     */
+    public VoteRollups(Path file, long persistMillis, int maxOptions) {
+        this.maxOptions = maxOptions;
+        this.file = file;
+        if (Files.exists(file)) {
+            try {
+                load();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to read vote rollups from " + file + ", starting empty.", e);
+            }
+        }
+
+        persister = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "rollup-persister");
+            t.setDaemon(true);
+            return t;
+        });
+        persister.scheduleWithFixedDelay(this::persistQuietly, persistMillis, persistMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the rollups of the application, or <tt>null</tt> if there are
+     * none.
+     *
+     * @return the rollups of the application
+     */
+    public static VoteRollups getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the rollups of the application.
+     *
+     * @param rollups the rollups, or <tt>null</tt>
+     */
+    public static void setInstance(VoteRollups rollups) {
+        instance = rollups;
+    }
+
+    /**
+     * Counts the specified number of votes for the option with the specified
+     * <tt>optionID</tt> of the poll with the specified <tt>pollID</tt>, at the
+     * current time. Does nothing if there are no rollups. Must be called only
+     * after the database has counted the votes, so that the option is known
+     * to belong to the poll.
+     *
+     * @param pollID ID of the poll the votes were counted in
+     * @param optionID ID of the option
+     * @param count number of votes
+     */
+    public static void record(long pollID, long optionID, long count) {
+        VoteRollups rollups = instance;
+        if (rollups != null) {
+            rollups.add(pollID, optionID, System.currentTimeMillis(), count);
+        }
+    }
+
+    /**
+     * Counts the specified number of votes for the specified option at the
+     * specified time.
+     *
+     * @param pollID ID of the poll
+     * @param optionID ID of the option
+     * @param time time of the votes in milliseconds
+     * @param count number of votes
+     */
+    public void add(long pollID, long optionID, long time, long count) {
+        RingCounter[] rings = rings(pollID, optionID);
+        if (rings == null) {
+            dropped.addAndGet(count);
+            return;
+        }
+        for (RingCounter ring : rings) {
+            ring.add(time, count);
+        }
+    }
+
+    /**
+     * Returns the counts of the last <tt>n</tt> buckets of the specified
+     * resolution, up to and including the bucket of the specified time, for
+     * every option of the poll with the specified <tt>pollID</tt> that has
+     * been voted for. Counts are mapped by option ID and oldest first.
+     *
+     * @param pollID ID of the poll
+     * @param resolution resolution of the buckets
+     * @param time time in milliseconds of the last bucket
+     * @param n number of buckets, at most the number kept
+     * @return counts of the buckets mapped by option ID
+     */
+    public Map<Long, long[]> trend(long pollID, Resolution resolution, long time, int n) {
+        Map<Long, long[]> trend = new TreeMap<>();
+        Map<Long, RingCounter[]> options = polls.get(pollID);
+        if (options != null) {
+            options.forEach((optionID, rings) -> trend.put(optionID, rings[resolution.ordinal()].read(time, n)));
+        }
+        return trend;
+    }
+
+    /**
+     * Returns the rings of the specified option, creating them if necessary,
+     * or <tt>null</tt> if they do not exist and the votes of
+     * <tt>maxOptions</tt> options are already counted.
+     *
+     * @param pollID ID of the poll
+     * @param optionID ID of the option
+     * @return rings of the option, one per resolution, or <tt>null</tt>
+     */
+    private RingCounter[] rings(long pollID, long optionID) {
+        Map<Long, RingCounter[]> options = polls.get(pollID);
+        RingCounter[] rings = options == null ? null : options.get(optionID);
+        if (rings != null) {
+            return rings;
+        }
+
+        synchronized (polls) {
+            if (optionCount.get() >= maxOptions) {
+                return null;
+            }
+            return polls.computeIfAbsent(pollID, id -> new ConcurrentHashMap<>())
+                        .computeIfAbsent(optionID, id -> {
+                            optionCount.incrementAndGet();
+                            return newRings();
+                        });
+        }
+    }
+
+    /**
+     * Returns new empty rings, one per resolution.
+     *
+     * @return new rings
+     */
+    private static RingCounter[] newRings() {
+        Resolution[] resolutions = Resolution.values();
+        RingCounter[] rings = new RingCounter[resolutions.length];
+        for (int i = 0; i < rings.length; i++) {
+            rings[i] = new RingCounter(resolutions[i].millis, resolutions[i].size);
+        }
+        return rings;
+    }
+
+    /**
+     * Writes all counters to the file, replacing it at once.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void persist() throws IOException {
+        long start = System.nanoTime();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(FILE_MAGIC);
+            for (Map.Entry<Long, Map<Long, RingCounter[]>> poll : polls.entrySet()) {
+                for (Map.Entry<Long, RingCounter[]> option : poll.getValue().entrySet()) {
+                    out.writeBoolean(true);
+                    out.writeLong(poll.getKey());
+                    out.writeLong(option.getKey());
+                    for (RingCounter ring : option.getValue()) {
+                        ring.writeTo(out);
+                    }
+                }
+            }
+            out.writeBoolean(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        persistMillis = (System.nanoTime() - start) / 1_000_000;
+        persisted++;
+    }
+
+    /**
+     * Writes all counters to the file, logging a failure.
+     */
+    private void persistQuietly() {
+        try {
+            persist();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write vote rollups to " + file + ".", e);
+        }
+    }
+
+    /**
+     * Reads the counters from the file.
+     *
+     * @throws IOException if an I/O error occurs or the file is invalid
+     */
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC) {
+                throw new IOException("Not a vote rollup file.");
+            }
+            while (in.readBoolean()) {
+                long pollID = in.readLong();
+                long optionID = in.readLong();
+                RingCounter[] rings = rings(pollID, optionID);
+                for (RingCounter ring : rings != null ? rings : newRings()) {
+                    ring.readFrom(in);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of options whose votes are counted.
+     *
+     * @return the number of options
+     */
+    public long getOptionCount() {
+        return optionCount.get();
+    }
+
+    /**
+     * Returns the number of votes not counted because the votes of
+     * <tt>maxOptions</tt> options were already counted.
+     *
+     * @return the number of dropped votes
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the number of times the counters were written to the file.
+     *
+     * @return the number of writes
+     */
+    public long getPersisted() {
+        return persisted;
+    }
+
+    /**
+     * Returns the duration of the last write of the counters in milliseconds.
+     *
+     * @return the duration of the last write
+     */
+    public long getPersistMillis() {
+        return persistMillis;
+    }
+
+    /**
+     * Stops writing periodically and writes the counters one last time.
+     */
+    public void shutdown() {
+        persister.shutdownNow();
+        persistQuietly();
+    }
+
+}
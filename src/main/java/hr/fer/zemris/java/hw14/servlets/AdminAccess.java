@@ -0,0 +1,67 @@
+package hr.fer.zemris.java.hw14.servlets;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Access control of the administrative servlets. A request is allowed if its
+ * <tt>Authorization</tt> header is <tt>Bearer</tt> followed by the secret
+ * given in the <tt>admin.token</tt> context parameter. If the parameter is
+ * not set or is empty, administrative actions are disabled altogether.
+ * <p>
+ * The remote address of a request is not trusted, because behind a local
+ * load balancer or reverse proxy every request comes from the local host.
+ *
+ * @author Mario Bobic
+ */
+final class AdminAccess {
+
+    /** Prefix of the <tt>Authorization</tt> header value. */
+    private static final String BEARER = "Bearer ";
+
+    /**
+     * Disable instantiation.
+     */
+    private AdminAccess() {
+    }
+
+    /**
+     * Returns true if the specified request carries the administrative
+     * secret. Otherwise sends an error to the specified response and returns
+     * false.
+     *
+     * @param req HTTP servlet request
+     * @param resp HTTP servlet response
+     * @return true if the administrative action may be done
+     * @throws IOException if the error can not be sent
+     */
+    static boolean check(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        ServletContext context = req.getServletContext();
+        String token = context == null ? null : context.getInitParameter("admin.token");
+        if (token == null || token.trim().isEmpty()) {
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN, "Administration is disabled.");
+            return false;
+        }
+
+        String header = req.getHeader("Authorization");
+        if (header == null || !header.startsWith(BEARER)) {
+            resp.setHeader("WWW-Authenticate", "Bearer");
+            resp.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            return false;
+        }
+
+        byte[] expected = token.trim().getBytes(StandardCharsets.UTF_8);
+        byte[] actual = header.substring(BEARER.length()).trim().getBytes(StandardCharsets.UTF_8);
+        if (!MessageDigest.isEqual(expected, actual)) {
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return false;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,396 @@
+package hr.fer.zemris.java.hw14.servlets;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import hr.fer.zemris.java.hw14.JSONWriter;
+import hr.fer.zemris.java.hw14.VotingUtil;
+import hr.fer.zemris.java.hw14.VotingUtil.Info;
+import hr.fer.zemris.java.hw14.VotingUtil.Poll;
+import hr.fer.zemris.java.hw14.archive.ClosedPolls;
+import hr.fer.zemris.java.hw14.archive.PollArtifacts;
+import hr.fer.zemris.java.hw14.cache.PollVersions;
+import hr.fer.zemris.java.hw14.timing.RequestTiming;
+import hr.fer.zemris.java.tecaj_14.dao.DAOException;
+import hr.fer.zemris.java.tecaj_14.dao.DAOProvider;
+import hr.fer.zemris.java.tecaj_14.dao.NoSuchPollException;
+import hr.fer.zemris.java.tecaj_14.dao.sql.DBContext;
+
+/**
+ * This servlet is a read-only JSON API of polls and their results, meant for
+ * frontends and dashboards. It serves the following resources:
+ * <ul>
+ * <li><tt>/api/polls</tt> - all polls,
+ * <li><tt>/api/polls/{pollID}</tt> - a poll with its options,
+ * <li><tt>/api/polls/{pollID}/results</tt> - votes and ranks of the options of
+ * a poll, sorted by votes, and the IDs of the winners.
+ * </ul>
+ * The JSON is written with a {@linkplain JSONWriter} straight from the lists
+ * returned by the DAO, and compressed with gzip if the client accepts it.
+ * <p>
+ * Every response carries an <tt>ETag</tt> made from the {@linkplain
+ * PollVersions version} of the data it was made from. A request whose
+ * <tt>If-None-Match</tt> header holds the current tag is answered with
+ * <tt>304 Not Modified</tt> before the database is accessed.
+ * <p>
+ * The results of a {@linkplain ClosedPolls closed} poll are served from its
+ * {@linkplain PollArtifacts artifacts}, and may be cached by clients for good.
+ *
+ * @author Mario Bobic
+ */
+@WebServlet(name="api", urlPatterns={"/api/*"})
+public class ApiServlet extends HttpServlet {
+    /** Serialization UID. */
+    private static final long serialVersionUID = 1L;
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(ApiServlet.class.getName());
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        String path = req.getPathInfo();
+        String[] parts = path == null ? new String[0] : path.substring(1).split("/");
+        if (parts.length == 0 || parts.length > 3 || !parts[0].equals("polls")) {
+            sendError(resp, HttpServletResponse.SC_NOT_FOUND, "Unknown resource.");
+            return;
+        }
+
+        if (parts.length == 1) {
+            String etag = etag(req, "polls-" + PollVersions.getCatalog());
+            if (!notModified(req, resp, etag)) {
+                writePolls(req, resp, etag);
+            }
+            return;
+        }
+
+        long pollID;
+        try {
+            pollID = Long.parseLong(parts[1]);
+        } catch (NumberFormatException e) {
+            sendError(resp, HttpServletResponse.SC_BAD_REQUEST, "Poll ID must be a valid integer!");
+            return;
+        }
+
+        if (parts.length == 2) {
+            String etag = etag(req, "poll" + pollID + "-" + PollVersions.getCatalog());
+            if (!notModified(req, resp, etag)) {
+                writePoll(req, resp, etag, pollID);
+            }
+        } else if (parts[2].equals("results")) {
+            PollArtifacts artifacts = ClosedPolls.get(pollID);
+            if (artifacts != null) {
+                writeArtifact(req, resp, artifacts);
+                return;
+            }
+            String etag = etag(req, "results" + pollID + "-" + PollVersions.get(pollID));
+            if (!notModified(req, resp, etag)) {
+                writeResults(req, resp, etag, pollID);
+            }
+        } else {
+            sendError(resp, HttpServletResponse.SC_NOT_FOUND, "Unknown resource.");
+        }
+    }
+
+    /**
+     * Writes all polls.
+     *
+     * @param req HTTP servlet request
+     * @param resp HTTP servlet response
+     * @param etag tag of the response
+     * @throws IOException if an I/O error occurs
+     */
+    private static void writePolls(HttpServletRequest req, HttpServletResponse resp, String etag)
+            throws IOException {
+        long t = RequestTiming.start(req);
+        List<Poll> pollList = DAOProvider.getDao(DBContext.of(req)).getPollList();
+        RequestTiming.end(req, "db", t);
+
+        t = RequestTiming.start(req);
+        try (JSONWriter json = open(req, resp, etag)) {
+            json.beginArray();
+            for (Poll poll : pollList) {
+                writePollFields(json.beginObject(), poll);
+                json.endObject();
+            }
+            json.endArray();
+        }
+        RequestTiming.end(req, "render", t);
+    }
+
+    /**
+     * Writes the poll with the specified <tt>pollID</tt> and its options.
+     *
+     * @param req HTTP servlet request
+     * @param resp HTTP servlet response
+     * @param etag tag of the response
+     * @param pollID poll ID
+     * @throws IOException if an I/O error occurs
+     */
+    private static void writePoll(HttpServletRequest req, HttpServletResponse resp, String etag, long pollID)
+            throws IOException {
+        long t = RequestTiming.start(req);
+        Poll poll;
+        List<Info> infoList;
+        try {
+            poll = DAOProvider.getDao(DBContext.of(req)).getPoll(pollID);
+            infoList = DAOProvider.getDao(DBContext.of(req)).getInfoList(pollID);
+        } catch (NoSuchPollException e) {
+            sendError(resp, HttpServletResponse.SC_NOT_FOUND, "Poll " + pollID + " does not exist.");
+            return;
+        } catch (DAOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load poll " + pollID + ".", e);
+            sendError(resp, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Poll " + pollID + " could not be loaded.");
+            return;
+        }
+        RequestTiming.end(req, "db", t);
+
+        t = RequestTiming.start(req);
+        try (JSONWriter json = open(req, resp, etag)) {
+            writePollFields(json.beginObject(), poll);
+            json.name("options").beginArray();
+            for (Info info : infoList) {
+                json.beginObject();
+                json.name("id").value(info.id);
+                json.name("name").value(info.name);
+                json.name("link").value(info.link);
+                json.endObject();
+            }
+            json.endArray();
+            json.endObject();
+        }
+        RequestTiming.end(req, "render", t);
+    }
+
+    /**
+     * Writes the results of the poll with the specified <tt>pollID</tt>,
+     * sorted by votes.
+     *
+     * @param req HTTP servlet request
+     * @param resp HTTP servlet response
+     * @param etag tag of the response
+     * @param pollID poll ID
+     * @throws IOException if an I/O error occurs
+     */
+    private static void writeResults(HttpServletRequest req, HttpServletResponse resp, String etag, long pollID)
+            throws IOException {
+        long t = RequestTiming.start(req);
+        List<Info> infoList = DAOProvider.getDao(DBContext.of(req)).getInfoList(pollID);
+        RequestTiming.end(req, "db", t);
+
+        if (infoList.isEmpty()) {
+            sendError(resp, HttpServletResponse.SC_NOT_FOUND, "Poll " + pollID + " does not exist.");
+            return;
+        }
+
+        t = RequestTiming.start(req);
+        infoList.sort(Info.BY_VOTES);
+        RequestTiming.end(req, "sort", t);
+
+        t = RequestTiming.start(req);
+        try (JSONWriter json = open(req, resp, etag)) {
+            writeResults(json, pollID, infoList);
+        }
+        RequestTiming.end(req, "render", t);
+    }
+
+    /**
+     * Writes the results of the poll with the specified <tt>pollID</tt> as a
+     * JSON object, in the format of the <tt>/api/polls/{pollID}/results</tt>
+     * resource. Poll options are ranked so that options with equal votes
+     * share a rank and the next rank is skipped, for an example
+     * <tt>1, 2, 2, 4</tt>.
+     *
+     * @param json the JSON writer
+     * @param pollID poll ID
+     * @param infoList info list, sorted by votes and not empty
+     * @throws IOException if an I/O error occurs
+     */
+    public static void writeResults(JSONWriter json, long pollID, List<Info> infoList) throws IOException {
+        long total = 0;
+        for (Info info : infoList) {
+            total += info.getVotes();
+        }
+
+        json.beginObject();
+        json.name("pollID").value(pollID);
+        json.name("totalVotes").value(total);
+        json.name("results").beginArray();
+        int rank = 0;
+        for (int i = 0; i < infoList.size(); i++) {
+            Info info = infoList.get(i);
+            if (i == 0 || info.getVotes() != infoList.get(i-1).getVotes()) {
+                rank = i + 1;
+            }
+            json.beginObject();
+            json.name("id").value(info.id);
+            json.name("name").value(info.name);
+            json.name("votes").value(info.getVotes());
+            json.name("rank").value(rank);
+            json.endObject();
+        }
+        json.endArray();
+
+        long maxVotes = infoList.get(0).getVotes();
+        json.name("winners").beginArray();
+        for (Info info : infoList) {
+            if (info.getVotes() < maxVotes) {
+                break;
+            }
+            json.value(info.id);
+        }
+        json.endArray();
+        json.endObject();
+    }
+
+    /**
+     * Writes the results of a closed poll from its artifacts, compressed with
+     * gzip if the client accepts it, with headers letting the client cache
+     * them for good.
+     *
+     * @param req HTTP servlet request
+     * @param resp HTTP servlet response
+     * @param artifacts artifacts of the poll
+     * @throws IOException if an I/O error occurs
+     */
+    private static void writeArtifact(HttpServletRequest req, HttpServletResponse resp, PollArtifacts artifacts)
+            throws IOException {
+        if (artifacts.getJSON().length == 0) {
+            sendError(resp, HttpServletResponse.SC_NOT_FOUND, "Poll " + artifacts.getPollID() + " has no options.");
+            return;
+        }
+
+        boolean gzip = VotingUtil.acceptsGzip(req);
+        resp.setHeader("Vary", "Accept-Encoding");
+        if (artifacts.notModified(req, resp, gzip ? "json-gzip" : "json")) {
+            return;
+        }
+
+        byte[] body = gzip ? artifacts.getGzipJSON() : artifacts.getJSON();
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        if (gzip) {
+            resp.setHeader("Content-Encoding", "gzip");
+        }
+        resp.setContentLength(body.length);
+        resp.getOutputStream().write(body);
+    }
+
+    /**
+     * Writes the fields of the specified <tt>poll</tt> to the current object.
+     *
+     * @param json the JSON writer
+     * @param poll the poll
+     * @throws IOException if an I/O error occurs
+     */
+    private static void writePollFields(JSONWriter json, Poll poll) throws IOException {
+        json.name("id").value(poll.id);
+        json.name("title").value(poll.title);
+        json.name("message").value(poll.message);
+        json.name("closed").value(ClosedPolls.isClosed(poll.id));
+    }
+
+    /**
+     * Returns the tag of a response made of the specified <tt>version</tt> of
+     * the requested resource. Compressed and uncompressed responses have
+     * different tags.
+     *
+     * @param req HTTP servlet request
+     * @param version version of the requested resource
+     * @return the tag of the response
+     */
+    private static String etag(HttpServletRequest req, String version) {
+        return "\"" + version + (VotingUtil.acceptsGzip(req) ? "-gzip" : "") + "\"";
+    }
+
+    /**
+     * Checks the <tt>If-None-Match</tt> header of the request against the
+     * specified tag. If the tag matches, the response is set to <tt>304 Not
+     * Modified</tt> and <tt>true</tt> is returned.
+     *
+     * @param req HTTP servlet request
+     * @param resp HTTP servlet response
+     * @param etag current tag of the requested resource
+     * @return true if the response has been set to <tt>304 Not Modified</tt>
+     */
+    private static boolean notModified(HttpServletRequest req, HttpServletResponse resp, String etag) {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag) || tag.equals("*")) {
+                resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                resp.setHeader("ETag", etag);
+                resp.setHeader("Vary", "Accept-Encoding");
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets up the response for JSON with the specified tag and returns a
+     * writer of its body, compressed with gzip if the client accepts it.
+     * Closing the writer finishes the compressed stream.
+     *
+     * @param req HTTP servlet request
+     * @param resp HTTP servlet response
+     * @param etag tag of the response
+     * @return a JSON writer of the response body
+     * @throws IOException if an I/O error occurs
+     */
+    private static JSONWriter open(HttpServletRequest req, HttpServletResponse resp, String etag)
+            throws IOException {
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("ETag", etag);
+        resp.setHeader("Cache-Control", "no-cache");
+        resp.setHeader("Vary", "Accept-Encoding");
+
+        OutputStream out = resp.getOutputStream();
+        if (VotingUtil.acceptsGzip(req)) {
+            resp.setHeader("Content-Encoding", "gzip");
+            out = new GZIPOutputStream(out, 8192);
+        }
+        return new JSONWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 8192));
+    }
+
+    /**
+     * Sends an error with the specified <tt>status</tt> and <tt>message</tt>
+     * as a JSON object. The response is never cached.
+     *
+     * @param resp HTTP servlet response
+     * @param status HTTP status code
+     * @param message error message
+     * @throws IOException if an I/O error occurs
+     */
+    private static void sendError(HttpServletResponse resp, int status, String message) throws IOException {
+        resp.setStatus(status);
+        resp.setHeader("Cache-Control", "no-store");
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+
+        JSONWriter json = new JSONWriter(resp.getWriter());
+        json.beginObject();
+        json.name("error").value(message);
+        json.endObject();
+        json.flush();
+    }
+
+}
@@ -0,0 +1,145 @@
+package hr.fer.zemris.java.hw14.servlets;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import hr.fer.zemris.java.hw14.JSONWriter;
+import hr.fer.zemris.java.hw14.VotingUtil.Info;
+import hr.fer.zemris.java.hw14.events.VoteEventStore;
+import hr.fer.zemris.java.tecaj_14.dao.DAOProvider;
+import hr.fer.zemris.java.tecaj_14.dao.sql.DBContext;
+
+/**
+ * This servlet returns the votes kept in the {@linkplain VoteEventStore} for
+ * a time range given by the <tt>from</tt> (inclusive) and <tt>to</tt>
+ * (exclusive) parameters, in milliseconds since the epoch. The range defaults
+ * to the last hour and may be at most a day long.
+ * <p>
+ * By default the number of votes per option is returned as a JSON object. If
+ * the <tt>pollID</tt> parameter is given, only the options of that poll are
+ * counted, with their names. If the <tt>format</tt> parameter is <tt>csv</tt>,
+ * every vote is returned instead, one per line, with its time, option ID,
+ * number of votes and client hash, up to {@value #MAX_ROWS} votes; the limit
+ * is sent in the <tt>X-Row-Limit</tt> header, so a client that receives that
+ * many votes knows to ask for a shorter range.
+ * <p>
+ * Client hashes tell voters apart, so the audit is an administrative action
+ * and requires the {@linkplain AdminAccess administrative secret}.
+ *
+ * @author Mario Bobic
+ */
+@WebServlet(name="glasanje-audit", urlPatterns={"/glasanje-audit"})
+public class GlasanjeAuditServlet extends HttpServlet {
+    /** Serialization UID. */
+    private static final long serialVersionUID = 1L;
+
+    /** Length of the default time range in milliseconds. */
+    private static final long DEFAULT_RANGE = 3600000;
+    /** Maximum length of the time range in milliseconds. */
+    private static final long MAX_RANGE = 86400000;
+    /** Maximum number of votes returned as CSV. */
+    private static final int MAX_ROWS = 100000;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        if (!AdminAccess.check(req, resp)) {
+            return;
+        }
+
+        long from;
+        long to;
+        Long pollID;
+        try {
+            String toParam = req.getParameter("to");
+            String fromParam = req.getParameter("from");
+            String pollParam = req.getParameter("pollID");
+            to = toParam == null ? System.currentTimeMillis() + 1 : Long.parseLong(toParam);
+            from = fromParam == null ? to - DEFAULT_RANGE : Long.parseLong(fromParam);
+            pollID = pollParam == null ? null : Long.valueOf(pollParam);
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Time range and poll ID must be valid integers!");
+            return;
+        }
+        if (from > to || to - from > MAX_RANGE) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Time range must not be reversed or longer than " + MAX_RANGE + " ms!");
+            return;
+        }
+
+        VoteEventStore store = VoteEventStore.getInstance();
+        if (store == null) {
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Vote events are not stored.");
+            return;
+        }
+
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-store");
+
+        if ("csv".equals(req.getParameter("format"))) {
+            resp.setContentType("text/csv");
+            resp.setHeader("X-Row-Limit", Integer.toString(MAX_ROWS));
+            PrintWriter out = resp.getWriter();
+            out.println("time,optionID,count,clientHash");
+            int[] rows = {0};
+            store.scan(from, to, (time, optionID, count, clientHash) -> {
+                if (rows[0]++ >= MAX_ROWS) {
+                    return;
+                }
+                out.print(time);
+                out.print(',');
+                out.print(optionID);
+                out.print(',');
+                out.print(count);
+                out.print(',');
+                out.println(Integer.toHexString(clientHash));
+            });
+            out.flush();
+            return;
+        }
+
+        Map<Long, Long> votes = store.countVotes(from, to);
+        Map<Long, String> names = new LinkedHashMap<>();
+        if (pollID != null) {
+            for (Info info : DAOProvider.getDao(DBContext.of(req)).getInfoList(pollID)) {
+                names.put(info.id, info.name);
+            }
+        }
+
+        resp.setContentType("application/json");
+        JSONWriter json = new JSONWriter(resp.getWriter());
+        json.beginObject();
+        json.name("from").value(from);
+        json.name("to").value(to);
+        if (pollID != null) {
+            json.name("pollID").value(pollID);
+        }
+        long total = 0;
+        json.name("options").beginArray();
+        for (Map.Entry<Long, Long> entry : votes.entrySet()) {
+            if (pollID != null && !names.containsKey(entry.getKey())) {
+                continue;
+            }
+            json.beginObject();
+            json.name("id").value(entry.getKey());
+            if (pollID != null) {
+                json.name("name").value(names.get(entry.getKey()));
+            }
+            json.name("votes").value(entry.getValue());
+            json.endObject();
+            total += entry.getValue();
+        }
+        json.endArray();
+        json.name("totalVotes").value(total);
+        json.endObject();
+        json.flush();
+    }
+
+}
@@ -0,0 +1,203 @@
+package hr.fer.zemris.java.hw14.servlets;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import hr.fer.zemris.java.hw14.JSONWriter;
+import hr.fer.zemris.java.hw14.VotingUtil.Info;
+import hr.fer.zemris.java.hw14.archive.ClosedPolls;
+import hr.fer.zemris.java.hw14.cache.PollVersions;
+import hr.fer.zemris.java.hw14.guard.VoteGuard;
+import hr.fer.zemris.java.hw14.rollup.VoteRollups;
+import hr.fer.zemris.java.tecaj_14.dao.DAOProvider;
+import hr.fer.zemris.java.tecaj_14.dao.sql.DBContext;
+
+/**
+ * This servlet accepts votes in bulk, as collected by kiosks and partner sites.
+ * Since one request carries the votes of many voters, it is not checked by
+ * the {@linkplain VoteGuard}; instead it must carry the administrative secret
+ * checked by {@linkplain AdminAccess}.
+ * The request body is plain text where each line holds a poll option ID,
+ * optionally followed by the number of votes for that option (separated by a
+ * tab, space or comma). A line with only an ID counts as one vote, so the body
+ * may as well be a stream of single vote records.
+ * <p>
+ * Lines are validated against the options of the poll specified by the
+ * <tt>pollID</tt> parameter and votes for the same option are summed up, so
+ * the database receives at most one update per option, all sent as one JDBC
+ * batch in a single transaction. The response is a JSON object reporting the
+ * number of accepted votes, the number of rejected lines and options, and the
+ * first {@value #MAX_ERRORS} errors. A line is also rejected if its count is
+ * greater than the <tt>batch.maxCount</tt> context parameter, or if its votes
+ * would make the number of votes of its option overflow a <tt>long</tt>, and
+ * an option is rejected if its votes overflow by the time they are counted.
+ * Votes in a {@linkplain ClosedPolls closed} poll are rejected as a whole.
+ *
+ * @author Mario Bobic
+ */
+@WebServlet(name="glasanje-glasaj-batch", urlPatterns={"/glasanje-glasaj-batch"})
+public class GlasanjeGlasajBatchServlet extends HttpServlet {
+    /** Serialization UID. */
+    private static final long serialVersionUID = 1L;
+    /** Maximum number of errors reported in a response. */
+    private static final int MAX_ERRORS = 100;
+    /** Default maximum number of votes in a line. */
+    private static final long DEFAULT_MAX_COUNT = 100_000;
+
+    /** Maximum number of votes in a line. */
+    private long maxCount;
+
+    @Override
+    public void init() throws ServletException {
+        maxCount = DEFAULT_MAX_COUNT;
+        String value = getServletContext().getInitParameter("batch.maxCount");
+        if (value != null) {
+            try {
+                maxCount = Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                throw new ServletException("Invalid batch.maxCount: " + value, e);
+            }
+        }
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        if (!AdminAccess.check(req, resp)) {
+            return;
+        }
+
+        long pollID;
+        try {
+            pollID = Long.parseLong(req.getParameter("pollID"));
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Poll ID must be a valid integer!");
+            return;
+        }
+        if (ClosedPolls.isClosed(pollID)) {
+            resp.sendError(HttpServletResponse.SC_CONFLICT, "Poll " + pollID + " is closed.");
+            return;
+        }
+        DBContext context = DBContext.of(req);
+        if (context != null) {
+            context.setFingerprint(VoteGuard.fingerprint(req));
+        }
+
+        Map<Long, Long> stored = new HashMap<>();
+        for (Info info : DAOProvider.getDao(DBContext.of(req)).getInfoList(pollID)) {
+            stored.put(info.id, info.getVotes());
+        }
+
+        Map<Long, Long> votes = new TreeMap<>();
+        List<String> errors = new ArrayList<>();
+        long rejected = 0;
+
+        BufferedReader reader = req.getReader();
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            String[] attributes = line.split("[\\t ,]+");
+            long id;
+            long count;
+            try {
+                id = Long.parseLong(attributes[0]);
+                count = attributes.length > 1 ? Long.parseLong(attributes[1]) : 1L;
+            } catch (NumberFormatException e) {
+                rejected++;
+                addError(errors, "Line " + lineNumber + ": ID and count must be valid integers.");
+                continue;
+            }
+
+            String error = null;
+            if (attributes.length > 2) {
+                error = "Line " + lineNumber + ": expected at most 2 attributes.";
+            } else if (count <= 0) {
+                error = "Line " + lineNumber + ": count must be positive.";
+            } else if (count > maxCount) {
+                error = "Line " + lineNumber + ": count must be at most " + maxCount + ".";
+            } else if (!stored.containsKey(id)) {
+                error = "Line " + lineNumber + ": option " + id + " does not belong to poll " + pollID + ".";
+            } else if (count > Long.MAX_VALUE - stored.get(id) - votes.getOrDefault(id, 0L)) {
+                error = "Line " + lineNumber + ": too many votes for option " + id + ".";
+            }
+
+            if (error != null) {
+                rejected++;
+                addError(errors, error);
+            } else {
+                votes.merge(id, count, Long::sum);
+            }
+        }
+
+        long accepted = 0;
+        if (!votes.isEmpty()) {
+            long[] ids = new long[votes.size()];
+            long[] counts = new long[votes.size()];
+            int i = 0;
+            for (Map.Entry<Long, Long> entry : votes.entrySet()) {
+                ids[i] = entry.getKey();
+                counts[i] = entry.getValue();
+                i++;
+            }
+
+            int[] affectedRows = DAOProvider.getDao(DBContext.of(req)).voteBatch(pollID, ids, counts);
+            PollVersions.changed(pollID);
+            for (i = 0; i < ids.length; i++) {
+                if (affectedRows[i] == 0) {
+                    rejected++;
+                    addError(errors, "Option " + ids[i] + ": no longer exists in poll " + pollID
+                            + " or has too many votes.");
+                } else {
+                    accepted += counts[i];
+                    VoteRollups.record(pollID, ids[i], counts[i]);
+                }
+            }
+        }
+
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+
+        JSONWriter json = new JSONWriter(resp.getWriter());
+        json.beginObject();
+        json.name("pollID").value(pollID);
+        json.name("accepted").value(accepted);
+        json.name("rejected").value(rejected);
+        json.name("errors").beginArray();
+        for (String error : errors) {
+            json.value(error);
+        }
+        json.endArray();
+        json.endObject();
+        json.flush();
+    }
+
+    /**
+     * Adds the specified <tt>error</tt> to the specified list of errors,
+     * unless the list already holds {@value #MAX_ERRORS} errors.
+     *
+     * @param errors errors reported in the response
+     * @param error the error to be added
+     */
+    private static void addError(List<String> errors, String error) {
+        if (errors.size() < MAX_ERRORS) {
+            errors.add(error);
+        }
+    }
+
+}
@@ -1,6 +1,7 @@
 package hr.fer.zemris.java.hw14.servlets;
 
 import java.io.IOException;
+import java.util.List;
 
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
@@ -8,11 +9,38 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import hr.fer.zemris.java.hw14.JSONWriter;
+import hr.fer.zemris.java.hw14.VotingUtil.Info;
+import hr.fer.zemris.java.hw14.archive.ClosedPolls;
+import hr.fer.zemris.java.hw14.cache.PollVersions;
+import hr.fer.zemris.java.hw14.cache.ResultsSnapshot;
+import hr.fer.zemris.java.hw14.cache.SnapshotStore;
+import hr.fer.zemris.java.hw14.guard.VoteGuard;
+import hr.fer.zemris.java.hw14.guard.VoteGuard.Verdict;
+import hr.fer.zemris.java.hw14.rollup.VoteRollups;
+import hr.fer.zemris.java.hw14.timing.RequestTiming;
 import hr.fer.zemris.java.tecaj_14.dao.DAOProvider;
+import hr.fer.zemris.java.tecaj_14.dao.sql.DBContext;
 
 /**
  * This servlet represents a vote action. Vote with the <tt>id</tt> specified by
  * a parameter from the user will be increased by one, updating the database.
+ * <p>
+ * A <tt>GET</tt> request votes and redirects the user to the voting results
+ * page. A <tt>POST</tt> request votes and reads back the updated results in
+ * the same database transaction, sparing the client the redirect round trip.
+ * The results are then either rendered directly by the
+ * <tt>/WEB-INF/pages/votingResults.jsp</tt> file or returned as JSON if the
+ * <tt>format</tt> parameter is <tt>json</tt> or the client accepts
+ * <tt>application/json</tt>.
+ * <p>
+ * Votes in {@linkplain ClosedPolls closed} polls are rejected. Other votes
+ * are first checked by the {@linkplain VoteGuard}; repeated votes and clients
+ * voting too often are rejected before the database is accessed. An admitted
+ * vote is reserved by the guard until the database is done with it, and
+ * remembered only if the database has counted it in the poll, which also
+ * confirms that the option belongs to the poll.
+ * Counted votes are recorded in the {@linkplain VoteRollups} for trends.
  *
  * @author Mario Bobic
  */
@@ -33,10 +61,214 @@ public class GlasanjeGlasajServlet extends HttpServlet {
             req.getRequestDispatcher("/WEB-INF/pages/error.jsp").forward(req, resp);
             return;
         }
+        if (!admitted(req, resp, pollID)) {
+            return;
+        }
 
-        DAOProvider.getDao().vote(voteID);
+        long t = RequestTiming.start(req);
+        try {
+            DAOProvider.getDao(DBContext.of(req)).vote(pollID, voteID);
+            counted(req, pollID);
+        } finally {
+            released(req, pollID);
+        }
+        RequestTiming.end(req, "db", t);
+        PollVersions.changed(pollID);
+        VoteRollups.record(pollID, voteID, 1);
 
         resp.sendRedirect(req.getContextPath() + "/glasanje-rezultati?pollID="+pollID);
     }
 
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        long pollID;
+        long voteID;
+        try {
+            pollID = Long.parseLong(req.getParameter("pollID"));
+            voteID = Long.parseLong(req.getParameter("id"));
+        } catch (NumberFormatException e) {
+            req.setAttribute("error", "ID must be a valid integer!");
+            req.getRequestDispatcher("/WEB-INF/pages/error.jsp").forward(req, resp);
+            return;
+        }
+        if (!admitted(req, resp, pollID)) {
+            return;
+        }
+
+        // Read before the vote, so a vote counted by another request between
+        // the two can not be hidden behind a snapshot marked as current
+        String version = PollVersions.get(pollID);
+        long t = RequestTiming.start(req);
+        List<Info> infoList;
+        try {
+            infoList = DAOProvider.getDao(DBContext.of(req)).voteAndGetInfoList(pollID, voteID);
+            counted(req, pollID);
+        } finally {
+            released(req, pollID);
+        }
+        RequestTiming.end(req, "db", t);
+        PollVersions.changed(pollID);
+        VoteRollups.record(pollID, voteID, 1);
+
+        t = RequestTiming.start(req);
+        SnapshotStore store = SnapshotStore.getInstance();
+        if (store != null) {
+            ResultsSnapshot snapshot = store.put(pollID, version, infoList);
+            req.setAttribute("snapshotID", snapshot.getId());
+            infoList = snapshot.getInfoList();
+        } else {
+            infoList.sort(Info.BY_VOTES);
+        }
+        List<Info> winners = GlasanjeRezultatiServlet.getWinners(infoList);
+        RequestTiming.end(req, "sort", t);
+
+        t = RequestTiming.start(req);
+        if (acceptsJSON(req)) {
+            writeJSON(resp, pollID, infoList, winners);
+            RequestTiming.end(req, "render", t);
+            return;
+        }
+
+        req.setAttribute("pollID", pollID);
+        req.setAttribute("infoList", infoList);
+        req.setAttribute("winners", winners);
+        req.getRequestDispatcher("/WEB-INF/pages/votingResults.jsp").forward(req, resp);
+        RequestTiming.end(req, "render", t);
+    }
+
+    /**
+     * Rejects votes in {@linkplain ClosedPolls closed} polls, rendering the
+     * error page with the <tt>409 Conflict</tt> status. Otherwise records the
+     * fingerprint of the client in the {@linkplain DBContext} of the request,
+     * so the DAO can log it with the vote, and checks the vote with the
+     * {@linkplain VoteGuard}, if there is one. If the vote is rejected, the
+     * error page is rendered with the <tt>429 Too Many Requests</tt> status
+     * and false is returned. An admitted vote is reserved by the guard and
+     * must be {@linkplain #released(HttpServletRequest, long) released}.
+     *
+     * @param req HTTP servlet request
+     * @param resp HTTP servlet response
+     * @param pollID poll ID
+     * @return true if the vote may be counted
+     * @throws ServletException if the error page fails
+     * @throws IOException if an I/O error occurs
+     */
+    static boolean admitted(HttpServletRequest req, HttpServletResponse resp, long pollID)
+            throws ServletException, IOException {
+        if (ClosedPolls.isClosed(pollID)) {
+            resp.setStatus(HttpServletResponse.SC_CONFLICT);
+            req.setAttribute("error", "Poll " + pollID + " is closed.");
+            req.getRequestDispatcher("/WEB-INF/pages/error.jsp").forward(req, resp);
+            return false;
+        }
+
+        long fingerprint = VoteGuard.fingerprint(req);
+        DBContext context = DBContext.of(req);
+        if (context != null) {
+            context.setFingerprint(fingerprint);
+        }
+
+        VoteGuard guard = VoteGuard.getInstance();
+        if (guard == null) {
+            return true;
+        }
+
+        Verdict verdict = guard.check(VoteGuard.address(req), fingerprint, pollID);
+        if (verdict == Verdict.ACCEPTED) {
+            return true;
+        }
+        resp.setStatus(429);
+        resp.setHeader("Retry-After", "60");
+        req.setAttribute("error", verdict == Verdict.DUPLICATE
+                ? "You have already voted in this poll."
+                : "Too many votes, please try again later.");
+        req.getRequestDispatcher("/WEB-INF/pages/error.jsp").forward(req, resp);
+        return false;
+    }
+
+    /**
+     * Remembers a vote of the client of the specified request in the poll
+     * with the specified <tt>pollID</tt> in the {@linkplain VoteGuard}, if
+     * there is one. Must be called only after the database has counted the
+     * vote in that poll, so that a failed vote does not block the client and
+     * a vote naming the wrong poll is not remembered in it.
+     *
+     * @param req HTTP servlet request
+     * @param pollID ID of the poll the vote was counted in
+     */
+    static void counted(HttpServletRequest req, long pollID) {
+        VoteGuard guard = VoteGuard.getInstance();
+        if (guard != null) {
+            guard.record(VoteGuard.fingerprint(req), pollID);
+        }
+    }
+
+    /**
+     * Releases the reservation of an admitted vote of the client of the
+     * specified request in the poll with the specified <tt>pollID</tt> in the
+     * {@linkplain VoteGuard}, if there is one. Must be called once the
+     * database is done with the vote, whether it was counted or not.
+     *
+     * @param req HTTP servlet request
+     * @param pollID ID of the poll the vote was admitted in
+     */
+    static void released(HttpServletRequest req, long pollID) {
+        VoteGuard guard = VoteGuard.getInstance();
+        if (guard != null) {
+            guard.release(VoteGuard.fingerprint(req), pollID);
+        }
+    }
+
+    /**
+     * Returns true if the client asked for a JSON response, either with the
+     * <tt>format</tt> parameter or with the <tt>Accept</tt> header.
+     *
+     * @param req HTTP servlet request
+     * @return true if the client asked for a JSON response
+     */
+    private static boolean acceptsJSON(HttpServletRequest req) {
+        if ("json".equals(req.getParameter("format"))) {
+            return true;
+        }
+        String accept = req.getHeader("Accept");
+        return accept != null && accept.contains("application/json");
+    }
+
+    /**
+     * Writes the voting results of the poll with the specified
+     * <tt>pollID</tt> to the response as a JSON object.
+     *
+     * @param resp HTTP servlet response
+     * @param pollID poll ID
+     * @param infoList info list, sorted by votes
+     * @param winners winners of the poll
+     * @throws IOException if an I/O error occurs
+     */
+    private static void writeJSON(HttpServletResponse resp, long pollID, List<Info> infoList, List<Info> winners)
+            throws IOException {
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+
+        JSONWriter json = new JSONWriter(resp.getWriter());
+        json.beginObject();
+        json.name("pollID").value(pollID);
+        json.name("results").beginArray();
+        for (Info info : infoList) {
+            json.beginObject();
+            json.name("id").value(info.id);
+            json.name("name").value(info.name);
+            json.name("link").value(info.link);
+            json.name("votes").value(info.getVotes());
+            json.endObject();
+        }
+        json.endArray();
+        json.name("winners").beginArray();
+        for (Info info : winners) {
+            json.value(info.id);
+        }
+        json.endArray();
+        json.endObject();
+        json.flush();
+    }
+
 }
@@ -1,7 +1,9 @@
 package hr.fer.zemris.java.hw14.servlets;
 
+import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
@@ -15,16 +17,44 @@ import org.jfree.chart.JFreeChart;
 import org.jfree.chart.plot.PiePlot3D;
 import org.jfree.data.general.DefaultPieDataset;
 import org.jfree.data.general.PieDataset;
+import org.jfree.data.time.FixedMillisecond;
+import org.jfree.data.time.TimeSeries;
+import org.jfree.data.time.TimeSeriesCollection;
+import org.jfree.data.xy.XYDataset;
 import org.jfree.util.Rotation;
 
 import hr.fer.zemris.java.hw14.VotingUtil.Info;
+import hr.fer.zemris.java.hw14.archive.ClosedPolls;
+import hr.fer.zemris.java.hw14.archive.PollArtifacts;
+import hr.fer.zemris.java.hw14.cache.SnapshotStore;
+import hr.fer.zemris.java.hw14.jfr.Flight;
+import hr.fer.zemris.java.hw14.jfr.RenderEvent;
+import hr.fer.zemris.java.hw14.rollup.VoteRollups;
+import hr.fer.zemris.java.hw14.rollup.VoteRollups.Resolution;
+import hr.fer.zemris.java.hw14.timing.RequestTiming;
 import hr.fer.zemris.java.tecaj_14.dao.DAOProvider;
+import hr.fer.zemris.java.tecaj_14.dao.sql.DBContext;
 
 /**
  * This servlet represents a voting pie chart that creates a PNG image of the
  * chart using the {@linkplain JFreeChart}. The chart is <strong>not</strong>
  * predefined as voting results are dynamically changed. The image is written
  * to the output stream as a HTTP servlet response.
+ * <p>
+ * If the <tt>snapshot</tt> parameter names a {@linkplain SnapshotStore stored}
+ * results snapshot, the chart is drawn from it; otherwise the current results
+ * are read.
+ * <p>
+ * If the <tt>type</tt> parameter is <tt>trend</tt>, a line chart of votes per
+ * option over time is drawn instead, from the {@linkplain VoteRollups}, with
+ * the <tt>resolution</tt> and <tt>buckets</tt> parameters of the
+ * {@linkplain GlasanjeTrendServlet}. The options only label the lines, so
+ * their names are taken from the latest results snapshot of the poll if
+ * there is one, without accessing the database.
+ * <p>
+ * The pie chart of a {@linkplain ClosedPolls closed} poll is drawn only once,
+ * when the poll is closed, and served from its {@linkplain PollArtifacts
+ * artifacts}.
  *
  * @author Mario Bobic
  */
@@ -38,32 +68,94 @@ public class GlasanjeGrafikaServlet extends HttpServlet {
         resp.setContentType("image/png");
 
         long pollID;
+        boolean trend = "trend".equals(req.getParameter("type"));
+        Resolution resolution = null;
+        int buckets = 0;
         try {
             pollID = Long.parseLong(req.getParameter("pollID"));
-        } catch (NumberFormatException e) {
-            req.setAttribute("error", "Poll ID must be a valid integer!");
+            if (trend) {
+                resolution = GlasanjeTrendServlet.getResolution(req);
+                buckets = GlasanjeTrendServlet.getBuckets(req, resolution);
+            }
+        } catch (IllegalArgumentException e) {
+            req.setAttribute("error", trend
+                    ? "Invalid poll ID, resolution or number of buckets!"
+                    : "Poll ID must be a valid integer!");
             req.getRequestDispatcher("/WEB-INF/pages/error.jsp").forward(req, resp);
             return;
         }
-        List<Info> infoList = DAOProvider.getDao().getInfoList(pollID);
 
-        // Create dataset
-        PieDataset dataset = createDataset(infoList);
-        // Create a chart based on the dataset
-        JFreeChart chart = createChart(dataset, "Rezultati glasanja");
+        PollArtifacts artifacts = ClosedPolls.get(pollID);
+        if (artifacts != null && !trend) {
+            if (!artifacts.notModified(req, resp, "png")) {
+                resp.setContentLength(artifacts.getPNG().length);
+                resp.getOutputStream().write(artifacts.getPNG());
+            }
+            return;
+        }
+
+        long t = RequestTiming.start(req);
+        List<Info> infoList;
+        if (artifacts != null) {
+            infoList = artifacts.getInfoList();
+        } else if (trend) {
+            infoList = SnapshotStore.getOptions(DAOProvider.getDao(DBContext.of(req)), pollID);
+        } else {
+            infoList = SnapshotStore.getInfoList(DAOProvider.getDao(DBContext.of(req)),
+                    req.getParameter("snapshot"), pollID);
+        }
+        RequestTiming.end(req, "db", t);
 
-        // Convert to an image and encode it
-        byte[] image = ChartUtilities.encodeAsPNG(chart.createBufferedImage(400, 300));
+        RenderEvent event = Flight.ENABLED ? new RenderEvent("png", pollID, infoList.size()) : null;
+        byte[] image = null;
+        try {
+            t = RequestTiming.start(req);
+            JFreeChart chart;
+            if (trend) {
+                XYDataset dataset = createTrendDataset(infoList, pollID, resolution, buckets);
+                chart = createTrendChart(dataset, "Glasovi kroz vrijeme");
+            } else {
+                // Create dataset
+                PieDataset dataset = createDataset(infoList);
+                // Create a chart based on the dataset
+                chart = createChart(dataset, "Rezultati glasanja");
+            }
+            BufferedImage bufferedImage = chart.createBufferedImage(400, 300);
+            RequestTiming.end(req, "chart", t);
+
+            // Encode the image
+            t = RequestTiming.start(req);
+            image = ChartUtilities.encodeAsPNG(bufferedImage);
+            RequestTiming.end(req, "png", t);
+        } finally {
+            if (event != null) {
+                event.finish(image == null ? -1 : image.length, image != null);
+            }
+        }
         resp.getOutputStream().write(image);
     }
 
+    /**
+     * Draws the pie chart of the specified voting results, the way this
+     * servlet draws it, and returns it encoded as a PNG image.
+     *
+     * @param infoList info list with vote results
+     * @return the chart as a PNG image
+     * @throws IOException if the image can not be encoded
+     */
+    public static byte[] createPieChartPNG(List<Info> infoList) throws IOException {
+        BufferedImage bufferedImage = createChart(createDataset(infoList), "Rezultati glasanja")
+                .createBufferedImage(400, 300);
+        return ChartUtilities.encodeAsPNG(bufferedImage);
+    }
+
     /**
      * Creates a simple dataset.
      *
      * @param infoList info list with vote results
      * @return pie dataset
      */
-    private PieDataset createDataset(List<Info> infoList) {
+    private static PieDataset createDataset(List<Info> infoList) {
         DefaultPieDataset result = new DefaultPieDataset();
 
         infoList.forEach(info -> {
@@ -81,7 +173,7 @@ public class GlasanjeGrafikaServlet extends HttpServlet {
      * @param title chart title
      * @return an instance of JFreeChart
      */
-    private JFreeChart createChart(PieDataset dataset, String title) {
+    private static JFreeChart createChart(PieDataset dataset, String title) {
         JFreeChart chart = ChartFactory.createPieChart3D(
                 title,    // chart title
                 dataset,// data
@@ -97,4 +189,59 @@ public class GlasanjeGrafikaServlet extends HttpServlet {
         return chart;
     }
 
+    /**
+     * Creates a dataset of votes per option over time, with one series per
+     * option of the specified info list that has been voted for. The dataset
+     * is empty if there are no rollups.
+     *
+     * @param infoList info list with option names
+     * @param pollID poll ID
+     * @param resolution resolution of the buckets
+     * @param buckets number of buckets
+     * @return time series dataset
+     */
+    private XYDataset createTrendDataset(List<Info> infoList, long pollID, Resolution resolution, int buckets) {
+        TimeSeriesCollection result = new TimeSeriesCollection();
+        VoteRollups rollups = VoteRollups.getInstance();
+        if (rollups == null) {
+            return result;
+        }
+
+        long now = System.currentTimeMillis();
+        long start = GlasanjeTrendServlet.getStart(resolution, now, buckets);
+        Map<Long, long[]> trend = rollups.trend(pollID, resolution, now, buckets);
+        for (Info info : infoList) {
+            long[] counts = trend.get(info.id);
+            if (counts == null) {
+                continue;
+            }
+            TimeSeries series = new TimeSeries(info.name);
+            for (int i = 0; i < counts.length; i++) {
+                series.add(new FixedMillisecond(start + i * resolution.millis), counts[i]);
+            }
+            result.addSeries(series);
+        }
+        return result;
+    }
+
+    /**
+     * Creates an instance of {@code JFreeChart} whose dataset is specified by
+     * the {@code XYDataset}.
+     *
+     * @param dataset time series dataset
+     * @param title chart title
+     * @return an instance of JFreeChart
+     */
+    private JFreeChart createTrendChart(XYDataset dataset, String title) {
+        return ChartFactory.createTimeSeriesChart(
+                title,      // chart title
+                "Vrijeme",  // time axis label
+                "Glasovi",  // value axis label
+                dataset,    // data
+                true,       // include legend
+                true,       // include tooltips
+                false       // exclude urls
+        );
+    }
+
 }
@@ -0,0 +1,59 @@
+package hr.fer.zemris.java.hw14.servlets;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import hr.fer.zemris.java.hw14.live.ResultsBroadcaster;
+
+/**
+ * This servlet streams the voting results of the poll with the specified
+ * poll ID as Server-Sent Events. Every <tt>results</tt> event holds the number
+ * of votes of every poll option, as a JSON object. The stream stays open until
+ * the client closes it.
+ * <p>
+ * The events are produced by the {@linkplain ResultsBroadcaster}, which reads
+ * the results at most once per interval no matter how many clients are
+ * subscribed.
+ *
+ * @author Mario Bobic
+ */
+@WebServlet(name="glasanje-live", urlPatterns={"/glasanje-live"}, asyncSupported=true)
+public class GlasanjeLiveServlet extends HttpServlet {
+    /** Serialization UID. */
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        long pollID;
+        try {
+            pollID = Long.parseLong(req.getParameter("pollID"));
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Poll ID must be a valid integer!");
+            return;
+        }
+
+        ResultsBroadcaster broadcaster = ResultsBroadcaster.getInstance();
+        if (broadcaster == null) {
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Live results are disabled.");
+            return;
+        }
+
+        AsyncContext async = req.startAsync();
+        async.setTimeout(0);
+
+        HttpServletResponse response = (HttpServletResponse) async.getResponse();
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setHeader("X-Accel-Buffering", "no");
+
+        broadcaster.subscribe(pollID, async);
+    }
+
+}
@@ -0,0 +1,91 @@
+package hr.fer.zemris.java.hw14.servlets;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import hr.fer.zemris.java.hw14.VotingUtil.Info;
+import hr.fer.zemris.java.hw14.cache.PollVersions;
+import hr.fer.zemris.java.hw14.ranked.RankedBallots;
+import hr.fer.zemris.java.hw14.timing.RequestTiming;
+import hr.fer.zemris.java.tecaj_14.dao.DAOProvider;
+import hr.fer.zemris.java.tecaj_14.dao.sql.DBContext;
+
+/**
+ * This servlet represents a ranked vote action. The <tt>ranking</tt>
+ * parameter holds IDs of options of the poll specified by the <tt>pollID</tt>
+ * parameter, separated by commas, most preferred first. The ballot is stored
+ * in the {@linkplain RankedBallots} and the user is redirected to the voting
+ * results page, which shows the instant-runoff count round by round.
+ * <p>
+ * Ranked votes are admitted the same way as other votes of the
+ * {@linkplain GlasanjeGlasajServlet}.
+ *
+ * @author Mario Bobic
+ */
+@WebServlet(name="glasanje-rangiraj", urlPatterns={"/glasanje-rangiraj"})
+public class GlasanjeRangirajServlet extends HttpServlet {
+    /** Serialization UID. */
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        RankedBallots rankedBallots = RankedBallots.getInstance();
+        if (rankedBallots == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Ranked voting is not enabled.");
+            return;
+        }
+
+        long pollID;
+        long[] ranking;
+        try {
+            pollID = Long.parseLong(req.getParameter("pollID"));
+            String[] ids = req.getParameter("ranking").split("[\\s,]+");
+            ranking = new long[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                ranking[i] = Long.parseLong(ids[i]);
+            }
+        } catch (NumberFormatException | NullPointerException e) {
+            req.setAttribute("error", "Poll ID and ranked IDs must be valid integers!");
+            req.getRequestDispatcher("/WEB-INF/pages/error.jsp").forward(req, resp);
+            return;
+        }
+        if (!GlasanjeGlasajServlet.admitted(req, resp, pollID)) {
+            return;
+        }
+
+        long t = RequestTiming.start(req);
+        try {
+            List<Info> infoList = DAOProvider.getDao(DBContext.of(req)).getInfoList(pollID);
+            try {
+                rankedBallots.vote(pollID, infoList, ranking);
+            } catch (IllegalArgumentException e) {
+                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                req.setAttribute("error", e.getMessage());
+                req.getRequestDispatcher("/WEB-INF/pages/error.jsp").forward(req, resp);
+                return;
+            } catch (IllegalStateException e) {
+                resp.setStatus(HttpServletResponse.SC_CONFLICT);
+                req.setAttribute("error", e.getMessage());
+                req.getRequestDispatcher("/WEB-INF/pages/error.jsp").forward(req, resp);
+                return;
+            } catch (SQLException e) {
+                throw new ServletException("Failed to store ranked ballot.", e);
+            }
+            GlasanjeGlasajServlet.counted(req, pollID);
+        } finally {
+            GlasanjeGlasajServlet.released(req, pollID);
+        }
+        RequestTiming.end(req, "db", t);
+        PollVersions.changed(pollID);
+
+        resp.sendRedirect(req.getContextPath() + "/glasanje-rezultati?pollID="+pollID);
+    }
+
+}
@@ -11,13 +11,31 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import hr.fer.zemris.java.hw14.VotingUtil.Info;
+import hr.fer.zemris.java.hw14.archive.ClosedPolls;
+import hr.fer.zemris.java.hw14.archive.PollArtifacts;
+import hr.fer.zemris.java.hw14.cache.ResultsSnapshot;
+import hr.fer.zemris.java.hw14.cache.SnapshotStore;
+import hr.fer.zemris.java.hw14.ranked.RankedBallots;
+import hr.fer.zemris.java.hw14.timing.RequestTiming;
 import hr.fer.zemris.java.tecaj_14.dao.DAOProvider;
+import hr.fer.zemris.java.tecaj_14.dao.sql.DBContext;
 
 /**
  * This servlet represents a voting results page which obtains an info list with
  * vote results from a database. The obtained info list is then processed to
  * leave out only the winners that will be used by the
  * <tt>/WEB-INF/pages/votingResults.jsp</tt> file.
+ * <p>
+ * The results are taken as a {@linkplain ResultsSnapshot}, whose ID is passed
+ * to the page so that the chart and the XLS file show the same numbers as the
+ * page itself.
+ * <p>
+ * The final results of a {@linkplain ClosedPolls closed} poll are taken from
+ * its {@linkplain PollArtifacts artifacts} instead, without accessing the
+ * database, and may be cached by clients for good.
+ * <p>
+ * If the poll has {@linkplain RankedBallots ranked ballots}, the page also
+ * shows their instant-runoff count round by round, with its winner.
  *
  * @author Mario Bobic
  */
@@ -37,16 +55,49 @@ public class GlasanjeRezultatiServlet extends HttpServlet {
             return;
         }
 
+        PollArtifacts artifacts = ClosedPolls.get(pollID);
+        if (artifacts != null) {
+            if (!artifacts.notModified(req, resp, "html")) {
+                req.setAttribute("pollID", pollID);
+                req.setAttribute("infoList", artifacts.getInfoList());
+                req.setAttribute("winners", artifacts.getWinners());
+                req.setAttribute("closed", Boolean.TRUE);
+                req.setAttribute("ranked", artifacts.getRanked());
+                req.getRequestDispatcher("/WEB-INF/pages/votingResults.jsp").forward(req, resp);
+            }
+            return;
+        }
 
-        List<Info> infoList = DAOProvider.getDao().getInfoList(pollID);
-        infoList.sort(Info.BY_VOTES);
+        long t = RequestTiming.start(req);
+        List<Info> infoList;
+        SnapshotStore store = SnapshotStore.getInstance();
+        if (store != null) {
+            ResultsSnapshot snapshot = store.take(DAOProvider.getDao(DBContext.of(req)), pollID);
+            req.setAttribute("snapshotID", snapshot.getId());
+            infoList = snapshot.getInfoList();
+        } else {
+            infoList = DAOProvider.getDao(DBContext.of(req)).getInfoList(pollID);
+        }
+        RequestTiming.end(req, "db", t);
 
+        t = RequestTiming.start(req);
+        if (store == null) {
+            infoList.sort(Info.BY_VOTES);
+        }
         List<Info> winners = getWinners(infoList);
+        RequestTiming.end(req, "sort", t);
+
+        t = RequestTiming.start(req);
+        req.setAttribute("ranked", RankedBallots.get(pollID, infoList));
+        RequestTiming.end(req, "ranked", t);
 
         req.setAttribute("pollID", pollID);
         req.setAttribute("infoList", infoList);
         req.setAttribute("winners", winners);
+
+        t = RequestTiming.start(req);
         req.getRequestDispatcher("/WEB-INF/pages/votingResults.jsp").forward(req, resp);
+        RequestTiming.end(req, "render", t);
     }
 
     /**
@@ -58,7 +109,7 @@ public class GlasanjeRezultatiServlet extends HttpServlet {
      * @param infoList info list, <strong>must</strong> be sorted
      * @return a list containing winners of the pole
      */
-    private static List<Info> getWinners(List<Info> infoList) {
+    public static List<Info> getWinners(List<Info> infoList) {
         long maxVotes = infoList.isEmpty() ? 0L : infoList.get(0).getVotes();
 
         List<Info> winners = new ArrayList<>();
@@ -1,29 +1,49 @@
 package hr.fer.zemris.java.hw14.servlets;
 
 import java.io.IOException;
-import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import hr.fer.zemris.java.hw14.VotingUtil.Info;
-import hr.fer.zemris.java.hw14.VotingUtil.Poll;
+import hr.fer.zemris.java.hw14.archive.ClosedPolls;
+import hr.fer.zemris.java.hw14.timing.RequestTiming;
+import hr.fer.zemris.java.tecaj_14.dao.AsyncDAO;
 import hr.fer.zemris.java.tecaj_14.dao.DAOProvider;
 
 /**
  * This servlet represents a voting on the specified poll ID. The poll options
  * are obtained from the poll ID and a list is forwarded to the
  * <tt>/WEB-INF/pages/vote.jsp</tt>.
+ * <p>
+ * The request is processed asynchronously: the poll and its options are
+ * fetched at the same time through the {@linkplain AsyncDAO}, and the
+ * container thread is released while waiting on the database. If the
+ * database does not answer before the asynchronous request times out, the
+ * error page is rendered with the <tt>503 Service Unavailable</tt> status and
+ * the late answer is discarded.
+ * <p>
+ * Voting on a {@linkplain ClosedPolls closed} poll is not possible, so its
+ * final results are shown instead.
  *
  * @author Mario Bobic
  */
-@WebServlet(name="glasanje", urlPatterns={"/glasanje"})
+@WebServlet(name="glasanje", urlPatterns={"/glasanje"}, asyncSupported=true)
 public class GlasanjeServlet extends HttpServlet {
     /** Serialization UID. */
     private static final long serialVersionUID = 1L;
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(GlasanjeServlet.class.getName());
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
@@ -35,13 +55,108 @@ public class GlasanjeServlet extends HttpServlet {
             req.getRequestDispatcher("/WEB-INF/pages/error.jsp").forward(req, resp);
             return;
         }
+        if (ClosedPolls.isClosed(pollID)) {
+            resp.sendRedirect(req.getContextPath() + "/glasanje-rezultati?pollID=" + pollID);
+            return;
+        }
+
+        AsyncDAO dao = DAOProvider.getAsyncDao();
+        AsyncContext async = req.startAsync();
+        TimeoutListener timeout = new TimeoutListener();
+        async.addListener(timeout);
+        long t = RequestTiming.start(req);
+
+        dao.getPoll(pollID).thenCombine(dao.getInfoList(pollID), (poll, infoList) -> {
+            if (!timeout.answer()) {
+                return null;
+            }
+            RequestTiming.end(req, "db", t);
+            req.setAttribute("poll", poll);
+            req.setAttribute("infoList", infoList);
+            return "/WEB-INF/pages/vote.jsp";
+        }).exceptionally(e -> {
+            if (!timeout.answer()) {
+                return null;
+            }
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            if (cause instanceof RejectedExecutionException) {
+                resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                req.setAttribute("error", "Server is busy, please try again.");
+            } else {
+                req.setAttribute("error", "Poll " + pollID + " could not be loaded.");
+            }
+            return "/WEB-INF/pages/error.jsp";
+        }).thenAccept(path -> {
+            if (path != null) {
+                dispatch(async, path);
+            }
+        });
+    }
+
+    /**
+     * Dispatches the specified asynchronous request to the specified
+     * <tt>path</tt>. If the request has already been completed or dispatched
+     * by the container, for example because the client disconnected, the
+     * dispatch is only logged.
+     *
+     * @param async the asynchronous request
+     * @param path path to dispatch to
+     */
+    private static void dispatch(AsyncContext async, String path) {
+        try {
+            async.dispatch(path);
+        } catch (IllegalStateException e) {
+            LOGGER.log(Level.FINE, "Request already completed, not dispatching to " + path, e);
+        }
+    }
+
+    /**
+     * An async listener that answers the request with the error page and the
+     * <tt>503 Service Unavailable</tt> status when it times out. The request
+     * is answered either by the listener or by the database callback, never
+     * by both.
+     *
+     * @author Mario Bobic
+     */
+    private static class TimeoutListener implements AsyncListener {
 
-        Poll poll = DAOProvider.getDao().getPoll(pollID);
-        List<Info> infoList = DAOProvider.getDao().getInfoList(pollID);
+        /** Indicates if the request has been answered. */
+        private final AtomicBoolean answered = new AtomicBoolean();
 
-        req.setAttribute("poll", poll);
-        req.setAttribute("infoList", infoList);
-        req.getRequestDispatcher("/WEB-INF/pages/vote.jsp").forward(req, resp);
+        /**
+         * Claims the request to be answered, returning false if it has
+         * already been answered.
+         *
+         * @return true if the caller should answer the request
+         */
+        public boolean answer() {
+            return answered.compareAndSet(false, true);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            if (!answer()) {
+                return;
+            }
+            HttpServletRequest req = (HttpServletRequest) event.getSuppliedRequest();
+            HttpServletResponse resp = (HttpServletResponse) event.getSuppliedResponse();
+            resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            req.setAttribute("error", "Server is busy, please try again.");
+            dispatch(event.getAsyncContext(), "/WEB-INF/pages/error.jsp");
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            answer();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
     }
 
 }
@@ -0,0 +1,132 @@
+package hr.fer.zemris.java.hw14.servlets;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import hr.fer.zemris.java.hw14.JSONWriter;
+import hr.fer.zemris.java.hw14.rollup.VoteRollups;
+import hr.fer.zemris.java.hw14.rollup.VoteRollups.Resolution;
+
+/**
+ * This servlet returns the number of votes per option of the poll with the
+ * specified poll ID over time, as a JSON object. The <tt>resolution</tt>
+ * parameter selects buckets of a <tt>second</tt>, a <tt>minute</tt> (default)
+ * or an <tt>hour</tt>, and the <tt>buckets</tt> parameter the number of the
+ * most recent buckets returned (default 60).
+ * <p>
+ * The counts are read from the {@linkplain VoteRollups} and the database is
+ * not accessed. Only options that have been voted for since the rollups were
+ * started are listed.
+ *
+ * @author Mario Bobic
+ */
+@WebServlet(name="glasanje-trend", urlPatterns={"/glasanje-trend"})
+public class GlasanjeTrendServlet extends HttpServlet {
+    /** Serialization UID. */
+    private static final long serialVersionUID = 1L;
+
+    /** Number of buckets returned by default. */
+    static final int DEFAULT_BUCKETS = 60;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        long pollID;
+        Resolution resolution;
+        int buckets;
+        try {
+            pollID = Long.parseLong(req.getParameter("pollID"));
+            resolution = getResolution(req);
+            buckets = getBuckets(req, resolution);
+        } catch (IllegalArgumentException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid poll ID, resolution or number of buckets!");
+            return;
+        }
+
+        VoteRollups rollups = VoteRollups.getInstance();
+        if (rollups == null) {
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Vote trends are disabled.");
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Map<Long, long[]> trend = rollups.trend(pollID, resolution, now, buckets);
+
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+
+        JSONWriter json = new JSONWriter(resp.getWriter());
+        json.beginObject();
+        json.name("pollID").value(pollID);
+        json.name("resolution").value(resolution.name().toLowerCase(Locale.ROOT));
+        json.name("start").value(getStart(resolution, now, buckets));
+        json.name("step").value(resolution.millis);
+        json.name("options").beginArray();
+        for (Map.Entry<Long, long[]> entry : trend.entrySet()) {
+            json.beginObject();
+            json.name("id").value(entry.getKey());
+            json.name("counts").beginArray();
+            for (long count : entry.getValue()) {
+                json.value(count);
+            }
+            json.endArray();
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+        json.flush();
+    }
+
+    /**
+     * Returns the resolution given by the <tt>resolution</tt> parameter, or
+     * {@linkplain Resolution#MINUTE} if there is none.
+     *
+     * @param req HTTP servlet request
+     * @return the resolution
+     * @throws IllegalArgumentException if the resolution is unknown
+     */
+    static Resolution getResolution(HttpServletRequest req) {
+        String resolution = req.getParameter("resolution");
+        return resolution == null ? Resolution.MINUTE : Resolution.of(resolution);
+    }
+
+    /**
+     * Returns the number of buckets given by the <tt>buckets</tt> parameter,
+     * or {@linkplain #DEFAULT_BUCKETS} if there is none, limited to the
+     * number of buckets kept at the specified resolution.
+     *
+     * @param req HTTP servlet request
+     * @param resolution resolution of the buckets
+     * @return the number of buckets
+     * @throws IllegalArgumentException if the number is invalid
+     */
+    static int getBuckets(HttpServletRequest req, Resolution resolution) {
+        String buckets = req.getParameter("buckets");
+        int n = buckets == null ? DEFAULT_BUCKETS : Integer.parseInt(buckets);
+        if (n < 1) {
+            throw new IllegalArgumentException("Number of buckets must be positive: " + n);
+        }
+        return Math.min(n, resolution.size);
+    }
+
+    /**
+     * Returns the start time in milliseconds of the first of the specified
+     * number of buckets ending with the bucket of the specified time.
+     *
+     * @param resolution resolution of the buckets
+     * @param time time in milliseconds of the last bucket
+     * @param buckets number of buckets
+     * @return start time of the first bucket
+     */
+    static long getStart(Resolution resolution, long time, int buckets) {
+        return (time / resolution.millis - buckets + 1) * resolution.millis;
+    }
+
+}
@@ -14,12 +14,31 @@ import org.apache.poi.hssf.usermodel.HSSFSheet;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
 
 import hr.fer.zemris.java.hw14.VotingUtil.Info;
+import hr.fer.zemris.java.hw14.archive.ClosedPolls;
+import hr.fer.zemris.java.hw14.archive.PollArtifacts;
+import hr.fer.zemris.java.hw14.cache.SnapshotStore;
+import hr.fer.zemris.java.hw14.jfr.Flight;
+import hr.fer.zemris.java.hw14.jfr.RenderEvent;
+import hr.fer.zemris.java.hw14.ranked.RankedBallots;
+import hr.fer.zemris.java.hw14.ranked.RankedResult;
+import hr.fer.zemris.java.hw14.ranked.RankedResult.Round;
+import hr.fer.zemris.java.hw14.timing.RequestTiming;
 import hr.fer.zemris.java.tecaj_14.dao.DAOProvider;
+import hr.fer.zemris.java.tecaj_14.dao.sql.DBContext;
 
 /**
  * This servlet creates an XLS file with voting results. Since the voting
  * results are generated dynamically, this file keeps track of the current
  * results and is generated just in time it is requested.
+ * <p>
+ * If the <tt>snapshot</tt> parameter names a {@linkplain SnapshotStore stored}
+ * results snapshot, the file is made from it; otherwise the current results
+ * are read. The file of a {@linkplain ClosedPolls closed} poll is made only
+ * once, when the poll is closed, and served from its
+ * {@linkplain PollArtifacts artifacts}.
+ * <p>
+ * If the poll has {@linkplain RankedBallots ranked ballots}, the file has a
+ * second sheet with the rounds of their instant-runoff count.
  *
  * @author Mario Bobic
  */
@@ -41,12 +60,95 @@ public class GlasanjeXLSServlet extends HttpServlet {
             req.getRequestDispatcher("/WEB-INF/pages/error.jsp").forward(req, resp);
             return;
         }
-        List<Info> infoList = DAOProvider.getDao().getInfoList(pollID);
-        infoList.sort(Info.BY_VOTES);
 
-        HSSFWorkbook xls = createXLSFile(infoList);
+        PollArtifacts artifacts = ClosedPolls.get(pollID);
+        if (artifacts != null) {
+            if (!artifacts.notModified(req, resp, "xls")) {
+                resp.setContentLength(artifacts.getXLS().length);
+                resp.getOutputStream().write(artifacts.getXLS());
+            }
+            return;
+        }
+
+        long t = RequestTiming.start(req);
+        List<Info> infoList = SnapshotStore.getInfoList(DAOProvider.getDao(DBContext.of(req)),
+                req.getParameter("snapshot"), pollID);
+        RequestTiming.end(req, "db", t);
+
+        RenderEvent event = Flight.ENABLED ? new RenderEvent("xls", pollID, infoList.size()) : null;
+        HSSFWorkbook xls = null;
+        try {
+            t = RequestTiming.start(req);
+            xls = createXLSFile(infoList, RankedBallots.get(pollID, infoList));
+            RequestTiming.end(req, "xls", t);
+        } finally {
+            if (event != null) {
+                event.finish(-1, xls != null);
+            }
+        }
+
+        t = RequestTiming.start(req);
         xls.write(resp.getOutputStream());
         xls.close();
+        RequestTiming.end(req, "encode", t);
+    }
+
+    /**
+     * Creates an instance of {@code HSSFWorkbook} with the results sheet made
+     * by {@linkplain #createXLSFile(List)} and, if the specified ranked result
+     * is not <tt>null</tt>, a <tt>rounds</tt> sheet with a row for each round
+     * of its instant-runoff count. A round row holds the number of the round,
+     * the votes of every option (empty for options eliminated earlier), the
+     * number of exhausted ballots and the name of the option eliminated after
+     * the round. The last row holds the winner.
+     *
+     * @param infoList info list
+     * @param ranked result of ranked ballots, or <tt>null</tt>
+     * @return a <tt>HSSFWorkbook</tt> object
+     */
+    public static HSSFWorkbook createXLSFile(List<Info> infoList, RankedResult ranked) {
+        HSSFWorkbook hwb = createXLSFile(infoList);
+        if (ranked == null) {
+            return hwb;
+        }
+
+        HSSFSheet page = hwb.createSheet("rounds");
+        List<Info> options = ranked.getOptions();
+
+        HSSFRow header = page.createRow(0);
+        header.createCell(0).setCellValue("Round");
+        for (int i = 0, n = options.size(); i < n; i++) {
+            header.createCell(i+1).setCellValue(options.get(i).name);
+        }
+        header.createCell(options.size()+1).setCellValue("Exhausted");
+        header.createCell(options.size()+2).setCellValue("Eliminated");
+
+        List<Round> rounds = ranked.getRounds();
+        for (int r = 0, n = rounds.size(); r < n; r++) {
+            HSSFRow row = page.createRow(r+1);
+
+            Round round = rounds.get(r);
+
+            row.createCell(0).setCellValue(round.getNumber());
+            long[] votes = round.getVotes();
+            for (int i = 0; i < votes.length; i++) {
+                if (votes[i] >= 0) {
+                    row.createCell(i+1).setCellValue(votes[i]);
+                }
+            }
+            row.createCell(votes.length+1).setCellValue(round.getExhausted());
+            if (round.getEliminated() != null) {
+                row.createCell(votes.length+2).setCellValue(round.getEliminated().name);
+            }
+        }
+
+        HSSFRow footer = page.createRow(rounds.size()+1);
+        footer.createCell(0).setCellValue("Winner");
+        if (ranked.getWinner() != null) {
+            footer.createCell(1).setCellValue(ranked.getWinner().name);
+        }
+
+        return hwb;
     }
 
     /**
@@ -64,7 +166,7 @@ public class GlasanjeXLSServlet extends HttpServlet {
      * @param infoList info list
      * @return a <tt>HSSFWorkbook</tt> object
      */
-    public HSSFWorkbook createXLSFile(List<Info> infoList) {
+    public static HSSFWorkbook createXLSFile(List<Info> infoList) {
         HSSFWorkbook hwb = new HSSFWorkbook();
 
         HSSFSheet page = hwb.createSheet("results");
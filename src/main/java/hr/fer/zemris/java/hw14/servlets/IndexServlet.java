@@ -10,6 +10,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import hr.fer.zemris.java.hw14.VotingUtil.Poll;
 import hr.fer.zemris.java.tecaj_14.dao.DAOProvider;
+import hr.fer.zemris.java.tecaj_14.dao.sql.DBContext;
 
 /**
  * This servlet represents a voting start-page which obtains the polls from
@@ -24,7 +25,7 @@ public class IndexServlet extends HttpServlet {
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        List<Poll> pollList = DAOProvider.getDao().getPollList();
+        List<Poll> pollList = DAOProvider.getDao(DBContext.of(req)).getPollList();
 
         req.setAttribute("pollList", pollList);
         req.getRequestDispatcher("/WEB-INF/pages/index.jsp").forward(req, resp);
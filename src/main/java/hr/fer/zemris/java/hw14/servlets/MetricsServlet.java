@@ -0,0 +1,47 @@
+package hr.fer.zemris.java.hw14.servlets;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import hr.fer.zemris.java.hw14.metrics.Metrics;
+
+/**
+ * This servlet writes all registered {@linkplain Metrics} as plain text, one
+ * metric per line with its name and value separated by a space. The output is
+ * never cached. Metrics describe the internals of the application, so the
+ * request must carry the administrative secret checked by
+ * {@linkplain AdminAccess}.
+ *
+ * @author Mario Bobic
+ */
+@WebServlet(name="metrics", urlPatterns={"/metrics"})
+public class MetricsServlet extends HttpServlet {
+    /** Serialization UID. */
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        if (!AdminAccess.check(req, resp)) {
+            return;
+        }
+
+        resp.setContentType("text/plain");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-store");
+
+        PrintWriter writer = resp.getWriter();
+        for (Map.Entry<String, Number> entry : Metrics.snapshot().entrySet()) {
+            writer.print(entry.getKey());
+            writer.print(' ');
+            writer.println(entry.getValue());
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+package hr.fer.zemris.java.hw14.servlets;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import hr.fer.zemris.java.hw14.archive.ClosedPolls;
+import hr.fer.zemris.java.hw14.archive.PollArtifacts;
+
+/**
+ * This servlet closes the poll specified by the <tt>pollID</tt> parameter, so
+ * that no more votes are accepted and its final results are served from
+ * {@linkplain PollArtifacts artifacts}. It is an administrative action, so it
+ * accepts only <tt>POST</tt> requests carrying the {@linkplain AdminAccess
+ * administrative secret}, and is available only if {@linkplain ClosedPolls
+ * closing polls} is enabled.
+ *
+ * @author Mario Bobic
+ */
+@WebServlet(name="poll-close", urlPatterns={"/poll-close"})
+public class PollCloseServlet extends HttpServlet {
+    /** Serialization UID. */
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        if (!AdminAccess.check(req, resp)) {
+            return;
+        }
+
+        ClosedPolls closedPolls = ClosedPolls.getInstance();
+        if (closedPolls == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Closing polls is not enabled.");
+            return;
+        }
+
+        long pollID;
+        try {
+            pollID = Long.parseLong(req.getParameter("pollID"));
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Poll ID must be a valid integer!");
+            return;
+        }
+
+        PollArtifacts artifacts;
+        try {
+            artifacts = closedPolls.close(pollID);
+        } catch (SQLException e) {
+            throw new ServletException("Failed to close poll " + pollID + ".", e);
+        }
+        if (artifacts == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Poll " + pollID + " does not exist.");
+            return;
+        }
+
+        resp.setContentType("text/plain");
+        resp.getWriter().println("Poll " + pollID + " closed, " + artifacts.getWinners().size() + " winner(s).");
+    }
+
+}
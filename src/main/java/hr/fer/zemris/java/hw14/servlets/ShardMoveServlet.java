@@ -0,0 +1,57 @@
+package hr.fer.zemris.java.hw14.servlets;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import hr.fer.zemris.java.tecaj_14.dao.DAO;
+import hr.fer.zemris.java.tecaj_14.dao.DAOProvider;
+import hr.fer.zemris.java.tecaj_14.dao.sql.ShardRoutingDAO;
+
+/**
+ * This servlet moves the poll specified by the <tt>pollID</tt> parameter to
+ * the shard specified by the <tt>shard</tt> parameter, while votes keep being
+ * accepted. It is an administrative action, so it accepts only <tt>POST</tt>
+ * requests carrying the {@linkplain AdminAccess administrative secret}, and is
+ * available only if sharding is configured.
+ *
+ * @author Mario Bobic
+ */
+@WebServlet(name="shard-move", urlPatterns={"/shard-move"})
+public class ShardMoveServlet extends HttpServlet {
+    /** Serialization UID. */
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        if (!AdminAccess.check(req, resp)) {
+            return;
+        }
+
+        DAO dao = DAOProvider.getDao();
+        if (!(dao instanceof ShardRoutingDAO)) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Sharding is not configured.");
+            return;
+        }
+
+        long pollID;
+        int shard;
+        try {
+            pollID = Long.parseLong(req.getParameter("pollID"));
+            shard = Integer.parseInt(req.getParameter("shard"));
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Poll ID and shard must be valid integers!");
+            return;
+        }
+
+        ((ShardRoutingDAO) dao).movePoll(pollID, shard);
+
+        resp.setContentType("text/plain");
+        resp.getWriter().println("Poll " + pollID + " moved to shard " + shard + ".");
+    }
+
+}
@@ -0,0 +1,66 @@
+package hr.fer.zemris.java.hw14.servlets;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import hr.fer.zemris.java.hw14.JSONWriter;
+import hr.fer.zemris.java.hw14.jdbc.InstrumentedDataSource;
+import hr.fer.zemris.java.hw14.jdbc.StatementStats;
+import hr.fer.zemris.java.hw14.metrics.Histogram;
+
+/**
+ * This servlet writes the statistics of every SQL statement executed through
+ * an {@linkplain InstrumentedDataSource} as a JSON array, sorted by the total
+ * time spent in the statement. Latencies are given in microseconds. The array
+ * is empty if JDBC instrumentation is not enabled. Statements reveal the
+ * schema, so the request must carry the administrative secret checked by
+ * {@linkplain AdminAccess}.
+ *
+ * @author Mario Bobic
+ */
+@WebServlet(name="sqlStats", urlPatterns={"/metrics/sql"})
+public class SqlStatsServlet extends HttpServlet {
+    /** Serialization UID. */
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        if (!AdminAccess.check(req, resp)) {
+            return;
+        }
+
+        List<StatementStats> stats = StatementStats.all();
+        stats.sort(Comparator.comparingLong((StatementStats s) -> s.getLatency().getSum()).reversed());
+
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-store");
+
+        JSONWriter json = new JSONWriter(resp.getWriter());
+        json.beginArray();
+        for (StatementStats s : stats) {
+            Histogram latency = s.getLatency();
+            json.beginObject();
+            json.name("sql").value(s.getSql());
+            json.name("count").value(latency.getCount());
+            json.name("errors").value(s.getErrors());
+            json.name("rows").value(s.getRows());
+            json.name("totalMicros").value(latency.getSum() / 1000);
+            json.name("meanMicros").value(latency.getMean() / 1000);
+            json.name("p50Micros").value(latency.getPercentile(50) / 1000);
+            json.name("p99Micros").value(latency.getPercentile(99) / 1000);
+            json.name("maxMicros").value(latency.getMax() / 1000);
+            json.endObject();
+        }
+        json.endArray();
+        json.flush();
+    }
+
+}
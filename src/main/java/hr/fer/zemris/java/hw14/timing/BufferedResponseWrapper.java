@@ -0,0 +1,180 @@
+package hr.fer.zemris.java.hw14.timing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A response wrapper that keeps the whole response body in memory, so that
+ * headers may still be set after the body has been written, for an example
+ * headers whose values are known only once the request has been processed.
+ * The body is written to the wrapped response by {@linkplain #finish()}.
+ * <p>
+ * Non-blocking output can not be buffered, so once a {@linkplain WriteListener}
+ * is set on the output stream, the body buffered so far is written to the
+ * wrapped response and the rest of the body goes straight to it. The response
+ * is {@linkplain #isCommitted() committed} only when the wrapped response is,
+ * for an example after a redirect, an error or non-blocking output.
+ *
+ * @author Mario Bobic
+ */
+public class BufferedResponseWrapper extends HttpServletResponseWrapper {
+
+    /** The buffered body. */
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    /** Output stream writing to the buffer, or <tt>null</tt>. */
+    private ServletOutputStream outputStream;
+    /** Writer writing to the buffer, or <tt>null</tt>. */
+    private PrintWriter writer;
+    /** Output stream of the wrapped response once output is non-blocking. */
+    private ServletOutputStream direct;
+
+    /**
+     * Constructs an instance of {@code BufferedResponseWrapper} that wraps the
+     * specified <tt>response</tt>.
+     *
+     * @param response the wrapped response
+     */
+    public BufferedResponseWrapper(HttpServletResponse response) {
+        super(response);
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (writer != null) {
+            throw new IllegalStateException("getWriter() has already been called.");
+        }
+        if (outputStream == null) {
+            outputStream = new ServletOutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    if (direct != null) {
+                        direct.write(b);
+                    } else {
+                        buffer.write(b);
+                    }
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (direct != null) {
+                        direct.write(b, off, len);
+                    } else {
+                        buffer.write(b, off, len);
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    if (direct != null) {
+                        direct.flush();
+                    }
+                }
+
+                @Override
+                public boolean isReady() {
+                    return direct == null || direct.isReady();
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                    try {
+                        direct = getResponse().getOutputStream();
+                        if (buffer.size() > 0) {
+                            buffer.writeTo(direct);
+                            buffer.reset();
+                        }
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    direct.setWriteListener(writeListener);
+                }
+            };
+        }
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (outputStream != null) {
+            throw new IllegalStateException("getOutputStream() has already been called.");
+        }
+        if (writer == null) {
+            writer = new PrintWriter(new OutputStreamWriter(buffer, getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        if (direct != null) {
+            super.setContentLength(len);
+        }
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+        if (direct != null) {
+            super.setContentLengthLong(len);
+        }
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (direct != null) {
+            super.flushBuffer();
+        }
+    }
+
+    @Override
+    public void resetBuffer() {
+        if (direct != null) {
+            super.resetBuffer();
+        }
+        buffer.reset();
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        buffer.reset();
+    }
+
+    /**
+     * Returns a copy of the body buffered so far.
+     *
+     * @return the buffered body
+     */
+    public byte[] toByteArray() {
+        if (writer != null) {
+            writer.flush();
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Writes the buffered body to the wrapped response, unless the wrapped
+     * response has already been committed, for an example by a redirect or
+     * by non-blocking output.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void finish() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        HttpServletResponse response = (HttpServletResponse) getResponse();
+        if (response.isCommitted() || buffer.size() == 0) {
+            return;
+        }
+        response.setContentLength(buffer.size());
+        buffer.writeTo(response.getOutputStream());
+    }
+
+}
@@ -0,0 +1,117 @@
+package hr.fer.zemris.java.hw14.timing;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletRequest;
+
+/**
+ * Durations of the phases of one request, such as the pool checkout, database
+ * queries, sorting and rendering. Phases with the same name are summed up. The
+ * durations are reported in the <tt>Server-Timing</tt> response header, for an
+ * example <tt>db;dur=3.120, render;dur=5.004, total;dur=9.310</tt>.
+ * <p>
+ * A timing is stored as a request attribute only if timing is enabled. Code
+ * measuring a phase uses the static {@linkplain #start(ServletRequest)} and
+ * {@linkplain #end(ServletRequest, String, long)} methods, which do nothing
+ * more than look up a request attribute if timing is disabled:
+ *
+ * <pre>
+ * long t = RequestTiming.start(req);
+ * infoList.sort(Info.BY_VOTES);
+ * RequestTiming.end(req, "sort", t);
+ * </pre>
+ *
+ * @author Mario Bobic
+ */
+public class RequestTiming {
+
+    /** Name of the request attribute holding the timing. */
+    public static final String ATTRIBUTE = "hr.fer.zemris.timing";
+
+    /** Time the request started, as given by nanoTime. */
+    private final long started = System.nanoTime();
+    /** Durations of phases in nanoseconds, in the order they first ended. */
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+
+    /**
+     * Returns the timing of the specified <tt>request</tt>, or <tt>null</tt>
+     * if timing is disabled.
+     *
+     * @param request a request
+     * @return the timing of the request, or <tt>null</tt>
+     */
+    public static RequestTiming of(ServletRequest request) {
+        return (RequestTiming) request.getAttribute(ATTRIBUTE);
+    }
+
+    /**
+     * Returns the start time of a phase of the specified <tt>request</tt>, or
+     * <tt>0</tt> if timing of the request is disabled.
+     *
+     * @param request a request
+     * @return the start time of a phase, or <tt>0</tt>
+     */
+    public static long start(ServletRequest request) {
+        return request.getAttribute(ATTRIBUTE) == null ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Ends a phase of the specified <tt>request</tt> with the specified
+     * <tt>name</tt>, started at the specified <tt>start</tt> time. Does nothing
+     * if the start time is <tt>0</tt>.
+     *
+     * @param request a request
+     * @param name name of the phase
+     * @param start start time returned by {@linkplain #start(ServletRequest)}
+     */
+    public static void end(ServletRequest request, String name, long start) {
+        if (start == 0) {
+            return;
+        }
+        RequestTiming timing = of(request);
+        if (timing != null) {
+            timing.add(name, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Adds the specified duration to the phase with the specified
+     * <tt>name</tt>.
+     *
+     * @param name name of the phase
+     * @param nanos duration in nanoseconds
+     */
+    public synchronized void add(String name, long nanos) {
+        phases.merge(name, nanos, Long::sum);
+    }
+
+    /**
+     * Returns the value of the <tt>Server-Timing</tt> header with all phases
+     * and the total duration of the request so far, in milliseconds.
+     *
+     * @return the value of the <tt>Server-Timing</tt> header
+     */
+    public synchronized String toHeader() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            append(sb, phase.getKey(), phase.getValue());
+            sb.append(", ");
+        }
+        append(sb, "total", System.nanoTime() - started);
+        return sb.toString();
+    }
+
+    /**
+     * Appends one metric of the <tt>Server-Timing</tt> header.
+     *
+     * @param sb the header being built
+     * @param name name of the phase
+     * @param nanos duration in nanoseconds
+     */
+    private static void append(StringBuilder sb, String name, long nanos) {
+        sb.append(name).append(";dur=").append(String.format(Locale.ROOT, "%.3f", nanos / 1e6));
+    }
+
+}
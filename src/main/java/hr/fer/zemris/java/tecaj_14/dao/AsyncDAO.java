@@ -0,0 +1,215 @@
+package hr.fer.zemris.java.tecaj_14.dao;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import javax.sql.DataSource;
+
+import hr.fer.zemris.java.hw14.VotingUtil.Info;
+import hr.fer.zemris.java.hw14.VotingUtil.Poll;
+import hr.fer.zemris.java.tecaj_14.dao.sql.DBContext;
+
+/**
+ * An asynchronous facade of the {@linkplain DAO}. Every call is executed on a
+ * dedicated executor and its result is returned as a
+ * {@linkplain CompletableFuture}, so that independent calls may overlap and
+ * the calling thread is free while waiting on the database.
+ * <p>
+ * Each task gets its own {@linkplain DBContext}, handed to the DAO it calls
+ * for the duration of the task, so connections are borrowed lazily and
+ * returned as soon as the task is done. By default the executor is bounded: it
+ * has as many threads as the pool has connections and a limited queue, and a
+ * call that does not fit in the queue fails with a
+ * {@linkplain RejectedExecutionException}. Alternatively, calls may run on
+ * virtual threads, in which case the number of calls using the database at
+ * the same time is bounded instead.
+ *
+ * @author Mario Bobic
+ */
+public class AsyncDAO {
+
+    /** Number of queued tasks allowed per executor thread. */
+    private static final int QUEUE_PER_THREAD = 64;
+
+    /** Pool used for writes. */
+    private final DataSource writeSource;
+    /** Pool used for reads. */
+    private final DataSource readSource;
+    /** Executor of the DAO calls. */
+    private final ExecutorService executor;
+    /** Permits bounding concurrent calls on virtual threads, or <tt>null</tt>. */
+    private final Semaphore permits;
+
+    /**
+     * Constructs an instance of {@code AsyncDAO} that executes calls with the
+     * specified pools on the specified number of <tt>threads</tt>.
+     *
+     * @param writeSource pool used for writes
+     * @param readSource pool used for reads
+     * @param threads number of executor threads, usually the pool size
+     */
+    public AsyncDAO(DataSource writeSource, DataSource readSource, int threads) {
+        this(writeSource, readSource, threads, false);
+    }
+
+    /**
+     * Constructs an instance of {@code AsyncDAO} that executes calls with the
+     * specified pools. If <tt>virtual</tt> is true and the runtime supports
+     * virtual threads, every call runs on its own virtual thread and at most
+     * <tt>threads</tt> calls use the database at the same time, while the
+     * others wait cheaply for a permit. Otherwise the calls run on a bounded
+     * pool of <tt>threads</tt> platform threads.
+     *
+     * @param writeSource pool used for writes
+     * @param readSource pool used for reads
+     * @param threads number of executor threads or concurrent calls, usually
+     *        the pool size
+     * @param virtual true if calls should run on virtual threads
+     */
+    public AsyncDAO(DataSource writeSource, DataSource readSource, int threads, boolean virtual) {
+        this.writeSource = writeSource;
+        this.readSource = readSource;
+
+        ExecutorService virtualExecutor = virtual ? newVirtualThreadExecutor() : null;
+        if (virtualExecutor != null) {
+            this.executor = virtualExecutor;
+            this.permits = new Semaphore(threads);
+        } else {
+            AtomicInteger counter = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(threads * QUEUE_PER_THREAD), r -> {
+                        Thread t = new Thread(r, "dao-" + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            this.executor = pool;
+            this.permits = null;
+        }
+    }
+
+    /**
+     * Returns true if this DAO executes calls on virtual threads.
+     *
+     * @return true if this DAO executes calls on virtual threads
+     */
+    public boolean isVirtual() {
+        return permits != null;
+    }
+
+    /**
+     * Returns an executor that starts a new virtual thread for each task, or
+     * <tt>null</tt> if the runtime does not support virtual threads. The
+     * executor is looked up reflectively, since this code is compiled for
+     * runtimes that predate virtual threads.
+     *
+     * @return a virtual thread executor, or <tt>null</tt>
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Asynchronously executes {@linkplain DAO#getPoll(long)}.
+     *
+     * @param pollID poll ID
+     * @return a future of the poll with the specified poll ID
+     */
+    public CompletableFuture<Poll> getPoll(long pollID) {
+        return supply(dao -> dao.getPoll(pollID));
+    }
+
+    /**
+     * Asynchronously executes {@linkplain DAO#getPollList()}.
+     *
+     * @return a future of the list of polls
+     */
+    public CompletableFuture<List<Poll>> getPollList() {
+        return supply(dao -> dao.getPollList());
+    }
+
+    /**
+     * Asynchronously executes {@linkplain DAO#getInfoList(long)}.
+     *
+     * @param pollID poll ID
+     * @return a future of the list of poll options
+     */
+    public CompletableFuture<List<Info>> getInfoList(long pollID) {
+        return supply(dao -> dao.getInfoList(pollID));
+    }
+
+    /**
+     * Asynchronously executes {@linkplain DAO#vote(long, long)}.
+     *
+     * @param pollID poll ID
+     * @param id id of the object to be given a vote
+     * @return a future completed once the vote is given
+     */
+    public CompletableFuture<Void> vote(long pollID, long id) {
+        return supply(dao -> {
+            dao.vote(pollID, id);
+            return null;
+        });
+    }
+
+    /**
+     * Asynchronously executes {@linkplain DAO#voteAndGetInfoList(long, long)}.
+     *
+     * @param pollID poll ID
+     * @param id id of the object to be given a vote
+     * @return a future of the list of poll options with updated vote counts
+     */
+    public CompletableFuture<List<Info>> voteAndGetInfoList(long pollID, long id) {
+        return supply(dao -> dao.voteAndGetInfoList(pollID, id));
+    }
+
+    /**
+     * Shuts down the executor, letting the queued calls finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Executes the specified <tt>action</tt> on the executor with a DAO using
+     * a new database context of the pools.
+     *
+     * @param <T> type of the result
+     * @param action action to be executed with the DAO
+     * @return a future of the result of the action
+     */
+    private <T> CompletableFuture<T> supply(Function<DAO, T> action) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                if (permits != null) {
+                    permits.acquireUninterruptibly();
+                }
+                try (DBContext context = new DBContext(writeSource, readSource)) {
+                    return action.apply(DAOProvider.getDao(context));
+                } finally {
+                    if (permits != null) {
+                        permits.release();
+                    }
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+}
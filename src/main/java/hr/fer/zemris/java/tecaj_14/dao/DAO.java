@@ -4,20 +4,37 @@ import java.util.List;
 
 import hr.fer.zemris.java.hw14.VotingUtil.Info;
 import hr.fer.zemris.java.hw14.VotingUtil.Poll;
+import hr.fer.zemris.java.tecaj_14.dao.sql.DBContext;
 
 /**
  * Interface that provides data persistence.
+ * <p>
+ * A DAO accesses the database through the {@linkplain DBContext} it was
+ * {@linkplain #withContext(DBContext) given}, so it does not depend on the
+ * thread it is called from. The DAO held by the {@linkplain DAOProvider} has
+ * no context and is only used to make DAOs that have one.
  *
  * @author Mario Bobic
  */
 public interface DAO {
 
+    /**
+     * Returns a DAO that works like this one and accesses the database
+     * through the specified <tt>context</tt>. The returned DAO may be used
+     * only while the context is open.
+     *
+     * @param context database context
+     * @return a DAO using the specified context
+     */
+    public DAO withContext(DBContext context);
+
     /**
      * Returns a {@linkplain Poll} object with the specified <tt>pollID</tt>
      * obtained from the database.
      *
      * @param pollID poll ID
      * @return a Poll with the specified poll ID
+     * @throws NoSuchPollException if there is no poll with the specified ID
      * @throws DAOException if an Exception occurs
      */
     public Poll getPoll(long pollID) throws DAOException;
@@ -42,12 +59,47 @@ public interface DAO {
     public List<Info> getInfoList(long pollID) throws DAOException;
 
     /**
-     * Gives a vote to an object with the specified id by updating the vote
-     * value of the specified <tt>id</tt> to plus one in the database.
+     * Gives a vote to an object with the specified <tt>id</tt> that belongs
+     * to the poll with the specified <tt>pollID</tt> by updating its vote
+     * value to plus one in the database.
      *
+     * @param pollID poll ID
      * @param id id of the object to be given a vote
+     * @throws DAOException if an Exception occurs or the object does not
+     *         belong to the poll
+     */
+    public void vote(long pollID, long id) throws DAOException;
+
+    /**
+     * Gives a vote to an object with the specified <tt>id</tt> that belongs
+     * to the poll with the specified <tt>pollID</tt> and returns the updated
+     * poll options of that poll. Both the update and the read are done in a
+     * single transaction, so the returned list is guaranteed to contain the
+     * given vote.
+     *
+     * @param pollID poll ID
+     * @param id id of the object to be given a vote
+     * @return a List of Info objects with updated vote counts
+     * @throws DAOException if an Exception occurs
+     */
+    public List<Info> voteAndGetInfoList(long pollID, long id) throws DAOException;
+
+    /**
+     * Gives <tt>counts[i]</tt> votes to the object with id <tt>ids[i]</tt> for
+     * every index <tt>i</tt>, where all objects must belong to the poll with
+     * the specified <tt>pollID</tt>. All updates are sent as one batch in a
+     * single transaction.
+     * <p>
+     * The returned array holds the number of rows updated for each index; an
+     * element is <tt>0</tt> if the object does not exist, does not belong to
+     * the poll, or its number of votes would overflow a <tt>long</tt>.
+     *
+     * @param pollID poll ID
+     * @param ids ids of the objects to be given votes
+     * @param counts number of votes to be given to each object
+     * @return number of updated rows for each object
      * @throws DAOException if an Exception occurs
      */
-    public void vote(long id) throws DAOException;
+    public int[] voteBatch(long pollID, long[] ids, long[] counts) throws DAOException;
 
 }
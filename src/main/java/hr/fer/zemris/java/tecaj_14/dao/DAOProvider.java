@@ -1,5 +1,6 @@
 package hr.fer.zemris.java.tecaj_14.dao;
 
+import hr.fer.zemris.java.tecaj_14.dao.sql.DBContext;
 import hr.fer.zemris.java.tecaj_14.dao.sql.SQLDAO;
 
 /**
@@ -8,16 +9,23 @@ import hr.fer.zemris.java.tecaj_14.dao.sql.SQLDAO;
  * hardkodirana, naziv razreda koji se stvara mogli smo dinamički pročitati iz
  * konfiguracijske datoteke i dinamički učitati -- time bismo implementacije
  * mogli mijenjati bez ikakvog ponovnog kompajliranja koda.
+ * <p>
+ * Pohranjeni primjerak nema kontekst pristupa bazi; DAO koji pristupa bazi
+ * dohvaća se metodom {@link #getDao(DBContext)} sa kontekstom zahtjeva.
  *
  * @author marcupic
  */
 public class DAOProvider {
 
-    /** Dao singleton objekt. */
-    private static DAO dao = new SQLDAO();
+    /** Dao singleton objekt, bez konteksta pristupa bazi. */
+    private static volatile DAO dao = new SQLDAO(null);
+    /** Asinkroni dao objekt. */
+    private static volatile AsyncDAO asyncDao;
 
     /**
-     * Dohvat primjerka.
+     * Dohvat primjerka bez konteksta pristupa bazi. Takav primjerak služi samo
+     * za stvaranje primjeraka koji imaju kontekst i za administrativne
+     * operacije koje same dohvaćaju veze.
      *
      * @return objekt koji enkapsulira pristup sloju za perzistenciju podataka.
      */
@@ -25,4 +33,46 @@ public class DAOProvider {
         return dao;
     }
 
+    /**
+     * Dohvat primjerka koji bazi pristupa kroz zadani kontekst.
+     *
+     * @param context kontekst pristupa bazi
+     * @return objekt koji enkapsulira pristup sloju za perzistenciju podataka.
+     */
+    public static DAO getDao(DBContext context) {
+        return dao.withContext(context);
+    }
+
+    /**
+     * Postavljanje primjerka koji će se ubuduće vraćati, primjerice kada se
+     * pri inicijalizaciji aplikacije iz konfiguracije odluči da se koristi
+     * druga implementacija.
+     *
+     * @param dao objekt koji enkapsulira pristup sloju za perzistenciju
+     *        podataka
+     */
+    public static void setDao(DAO dao) {
+        DAOProvider.dao = dao;
+    }
+
+    /**
+     * Dohvat asinkronog primjerka, ili <code>null</code> ako on još nije
+     * postavljen.
+     *
+     * @return objekt koji asinkrono pristupa sloju za perzistenciju podataka
+     */
+    public static AsyncDAO getAsyncDao() {
+        return asyncDao;
+    }
+
+    /**
+     * Postavljanje asinkronog primjerka.
+     *
+     * @param asyncDao objekt koji asinkrono pristupa sloju za perzistenciju
+     *        podataka
+     */
+    public static void setAsyncDao(AsyncDAO asyncDao) {
+        DAOProvider.asyncDao = asyncDao;
+    }
+
 }
@@ -0,0 +1,24 @@
+package hr.fer.zemris.java.tecaj_14.dao;
+
+/**
+ * Exception that is thrown when a poll that does not exist is requested, as
+ * opposed to a {@linkplain DAOException} caused by a failure of the data
+ * source.
+ *
+ * @author Mario Bobic
+ */
+public class NoSuchPollException extends DAOException {
+    /** Serialization UID. */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructs a {@code NoSuchPollException} for the poll with the specified
+     * <tt>pollID</tt>.
+     *
+     * @param pollID ID of the poll that does not exist
+     */
+    public NoSuchPollException(long pollID) {
+        super("Poll " + pollID + " does not exist.");
+    }
+
+}
@@ -0,0 +1,199 @@
+package hr.fer.zemris.java.tecaj_14.dao.sql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.servlet.ServletRequest;
+import javax.sql.DataSource;
+
+import hr.fer.zemris.java.hw14.jfr.Flight;
+import hr.fer.zemris.java.hw14.jfr.PoolCheckoutEvent;
+import hr.fer.zemris.java.tecaj_14.dao.DAOException;
+import hr.fer.zemris.java.tecaj_14.dao.DAOProvider;
+
+/**
+ * Kontekst pristupa bazi podataka jednog zahtjeva. Kontekst zna izvore veza za
+ * pisanje i čitanje te vezu iz pojedinog izvora dohvaća tek kada je prvi put
+ * zatražena. Sve dohvaćene veze vraćaju se u pool pozivom {@link #close()}.
+ * <p>
+ * Kontekst nije vezan uz dretvu: predaje se DAO objektu izravno (vidi
+ * {@link DAOProvider#getDao(DBContext)}) i može se nastaviti koristiti na
+ * drugoj dretvi, primjerice kada se obrada zahtjeva preda izvršitelju. Kontekst ipak nije
+ * namijenjen istovremenom korištenju iz više dretvi jer ni JDBC veza to nije.
+ *
+ * @author Mario Bobic
+ */
+public class DBContext implements AutoCloseable {
+
+    /** Naziv atributa zahtjeva pod kojim je pohranjen kontekst. */
+    public static final String ATTRIBUTE = "hr.fer.zemris.dbcontext";
+
+    /** Izvor veza za pisanje. */
+    private final DataSource writeSource;
+    /** Izvor veza za čitanje, ili <code>null</code>. */
+    private final DataSource readSource;
+
+    /** Veza za pisanje, ili <code>null</code> ako još nije dohvaćena. */
+    private Connection connection;
+    /** Veza za čitanje, ili <code>null</code> ako još nije dohvaćena. */
+    private Connection readConnection;
+    /** Je li veza za pisanje dohvaćena iz izvora (pa je treba zatvoriti). */
+    private boolean pooled;
+    /** Ukupno vrijeme čekanja na veze iz izvora, u nanosekundama. */
+    private volatile long checkoutNanos;
+    /** Otisak klijenta koji je poslao zahtjev, ili 0 ako nije poznat. */
+    private long fingerprint;
+
+    /**
+     * Stvara kontekst sa zadanim izvorima veza.
+     *
+     * @param writeSource izvor veza za pisanje
+     * @param readSource izvor veza za čitanje, ili <code>null</code> ako se
+     *        čita iz izvora za pisanje
+     */
+    public DBContext(DataSource writeSource, DataSource readSource) {
+        this.writeSource = writeSource;
+        this.readSource = readSource;
+    }
+
+    /**
+     * Stvara kontekst koji koristi zadanu vezu i za pisanje i za čitanje.
+     * Veza se ne zatvara pozivom {@link #close()}.
+     *
+     * @param con veza prema bazi
+     */
+    public DBContext(Connection con) {
+        this(null, null);
+        this.connection = con;
+    }
+
+    /**
+     * Dohvati kontekst pohranjen u zadanom zahtjevu.
+     *
+     * @param request zahtjev
+     * @return kontekst zahtjeva, ili <code>null</code> ako ga nema
+     */
+    public static DBContext of(ServletRequest request) {
+        return (DBContext) request.getAttribute(ATTRIBUTE);
+    }
+
+    /**
+     * Dohvati vezu za pisanje, dohvaćajući je iz izvora ako je potrebno.
+     *
+     * @return vezu prema bazi podataka
+     * @throws DAOException ako vezu nije moguće dohvatiti iz izvora
+     */
+    public Connection getConnection() {
+        if (connection == null && writeSource != null) {
+            connection = timedOpen(writeSource, "write");
+            pooled = true;
+        }
+        return connection;
+    }
+
+    /**
+     * Dohvati vezu za čitanje. Ako je veza za pisanje već dohvaćena, vraća se
+     * ta veza kako bi zahtjev uvijek vidio vlastite izmjene.
+     *
+     * @return vezu prema bazi podataka za čitanje
+     * @throws DAOException ako vezu nije moguće dohvatiti iz izvora
+     */
+    public Connection getReadConnection() {
+        if (connection != null) {
+            return connection;
+        }
+        if (readSource == null) {
+            return getConnection();
+        }
+        if (readConnection == null) {
+            readConnection = timedOpen(readSource, "read");
+        }
+        return readConnection;
+    }
+
+    /**
+     * Dohvati ukupno vrijeme koje je kontekst proveo čekajući na veze iz
+     * izvora.
+     *
+     * @return vrijeme čekanja na veze, u nanosekundama
+     */
+    public long getCheckoutNanos() {
+        return checkoutNanos;
+    }
+
+    /**
+     * Dohvati otisak klijenta koji je poslao zahtjev. DAO ga bilježi uz svaki
+     * glas u {@link VoteEventStore}.
+     *
+     * @return otisak klijenta, ili 0 ako nije poznat
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Postavi otisak klijenta koji je poslao zahtjev.
+     *
+     * @param fingerprint otisak klijenta
+     */
+    public void setFingerprint(long fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Vrati u pool sve veze koje je kontekst dohvatio iz izvora.
+     */
+    @Override
+    public void close() {
+        if (pooled && connection != null) {
+            try { connection.close(); } catch (SQLException ignorable) {}
+        }
+        connection = null;
+        pooled = false;
+
+        if (readConnection != null) {
+            try { readConnection.close(); } catch (SQLException ignorable) {}
+        }
+        readConnection = null;
+    }
+
+    /**
+     * Dohvati novu vezu iz zadanog izvora i pribroji vrijeme čekanja na nju.
+     * Dohvat se bilježi i kao JFR događaj ako izvršna okolina podržava JFR.
+     *
+     * @param source izvor veza
+     * @param name naziv izvora, <code>write</code> ili <code>read</code>
+     * @return vezu prema bazi podataka
+     * @throws DAOException ako vezu nije moguće dohvatiti
+     */
+    private Connection timedOpen(DataSource source, String name) {
+        PoolCheckoutEvent event = Flight.ENABLED ? new PoolCheckoutEvent(name) : null;
+        long start = System.nanoTime();
+        Connection con = null;
+        try {
+            con = open(source);
+            return con;
+        } finally {
+            checkoutNanos += System.nanoTime() - start;
+            if (event != null) {
+                event.finish(con != null);
+            }
+        }
+    }
+
+    /**
+     * Dohvati novu vezu iz zadanog izvora.
+     *
+     * @param source izvor veza
+     * @return vezu prema bazi podataka
+     * @throws DAOException ako vezu nije moguće dohvatiti
+     */
+    private static Connection open(DataSource source) {
+        try {
+            return source.getConnection();
+        } catch (SQLException e) {
+            throw new DAOException("Database unavailable.", e);
+        }
+    }
+
+}
@@ -5,36 +5,120 @@ import hr.fer.zemris.java.hw14.VotingUtil.BandInfo;
 import hr.fer.zemris.java.hw14.VotingUtil.Info;
 import hr.fer.zemris.java.hw14.VotingUtil.Poll;
 import hr.fer.zemris.java.hw14.VotingUtil.WebsiteInfo;
+import hr.fer.zemris.java.hw14.events.VoteEventStore;
+import hr.fer.zemris.java.hw14.jfr.DaoCallEvent;
+import hr.fer.zemris.java.hw14.jfr.Flight;
+import hr.fer.zemris.java.hw14.jfr.VoteEvent;
 import hr.fer.zemris.java.tecaj_14.dao.DAO;
 import hr.fer.zemris.java.tecaj_14.dao.DAOException;
+import hr.fer.zemris.java.tecaj_14.dao.DAOProvider;
+import hr.fer.zemris.java.tecaj_14.dao.NoSuchPollException;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * Ovo je implementacija podsustava DAO uporabom tehnologije SQL. Ova
- * konkretna implementacija očekuje da joj veza stoji na raspolaganju
- * preko {@link SQLConnectionProvider} razreda, što znači da bi netko
- * prije no što izvođenje dođe do ove točke to trebao tamo postaviti.
- * U web-aplikacijama tipično rješenje je konfigurirati jedan filter
- * koji će presresti pozive servleta i prije toga ovdje ubaciti jednu
- * vezu iz connection-poola, a po zavrsetku obrade je maknuti.
+ * konkretna implementacija veze dohvaća iz {@link DBContext} konteksta koji
+ * joj je predan pri stvaranju. U web-aplikacijama tipično rješenje je
+ * konfigurirati jedan filter koji će za svaki zahtjev stvoriti kontekst, a po
+ * završetku obrade vratiti njegove veze u connection-pool; servleti tada DAO
+ * dohvaćaju s kontekstom zahtjeva preko {@link DAOProvider#getDao(DBContext)}.
+ * Kako kontekst nije vezan uz dretvu, obrada se može predati i drugim
+ * dretvama.
+ * <p>
+ * Metode koje samo čitaju podatke koriste vezu za čitanje, koja može dolaziti
+ * iz zasebnog poola (primjerice prema replici baze), dok metode koje mijenjaju
+ * podatke uvijek koriste vezu za pisanje.
+ * <p>
+ * Glas se u bazi uvećava samo ako anketa nije zatvorena (stupac
+ * <code>closedAt</code> tablice <code>Polls</code>), tako da glas koji je
+ * prošao provjeru u memoriji ne može stići nakon zatvaranja ankete.
+ * <p>
+ * Svaki poziv bilježi se kao JFR događaj ({@link DaoCallEvent} za čitanja,
+ * {@link VoteEvent} za glasove) ako izvršna okolina podržava JFR.
+ * <p>
+ * Svaki uspješno pohranjeni glas bilježi se i u {@link VoteEventStore}, zajedno
+ * s otiskom klijenta iz konteksta pristupa bazi.
  *
  * @author marcupic
  */
 public class SQLDAO implements DAO {
 
+    /** Kontekst pristupa bazi, ili <code>null</code> ako ga nema. */
+    private final DBContext context;
+
+    /**
+     * Stvara DAO koji veze dohvaća iz zadanog konteksta. DAO bez konteksta
+     * služi samo za stvaranje DAO objekata s kontekstom.
+     *
+     * @param context kontekst pristupa bazi, ili <code>null</code>
+     */
+    public SQLDAO(DBContext context) {
+        this.context = context;
+    }
+
+    @Override
+    public DAO withContext(DBContext context) {
+        return new SQLDAO(context);
+    }
+
+    /**
+     * Dohvati kontekst ovog DAO objekta.
+     *
+     * @return kontekst pristupa bazi
+     * @throws DAOException ako DAO nema kontekst
+     */
+    private DBContext context() {
+        if (context == null) {
+            throw new DAOException("No database context.");
+        }
+        return context;
+    }
+
+    /**
+     * Dohvati vezu za pisanje iz konteksta ovog DAO objekta.
+     *
+     * @return vezu prema bazi podataka
+     */
+    private Connection connection() {
+        return context().getConnection();
+    }
+
+    /**
+     * Zabilježi zadani broj glasova za opciju sa zadanim identifikatorom u
+     * {@link VoteEventStore}, s otiskom klijenta iz konteksta ovog DAO objekta.
+     *
+     * @param id identifikator opcije
+     * @param count broj glasova
+     */
+    private void record(long id, long count) {
+        VoteEventStore.record(id, count, context.getFingerprint());
+    }
+
+    /**
+     * Dohvati vezu za čitanje iz konteksta ovog DAO objekta.
+     *
+     * @return vezu prema bazi podataka za čitanje
+     */
+    private Connection readConnection() {
+        return context().getReadConnection();
+    }
+
     @Override
     public Poll getPoll(long pollID) throws DAOException {
-        Connection con = SQLConnectionProvider.getConnection();
+        DaoCallEvent event = Flight.ENABLED ? new DaoCallEvent("getPoll", pollID) : null;
         PreparedStatement pst = null;
 
         Poll poll = null;
+        boolean success = false;
         try {
+            Connection con = readConnection();
             pst = con.prepareStatement("SELECT id, title, message FROM Polls WHERE id = ?");
             pst.setLong(1, pollID);
             ResultSet rset = pst.executeQuery();
@@ -45,8 +129,10 @@ public class SQLDAO implements DAO {
                     String message = rset.getString(3);
 
                     poll = new Poll(id, title, message);
+                    success = true;
                 } else {
-                    throw new DAOException("Failed to retrieve poll from poll ID.");
+                    success = true;
+                    throw new NoSuchPollException(pollID);
                 }
             } finally {
                 try { rset.close(); } catch (SQLException ignorable) {}
@@ -55,6 +141,9 @@ public class SQLDAO implements DAO {
             throw new DAOException(e);
         } finally {
             try { pst.close(); } catch (Exception ignorable) {}
+            if (event != null) {
+                event.finish(poll == null ? 0 : 1, success);
+            }
         }
 
         return poll;
@@ -62,10 +151,12 @@ public class SQLDAO implements DAO {
 
     @Override
     public List<Poll> getPollList() throws DAOException {
-        Connection con = SQLConnectionProvider.getConnection();
+        DaoCallEvent event = Flight.ENABLED ? new DaoCallEvent("getPollList", -1) : null;
+        Connection con = readConnection();
         PreparedStatement pst = null;
 
         List<Poll> pollList = new ArrayList<>();
+        boolean success = false;
         try {
             pst = con.prepareStatement("SELECT id, title, message FROM Polls ORDER BY id");
             ResultSet rset = pst.executeQuery();
@@ -77,6 +168,7 @@ public class SQLDAO implements DAO {
 
                     pollList.add(new Poll(id, title, message));
                 }
+                success = true;
             } finally {
                 try { rset.close(); } catch (SQLException ignorable) {}
             }
@@ -84,6 +176,9 @@ public class SQLDAO implements DAO {
             throw new DAOException(e);
         } finally {
             try { pst.close(); } catch (Exception ignorable) {}
+            if (event != null) {
+                event.finish(pollList.size(), success);
+            }
         }
 
         return pollList;
@@ -91,7 +186,31 @@ public class SQLDAO implements DAO {
 
     @Override
     public List<Info> getInfoList(long pollID) throws DAOException {
-        Connection con = SQLConnectionProvider.getConnection();
+        DaoCallEvent event = Flight.ENABLED ? new DaoCallEvent("getInfoList", pollID) : null;
+        List<Info> infoList = null;
+        try {
+            infoList = selectInfoList(readConnection(), pollID);
+            return infoList;
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        } finally {
+            if (event != null) {
+                event.finish(infoList == null ? 0 : infoList.size(), infoList != null);
+            }
+        }
+    }
+
+    /**
+     * Selects poll options for the specified <tt>pollID</tt> using the
+     * specified connection <tt>con</tt> and returns them as a list of info
+     * objects.
+     *
+     * @param con connection used for preparing statements
+     * @param pollID poll ID
+     * @return a list of info objects
+     * @throws SQLException if a SQL exception occurs
+     */
+    private static List<Info> selectInfoList(Connection con, long pollID) throws SQLException {
         PreparedStatement pst = null;
 
         List<Info> infoList;
@@ -107,8 +226,6 @@ public class SQLDAO implements DAO {
             } finally {
                 try { rset.close(); } catch (SQLException ignorable) {}
             }
-        } catch (SQLException e) {
-            throw new DAOException(e);
         } finally {
             try { pst.close(); } catch (Exception ignorable) {}
         }
@@ -119,7 +236,9 @@ public class SQLDAO implements DAO {
     /**
      * Determines the info list type from the <tt>pollID</tt> that should be
      * returned and returns it by obtaining a result set from the <tt>rset</tt>
-     * and creating new info objects on the way.
+     * and creating new info objects on the way. Options of the band poll are
+     * bands; options of every other poll, including polls added to the
+     * definitions later, are websites, whose link is shown as it is.
      *
      * @param pollID poll ID
      * @param rset the result set
@@ -127,12 +246,11 @@ public class SQLDAO implements DAO {
      * @throws SQLException if a SQL exception occurs
      */
     private static List<Info> determineInfoListType(long pollID, ResultSet rset) throws SQLException {
-        if (pollID == Inicijalizacija.pollIDs.get("Glasanje za omiljeni bend")) {
+        Long bandsPollID = Inicijalizacija.pollIDs.get("Glasanje za omiljeni bend");
+        if (bandsPollID != null && pollID == bandsPollID) {
             return getBandList(rset);
-        } else if (pollID == Inicijalizacija.pollIDs.get("Glasanje za omiljenu web stranicu")) {
-            return getWebsiteList(rset);
         } else {
-            throw new SQLException("Poll ID not available.");
+            return getWebsiteList(rset);
         }
     }
 
@@ -183,25 +301,122 @@ public class SQLDAO implements DAO {
     }
 
     @Override
-    public void vote(long id) throws DAOException {
-        Connection con = SQLConnectionProvider.getConnection();
+    public void vote(long pollID, long id) throws DAOException {
+        VoteEvent event = Flight.ENABLED ? new VoteEvent("vote", pollID, id, 1, 1) : null;
+        Connection con = connection();
         PreparedStatement pst = null;
 
+        boolean success = false;
         try {
             pst = con.prepareStatement("UPDATE PollOptions SET votesCount=votesCount+1"+
-                                       " WHERE id = ?");
+                                       " WHERE id = ? AND pollID = ?"+
+                                       " AND pollID IN (SELECT id FROM Polls WHERE closedAt IS NULL)");
             pst.setLong(1, id);
+            pst.setLong(2, pollID);
 
             try {
                 int affectedRows = pst.executeUpdate();
                 if (affectedRows != 1){
                     throw new DAOException("Failed to update poll options row.");
                 }
+                success = true;
+                record(id, 1);
             } finally {
                 try { pst.close(); } catch(Exception ignorable) {}
             }
         } catch (Exception e) {
             throw new DAOException(e);
+        } finally {
+            if (event != null) {
+                event.finish(success);
+            }
+        }
+    }
+
+    @Override
+    public List<Info> voteAndGetInfoList(long pollID, long id) throws DAOException {
+        VoteEvent event = Flight.ENABLED ? new VoteEvent("voteAndGetInfoList", pollID, id, 1, 1) : null;
+        Connection con = connection();
+        PreparedStatement pst = null;
+
+        boolean success = false;
+        boolean autoCommit = true;
+        try {
+            autoCommit = con.getAutoCommit();
+            con.setAutoCommit(false);
+
+            pst = con.prepareStatement("UPDATE PollOptions SET votesCount=votesCount+1"+
+                                       " WHERE id = ? AND pollID = ?"+
+                                       " AND pollID IN (SELECT id FROM Polls WHERE closedAt IS NULL)");
+            pst.setLong(1, id);
+            pst.setLong(2, pollID);
+
+            int affectedRows = pst.executeUpdate();
+            if (affectedRows != 1) {
+                throw new DAOException("Failed to update poll options row.");
+            }
+
+            List<Info> infoList = selectInfoList(con, pollID);
+            con.commit();
+            success = true;
+            record(id, 1);
+            return infoList;
+        } catch (Exception e) {
+            try { con.rollback(); } catch (SQLException ignorable) {}
+            throw e instanceof DAOException ? (DAOException) e : new DAOException(e);
+        } finally {
+            try { pst.close(); } catch (Exception ignorable) {}
+            try { con.setAutoCommit(autoCommit); } catch (SQLException ignorable) {}
+            if (event != null) {
+                event.finish(success);
+            }
+        }
+    }
+
+    @Override
+    public int[] voteBatch(long pollID, long[] ids, long[] counts) throws DAOException {
+        VoteEvent event = Flight.ENABLED
+                ? new VoteEvent("voteBatch", pollID, -1, ids.length, Arrays.stream(counts).sum())
+                : null;
+        Connection con = connection();
+        PreparedStatement pst = null;
+
+        boolean success = false;
+        boolean autoCommit = true;
+        try {
+            autoCommit = con.getAutoCommit();
+            con.setAutoCommit(false);
+
+            // a count that would overflow updates no rows instead of failing the batch
+            pst = con.prepareStatement("UPDATE PollOptions SET votesCount=votesCount+?"+
+                                       " WHERE id = ? AND pollID = ? AND votesCount <= ?"+
+                                       " AND pollID IN (SELECT id FROM Polls WHERE closedAt IS NULL)");
+            for (int i = 0; i < ids.length; i++) {
+                pst.setLong(1, counts[i]);
+                pst.setLong(2, ids[i]);
+                pst.setLong(3, pollID);
+                pst.setLong(4, Long.MAX_VALUE - counts[i]);
+                pst.addBatch();
+            }
+
+            int[] affectedRows = pst.executeBatch();
+            con.commit();
+            success = true;
+            for (int i = 0; i < ids.length; i++) {
+                if (affectedRows[i] != 0) {
+                    record(ids[i], counts[i]);
+                }
+            }
+            return affectedRows;
+        } catch (Exception e) {
+            try { con.rollback(); } catch (SQLException ignorable) {}
+            throw new DAOException(e);
+        } finally {
+            try { pst.close(); } catch (Exception ignorable) {}
+            try { con.setAutoCommit(autoCommit); } catch (SQLException ignorable) {}
+            if (event != null) {
+                event.finish(success);
+            }
         }
     }
 
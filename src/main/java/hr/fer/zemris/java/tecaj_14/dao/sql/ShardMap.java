@@ -0,0 +1,184 @@
+package hr.fer.zemris.java.tecaj_14.dao.sql;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * A map that tells which shard owns each poll. By default a poll is owned by
+ * the shard <tt>pollID % shards</tt>, while explicit assignments are read from
+ * a properties file where each key is a poll ID and each value is a shard
+ * index.
+ * <p>
+ * The file is checked for modifications at most once per second, so the map
+ * can be changed without restarting the application. Assignments made by
+ * {@linkplain #assign(long, int)} are written back to the file.
+ * <p>
+ * Only the owner is changed by an edit of the file, not the vote counts: the
+ * poll continues from whatever counts its new owner holds, and the votes
+ * counted by the old owner are left behind. Polls should therefore be moved
+ * with {@linkplain ShardRoutingDAO#movePoll(long, int)}, which copies the
+ * counts first. A reloaded file that changes the owner of a poll is logged
+ * as a warning.
+ *
+ * @author Mario Bobic
+ */
+public class ShardMap {
+
+    /** Minimum interval between two checks of the file, in milliseconds. */
+    private static final long CHECK_INTERVAL = 1000;
+    /** Logger of this class. */
+    private static final Logger LOGGER = Logger.getLogger(ShardMap.class.getName());
+
+    /** Path to the shard map file. */
+    private final Path path;
+    /** Number of shards. */
+    private final int shards;
+
+    /** Explicit assignments of poll IDs to shards. */
+    private volatile Map<Long, Integer> assignments = new HashMap<>();
+    /** Last modification time of the file that was loaded. */
+    private volatile long loadedModified = -1;
+    /** Time of the next check of the file. */
+    private volatile long nextCheck;
+
+    /**
+     * Constructs an instance of {@code ShardMap} backed by the file with the
+     * specified <tt>path</tt> for the specified number of <tt>shards</tt>.
+     * The file does not have to exist.
+     *
+     * @param path path to the shard map file
+     * @param shards number of shards
+     */
+    public ShardMap(Path path, int shards) {
+        this.path = path;
+        this.shards = shards;
+        reloadIfModified();
+    }
+
+    /**
+     * Returns the number of shards.
+     *
+     * @return the number of shards
+     */
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * Returns the index of the shard that owns the poll with the specified
+     * <tt>pollID</tt>.
+     *
+     * @param pollID poll ID
+     * @return the index of the shard that owns the poll
+     */
+    public int shardOf(long pollID) {
+        long now = System.currentTimeMillis();
+        if (now >= nextCheck) {
+            nextCheck = now + CHECK_INTERVAL;
+            reloadIfModified();
+        }
+
+        Integer shard = assignments.get(pollID);
+        return shard != null ? shard : (int) Math.floorMod(pollID, (long) shards);
+    }
+
+    /**
+     * Assigns the poll with the specified <tt>pollID</tt> to the specified
+     * <tt>shard</tt> and writes the assignment to the file.
+     *
+     * @param pollID poll ID
+     * @param shard index of the shard
+     * @throws IOException if the file can not be written
+     */
+    public synchronized void assign(long pollID, int shard) throws IOException {
+        if (shard < 0 || shard >= shards) {
+            throw new IllegalArgumentException("Invalid shard index: " + shard);
+        }
+
+        Map<Long, Integer> newAssignments = new HashMap<>(assignments);
+        newAssignments.put(pollID, shard);
+
+        Properties properties = new Properties();
+        newAssignments.forEach((id, s) -> properties.setProperty(id.toString(), s.toString()));
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            properties.store(out, "Poll ID to shard index");
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        assignments = newAssignments;
+        loadedModified = Files.getLastModifiedTime(path).toMillis();
+    }
+
+    /**
+     * Logs a warning for every poll whose owner differs between the current
+     * and the specified <tt>newAssignments</tt>.
+     *
+     * @param newAssignments the assignments about to replace the current ones
+     */
+    private void warnMoved(Map<Long, Integer> newAssignments) {
+        Map<Long, Integer> oldAssignments = assignments;
+        Set<Long> pollIDs = new HashSet<>(oldAssignments.keySet());
+        pollIDs.addAll(newAssignments.keySet());
+        for (long pollID : pollIDs) {
+            int oldShard = oldAssignments.getOrDefault(pollID, (int) Math.floorMod(pollID, (long) shards));
+            int newShard = newAssignments.getOrDefault(pollID, (int) Math.floorMod(pollID, (long) shards));
+            if (oldShard != newShard) {
+                LOGGER.warning("Shard map file moved poll " + pollID + " from shard " + oldShard + " to shard "
+                        + newShard + " without copying its vote counts; use /shard-move to move polls.");
+            }
+        }
+    }
+
+    /**
+     * Reloads the assignments if the file was modified since it was last
+     * loaded. Invalid lines are skipped and a file that can not be read leaves
+     * the current assignments in place.
+     */
+    private synchronized void reloadIfModified() {
+        try {
+            if (!Files.isRegularFile(path)) {
+                return;
+            }
+            long modified = Files.getLastModifiedTime(path).toMillis();
+            if (modified == loadedModified) {
+                return;
+            }
+
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(path)) {
+                properties.load(in);
+            }
+
+            Map<Long, Integer> newAssignments = new HashMap<>();
+            for (String key : properties.stringPropertyNames()) {
+                try {
+                    long pollID = Long.parseLong(key.trim());
+                    int shard = Integer.parseInt(properties.getProperty(key).trim());
+                    if (shard >= 0 && shard < shards) {
+                        newAssignments.put(pollID, shard);
+                    }
+                } catch (NumberFormatException ignorable) {
+                }
+            }
+
+            if (loadedModified != -1) {
+                warnMoved(newAssignments);
+            }
+            assignments = newAssignments;
+            loadedModified = modified;
+        } catch (IOException ignorable) {
+        }
+    }
+
+}
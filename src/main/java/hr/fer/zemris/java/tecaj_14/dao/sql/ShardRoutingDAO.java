@@ -0,0 +1,570 @@
+package hr.fer.zemris.java.tecaj_14.dao.sql;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+import javax.sql.DataSource;
+
+import hr.fer.zemris.java.hw14.VotingUtil.Info;
+import hr.fer.zemris.java.hw14.VotingUtil.Poll;
+import hr.fer.zemris.java.tecaj_14.dao.DAO;
+import hr.fer.zemris.java.tecaj_14.dao.DAOException;
+
+/**
+ * A DAO implementation that partitions polls across several databases, called
+ * shards. Every shard holds the same poll definitions (they are seeded from the
+ * same definition files, so poll and option IDs match across shards), but only
+ * the shard that owns a poll, as told by the {@linkplain ShardMap}, holds its
+ * authoritative vote counts.
+ * <p>
+ * Shard <tt>0</tt> is the primary database, accessed through the connections
+ * of the {@linkplain DBContext} the DAO was {@linkplain #withContext(DBContext)
+ * given}. For any other shard a connection is borrowed from that shard's pool
+ * for the duration of the call. The routing state is shared by the DAO made
+ * at startup and all DAOs made from it for a context. All calls concerning a single poll are routed to its owning
+ * shard, while {@linkplain #getPollList()} queries all shards in parallel and
+ * keeps from each shard only the polls it owns.
+ * <p>
+ * A poll can be moved to another shard while votes keep coming in with
+ * {@linkplain #movePoll(long, int)}. During the move, votes for the poll are
+ * buffered in memory and applied to the new owner once the vote counts have
+ * been copied. If the buffered votes can not be applied, they stay buffered,
+ * still counted in the results, until the next move of the poll applies them.
+ * <p>
+ * Polls must be moved only with {@linkplain #movePoll(long, int)}. Editing the
+ * {@linkplain ShardMap shard map} file by hand changes the owner without
+ * copying the vote counts, so the poll continues from whatever counts the new
+ * owner has.
+ *
+ * @author Mario Bobic
+ */
+public class ShardRoutingDAO implements DAO {
+
+    /** Database context of the DAO, or <tt>null</tt>. */
+    private final DBContext context;
+    /** Pools of the shards, where index <tt>0</tt> is the primary pool. */
+    private final List<DataSource> shards;
+    /** Pool used by the scatter-gather reads of the primary shard. */
+    private final DataSource primaryRead;
+    /** Map of poll owners. */
+    private final ShardMap shardMap;
+    /** Executor of the scatter-gather reads. */
+    private final ExecutorService executor;
+
+    /** Cache of poll IDs mapped by option IDs. */
+    private final Map<Long, Long> optionPolls;
+    /** Locks that keep votes out of a poll while its move is switched. */
+    private final Map<Long, ReadWriteLock> locks;
+    /** Votes buffered for polls being moved, mapped by option ID. */
+    private final Map<Long, Map<Long, LongAdder>> buffers;
+    /** Lock that lets one poll be moved at a time. */
+    private final Object moveLock;
+
+    /**
+     * Constructs an instance of {@code ShardRoutingDAO} with the specified
+     * shard pools, without a database context.
+     *
+     * @param shards pools of the shards, where index <tt>0</tt> is the primary
+     *        (write) pool
+     * @param primaryRead read pool of the primary shard
+     * @param shardMap map of poll owners
+     */
+    public ShardRoutingDAO(List<DataSource> shards, DataSource primaryRead, ShardMap shardMap) {
+        this.context = null;
+        this.shards = new ArrayList<>(shards);
+        this.primaryRead = primaryRead;
+        this.shardMap = shardMap;
+        this.executor = Executors.newFixedThreadPool(shards.size(), r -> {
+            Thread t = new Thread(r, "shard-scatter");
+            t.setDaemon(true);
+            return t;
+        });
+        this.optionPolls = new ConcurrentHashMap<>();
+        this.locks = new ConcurrentHashMap<>();
+        this.buffers = new ConcurrentHashMap<>();
+        this.moveLock = new Object();
+    }
+
+    /**
+     * Constructs an instance of {@code ShardRoutingDAO} sharing the routing
+     * state of the specified DAO and using the specified database context.
+     *
+     * @param other DAO whose routing state is shared
+     * @param context database context
+     */
+    private ShardRoutingDAO(ShardRoutingDAO other, DBContext context) {
+        this.context = context;
+        this.shards = other.shards;
+        this.primaryRead = other.primaryRead;
+        this.shardMap = other.shardMap;
+        this.executor = other.executor;
+        this.optionPolls = other.optionPolls;
+        this.locks = other.locks;
+        this.buffers = other.buffers;
+        this.moveLock = other.moveLock;
+    }
+
+    @Override
+    public DAO withContext(DBContext context) {
+        return new ShardRoutingDAO(this, context);
+    }
+
+    /**
+     * Shuts down the executor of the scatter-gather reads.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public Poll getPoll(long pollID) throws DAOException {
+        return onShard(shardMap.shardOf(pollID), false, ctx -> new SQLDAO(ctx).getPoll(pollID));
+    }
+
+    @Override
+    public List<Poll> getPollList() throws DAOException {
+        List<Future<List<Poll>>> futures = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            int shard = i;
+            DataSource ds = shard == 0 ? primaryRead : shards.get(shard);
+            futures.add(executor.submit(() -> {
+                List<Poll> owned = withConnection(ds, ctx -> new SQLDAO(ctx).getPollList());
+                owned.removeIf(poll -> shardMap.shardOf(poll.id) != shard);
+                return owned;
+            }));
+        }
+
+        List<Poll> pollList = new ArrayList<>();
+        try {
+            for (Future<List<Poll>> future : futures) {
+                pollList.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DAOException(e);
+        } catch (ExecutionException e) {
+            throw new DAOException(e.getCause());
+        }
+
+        pollList.sort(Comparator.comparingLong(Poll::getId));
+        return pollList;
+    }
+
+    @Override
+    public List<Info> getInfoList(long pollID) throws DAOException {
+        List<Info> infoList = onShard(shardMap.shardOf(pollID), false, ctx -> new SQLDAO(ctx).getInfoList(pollID));
+        addBuffered(pollID, infoList);
+        return infoList;
+    }
+
+    @Override
+    public void vote(long pollID, long id) throws DAOException {
+        if (pollOf(id) != pollID) {
+            throw new DAOException("Failed to update poll options row.");
+        }
+
+        ReadWriteLock lock = lockOf(pollID);
+        lock.readLock().lock();
+        try {
+            if (!buffer(pollID, id, 1)) {
+                onShard(shardMap.shardOf(pollID), false, ctx -> {
+                    new SQLDAO(ctx).vote(pollID, id);
+                    return null;
+                });
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Info> voteAndGetInfoList(long pollID, long id) throws DAOException {
+        if (pollOf(id) != pollID) {
+            throw new DAOException("Failed to update poll options row.");
+        }
+
+        ReadWriteLock lock = lockOf(pollID);
+        lock.readLock().lock();
+        try {
+            if (buffer(pollID, id, 1)) {
+                return getInfoList(pollID);
+            }
+            return onShard(shardMap.shardOf(pollID), false, ctx -> new SQLDAO(ctx).voteAndGetInfoList(pollID, id));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int[] voteBatch(long pollID, long[] ids, long[] counts) throws DAOException {
+        ReadWriteLock lock = lockOf(pollID);
+        lock.readLock().lock();
+        try {
+            if (!buffers.containsKey(pollID)) {
+                return onShard(shardMap.shardOf(pollID), false, ctx -> new SQLDAO(ctx).voteBatch(pollID, ids, counts));
+            }
+
+            int[] affectedRows = new int[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                try {
+                    if (pollOf(ids[i]) == pollID && buffer(pollID, ids[i], counts[i])) {
+                        affectedRows[i] = 1;
+                    }
+                } catch (DAOException ignorable) {
+                    // option does not exist
+                }
+            }
+            return affectedRows;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Moves the poll with the specified <tt>pollID</tt> to the shard with the
+     * specified index <tt>target</tt>. Votes for the poll are buffered while
+     * its vote counts are copied from the current owner to the target shard.
+     * Once the shard map is switched, the buffered votes are applied to the
+     * target shard. If the move fails, the buffered votes are applied back to
+     * the current owner.
+     * <p>
+     * If the buffered votes of an earlier move could not be applied, they are
+     * applied to the current owner first, so a failed move can be completed by
+     * moving the poll again, also to the shard it is already on.
+     *
+     * @param pollID poll ID
+     * @param target index of the target shard
+     * @throws DAOException if the poll can not be moved
+     */
+    public void movePoll(long pollID, int target) throws DAOException {
+        synchronized (moveLock) {
+            doMovePoll(pollID, target);
+        }
+    }
+
+    /**
+     * Moves the poll with the specified <tt>pollID</tt> to the shard with the
+     * specified index <tt>target</tt>, while holding the move lock.
+     *
+     * @param pollID poll ID
+     * @param target index of the target shard
+     * @throws DAOException if the poll can not be moved
+     */
+    private void doMovePoll(long pollID, int target) throws DAOException {
+        if (target < 0 || target >= shards.size()) {
+            throw new DAOException("Invalid shard index: " + target);
+        }
+        int source = shardMap.shardOf(pollID);
+        ReadWriteLock lock = lockOf(pollID);
+        if (buffers.containsKey(pollID)) {
+            drain(pollID, source, lock);
+        }
+        if (source == target) {
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            buffers.put(pollID, new ConcurrentHashMap<>());
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        int owner = source;
+        RuntimeException failure = null;
+        try {
+            List<Info> infoList = onShard(source, true, ctx -> new SQLDAO(ctx).getInfoList(pollID));
+            onShard(target, true, ctx -> {
+                copyCounts(ctx.getConnection(), pollID, infoList);
+                return null;
+            });
+            owner = target;
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (owner == target) {
+                try {
+                    shardMap.assign(pollID, target);
+                } catch (IOException e) {
+                    owner = source;
+                    failure = new DAOException("Failed to update the shard map.", e);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        try {
+            drain(pollID, owner, lock);
+        } catch (DAOException e) {
+            if (failure == null) {
+                failure = e;
+            } else {
+                failure.addSuppressed(e);
+            }
+        }
+        if (failure != null) {
+            throw failure instanceof DAOException ? (DAOException) failure : new DAOException(failure);
+        }
+    }
+
+    /**
+     * Stops buffering votes for the poll with the specified <tt>pollID</tt>
+     * and applies the buffered votes to the specified <tt>shard</tt>. If they
+     * can not be applied, buffering is resumed with the votes put back into
+     * the buffer, so they are neither lost nor missing from the results.
+     *
+     * @param pollID poll ID
+     * @param shard index of the shard
+     * @param lock lock of the poll
+     * @throws DAOException if the buffered votes can not be applied
+     */
+    private void drain(long pollID, int shard, ReadWriteLock lock) throws DAOException {
+        Map<Long, LongAdder> buffer;
+        lock.writeLock().lock();
+        try {
+            buffer = buffers.remove(pollID);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (buffer == null || buffer.isEmpty()) {
+            return;
+        }
+
+        try {
+            apply(pollID, shard, buffer);
+        } catch (RuntimeException e) {
+            lock.writeLock().lock();
+            try {
+                Map<Long, LongAdder> retained = buffers.computeIfAbsent(pollID, k -> new ConcurrentHashMap<>());
+                buffer.forEach((id, votes) -> retained.computeIfAbsent(id, k -> new LongAdder()).add(votes.sum()));
+            } finally {
+                lock.writeLock().unlock();
+            }
+            throw e instanceof DAOException ? (DAOException) e : new DAOException(e);
+        }
+    }
+
+    /**
+     * Applies the votes from the specified <tt>buffer</tt> to the poll with
+     * the specified <tt>pollID</tt> on the specified <tt>shard</tt>.
+     *
+     * @param pollID poll ID
+     * @param shard index of the shard
+     * @param buffer buffered votes mapped by option ID
+     */
+    private void apply(long pollID, int shard, Map<Long, LongAdder> buffer) {
+        long[] ids = new long[buffer.size()];
+        long[] counts = new long[buffer.size()];
+        int i = 0;
+        for (Map.Entry<Long, LongAdder> entry : buffer.entrySet()) {
+            ids[i] = entry.getKey();
+            counts[i] = entry.getValue().sum();
+            i++;
+        }
+        onShard(shard, true, ctx -> new SQLDAO(ctx).voteBatch(pollID, ids, counts));
+    }
+
+    /**
+     * Buffers <tt>count</tt> votes for the option with the specified
+     * <tt>id</tt> if the poll with the specified <tt>pollID</tt> is being
+     * moved. Must be called while holding the read lock of the poll.
+     *
+     * @param pollID poll ID
+     * @param id option ID
+     * @param count number of votes
+     * @return true if the votes were buffered, false if the poll is not being
+     *         moved
+     */
+    private boolean buffer(long pollID, long id, long count) {
+        Map<Long, LongAdder> buffer = buffers.get(pollID);
+        if (buffer == null) {
+            return false;
+        }
+        buffer.computeIfAbsent(id, k -> new LongAdder()).add(count);
+        return true;
+    }
+
+    /**
+     * Adds the votes buffered for the poll with the specified <tt>pollID</tt>
+     * to the specified <tt>infoList</tt>, if the poll is being moved.
+     *
+     * @param pollID poll ID
+     * @param infoList info list of the poll
+     */
+    private void addBuffered(long pollID, List<Info> infoList) {
+        Map<Long, LongAdder> buffer = buffers.get(pollID);
+        if (buffer == null) {
+            return;
+        }
+        for (Info info : infoList) {
+            LongAdder votes = buffer.get(info.id);
+            if (votes != null) {
+                info.vote(votes.sum());
+            }
+        }
+    }
+
+    /**
+     * Returns the lock of the poll with the specified <tt>pollID</tt>.
+     *
+     * @param pollID poll ID
+     * @return the lock of the poll
+     */
+    private ReadWriteLock lockOf(long pollID) {
+        return locks.computeIfAbsent(pollID, k -> new ReentrantReadWriteLock());
+    }
+
+    /**
+     * Returns the ID of the poll the option with the specified <tt>id</tt>
+     * belongs to. Option IDs are the same on all shards, so the primary shard
+     * is asked through the database context and the answer is cached.
+     *
+     * @param id option ID
+     * @return poll ID of the option
+     * @throws DAOException if the option does not exist
+     */
+    private long pollOf(long id) {
+        Long pollID = optionPolls.get(id);
+        if (pollID != null) {
+            return pollID;
+        }
+
+        if (context == null) {
+            throw new DAOException("No database context.");
+        }
+        Connection con = context.getReadConnection();
+        PreparedStatement pst = null;
+        try {
+            pst = con.prepareStatement("SELECT pollID FROM PollOptions WHERE id = ?");
+            pst.setLong(1, id);
+            ResultSet rset = pst.executeQuery();
+            try {
+                if (rset != null && rset.next()) {
+                    pollID = rset.getLong(1);
+                } else {
+                    throw new DAOException("Failed to update poll options row.");
+                }
+            } finally {
+                try { rset.close(); } catch (SQLException ignorable) {}
+            }
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        } finally {
+            try { pst.close(); } catch (Exception ignorable) {}
+        }
+
+        optionPolls.put(id, pollID);
+        return pollID;
+    }
+
+    /**
+     * Sets the vote counts of the options from the specified <tt>infoList</tt>
+     * using the specified connection <tt>con</tt>, in a single transaction.
+     *
+     * @param con connection used for preparing statements
+     * @param pollID poll ID
+     * @param infoList info list with the vote counts
+     * @throws DAOException if a SQL exception occurs
+     */
+    private static void copyCounts(Connection con, long pollID, List<Info> infoList) {
+        PreparedStatement pst = null;
+
+        boolean autoCommit = true;
+        try {
+            autoCommit = con.getAutoCommit();
+            con.setAutoCommit(false);
+
+            pst = con.prepareStatement("UPDATE PollOptions SET votesCount = ?"+
+                                       " WHERE id = ? AND pollID = ?");
+            for (Info info : infoList) {
+                pst.setLong(1, info.getVotes());
+                pst.setLong(2, info.id);
+                pst.setLong(3, pollID);
+                pst.addBatch();
+            }
+            pst.executeBatch();
+            con.commit();
+        } catch (SQLException e) {
+            try { con.rollback(); } catch (SQLException ignorable) {}
+            throw new DAOException(e);
+        } finally {
+            try { pst.close(); } catch (Exception ignorable) {}
+            try { con.setAutoCommit(autoCommit); } catch (SQLException ignorable) {}
+        }
+    }
+
+    /**
+     * Executes the specified <tt>action</tt> on the shard with the specified
+     * index. The primary shard uses the database context of this DAO unless
+     * <tt>borrow</tt> is true, in which case a connection is borrowed from the
+     * primary pool, as it always is for any other shard.
+     *
+     * @param <T> type of the result
+     * @param shard index of the shard
+     * @param borrow true if a connection should be borrowed even for the
+     *        primary shard
+     * @param action action to be executed with a database context of the shard
+     * @return the result of the action
+     */
+    private <T> T onShard(int shard, boolean borrow, Function<DBContext, T> action) {
+        if (shard == 0 && !borrow) {
+            if (context == null) {
+                throw new DAOException("No database context.");
+            }
+            return action.apply(context);
+        }
+        return withConnection(shards.get(shard), action);
+    }
+
+    /**
+     * Executes the specified <tt>action</tt> with a connection borrowed from
+     * the specified pool <tt>ds</tt>, returning it to the pool afterwards. The
+     * fingerprint of the client is taken over from the database context of
+     * this DAO, so votes are recorded with it.
+     *
+     * @param <T> type of the result
+     * @param ds the pool
+     * @param action action to be executed with a database context of the
+     *        connection
+     * @return the result of the action
+     */
+    private <T> T withConnection(DataSource ds, Function<DBContext, T> action) {
+        Connection con;
+        try {
+            con = ds.getConnection();
+        } catch (SQLException e) {
+            throw new DAOException("Database unavailable.", e);
+        }
+
+        try {
+            DBContext borrowed = new DBContext(con);
+            if (context != null) {
+                borrowed.setFingerprint(context.getFingerprint());
+            }
+            return action.apply(borrowed);
+        } finally {
+            try { con.close(); } catch (SQLException ignorable) {}
+        }
+    }
+
+}
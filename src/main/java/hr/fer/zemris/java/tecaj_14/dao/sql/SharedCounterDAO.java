@@ -0,0 +1,190 @@
+package hr.fer.zemris.java.tecaj_14.dao.sql;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import hr.fer.zemris.java.hw14.VotingUtil.Info;
+import hr.fer.zemris.java.hw14.VotingUtil.Poll;
+import hr.fer.zemris.java.hw14.counters.SharedCounters;
+import hr.fer.zemris.java.hw14.events.VoteEventStore;
+import hr.fer.zemris.java.tecaj_14.dao.DAO;
+import hr.fer.zemris.java.tecaj_14.dao.DAOException;
+
+/**
+ * A DAO implementation that counts votes in {@linkplain SharedCounters}
+ * instead of the database and adds the votes not yet flushed to the database
+ * to the vote counts read from it. Polls and options are read from the
+ * delegate DAO.
+ * <p>
+ * Options are added to the shared directory as they are read, so votes for an
+ * option that has not been read yet, or that does not fit in the directory,
+ * are passed on to the delegate DAO. Votes counted here are also recorded in
+ * the {@linkplain VoteEventStore}, as the delegate does for its votes.
+ *
+ * @author Mario Bobic
+ */
+public class SharedCounterDAO implements DAO {
+
+    /** DAO that reads polls and counts the votes the counters can not. */
+    private final DAO delegate;
+    /** The shared counters. */
+    private final SharedCounters counters;
+    /** Database context of the DAO, or <tt>null</tt>. */
+    private final DBContext context;
+
+    /**
+     * Constructs an instance of {@code SharedCounterDAO} with the specified
+     * delegate DAO and counters, without a database context.
+     *
+     * @param delegate DAO that reads polls and counts the other votes
+     * @param counters the shared counters
+     */
+    public SharedCounterDAO(DAO delegate, SharedCounters counters) {
+        this(delegate, counters, null);
+    }
+
+    /**
+     * Constructs an instance of {@code SharedCounterDAO} with the specified
+     * delegate DAO, counters and database context.
+     *
+     * @param delegate DAO that reads polls and counts the other votes
+     * @param counters the shared counters
+     * @param context database context, or <tt>null</tt>
+     */
+    private SharedCounterDAO(DAO delegate, SharedCounters counters, DBContext context) {
+        this.delegate = delegate;
+        this.counters = counters;
+        this.context = context;
+    }
+
+    @Override
+    public DAO withContext(DBContext context) {
+        return new SharedCounterDAO(delegate.withContext(context), counters, context);
+    }
+
+    @Override
+    public Poll getPoll(long pollID) throws DAOException {
+        return delegate.getPoll(pollID);
+    }
+
+    @Override
+    public List<Poll> getPollList() throws DAOException {
+        return delegate.getPollList();
+    }
+
+    @Override
+    public List<Info> getInfoList(long pollID) throws DAOException {
+        List<Info> infoList = delegate.getInfoList(pollID);
+        for (Info info : infoList) {
+            if (counters.pollOf(info.id) < 0) {
+                register(info.id, pollID);
+            }
+            info.vote(counters.pending(info.id));
+        }
+        return infoList;
+    }
+
+    @Override
+    public void vote(long pollID, long id) throws DAOException {
+        long owner = counters.pollOf(id);
+        if (owner < 0) {
+            delegate.vote(pollID, id);
+            return;
+        }
+        if (owner != pollID) {
+            throw new DAOException("Failed to update poll options row.");
+        }
+        counters.add(id, 1);
+        record(id, 1);
+    }
+
+    @Override
+    public List<Info> voteAndGetInfoList(long pollID, long id) throws DAOException {
+        long owner = counters.pollOf(id);
+        if (owner < 0) {
+            return getInfoList(pollID, delegate.voteAndGetInfoList(pollID, id));
+        }
+        if (owner != pollID) {
+            throw new DAOException("Failed to update poll options row.");
+        }
+        counters.add(id, 1);
+        record(id, 1);
+        return getInfoList(pollID);
+    }
+
+    @Override
+    public int[] voteBatch(long pollID, long[] ids, long[] counts) throws DAOException {
+        int[] affectedRows = new int[ids.length];
+        List<Integer> unknown = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            long owner = counters.pollOf(ids[i]);
+            if (owner < 0) {
+                unknown.add(i);
+            } else if (owner == pollID) {
+                counters.add(ids[i], counts[i]);
+                record(ids[i], counts[i]);
+                affectedRows[i] = 1;
+            }
+        }
+
+        if (!unknown.isEmpty()) {
+            long[] unknownIDs = new long[unknown.size()];
+            long[] unknownCounts = new long[unknown.size()];
+            for (int j = 0; j < unknownIDs.length; j++) {
+                unknownIDs[j] = ids[unknown.get(j)];
+                unknownCounts[j] = counts[unknown.get(j)];
+            }
+            int[] rows = delegate.voteBatch(pollID, unknownIDs, unknownCounts);
+            for (int j = 0; j < rows.length; j++) {
+                affectedRows[unknown.get(j)] = rows[j];
+            }
+        }
+        return affectedRows;
+    }
+
+    /**
+     * Adds the unflushed votes to the specified info list of the poll with
+     * the specified <tt>pollID</tt>, read by the delegate, registering its
+     * options.
+     *
+     * @param pollID poll ID
+     * @param infoList info list read by the delegate
+     * @return the info list
+     */
+    private List<Info> getInfoList(long pollID, List<Info> infoList) {
+        for (Info info : infoList) {
+            register(info.id, pollID);
+            info.vote(counters.pending(info.id));
+        }
+        return infoList;
+    }
+
+    /**
+     * Adds the specified option to the directory of the counters.
+     *
+     * @param optionID ID of the option
+     * @param pollID ID of the poll
+     * @throws DAOException if the directory can not be locked
+     */
+    private void register(long optionID, long pollID) {
+        try {
+            counters.register(optionID, pollID);
+        } catch (IOException e) {
+            throw new DAOException("Failed to register option " + optionID + " in shared counters.", e);
+        }
+    }
+
+    /**
+     * Records the specified number of votes for the option with the specified
+     * <tt>id</tt> in the {@linkplain VoteEventStore}, with the fingerprint of
+     * the client from the database context.
+     *
+     * @param id ID of the option
+     * @param count number of votes
+     */
+    private void record(long id, long count) {
+        VoteEventStore.record(id, count, context == null ? 0 : context.getFingerprint());
+    }
+
+}
@@ -1,4 +1,5 @@
 <%@page import="hr.fer.zemris.java.hw14.VotingUtil.Poll"%>
+<%@page import="hr.fer.zemris.java.hw14.ranked.RankedBallots"%>
 <%@page contentType="text/html; charset=UTF-8" pageEncoding="UTF-8" %>
 <%@taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c" %>
 
@@ -12,6 +13,20 @@
       <li><a href="glasanje-glasaj?pollID=<%= poll.id %>&id=${info.id}">${info.name}</a></li>
       </c:forEach>
     </ol>
+    <% if (RankedBallots.getInstance() != null) { %>
+    <h2>Preferencijsko glasanje</h2>
+    <p>Rangirajte opcije upisivanjem njihovih oznaka odvojenih zarezima, od najdraže prema manje dragima:</p>
+    <ul>
+      <c:forEach var="info" items="${infoList}">
+      <li>${info.id} - ${info.name}</li>
+      </c:forEach>
+    </ul>
+    <form action="glasanje-rangiraj" method="post">
+      <input type="hidden" name="pollID" value="<%= poll.id %>" />
+      <input type="text" name="ranking" size="40" />
+      <input type="submit" value="Glasaj" />
+    </form>
+    <% } %>
     <p>Idi <a href="/webapp-baza/index.html">kući</a>.</p>
   </body>
 </html>
@@ -10,23 +10,52 @@
   <body>
     <h1>Rezultati glasanja</h1>
     <p>Ovo su rezultati glasanja.</p>
+    <c:if test="${closed}">
+      <p>Glasanje je zatvoreno, ovo su konačni rezultati.</p>
+    </c:if>
 
     <table border="1" class="rez" style="border-spacing: 0">
       <thead><tr><th>Naslov</th><th>Broj glasova</th></tr></thead>
       <tbody>
 
       <c:forEach var="info" items="${infoList}">
-        <tr><td>${info.name}</td><td>${info.votes}</td></tr>
+        <tr><td>${info.name}</td><td id="votes-${info.id}">${info.votes}</td></tr>
       </c:forEach>
 
       </tbody>
     </table>
 
+    <c:if test="${not empty ranked}">
+    <h2>Preferencijsko glasanje</h2>
+    <p>Broj rangiranih listića: ${ranked.ballots}. Pobjednik: ${empty ranked.winner ? '-' : ranked.winner.name}.</p>
+    <table border="1" class="rez" style="border-spacing: 0">
+      <thead>
+        <tr>
+          <th>Krug</th>
+          <c:forEach var="option" items="${ranked.options}"><th>${option.name}</th></c:forEach>
+          <th>Iscrpljeni</th><th>Ispada</th>
+        </tr>
+      </thead>
+      <tbody>
+
+      <c:forEach var="round" items="${ranked.rounds}">
+        <tr>
+          <td>${round.number}</td>
+          <c:forEach var="votes" items="${round.votes}"><td>${votes < 0 ? '-' : votes}</td></c:forEach>
+          <td>${round.exhausted}</td><td>${round.eliminated.name}</td>
+        </tr>
+      </c:forEach>
+
+      </tbody>
+    </table>
+    </c:if>
+
     <h2>Grafički prikaz rezultata</h2>
-    <img alt="Pie-chart" src="glasanje-grafika?pollID=<%= request.getAttribute("pollID") %>" />
+    <img alt="Pie-chart" src="glasanje-grafika?pollID=<%= request.getAttribute("pollID") %>&snapshot=${snapshotID}" />
+    <img alt="Trend" src="glasanje-grafika?pollID=<%= request.getAttribute("pollID") %>&type=trend&resolution=minute&buckets=60" />
 
     <h2>Rezultati u XLS formatu</h2>
-    <p>Rezultati u XLS formatu dostupni su <a href="glasanje-xls?pollID=<%= request.getAttribute("pollID") %>">ovdje</a></p>
+    <p>Rezultati u XLS formatu dostupni su <a href="glasanje-xls?pollID=<%= request.getAttribute("pollID") %>&snapshot=${snapshotID}">ovdje</a></p>
 
     <h2>Razno</h2>
     <p>Linkovi pobjednika:</p>
@@ -36,5 +65,21 @@
       </c:forEach>
     </ul>
     <p>Idi <a href="/webapp-baza/index.html">kući</a>.</p>
+
+    <c:if test="${not closed}">
+    <script type="text/javascript">
+      if (window.EventSource) {
+        var source = new EventSource("glasanje-live?pollID=<%= request.getAttribute("pollID") %>");
+        source.addEventListener("results", function(e) {
+          JSON.parse(e.data).results.forEach(function(result) {
+            var cell = document.getElementById("votes-" + result.id);
+            if (cell) {
+              cell.textContent = result.votes;
+            }
+          });
+        });
+      }
+    </script>
+    </c:if>
   </body>
 </html>
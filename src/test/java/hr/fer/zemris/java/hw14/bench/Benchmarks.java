@@ -0,0 +1,308 @@
+package hr.fer.zemris.java.hw14.bench;
+
+import java.beans.PropertyVetoException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+
+import hr.fer.zemris.java.hw14.metrics.Histogram;
+import hr.fer.zemris.java.hw14.pool.BagPool;
+
+/**
+ * Shared setup of the benchmarks. The benchmarks run against the Derby network
+ * server the application uses, with a database the application has already
+ * created and filled; votes cast by the benchmarks are counted in it, so a
+ * scratch database should be used. The database is set with system
+ * properties named like the settings in <tt>dbsettings.properties</tt>,
+ * prefixed with <tt>bench.</tt>: <tt>bench.host</tt>, <tt>bench.port</tt>,
+ * <tt>bench.name</tt>, <tt>bench.user</tt> and <tt>bench.password</tt>.
+ *
+ * @author Mario Bobic
+ */
+final class Benchmarks {
+
+    /** Derby client driver class. */
+    private static final String DRIVER_CLASS = "org.apache.derby.jdbc.ClientDriver";
+
+    /**
+     * Disables instantiation.
+     */
+    private Benchmarks() {
+    }
+
+    /**
+     * Returns the benchmark setting with the specified <tt>name</tt>, read
+     * from the system property <tt>bench.</tt><i>name</i>.
+     *
+     * @param name name of the setting
+     * @param defaultValue value returned if the setting is not set
+     * @return the value of the setting
+     */
+    static String setting(String name, String defaultValue) {
+        return System.getProperty("bench." + name, defaultValue);
+    }
+
+    /**
+     * Returns the integer benchmark setting with the specified <tt>name</tt>.
+     *
+     * @param name name of the setting
+     * @param defaultValue value returned if the setting is not set
+     * @return the value of the setting
+     */
+    static int intSetting(String name, int defaultValue) {
+        return Integer.parseInt(setting(name, Integer.toString(defaultValue)));
+    }
+
+    /**
+     * Returns the URL of the benchmark database.
+     *
+     * @return the URL of the benchmark database
+     */
+    private static String url() {
+        return "jdbc:derby://" + setting("host", "localhost") + ":" + setting("port", "1527")
+                + "/" + setting("name", "votingDB");
+    }
+
+    /**
+     * Creates a {@linkplain ComboPooledDataSource} of the benchmark database
+     * with the specified maximum size, configured like the application's.
+     *
+     * @param maxPoolSize maximum number of connections
+     * @return a c3p0 pool
+     */
+    static ComboPooledDataSource c3p0(int maxPoolSize) {
+        ComboPooledDataSource cpds = new ComboPooledDataSource();
+        try {
+            cpds.setDriverClass(DRIVER_CLASS);
+        } catch (PropertyVetoException e) {
+            throw new RuntimeException(e);
+        }
+        cpds.setJdbcUrl(url());
+        cpds.setUser(setting("user", "ivica"));
+        cpds.setPassword(setting("password", "ivo"));
+        cpds.setInitialPoolSize(Math.min(5, maxPoolSize));
+        cpds.setMinPoolSize(Math.min(5, maxPoolSize));
+        cpds.setAcquireIncrement(5);
+        cpds.setMaxPoolSize(maxPoolSize);
+        cpds.setMaxStatementsPerConnection(20);
+        return cpds;
+    }
+
+    /**
+     * Creates and starts a {@linkplain BagPool} of the benchmark database
+     * with the specified maximum size, configured like the application's.
+     *
+     * @param maxPoolSize maximum number of connections
+     * @return a started bag pool
+     */
+    static BagPool bag(int maxPoolSize) {
+        BagPool pool = new BagPool();
+        pool.setDriverClass(DRIVER_CLASS);
+        pool.setJdbcUrl(url());
+        pool.setUser(setting("user", "ivica"));
+        pool.setPassword(setting("password", "ivo"));
+        pool.setMinPoolSize(Math.min(5, maxPoolSize));
+        pool.setMaxPoolSize(maxPoolSize);
+        pool.setCheckoutTimeout(60000);
+        pool.setStatementCacheSize(20);
+        try {
+            pool.start();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        return pool;
+    }
+
+    /**
+     * Closes the specified pool.
+     *
+     * @param ds the pool
+     */
+    static void close(DataSource ds) {
+        if (ds instanceof ComboPooledDataSource) {
+            ((ComboPooledDataSource) ds).close();
+        } else if (ds instanceof BagPool) {
+            ((BagPool) ds).close();
+        }
+    }
+
+    /**
+     * Returns the ID of the poll of the benchmark, set by the
+     * <tt>bench.pollID</tt> setting, or else the poll with the lowest ID.
+     *
+     * @param ds pool of the benchmark database
+     * @return the ID of the poll
+     * @throws SQLException if there are no polls
+     */
+    static long pollID(DataSource ds) throws SQLException {
+        String pollID = setting("pollID", null);
+        if (pollID != null) {
+            return Long.parseLong(pollID);
+        }
+        return queryLong(ds, "SELECT MIN(id) FROM Polls");
+    }
+
+    /**
+     * Returns the IDs of options of the poll with the specified
+     * <tt>pollID</tt>.
+     *
+     * @param ds pool of the benchmark database
+     * @param pollID poll ID
+     * @return IDs of the options of the poll
+     * @throws SQLException if the poll has no options
+     */
+    static long[] optionIDs(DataSource ds, long pollID) throws SQLException {
+        int count = (int) queryLong(ds, "SELECT COUNT(*) FROM PollOptions WHERE pollID = " + pollID);
+        if (count == 0) {
+            throw new SQLException("Poll " + pollID + " has no options; start the application once to fill the database.");
+        }
+        long[] ids = new long[count];
+        try (Connection con = ds.getConnection();
+             PreparedStatement pst = con.prepareStatement("SELECT id FROM PollOptions WHERE pollID = ? ORDER BY id")) {
+            pst.setLong(1, pollID);
+            try (ResultSet rs = pst.executeQuery()) {
+                for (int i = 0; i < count && rs.next(); i++) {
+                    ids[i] = rs.getLong(1);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the first column of the first row of the specified query.
+     *
+     * @param ds pool of the benchmark database
+     * @param sql the query
+     * @return the value of the first column of the first row
+     * @throws SQLException if the query fails or returns no value
+     */
+    static long queryLong(DataSource ds, String sql) throws SQLException {
+        try (Connection con = ds.getConnection();
+             PreparedStatement pst = con.prepareStatement(sql);
+             ResultSet rs = pst.executeQuery()) {
+            if (!rs.next() || rs.getObject(1) == null) {
+                throw new SQLException("No result of: " + sql);
+            }
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * Formats the specified duration in nanoseconds as milliseconds.
+     *
+     * @param nanos duration in nanoseconds
+     * @return the duration in milliseconds
+     */
+    static String millis(long nanos) {
+        return String.format("%.3f ms", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    /**
+     * Formats the specified latencies as their mean, median, 99th percentile
+     * and maximum.
+     *
+     * @param latencies latencies in nanoseconds
+     * @return the formatted latencies
+     */
+    static String latencies(Histogram latencies) {
+        return "mean " + millis(latencies.getMean())
+                + ", p50 " + millis(latencies.getPercentile(50))
+                + ", p99 " + millis(latencies.getPercentile(99))
+                + ", max " + millis(latencies.getMax());
+    }
+
+    /**
+     * Returns the resident memory of the process in kilobytes, or <tt>-1</tt>
+     * if it is not known. Unlike the heap, it includes the stacks of
+     * threads.
+     *
+     * @return the resident memory in kilobytes
+     */
+    private static long residentKilobytes() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | RuntimeException ignorable) {
+            // not Linux
+        }
+        return -1;
+    }
+
+    /**
+     * Samples the used heap and the resident memory in the background and
+     * remembers their peaks, which approximate the memory a run needs better
+     * than the memory at its end.
+     */
+    static class HeapSampler implements AutoCloseable {
+
+        /** Memory bean of the virtual machine. */
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        /** Sampling thread. */
+        private final Thread thread;
+        /** Peak used heap in bytes. */
+        private volatile long peak;
+        /** Peak resident memory in kilobytes, or <tt>-1</tt>. */
+        private volatile long peakResident = -1;
+
+        /**
+         * Starts sampling every 10 milliseconds.
+         */
+        HeapSampler() {
+            System.gc();
+            thread = new Thread(() -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+                    peakResident = Math.max(peakResident, residentKilobytes());
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "heap-sampler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Returns the peak used heap in megabytes.
+         *
+         * @return the peak used heap in megabytes
+         */
+        long getPeakMegabytes() {
+            return Math.max(peak, memory.getHeapMemoryUsage().getUsed()) >> 20;
+        }
+
+        /**
+         * Returns the peak resident memory of the process in megabytes, or
+         * <tt>-1</tt> if it is not known.
+         *
+         * @return the peak resident memory in megabytes
+         */
+        long getPeakResidentMegabytes() {
+            long resident = Math.max(peakResident, residentKilobytes());
+            return resident < 0 ? -1 : resident >> 10;
+        }
+
+        @Override
+        public void close() {
+            thread.interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,288 @@
+package hr.fer.zemris.java.hw14.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sql.DataSource;
+
+import hr.fer.zemris.java.hw14.bench.Benchmarks.HeapSampler;
+import hr.fer.zemris.java.hw14.metrics.Histogram;
+import hr.fer.zemris.java.tecaj_14.dao.AsyncDAO;
+import hr.fer.zemris.java.tecaj_14.dao.DAO;
+import hr.fer.zemris.java.tecaj_14.dao.DAOProvider;
+import hr.fer.zemris.java.tecaj_14.dao.sql.DBContext;
+
+/**
+ * Measures how throughput and memory scale with the number of concurrent
+ * clients for each way of running DAO calls:
+ * <ul>
+ * <li><tt>threads</tt> - one platform thread per client, each calling the DAO
+ * with its own {@linkplain DBContext}, as a servlet container does,</li>
+ * <li><tt>async</tt> - clients chaining calls on the bounded platform pool of
+ * the {@linkplain AsyncDAO}, which rejects calls that do not fit its
+ * queue,</li>
+ * <li><tt>virtual</tt> - clients chaining calls on virtual threads of the
+ * {@linkplain AsyncDAO}, if the runtime has them.</li>
+ * </ul>
+ * Each of <tt>bench.clients</tt> clients (10000 by default) makes
+ * <tt>bench.requests</tt> requests (5 by default) in turn; every
+ * <tt>bench.voteEvery</tt>-th request is a vote and the others read the
+ * results of the poll. The pool has <tt>bench.poolSize</tt> connections (20
+ * by default). For each mode the throughput, latencies, rejected calls, peak
+ * used heap, peak resident memory and peak number of threads are printed.
+ * The modes share one process, so the resident memory of a mode includes
+ * what earlier modes left behind; run one mode per process to compare it. Modes are chosen with the
+ * <tt>bench.modes</tt> setting, separated by commas. See
+ * {@linkplain Benchmarks} for the database settings.
+ *
+ * @author Mario Bobic
+ */
+public class ClientScalingBenchmark {
+
+    /** Number of concurrent clients. */
+    private static final int CLIENTS = Benchmarks.intSetting("clients", 10000);
+    /** Number of requests of each client. */
+    private static final int REQUESTS = Benchmarks.intSetting("requests", 5);
+    /** Every this many requests one is a vote. */
+    private static final int VOTE_EVERY = Benchmarks.intSetting("voteEvery", 10);
+    /** Number of pooled connections. */
+    private static final int POOL_SIZE = Benchmarks.intSetting("poolSize", 20);
+
+    /** Poll of the requests. */
+    private final long pollID;
+    /** Options voted for. */
+    private final long[] optionIDs;
+    /** Pool of connections. */
+    private final DataSource ds;
+
+    /** Latencies of completed requests in nanoseconds. */
+    private final Histogram latencies = new Histogram();
+    /** Number of rejected requests. */
+    private final LongAdder rejected = new LongAdder();
+    /** Number of failed requests. */
+    private final LongAdder failed = new LongAdder();
+    /** First failure, or <tt>null</tt>. */
+    private final AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+
+    /**
+     * Constructs a benchmark of requests to the specified poll.
+     *
+     * @param ds pool of connections
+     * @param pollID poll of the requests
+     * @param optionIDs options voted for
+     */
+    private ClientScalingBenchmark(DataSource ds, long pollID, long[] optionIDs) {
+        this.ds = ds;
+        this.pollID = pollID;
+        this.optionIDs = optionIDs;
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args not used
+     * @throws Exception if the benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        DataSource ds = Benchmarks.c3p0(POOL_SIZE);
+        try {
+            long pollID = Benchmarks.pollID(ds);
+            long[] optionIDs = Benchmarks.optionIDs(ds, pollID);
+            System.out.printf("%d clients x %d requests, poll %d, pool of %d, %s%n",
+                    CLIENTS, REQUESTS, pollID, POOL_SIZE, System.getProperty("java.version"));
+
+            // warm up the pool, the statement cache and the JIT
+            new ClientScalingBenchmark(ds, pollID, optionIDs).run("threads", Math.min(CLIENTS, 200), false);
+            for (String mode : Benchmarks.setting("modes", "threads,async,virtual").split(",")) {
+                new ClientScalingBenchmark(ds, pollID, optionIDs).run(mode.trim(), CLIENTS, true);
+            }
+        } finally {
+            Benchmarks.close(ds);
+        }
+    }
+
+    /**
+     * Runs the specified mode with the specified number of clients.
+     *
+     * @param mode the mode
+     * @param clients number of clients
+     * @param report true if the results should be printed
+     * @throws Exception if the mode fails
+     */
+    private void run(String mode, int clients, boolean report) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        long start;
+        long peakHeap;
+        long peakResident;
+        try (HeapSampler heap = new HeapSampler()) {
+            start = System.nanoTime();
+            switch (mode) {
+            case "threads":
+                runThreads(clients);
+                break;
+            case "async":
+            case "virtual":
+                AsyncDAO dao = new AsyncDAO(ds, ds, POOL_SIZE, mode.equals("virtual"));
+                try {
+                    if (mode.equals("virtual") && !dao.isVirtual()) {
+                        System.out.printf("%-8s not supported by this runtime%n", mode);
+                        return;
+                    }
+                    runAsync(dao, clients);
+                } finally {
+                    dao.shutdown();
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mode: " + mode);
+            }
+            peakHeap = heap.getPeakMegabytes();
+            peakResident = heap.getPeakResidentMegabytes();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (!report) {
+            return;
+        }
+
+        long completed = latencies.getCount();
+        System.out.printf("%-8s %8.0f req/s, %d completed, %d rejected, %d failed, in %s%n",
+                mode, completed * 1e9 / elapsed, completed, rejected.sum(), failed.sum(), Benchmarks.millis(elapsed));
+        System.out.printf("%-8s latency %s%n", "", Benchmarks.latencies(latencies));
+        System.out.printf("%-8s peak heap %d MB, peak resident %d MB, peak threads %d%n",
+                "", peakHeap, peakResident, threads.getPeakThreadCount());
+        if (firstFailure.get() != null) {
+            System.out.printf("%-8s first failure: %s%n", "", firstFailure.get());
+        }
+    }
+
+    /**
+     * Runs every client on its own platform thread.
+     *
+     * @param clients number of clients
+     * @throws InterruptedException if interrupted while waiting for clients
+     */
+    private void runThreads(int clients) throws InterruptedException {
+        CountDownLatch ready = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>(clients);
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            Thread thread = new Thread(() -> {
+                try {
+                    ready.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int r = 0; r < REQUESTS; r++) {
+                    long t = System.nanoTime();
+                    try (DBContext context = new DBContext(ds, ds)) {
+                        DAO dao = DAOProvider.getDao(context);
+                        if (isVote(client, r)) {
+                            dao.vote(pollID, optionOf(client, r));
+                        } else {
+                            dao.getInfoList(pollID);
+                        }
+                        latencies.record(System.nanoTime() - t);
+                    } catch (RuntimeException e) {
+                        fail(e);
+                    }
+                }
+            }, "client-" + c);
+            threads.add(thread);
+            thread.start();
+        }
+        ready.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Runs every client as a chain of calls of the specified DAO, so a client
+     * holds no thread while its call waits.
+     *
+     * @param dao the asynchronous DAO
+     * @param clients number of clients
+     */
+    private void runAsync(AsyncDAO dao, int clients) {
+        List<CompletableFuture<Void>> chains = new ArrayList<>(clients);
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+            for (int r = 0; r < REQUESTS; r++) {
+                int request = r;
+                chain = chain.thenCompose(ignored -> call(dao, client, request));
+            }
+            chains.add(chain);
+        }
+        CompletableFuture.allOf(chains.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    /**
+     * Makes one request of a client with the specified DAO, counting its
+     * latency or its failure. The returned future always completes normally.
+     *
+     * @param dao the asynchronous DAO
+     * @param client index of the client
+     * @param request index of the request of the client
+     * @return a future completed when the request is done
+     */
+    private CompletableFuture<Void> call(AsyncDAO dao, int client, int request) {
+        long t = System.nanoTime();
+        CompletableFuture<?> future = isVote(client, request)
+                ? dao.vote(pollID, optionOf(client, request))
+                : dao.getInfoList(pollID);
+        return future.handle((result, e) -> {
+            if (e == null) {
+                latencies.record(System.nanoTime() - t);
+            } else if (e instanceof RejectedExecutionException || e.getCause() instanceof RejectedExecutionException) {
+                rejected.increment();
+            } else {
+                fail(e);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Counts a failed request, remembering the first failure.
+     *
+     * @param e cause of the failure
+     */
+    private void fail(Throwable e) {
+        failed.increment();
+        firstFailure.compareAndSet(null, e);
+    }
+
+    /**
+     * Returns true if the specified request of the specified client is a
+     * vote.
+     *
+     * @param client index of the client
+     * @param request index of the request of the client
+     * @return true if the request is a vote
+     */
+    private static boolean isVote(int client, int request) {
+        return (client * REQUESTS + request) % VOTE_EVERY == 0;
+    }
+
+    /**
+     * Returns the option the specified request of the specified client votes
+     * for.
+     *
+     * @param client index of the client
+     * @param request index of the request of the client
+     * @return ID of the option
+     */
+    private long optionOf(int client, int request) {
+        return optionIDs[(client + request) % optionIDs.length];
+    }
+
+}
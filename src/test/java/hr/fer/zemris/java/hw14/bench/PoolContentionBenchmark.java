@@ -0,0 +1,134 @@
+package hr.fer.zemris.java.hw14.bench;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sql.DataSource;
+
+import hr.fer.zemris.java.hw14.metrics.Histogram;
+import hr.fer.zemris.java.hw14.pool.BagPool;
+
+/**
+ * Compares checkout contention of the c3p0 pool and the
+ * {@linkplain BagPool}. For every number of threads in <tt>bench.threads</tt>
+ * (<tt>8,64,256</tt> by default), each pool of <tt>bench.poolSize</tt>
+ * connections (20 by default) is hammered for <tt>bench.seconds</tt> seconds
+ * (10 by default) by threads that borrow a connection, optionally run
+ * <tt>VALUES 1</tt> on it if <tt>bench.query</tt> is true, and return it. The
+ * number of checkouts per second and the time spent in
+ * <tt>getConnection</tt> are printed per pool and number of threads. Each
+ * pool is warmed up for a second before it is measured. See
+ * {@linkplain Benchmarks} for the database settings.
+ *
+ * @author Mario Bobic
+ */
+public class PoolContentionBenchmark {
+
+    /** Number of pooled connections. */
+    private static final int POOL_SIZE = Benchmarks.intSetting("poolSize", 20);
+    /** Length of each measurement in seconds. */
+    private static final int SECONDS = Benchmarks.intSetting("seconds", 10);
+    /** True if each checkout runs a query. */
+    private static final boolean QUERY = Boolean.parseBoolean(Benchmarks.setting("query", "false"));
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args not used
+     * @throws Exception if the benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        System.out.printf("pool of %d, %d s per run, %s, %s%n", POOL_SIZE, SECONDS,
+                QUERY ? "VALUES 1 per checkout" : "checkout only", System.getProperty("java.version"));
+        for (String threads : Benchmarks.setting("threads", "8,64,256").split(",")) {
+            int count = Integer.parseInt(threads.trim());
+            for (String type : Benchmarks.setting("pools", "c3p0,bag").split(",")) {
+                DataSource ds = type.trim().equals("bag") ? Benchmarks.bag(POOL_SIZE) : Benchmarks.c3p0(POOL_SIZE);
+                try {
+                    run(ds, count, 1, null);
+                    run(ds, count, SECONDS, type.trim());
+                } finally {
+                    Benchmarks.close(ds);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the specified number of threads against the specified pool for
+     * the specified number of seconds.
+     *
+     * @param ds the pool
+     * @param threads number of threads
+     * @param seconds length of the run in seconds
+     * @param name name of the pool in the report, or <tt>null</tt> if the run
+     *        is not reported
+     * @throws InterruptedException if interrupted while waiting for threads
+     */
+    private static void run(DataSource ds, int threads, int seconds, String name) throws InterruptedException {
+        Histogram waits = new Histogram();
+        LongAdder failed = new LongAdder();
+        CountDownLatch ready = new CountDownLatch(1);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds) + TimeUnit.MILLISECONDS.toNanos(100);
+
+        List<Thread> workers = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    ready.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (System.nanoTime() < end) {
+                    long t = System.nanoTime();
+                    try (Connection con = ds.getConnection()) {
+                        waits.record(System.nanoTime() - t);
+                        if (QUERY) {
+                            query(con);
+                        }
+                    } catch (SQLException e) {
+                        failed.increment();
+                    }
+                }
+            }, "worker-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+
+        Thread.sleep(100);
+        long start = System.nanoTime();
+        ready.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (name == null) {
+            return;
+        }
+
+        System.out.printf("%-5s %4d threads %10.0f checkouts/s, %d failed%n",
+                name, threads, waits.getCount() * 1e9 / elapsed, failed.sum());
+        System.out.printf("%-5s %4s getConnection %s%n", "", "", Benchmarks.latencies(waits));
+    }
+
+    /**
+     * Runs <tt>VALUES 1</tt> on the specified connection.
+     *
+     * @param con the connection
+     * @throws SQLException if the query fails
+     */
+    private static void query(Connection con) throws SQLException {
+        try (PreparedStatement pst = con.prepareStatement("VALUES 1");
+             ResultSet rs = pst.executeQuery()) {
+            rs.next();
+        }
+    }
+
+}
@@ -0,0 +1,226 @@
+package hr.fer.zemris.java.hw14.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sql.DataSource;
+
+import hr.fer.zemris.java.hw14.metrics.Histogram;
+
+/**
+ * Compares the JSON results endpoint <tt>/api/polls/{id}/results</tt> with
+ * the results page <tt>/glasanje-rezultati</tt> rendered by
+ * <tt>votingResults.jsp</tt>, for a large poll, over HTTP against a running
+ * application at <tt>bench.baseUrl</tt>
+ * (<tt>http://localhost:8080/webapp-baza</tt> by default, as started by
+ * <tt>mvn jetty:run</tt>).
+ * <p>
+ * A poll with <tt>bench.options</tt> options (5000 by default) is inserted
+ * into the application's database for the run and deleted afterwards. Each
+ * endpoint is requested with and without gzip by <tt>bench.threads</tt>
+ * threads (16 by default) for <tt>bench.seconds</tt> seconds (10 by default)
+ * after a warm-up of the same length, and the requests per second,
+ * latencies and response sizes are printed. The results page is cached by
+ * the {@linkplain hr.fer.zemris.java.hw14.ResponseCacheFilter response
+ * cache}, so the application should run with <tt>cache.enabled</tt> set to
+ * false to compare rendering rather than cache hits. See
+ * {@linkplain Benchmarks} for the database settings.
+ *
+ * @author Mario Bobic
+ */
+public class ResultsEndpointBenchmark {
+
+    /** Base URL of the application. */
+    private static final String BASE_URL = Benchmarks.setting("baseUrl", "http://localhost:8080/webapp-baza");
+    /** Number of options of the poll. */
+    private static final int OPTIONS = Benchmarks.intSetting("options", 5000);
+    /** Number of requesting threads. */
+    private static final int THREADS = Benchmarks.intSetting("threads", 16);
+    /** Length of each measurement in seconds. */
+    private static final int SECONDS = Benchmarks.intSetting("seconds", 10);
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args not used
+     * @throws Exception if the benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        DataSource ds = Benchmarks.c3p0(2);
+        long pollID = insertPoll(ds);
+        try {
+            System.out.printf("poll %d with %d options, %d threads, %d s per run, %s%n",
+                    pollID, OPTIONS, THREADS, SECONDS, BASE_URL);
+            String[][] endpoints = {
+                    {"jsp", "/glasanje-rezultati?pollID=" + pollID},
+                    {"json", "/api/polls/" + pollID + "/results"}
+            };
+            for (boolean gzip : new boolean[] {false, true}) {
+                for (String[] endpoint : endpoints) {
+                    String name = endpoint[0] + (gzip ? "+gzip" : "");
+                    run(BASE_URL + endpoint[1], gzip, null);
+                    run(BASE_URL + endpoint[1], gzip, name);
+                }
+            }
+        } finally {
+            deletePoll(ds, pollID);
+            Benchmarks.close(ds);
+        }
+    }
+
+    /**
+     * Requests the specified URL from {@value #THREADS} threads and prints
+     * the results.
+     *
+     * @param url the URL
+     * @param gzip true if gzip should be accepted
+     * @param name name of the run in the report, or <tt>null</tt> if the run
+     *        is not reported
+     * @throws InterruptedException if interrupted while waiting for threads
+     */
+    private static void run(String url, boolean gzip, String name) throws InterruptedException {
+        Histogram latencies = new Histogram();
+        LongAdder bytes = new LongAdder();
+        LongAdder failed = new LongAdder();
+        AtomicReference<Exception> firstFailure = new AtomicReference<>();
+        CountDownLatch ready = new CountDownLatch(1);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(SECONDS);
+
+        List<Thread> threads = new ArrayList<>(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    ready.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (System.nanoTime() < end) {
+                    long t = System.nanoTime();
+                    try {
+                        bytes.add(get(url, gzip));
+                        latencies.record(System.nanoTime() - t);
+                    } catch (IOException e) {
+                        failed.increment();
+                        firstFailure.compareAndSet(null, e);
+                    }
+                }
+            }, "client-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+
+        long start = System.nanoTime();
+        ready.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (name == null) {
+            return;
+        }
+
+        long count = latencies.getCount();
+        System.out.printf("%-9s %8.0f req/s, %d bytes per response, %d failed%n",
+                name, count * 1e9 / elapsed, count == 0 ? 0 : bytes.sum() / count, failed.sum());
+        System.out.printf("%-9s latency %s%n", "", Benchmarks.latencies(latencies));
+        if (firstFailure.get() != null) {
+            System.out.printf("%-9s first failure: %s%n", "", firstFailure.get());
+        }
+    }
+
+    /**
+     * Requests the specified URL and reads the whole response body.
+     *
+     * @param url the URL
+     * @param gzip true if gzip should be accepted
+     * @return number of bytes of the body as transferred
+     * @throws IOException if the request fails or is not answered with
+     *         <tt>200 OK</tt>
+     */
+    private static long get(String url, boolean gzip) throws IOException {
+        HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+        if (gzip) {
+            con.setRequestProperty("Accept-Encoding", "gzip");
+        }
+        int status = con.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            con.getErrorStream().close();
+            throw new IOException("Status " + status + " from " + url);
+        }
+
+        long count = 0;
+        byte[] buffer = new byte[8192];
+        try (InputStream in = con.getInputStream()) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                count += read;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Inserts a poll with {@value #OPTIONS} options, each with a different
+     * number of votes.
+     *
+     * @param ds pool of the application's database
+     * @return ID of the poll
+     * @throws SQLException if the poll can not be inserted
+     */
+    private static long insertPoll(DataSource ds) throws SQLException {
+        try (Connection con = ds.getConnection()) {
+            long pollID;
+            try (PreparedStatement pst = con.prepareStatement(
+                    "INSERT INTO Polls(title, message) VALUES (?,?)", Statement.RETURN_GENERATED_KEYS)) {
+                pst.setString(1, "Benchmark poll " + System.currentTimeMillis());
+                pst.setString(2, "Poll with " + OPTIONS + " options inserted by a benchmark.");
+                pst.executeUpdate();
+                try (ResultSet keys = pst.getGeneratedKeys()) {
+                    keys.next();
+                    pollID = keys.getLong(1);
+                }
+            }
+
+            try (PreparedStatement pst = con.prepareStatement(
+                    "INSERT INTO PollOptions(optionTitle, optionLink, pollID, votesCount) VALUES (?,?,?,?)")) {
+                for (int i = 0; i < OPTIONS; i++) {
+                    pst.setString(1, "Option " + i);
+                    pst.setString(2, "https://example.com/options/" + i);
+                    pst.setLong(3, pollID);
+                    pst.setLong(4, (i * 7919L) % 100000);
+                    pst.addBatch();
+                }
+                pst.executeBatch();
+            }
+            return pollID;
+        }
+    }
+
+    /**
+     * Deletes the poll with the specified <tt>pollID</tt> and its options.
+     *
+     * @param ds pool of the application's database
+     * @param pollID ID of the poll
+     * @throws SQLException if the poll can not be deleted
+     */
+    private static void deletePoll(DataSource ds, long pollID) throws SQLException {
+        try (Connection con = ds.getConnection(); Statement st = con.createStatement()) {
+            st.executeUpdate("DELETE FROM PollOptions WHERE pollID = " + pollID);
+            st.executeUpdate("DELETE FROM Polls WHERE id = " + pollID);
+        }
+    }
+
+}